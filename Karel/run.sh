@@ -1,2 +1,2 @@
-javac -cp KarelJRobot.jar -d out src/karel/*.java
-java -cp out:KarelJRobot.jar karel.ControllerMain
+javac -encoding UTF-8 -cp KarelJRobot.jar -d out src/karel/*.java
+java -cp out:KarelJRobot.jar karel.ControllerMain "$@"
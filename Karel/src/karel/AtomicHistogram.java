@@ -0,0 +1,29 @@
+package karel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma log-lineal con los mismos buckets que LatencyHistogram, pero
+ * compartido entre hilos: registrar es un incremento atómico sin locks.
+ * snapshot() copia los conteos a un LatencyHistogram para calcular percentiles.
+ */
+final class AtomicHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(LatencyHistogram.indexOf(nanos));
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    LatencyHistogram snapshot() {
+        long[] c = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < c.length; i++) c[i] = counts.get(i);
+        LatencyHistogram h = new LatencyHistogram();
+        h.addCounts(c, max.get());
+        return h;
+    }
+}
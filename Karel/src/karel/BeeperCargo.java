@@ -0,0 +1,93 @@
+package karel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carga de beepers de un robot y reglas de intercambio en cada celda:
+ * - En el origen A(1,9) o B(11,23), si no llevo carga, reservo hasta load (4 por defecto, "load" en
+ *   el escenario) y pickeo hasta cubrir la reserva o quedarme sin beepers en el piso.
+ * - En el destino de esa carga, dejo todos y notifico.
+ * Lo comparten RacerBot (hilos) y EventSimulation (eventos discretos).
+ */
+final class BeeperCargo {
+    static final int MAX_LOAD = 4;
+
+    private final int load;
+    private int cargoCount = 0;
+    private BeeperExchangeManager.Zone cargoFrom = null;
+
+    BeeperCargo() {
+        this(MAX_LOAD);
+    }
+
+    BeeperCargo(int load) {
+        this.load = load;
+    }
+
+    /**
+     * Aplica las reglas de intercambio en (street, avenue) usando el cuerpo del robot
+     * robotId (que sólo se usa para grabar). Devuelve cuántos beepers entregó (0 si no
+     * descargó nada).
+     */
+    int exchange(RobotBody body, long robotId, int street, int avenue) {
+        BeeperExchangeManager mgr = BeeperExchangeManager.get();
+        if (mgr.isDone()) return 0;
+
+        // Si no llevo nada: intentar cargar en origen si estoy parado allí
+        if (cargoCount == 0) {
+            BeeperExchangeManager.Zone z = mgr.originAt(street, avenue);
+            if (z != null) {
+                int reserve = mgr.reserve(z, load);
+                if (reserve > 0) {
+                    int picked = 0;
+                    while (picked < reserve && body.nextToABeeper()) {
+                        body.pickBeeper();
+                        picked++;
+                    }
+                    if (picked > 0) {
+                        cargoFrom = z;
+                        cargoCount = picked;
+                    }
+                    if (picked < reserve) {
+                        mgr.refund(z, reserve - picked);
+                    }
+                    RaceRecorder.reserve(robotId, z, street, avenue, reserve, picked);
+                }
+            }
+        }
+
+        // Si llevo algo y estoy en el destino correspondiente: descargar
+        if (cargoCount > 0 && cargoFrom != null && mgr.isDropPointFor(cargoFrom, street, avenue)) {
+            int delivered = cargoCount;
+            for (int i = 0; i < delivered; i++) {
+                body.putBeeper();
+            }
+            cargoCount = 0;
+            mgr.delivered(cargoFrom, delivered);
+            RaceRecorder.deliver(robotId, cargoFrom, street, avenue, delivered);
+            cargoFrom = null;
+            return delivered;
+        }
+        return 0;
+    }
+
+    // Checkpoint: beepers en la bolsa y zona de origen (por índice)
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(cargoCount);
+        out.writeInt(cargoFrom == null ? -1 : cargoFrom.index());
+    }
+
+    void readState(DataInput in, List<BeeperExchangeManager.Zone> zones) throws IOException {
+        cargoCount = in.readInt();
+        int from = in.readInt();
+        cargoFrom = from < 0 ? null : zones.get(from);
+    }
+
+    // Reserva por viaje: entregarla completa es lo que dispara la pausa de entrega
+    int load() { return load; }
+    int getCount() { return cargoCount; }
+    BeeperExchangeManager.Zone getFrom() { return cargoFrom; }
+}
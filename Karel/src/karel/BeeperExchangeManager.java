@@ -1,87 +1,216 @@
 package karel;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Gestiona el intercambio de beepers entre dos zonas:
- * - Zona A: origen (1,9) -> destino (15,30)
- * - Zona B: origen (11,23) -> destino (2,9)
- * - Controla stock disponible y beepers en tránsito
- * - Detecta finalización cuando se transfieren todos los beepers
+ * Gestiona el intercambio de beepers entre N zonas (pares origen -> destino):
+ * - En la carrera: zona A (1,9) -> (12,23) y zona B (11,23) -> (2,2)
+ * - Controla stock disponible y beepers en tránsito por zona, con CAS (sin locks)
+ * - La configuración es inmutable: originAt/isDropPointFor no sincronizan
+ * - Detecta finalización cuando todas las zonas transfirieron todo; isDone() es una lectura volatile
  */
 public final class BeeperExchangeManager {
-    public enum Zone { A, B }
-
     private static final BeeperExchangeManager INSTANCE = new BeeperExchangeManager();
 
-    private int aStreet, aAvenue;
-    private int bStreet, bAvenue;
-    private int aDestStreet, aDestAvenue;
-    private int bDestStreet, bDestAvenue;
+    /** Par origen -> destino de una zona con su stock inicial. */
+    public static final class ZoneSpec {
+        public final String name;
+        public final int originStreet, originAvenue;
+        public final int destStreet, destAvenue;
+        public final int stock;
+
+        public ZoneSpec(String name, int originStreet, int originAvenue, int stock, int destStreet, int destAvenue) {
+            if (stock < 0) throw new IllegalArgumentException("Stock negativo en zona " + name);
+            this.name = name;
+            this.originStreet = originStreet;
+            this.originAvenue = originAvenue;
+            this.stock = stock;
+            this.destStreet = destStreet;
+            this.destAvenue = destAvenue;
+        }
+    }
+
+    /**
+     * Zona configurada. El estado (stock restante, en tránsito) vive empaquetado en un
+     * AtomicLong para que ambas cuentas cambien juntas con un solo CAS.
+     */
+    public static final class Zone {
+        private final ZoneSpec spec;
+        private final int index;
+        private final long destKey;
+        private final AtomicLong state;
+
+        private Zone(ZoneSpec spec, int index) {
+            this.spec = spec;
+            this.index = index;
+            this.destKey = key(spec.destStreet, spec.destAvenue);
+            this.state = new AtomicLong(pack(spec.stock, 0));
+        }
+
+        public String name() { return spec.name; }
+        public int index() { return index; }
+        public ZoneSpec spec() { return spec; }
+        public int remaining() { return remainingOf(state.get()); }
+        public int carrying() { return carryingOf(state.get()); }
+
+        @Override
+        public String toString() { return spec.name; }
+    }
+
+    // Configuración inmutable publicada de una vez: zonas y orígenes ordenados para búsqueda binaria
+    private static final class Config {
+        final Zone[] zones;
+        final long[] originKeys;
+        final Zone[] byOrigin;
 
-    private int remainingA;
-    private int remainingB;
-    private int carryingTotal;
+        Config(List<ZoneSpec> specs) {
+            zones = new Zone[specs.size()];
+            for (int i = 0; i < zones.length; i++) zones[i] = new Zone(specs.get(i), i);
+            Zone[] sorted = zones.clone();
+            Arrays.sort(sorted, (x, y) -> Long.compare(key(x.spec.originStreet, x.spec.originAvenue),
+                                                       key(y.spec.originStreet, y.spec.originAvenue)));
+            originKeys = new long[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                originKeys[i] = key(sorted[i].spec.originStreet, sorted[i].spec.originAvenue);
+                if (i > 0 && originKeys[i] == originKeys[i - 1]) {
+                    throw new IllegalArgumentException("Dos zonas con el mismo origen: " + sorted[i] + ", " + sorted[i - 1]);
+                }
+            }
+            byOrigin = sorted;
+        }
+    }
 
-    private boolean initialized = false;
-    private boolean done = false;
+    private volatile Config config = null;
+    // zonas que todavía tienen stock o beepers en tránsito; al llegar a 0 se publica done
+    private final AtomicInteger pendingZones = new AtomicInteger();
+    private volatile boolean done = false;
 
-    private BeeperExchangeManager() {}
+    BeeperExchangeManager() {}
 
-    public static BeeperExchangeManager get() { return INSTANCE; }
+    // La global, o la de la corrida aislada (SimulationScope) que ejecuta este hilo
+    public static BeeperExchangeManager get() {
+        SimulationScope scope = SimulationScope.current();
+        return scope == null ? INSTANCE : scope.exchange;
+    }
 
-    public synchronized void init(int aStreet, int aAvenue, int initA,
-                                    int bStreet, int bAvenue, int initB,
-                                    int aDestStreet, int aDestAvenue,
-                                    int bDestStreet, int bDestAvenue) {
-        this.aStreet = aStreet; this.aAvenue = aAvenue; this.remainingA = initA;
-        this.bStreet = bStreet; this.bAvenue = bAvenue; this.remainingB = initB;
-        this.aDestStreet = aDestStreet; this.aDestAvenue = aDestAvenue;
-        this.bDestStreet = bDestStreet; this.bDestAvenue = bDestAvenue;
-        this.carryingTotal = 0;
-        this.done = (remainingA == 0 && remainingB == 0);
-        this.initialized = true;
+    private static long key(int street, int avenue) {
+        return (((long) street) << 32) | (avenue & 0xffffffffL);
     }
 
-    public synchronized Zone originAt(int street, int avenue) {
-        if (street == aStreet && avenue == aAvenue) return Zone.A;
-        if (street == bStreet && avenue == bAvenue) return Zone.B;
+    private static long pack(int remaining, int carrying) {
+        return (((long) remaining) << 32) | (carrying & 0xffffffffL);
+    }
+
+    private static int remainingOf(long state) { return (int) (state >>> 32); }
+    private static int carryingOf(long state) { return (int) state; }
+
+    // Configuración de la carrera original: dos zonas, A y B
+    public void init(int aStreet, int aAvenue, int initA,
+                     int bStreet, int bAvenue, int initB,
+                     int aDestStreet, int aDestAvenue,
+                     int bDestStreet, int bDestAvenue) {
+        init(Arrays.asList(
+                new ZoneSpec("A", aStreet, aAvenue, initA, aDestStreet, aDestAvenue),
+                new ZoneSpec("B", bStreet, bAvenue, initB, bDestStreet, bDestAvenue)));
+    }
+
+    /**
+     * Reemplaza la configuración. Es de preparación (antes de largar los robots):
+     * las cargas tomadas de una configuración anterior dejan de contar.
+     */
+    public synchronized void init(List<ZoneSpec> specs) {
+        Config c = new Config(new ArrayList<>(specs));
+        int pending = 0;
+        for (Zone z : c.zones) if (z.spec.stock > 0) pending++;
+        done = false;
+        pendingZones.set(pending);
+        config = c;
+        if (pending == 0) done = true;
+    }
+
+    public List<Zone> zones() {
+        Config c = config;
+        return c == null ? Collections.<Zone>emptyList() : Collections.unmodifiableList(Arrays.asList(c.zones));
+    }
+
+    public Zone zone(String name) {
+        Config c = config;
+        if (c == null) return null;
+        for (Zone z : c.zones) if (z.spec.name.equals(name)) return z;
         return null;
     }
 
-    public synchronized boolean isDropPointFor(Zone from, int street, int avenue) {
-        if (from == Zone.A) return street == aDestStreet && avenue == aDestAvenue;
-        if (from == Zone.B) return street == bDestStreet && avenue == bDestAvenue;
-        return false;
+    public Zone originAt(int street, int avenue) {
+        Config c = config;
+        if (c == null) return null;
+        int i = Arrays.binarySearch(c.originKeys, key(street, avenue));
+        return i < 0 ? null : c.byOrigin[i];
     }
 
-    public synchronized int reserve(Zone zone, int max) {
-        if (!initialized || done || max <= 0) return 0;
-        int can = Math.min(max, zone == Zone.A ? remainingA : remainingB);
-        if (can <= 0) return 0;
-        if (zone == Zone.A) remainingA -= can; else remainingB -= can;
-        carryingTotal += can;
-        return can;
+    public boolean isDropPointFor(Zone from, int street, int avenue) {
+        return from != null && from.destKey == key(street, avenue);
     }
 
-    public synchronized void refund(Zone zone, int count) {
-        if (count <= 0) return;
-        if (zone == Zone.A) remainingA += count; else remainingB += count;
-        carryingTotal -= count;
-        if (carryingTotal < 0) carryingTotal = 0;
-        checkDone();
+    public int reserve(Zone zone, int max) {
+        if (zone == null || done || max <= 0) return 0;
+        while (true) {
+            long s = zone.state.get();
+            int remaining = remainingOf(s);
+            int can = Math.min(max, remaining);
+            if (can <= 0) return 0;
+            if (zone.state.compareAndSet(s, pack(remaining - can, carryingOf(s) + can))) return can;
+        }
     }
 
-    public synchronized void delivered(Zone from, int count) {
-        if (count <= 0) return;
-        carryingTotal -= count;
-        if (carryingTotal < 0) carryingTotal = 0;
-        checkDone();
+    public void refund(Zone zone, int count) {
+        if (zone == null || count <= 0) return;
+        while (true) {
+            long s = zone.state.get();
+            int carrying = Math.max(0, carryingOf(s) - count);
+            if (zone.state.compareAndSet(s, pack(remainingOf(s) + count, carrying))) return;
+        }
     }
 
-    private void checkDone() {
-        if (remainingA == 0 && remainingB == 0 && carryingTotal == 0) {
-            done = true;
+    public void delivered(Zone from, int count) {
+        if (from == null || count <= 0) return;
+        Metrics.get().beepersDelivered(from, count);
+        while (true) {
+            long s = from.state.get();
+            int carrying = Math.max(0, carryingOf(s) - count);
+            long next = pack(remainingOf(s), carrying);
+            if (from.state.compareAndSet(s, next)) {
+                // sólo el CAS que deja la zona en (0, 0) la da por terminada: no puede volver a abrirse
+                if (next == 0L && s != 0L) zoneFinished();
+                return;
+            }
         }
     }
 
-    public synchronized boolean isDone() { return done; }
+    /**
+     * Restaura stock y beepers en viaje de cada zona (en el orden de zones()) desde un
+     * checkpoint; como init, es de preparación.
+     */
+    public synchronized void restore(int[] remaining, int[] carrying) {
+        Config c = config;
+        if (c == null || c.zones.length != remaining.length) throw new IllegalStateException("Zonas distintas a las del checkpoint");
+        int pending = 0;
+        for (int i = 0; i < c.zones.length; i++) {
+            Zone z = c.zones[i];
+            z.state.set(pack(remaining[i], carrying[i]));
+            if (z.spec.stock > 0 && (remaining[i] != 0 || carrying[i] != 0)) pending++;
+        }
+        pendingZones.set(pending);
+        done = pending == 0;
+    }
+
+    private void zoneFinished() {
+        if (pendingZones.decrementAndGet() == 0) done = true;
+    }
+
+    public boolean isDone() { return done; }
 }
@@ -0,0 +1,87 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BeeperExchangeManagerTest
+{
+	private final BeeperExchangeManager mgr = BeeperExchangeManager.get();
+
+	@Test
+	public void testZonesResolveOriginsAndDropPoints()
+	{	mgr.init(Arrays.asList(
+				new BeeperExchangeManager.ZoneSpec("A", 1, 9, 3, 12, 23),
+				new BeeperExchangeManager.ZoneSpec("B", 11, 23, 2, 2, 2),
+				new BeeperExchangeManager.ZoneSpec("C", 5, 5, 1, 7, 7)));
+		assertEquals(3, mgr.zones().size());
+		assertSame(mgr.zone("C"), mgr.originAt(5, 5));
+		assertSame(mgr.zone("A"), mgr.originAt(1, 9));
+		assertNull(mgr.originAt(1, 10));
+		assertTrue(mgr.isDropPointFor(mgr.zone("B"), 2, 2));
+		assertFalse(mgr.isDropPointFor(mgr.zone("B"), 12, 23));
+	}
+
+	@Test
+	public void testDoneOnlyWhenEveryZoneDelivered()
+	{	mgr.init(Arrays.asList(
+				new BeeperExchangeManager.ZoneSpec("A", 1, 1, 5, 2, 1),
+				new BeeperExchangeManager.ZoneSpec("B", 1, 2, 2, 2, 2),
+				new BeeperExchangeManager.ZoneSpec("C", 1, 3, 0, 2, 3)));
+		BeeperExchangeManager.Zone a = mgr.zone("A");
+		BeeperExchangeManager.Zone b = mgr.zone("B");
+		assertEquals(4, mgr.reserve(a, 4));
+		assertEquals(1, mgr.reserve(a, 4));
+		assertEquals(0, mgr.reserve(a, 4));
+		mgr.refund(a, 1);
+		assertEquals(1, a.remaining());
+		assertEquals(4, a.carrying());
+		mgr.delivered(a, 4);
+		assertEquals(1, mgr.reserve(a, 4));
+		mgr.delivered(a, 1);
+		assertFalse(mgr.isDone()); // B todavía tiene stock
+		mgr.delivered(b, mgr.reserve(b, 4));
+		assertTrue(mgr.isDone());
+		assertEquals(0, mgr.reserve(b, 4));
+	}
+
+	@Test
+	public void testConcurrentReserveAndDeliverAcrossZones() throws Exception
+	{	final int zones = 4;
+		final int stock = 20000;
+		List<BeeperExchangeManager.ZoneSpec> specs = new ArrayList<>();
+		for (int z = 0; z < zones; z++) specs.add(new BeeperExchangeManager.ZoneSpec("Z" + z, 1, z + 1, stock, 2, z + 1));
+		mgr.init(specs);
+		final int threads = 8;
+		final long[] moved = new long[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final int n = i;
+			new Thread(() -> {
+				BeeperExchangeManager.Zone z = mgr.zones().get(n % zones);
+				int got;
+				while ((got = mgr.reserve(z, 3)) > 0) {
+					if (got > 1) mgr.refund(z, 1); // devuelve uno, como quien no encontró beepers en el piso
+					mgr.delivered(z, got > 1 ? got - 1 : got);
+					moved[n] += got > 1 ? got - 1 : got;
+				}
+				done.countDown();
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		long total = 0;
+		for (long m : moved) total += m;
+		assertEquals((long) zones * stock, total);
+		for (BeeperExchangeManager.Zone z : mgr.zones()) {
+			assertEquals(0, z.remaining());
+			assertEquals(0, z.carrying());
+		}
+		assertTrue(mgr.isDone());
+	}
+}
@@ -0,0 +1,110 @@
+package karel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import kareltherobot.Directions;
+
+/**
+ * Ruta compilada, inmutable y compartida entre todos los robots:
+ * - Coordenadas empaquetadas en arreglos primitivos
+ * - Búsqueda celda -> índice en O(1) con una tabla hash abierta (primera aparición); ocupa
+ *   proporcional a la ruta y no al mundo, así un escenario puede tener miles de rutas
+ * - Dirección de cada paso precalculada (desde el punto anterior, circular)
+ * Cada robot sólo guarda su índice sobre la ruta.
+ */
+final class CompiledRoute implements Directions {
+    private static final Directions.Direction[] DIRS = {North, South, East, West};
+    private static final byte NONE = -1;
+
+    private final int[] streets;
+    private final int[] avenues;
+    private final byte[] stepDir;
+
+    // celda (street << 32 | avenue) -> índice de su primera aparición; slot libre = EMPTY
+    private static final long EMPTY = -1L;
+    private final long[] slotCell;
+    private final int[] slotIndex;
+    private final int slotMask;
+
+    private CompiledRoute(int[] streets, int[] avenues) {
+        int n = streets.length;
+        this.streets = streets;
+        this.avenues = avenues;
+        int capacity = Integer.highestOneBit(Math.max(2, n) * 2 - 1) * 2; // carga <= 1/2
+        slotCell = new long[capacity];
+        slotIndex = new int[capacity];
+        slotMask = capacity - 1;
+        Arrays.fill(slotCell, EMPTY);
+        for (int i = 0; i < n; i++) {
+            if (streets[i] < 0 || avenues[i] < 0) throw new IllegalArgumentException("Celda inválida: " + streets[i] + "," + avenues[i]);
+            long k = key(streets[i], avenues[i]);
+            int slot = slot(k);
+            while (slotCell[slot] != EMPTY && slotCell[slot] != k) slot = (slot + 1) & slotMask;
+            if (slotCell[slot] == EMPTY) {
+                slotCell[slot] = k;
+                slotIndex[slot] = i;
+            }
+        }
+        stepDir = new byte[n];
+        for (int i = 0; i < n; i++) {
+            int prev = (i + n - 1) % n;
+            stepDir[i] = directionCode(streets[prev], avenues[prev], streets[i], avenues[i]);
+        }
+    }
+
+    static CompiledRoute compile(List<int[]> points) {
+        int n = points.size();
+        int[] streets = new int[n];
+        int[] avenues = new int[n];
+        for (int i = 0; i < n; i++) {
+            streets[i] = points.get(i)[0];
+            avenues[i] = points.get(i)[1];
+        }
+        return new CompiledRoute(streets, avenues);
+    }
+
+    // Variante sin int[] por punto (lectura de escenarios); los arreglos se copian
+    static CompiledRoute compile(int[] streets, int[] avenues, int n) {
+        return new CompiledRoute(Arrays.copyOf(streets, n), Arrays.copyOf(avenues, n));
+    }
+
+    int size() { return streets.length; }
+    boolean isEmpty() { return streets.length == 0; }
+    int streetAt(int i) { return streets[i]; }
+    int avenueAt(int i) { return avenues[i]; }
+
+    // Primera posición de (street, avenue) en la ruta, o -1
+    int indexOf(int street, int avenue) {
+        if (street < 0 || avenue < 0) return -1;
+        long k = key(street, avenue);
+        for (int slot = slot(k); ; slot = (slot + 1) & slotMask) {
+            long c = slotCell[slot];
+            if (c == k) return slotIndex[slot];
+            if (c == EMPTY) return -1;
+        }
+    }
+
+    private static long key(int street, int avenue) {
+        return (((long) street) << 32) | (avenue & 0xffffffffL);
+    }
+
+    private int slot(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & slotMask;
+    }
+
+    // Dirección para llegar al punto i desde el anterior, o null si no son celdas vecinas
+    Directions.Direction stepDirection(int i) {
+        byte d = stepDir[i];
+        return d == NONE ? null : DIRS[d];
+    }
+
+    private static byte directionCode(int fs, int fa, int ts, int ta) {
+        if (ts == fs + 1 && ta == fa) return 0;
+        if (ts == fs - 1 && ta == fa) return 1;
+        if (ts == fs && ta == fa + 1) return 2;
+        if (ts == fs && ta == fa - 1) return 3;
+        return NONE;
+    }
+}
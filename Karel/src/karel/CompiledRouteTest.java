@@ -0,0 +1,34 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kareltherobot.Directions;
+
+import org.junit.Test;
+
+public class CompiledRouteTest implements Directions
+{
+	@Test
+	public void testIndexOfAndStepDirections()
+	{	List<int[]> points = new ArrayList<>();
+		points.add(new int[]{1, 1});
+		points.add(new int[]{1, 2});
+		points.add(new int[]{2, 2});
+		points.add(new int[]{2, 1});
+		points.add(new int[]{1, 1});
+		CompiledRoute r = CompiledRoute.compile(points);
+		assertEquals(5, r.size());
+		assertEquals(0, r.indexOf(1, 1)); // primera aparición
+		assertEquals(2, r.indexOf(2, 2));
+		assertEquals(-1, r.indexOf(3, 3));
+		assertEquals(-1, r.indexOf(-1, 0));
+		assertEquals(East, r.stepDirection(1));
+		assertEquals(North, r.stepDirection(2));
+		assertEquals(West, r.stepDirection(3));
+		assertEquals(South, r.stepDirection(4));
+		assertNull(r.stepDirection(0)); // (1,1) -> (1,1) no es un paso
+	}
+}
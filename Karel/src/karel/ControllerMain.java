@@ -1,227 +1,243 @@
 package karel;
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import kareltherobot.*;
 
 /**
  * Controlador principal de la simulación:
- * - Configura el mundo y sistemas de intercambio de beepers
- * - Define subrutas restringidas y rutas alternativas
- * - Crea y lanza múltiples robots con coordenadas iniciales específicas
+ * - Lee el escenario (--scenario=F, por defecto race.scn): mundo, rutas, subrutas,
+ *   alternativas, zonas de intercambio y salida de los robots
+ * - Configura el mundo, el intercambio de beepers, subrutas y rutas alternativas
+ * - Crea y lanza un robot por cada celda de salida del escenario
+ * - Con --routing=dynamic|cooperative|static se fuerza el ruteo (por defecto el del escenario);
+ *   en dinámico los caminos los calcula el RoutePlanner según muros y congestión, y en
+ *   cooperativo además cada robot reserva sus próximos ticks y los demás lo esquivan
+ * - Con --headless corre sin ventana sobre un WorldModel en memoria y reporta el tiempo total
+ * - Sin --headless los robots también corren sobre el WorldModel y una vista (SnapshotView)
+ *   los dibuja a --fps=N cuadros por segundo (30 por defecto) sin frenarlos; --karel-window
+ *   vuelve a la ventana de KarelJRobot, donde cada acción se dibuja en el hilo del robot
+ * - Con --sim [--seed=N] corre el motor de eventos discretos (un solo hilo, reloj simulado);
+ *   --checkpoint=PREFIJO guarda el estado cada --checkpoint-every=SEGUNDOS simulados (10 por
+ *   defecto) en PREFIJO-<ms>.ckpt y --resume=F sigue la simulación desde uno de ellos
+ * - La carrera con hilos también: --checkpoint detiene a los robots en un punto seguro entre
+ *   dos pasos cada --checkpoint-every=SEGUNDOS reales (admite fracciones) y --resume=F la
+ *   reanuda; los archivos son los mismos que los de --sim (no con --karel-window)
+ * - Con --record=F graba la carrera (cualquier modo) en el archivo binario F (RaceRecorder);
+ *   --replay=F la reproduce sin robots en la vista a --speed=X (1 por defecto) hasta
+ *   --until=SEGUNDOS, o con --headless resume la grabación y el estado en ese instante
+ * - Con --virtual cada robot corre en un hilo virtual (Java 21+) en vez de uno de plataforma
+ * - Con --log-level=LEVEL y --log-file=F se ajusta el registro de eventos (EventLog)
+ * - Las métricas (Metrics) se publican por JMX; con --metrics=SEGUNDOS además se vuelcan al log
  */
 public class ControllerMain implements Directions
 {
+    private static final String HEADLESS_FLAG = "--headless";
+    private static final String SIM_FLAG = "--sim";
+    private static final String VIRTUAL_FLAG = "--virtual";
+    private static final String SEED_PREFIX = "--seed=";
+    private static final String LOG_LEVEL_PREFIX = "--log-level=";
+    private static final String LOG_FILE_PREFIX = "--log-file=";
+    private static final String METRICS_PREFIX = "--metrics=";
+    private static final String SCENARIO_PREFIX = "--scenario=";
+    private static final String ROUTING_PREFIX = "--routing=";
+    private static final String FPS_PREFIX = "--fps=";
+    private static final String KAREL_WINDOW_FLAG = "--karel-window";
+    private static final String RECORD_PREFIX = "--record=";
+    private static final String REPLAY_PREFIX = "--replay=";
+    private static final String SPEED_PREFIX = "--speed=";
+    private static final String UNTIL_PREFIX = "--until=";
+    private static final int REPLAY_STALLED_SHOWN = 10;
+    private static final String CHECKPOINT_PREFIX = "--checkpoint=";
+    private static final String CHECKPOINT_EVERY_PREFIX = "--checkpoint-every=";
+    private static final String RESUME_PREFIX = "--resume=";
+    private static final double DEFAULT_CHECKPOINT_SECONDS = 10;
+    private static final long SIM_LIMIT_MILLIS = 60L * 60L * 1000L; // una hora simulada
+
+    // Mundo en memoria (headless y vista por snapshots; null en la ventana de KarelJRobot)
+    private static WorldModel worldModel = null;
+    // Muros del mundo para los robots de la ventana de KarelJRobot (null si no se leyeron)
+    private static WorldModel karelWalls = null;
+    // Estado que publican los robots para la vista (null sin vista)
+    private static RobotStates robotStates = null;
+    private static Scenario scenario = null;
+    // Planificador del ruteo dinámico (null: rutas fijas)
+    private static RoutePlanner planner = null;
+    private static boolean dynamicRouting = false;
+    private static boolean cooperativeRouting = false;
+    // checkpoints de --sim o de la carrera (null: no se guardan / no se reanuda)
+    private static String checkpointPrefix = null;
+    private static double checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+    private static String resumeFile = null;
+    private static RaceCheckpoint raceCheckpoint = null;
+    // instante de la carrera del checkpoint reanudado (0: desde la largada)
+    private static long resumedMillis = 0;
+    private static final List<Thread> robotThreads = new ArrayList<>();
+    private static ThreadFactory robotThreadFactory = RobotThreads.factory(false);
+
     public static void main(String[] args)
     {
-        String world = "";
-        try
-        {
-            world = args[4];        
-            if(world != null && world != "")kareltherobot.World.readWorld(world);
-        }
-        catch (Throwable e)
-        {
-            System.out.println("Using some default arguments");
-        }
-        kareltherobot.World.asObject().setVisible(true);
-
-        if (world == null || world.equals("")) {
-            kareltherobot.World.readWorld("race.kwld");
-        }
-        kareltherobot.World.asObject().setDelay(5);
-        BeeperExchangeManager.get().init(
-            1, 9, 500,
-            11, 23, 500,
-            12, 23 ,
-            2, 2
-        );
-
-        // Bloqueo de la avenida 30
-        Subroute s1 = new Subroute("S1", 3);
-        for (int a = 10; a >= 5; a--) {
-            s1.addCell(a, 30); 
-        }
-        TrafficController.get().registerSubroute(s1);
-        
-        Subroute s2 = new Subroute("S2", 4);
-        for (int a = 26; a <= 29; a++) {
-            s2.addCell(1, a);
-        }
-        //s2.addCell(2, 29);
-
-       // Subroute s3 = new Subroute("S3", 4);
-        for (int a = 16; a <= 21; a++) {
-            s2.addCell(1, a);
-        }
-
-        TrafficController.get().registerSubroute(s2);
-
-       // TrafficController.get().registerSubroute(s3);
-
-        // Subroute s4 = new Subroute("S4", 4);
-        // for (int a = 5; a >= 2; a--) {
-        //     s4.addCell(a, 29);
-        // }
-        // TrafficController.get().registerSubroute(s4);
-
-        List<int[]> alt = new ArrayList<>();
-        for (int a = 2; a <= 11; a++) {
-            alt.add(new int[]{a,11});
-        }
-
-        alt.add(new int[]{11,10});
-        alt.add(new int[]{11,9});
-
-        for (int a =11; a <= 13 ;a++){
-            alt.add(new int[]{a,8});
-        }
-
-        for (int a = 8; a <= 16; a++) {
-            alt.add(new int[]{14,a});
-        }
-
-        alt.add(new int[]{13,16});
-        alt.add(new int[]{12,16});
-        alt.add(new int[]{11,16});
-        alt.add(new int[]{10,16});
-        alt.add(new int[]{10,15});
-        alt.add(new int[]{10,14});
-
-        for (int a = 10; a >= 5; a--) {
-            alt.add(new int[]{a,13});
-        }
-
-        for (int a = 14; a <= 20; a++) {
-            alt.add(new int[]{5,a});
+        boolean headless = false;
+        boolean simulate = false;
+        boolean virtual = false;
+        boolean karelWindow = false;
+        int fps = SnapshotView.DEFAULT_FPS;
+        long seed = 1L;
+        String logLevel = null;
+        String logFile = null;
+        long metricsSeconds = 0;
+        String scenarioFile = Scenario.DEFAULT_FILE;
+        String routing = null;
+        String recordFile = null;
+        String replayFile = null;
+        double speed = 1.0;
+        double untilSeconds = -1;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (HEADLESS_FLAG.equals(arg)) headless = true;
+            else if (SIM_FLAG.equals(arg)) simulate = true;
+            else if (VIRTUAL_FLAG.equals(arg)) virtual = true;
+            else if (KAREL_WINDOW_FLAG.equals(arg)) karelWindow = true;
+            else if (arg.startsWith(FPS_PREFIX)) fps = Integer.parseInt(arg.substring(FPS_PREFIX.length()));
+            else if (arg.startsWith(SEED_PREFIX)) seed = Long.parseLong(arg.substring(SEED_PREFIX.length()));
+            else if (arg.startsWith(LOG_LEVEL_PREFIX)) logLevel = arg.substring(LOG_LEVEL_PREFIX.length());
+            else if (arg.startsWith(LOG_FILE_PREFIX)) logFile = arg.substring(LOG_FILE_PREFIX.length());
+            else if (arg.startsWith(METRICS_PREFIX)) metricsSeconds = Long.parseLong(arg.substring(METRICS_PREFIX.length()));
+            else if (arg.startsWith(SCENARIO_PREFIX)) scenarioFile = arg.substring(SCENARIO_PREFIX.length());
+            else if (arg.startsWith(ROUTING_PREFIX)) routing = arg.substring(ROUTING_PREFIX.length());
+            else if (arg.startsWith(RECORD_PREFIX)) recordFile = arg.substring(RECORD_PREFIX.length());
+            else if (arg.startsWith(REPLAY_PREFIX)) replayFile = arg.substring(REPLAY_PREFIX.length());
+            else if (arg.startsWith(SPEED_PREFIX)) speed = Double.parseDouble(arg.substring(SPEED_PREFIX.length()));
+            else if (arg.startsWith(UNTIL_PREFIX)) untilSeconds = Double.parseDouble(arg.substring(UNTIL_PREFIX.length()));
+            else if (arg.startsWith(CHECKPOINT_PREFIX)) checkpointPrefix = arg.substring(CHECKPOINT_PREFIX.length());
+            else if (arg.startsWith(CHECKPOINT_EVERY_PREFIX)) checkpointSeconds = Double.parseDouble(arg.substring(CHECKPOINT_EVERY_PREFIX.length()));
+            else if (arg.startsWith(RESUME_PREFIX)) resumeFile = arg.substring(RESUME_PREFIX.length());
+            else positional.add(arg);
         }
-        
-        for (int a = 6; a <= 10; a++) {
-            alt.add(new int[]{a,20});
+        args = positional.toArray(new String[0]);
+        // un --log-level explícito también muestra en consola los eventos de ese nivel
+        if (logLevel != null || logFile != null) EventLog.configure(logLevel, null, logLevel, logFile);
+        if (replayFile != null) {
+            long untilNanos = untilSeconds < 0 ? -1 : (long) (untilSeconds * 1e9);
+            runReplay(replayFile, args.length > 4 ? args[4] : null, headless, speed, untilNanos, fps);
+            return;
         }
-            
-        for (int a = 21; a <= 30; a++) {
-            alt.add(new int[]{10,a});
+        Metrics.get().registerMBean();
+        if (metricsSeconds > 0) Metrics.get().startPeriodicDump(TimeUnit.SECONDS.toMillis(metricsSeconds));
+
+        try {
+            scenario = Scenario.load(scenarioFile);
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo leer el escenario " + scenarioFile + ": " + e.getMessage());
+            return;
         }
-        alt.add(new int[]{10,30});
-        alt.add(new int[]{11,30});
-        alt.add(new int[]{12,30});
-        alt.add(new int[]{13,30});
-        alt.add(new int[]{14,30});
-        alt.add(new int[]{15,30});
-
-
-        List<int[]> triggers = new ArrayList<>();
-        triggers.add(new int[]{1,12});
-        triggers.add(new int[]{1,13});
-        triggers.add(new int[]{1,14});
-        triggers.add(new int[]{1,15});
-
-        TrafficController.AlternateRouteSpec spec = new TrafficController.AlternateRouteSpec(alt, 15, 30, triggers, 4);
-        TrafficController.get().registerAlternateRoute(1, 11, spec);
-        List<int[]> alt2 = new ArrayList<>();
-        alt2.add(new int[]{11,22});
-        alt2.add(new int[]{11,21});
-        
-        for (int a=11;a<=19; a++){
-            alt2.add(new int[]{a,20});
+        if (routing != null && !routing.equals("dynamic") && !routing.equals("cooperative") && !routing.equals("static")) {
+            EventLog.message(EventLog.Level.WARN, "Ruteo desconocido: " + routing + "; se usa el del escenario");
+            routing = null;
         }
-
-        alt2.add(new int[]{19,19});
-
-        for (int a=19;a>=15; a--){
-            alt2.add(new int[]{a,18});
+        if (routing == null) {
+            dynamicRouting = scenario.isDynamicRouting();
+            cooperativeRouting = scenario.isCooperativeRouting();
+        } else {
+            cooperativeRouting = routing.equals("cooperative");
+            dynamicRouting = cooperativeRouting || routing.equals("dynamic");
         }
+        // el mundo del escenario, salvo que se pase como quinto argumento (como World.readWorld)
+        String scenarioWorld = scenario.getWorld() != null ? scenario.getWorld() : "race.kwld";
 
-        for (int a=17;a>=1; a--){
-            alt2.add(new int[]{15,a});
+        String world = "";
+        if (simulate) {
+            runSimulation(args.length > 4 ? args[4] : scenarioWorld, seed, recordFile, scenarioFile);
+            return;
         }
-
-        for (int a=14;a<=10; a--){
-            alt2.add(new int[]{a,1});
+        if ((checkpointPrefix != null || resumeFile != null) && !headless && karelWindow) {
+            EventLog.message(EventLog.Level.ERROR, "--checkpoint y --resume necesitan el mundo en memoria: no van con --karel-window");
+            return;
         }
-
-        for (int a=2;a<=10; a++){
-            alt2.add(new int[]{10,a});
+        if (recordFile != null) {
+            try {
+                RaceRecorder.start(recordFile, args.length > 4 ? args[4] : scenarioWorld, scenarioFile);
+            } catch (IOException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo grabar en " + recordFile + ": " + e.getMessage());
+                return;
+            }
+            // también si se cierra la ventana a mitad de la carrera
+            Runtime.getRuntime().addShutdownHook(new Thread(ControllerMain::stopRecording, "RaceRecorder"));
         }
-
-        for (int a=9;a>=2; a--){
-            alt2.add(new int[]{a,10});
+        if (virtual) {
+            if (!RobotThreads.virtualAvailable()) {
+                EventLog.message(EventLog.Level.WARN, "Esta JVM no soporta hilos virtuales (Java 21+); se usan hilos de plataforma");
+            }
+            robotThreadFactory = RobotThreads.factory(true);
         }
+        SnapshotView view = null;
+        if (headless || !karelWindow) {
+            world = args.length > 4 ? args[4] : scenarioWorld;
+            try {
+                worldModel = WorldModel.load(world);
+            } catch (IOException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo cargar el mundo " + world + ": " + e.getMessage());
+                return;
+            }
+            TrafficController.get().configureGrid(worldModel);
+            if (dynamicRouting) planner = scenario.planner(worldModel);
+            if (cooperativeRouting) planner.cooperate();
+            if (!headless) {
+                robotStates = new RobotStates(scenario.spawnCount());
+                view = new SnapshotView(worldModel, robotStates, fps);
+            }
+        } else {
+            try
+            {
+                world = args[4];        
+                if(world != null && world != "")kareltherobot.World.readWorld(world);
+            }
+            catch (Throwable e)
+            {
+                EventLog.message(EventLog.Level.WARN, "Using some default arguments");
+            }
+            kareltherobot.World.setVisible(true);
 
-        List<int[]> triggers2 = new ArrayList<>();
-        triggers2.add(new int[]{10,24});
-        triggers2.add(new int[]{10,25});
-        triggers2.add(new int[]{10,26});
-        triggers2.add(new int[]{10,27});
-        triggers2.add(new int[]{10,28});
-        triggers2.add(new int[]{10,29});
-
-
-        TrafficController.AlternateRouteSpec spec2 = new TrafficController.AlternateRouteSpec(alt2,2, 10, triggers2, 6);
-        TrafficController.get().registerAlternateRoute(11, 23, spec2);
-    
-        int totalAvenues = 7; // columnas
-        int totalStreets = 4; // filas
-
-        int robotNumber = 1;
-        for (int avenuex = 1; avenuex <= totalAvenues; avenuex++) {
-            for (int streetx = 1; streetx <= totalStreets; streetx++) {
-                Color c = new Color((50 * robotNumber) % 256, (80 * robotNumber) % 256, (120 * robotNumber) % 256);
-
-                RacerBot bot = new RacerBot(streetx, avenuex, Directions.East, 0, c);
-
-                Thread t = new Thread(bot, "Racer-" + robotNumber);
-                t.start();
-
-                robotNumber++;
+            if (world == null || world.equals("")) {
+                kareltherobot.World.readWorld(scenarioWorld);
             }
+            kareltherobot.World.setDelay(5);
+            loadWalls(world == null || world.equals("") ? scenarioWorld : world);
         }
-
-        int startAvenue = 23; 
-        int endAvenue   = 30; 
-        int[] streetsLineaRoja = {13, 14, 15}; // filas (streets) de la línea roja
-
-        for (int streetx : streetsLineaRoja) {
-            for (int avenuex = startAvenue; avenuex <= endAvenue; avenuex++) {
-                Color c = new Color((50 * robotNumber) % 256,
-                                    (80 * robotNumber) % 256,
-                                    (120 * robotNumber) % 256);
-
-                RacerBot bot = new RacerBot(streetx, avenuex, Directions.East,
-                                            0, c);
-
-                Thread t = new Thread(bot, "Racer-" + robotNumber);
-                t.start();
-
-                robotNumber++;
+        scenario.apply();
+
+        if (checkpointPrefix != null) raceCheckpoint = new RaceCheckpoint(worldModel, dynamicRouting, scenario.load());
+        if (resumeFile != null) {
+            if (!resumeRace()) return;
+        } else {
+            for (int i = 0; i < scenario.spawnCount(); i++) {
+                startRobot(spawnRobot(scenario.spawnRoute(i), scenario.spawnStreet(i), scenario.spawnAvenue(i), i + 1));
             }
         }
 
-        int[][] extraRobots = {
-            {12, 28},
-            {12, 29},
-            {16, 29},
-            {16, 30}
-        };
-        for (int[] pos : extraRobots) {
-            Color c = new Color((50 * robotNumber) % 256,
-                                (80 * robotNumber) % 256,
-                                (120 * robotNumber) % 256);
-            RacerBot bot = new RacerBot(pos[0], pos[1], Directions.East, 0, c);
-            Thread t = new Thread(bot, "Racer-" + robotNumber);
-            t.start();
-            robotNumber++;
-        }
+    if (headless) {
+        runHeadless();
+        return;
+    }
+    if (view != null) view.start("Robot Race - " + world);
 
     try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+    Metrics.get().markStart();
     RacerBot.releaseStartGate();
+    startCheckpoints();
 
     new Thread(() -> {
         while (true) {
             if (BeeperExchangeManager.get().isDone()) {
-                System.out.println("Intercambio de beepers completado. Saliendo...");
+                EventLog.message(EventLog.Level.INFO, "Intercambio de beepers completado. Saliendo...");
+                stopRecording();
                 try { Thread.sleep(5000); } catch (InterruptedException ignored) {}
             }
             try { Thread.sleep(250); } catch (InterruptedException ignored) {}
@@ -241,4 +257,193 @@ public class ControllerMain implements Directions
 
     }
 
+    // Crea el robot (sobre el WorldModel o en la ventana de KarelJRobot según el modo)
+    private static RacerBot spawnRobot(CompiledRoute route, int street, int avenue, int robotNumber) {
+        RacerBot bot;
+        if (worldModel != null) {
+            // con vista, al ritmo de la carrera; headless (sin robotStates), sin demoras
+            bot = new RacerBot(route, planner,
+                               new HeadlessBody(worldModel, street, avenue, Directions.East, 0, robotStates, robotNumber - 1),
+                               street, avenue, Directions.East, scenario.load(), robotStates != null);
+        } else {
+            Color c = SnapshotView.colorOf(robotNumber);
+            bot = new RacerBot(route, planner, new KarelBody(street, avenue, Directions.East, 0, c, karelWalls),
+                               street, avenue, Directions.East, scenario.load());
+        }
+        return bot;
+    }
+
+    // Lanza el hilo del robot (queda esperando la largada); con --checkpoint, antes le da su Slot
+    private static void startRobot(RacerBot bot) {
+        if (raceCheckpoint != null) raceCheckpoint.register(bot);
+        Thread t = robotThreadFactory.newThread(bot);
+        robotThreads.add(t);
+        t.start();
+    }
+
+    // --resume en la carrera: mundo, zonas, subrutas y robots del checkpoint (de la carrera o de --sim)
+    private static boolean resumeRace() {
+        List<RacerBot> bots = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(resumeFile))) {
+            resumedMillis = RaceCheckpoint.resume(in, scenario, worldModel, planner, bots,
+                    (i, id, street, avenue, dir, beepers, load) -> new RacerBot(id, scenario.spawnRoute(i), planner,
+                            new HeadlessBody(worldModel, street, avenue, dir, beepers, robotStates, i),
+                            street, avenue, dir, load, robotStates != null));
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo reanudar desde " + resumeFile + ": " + e.getMessage());
+            return false;
+        }
+        for (RacerBot bot : bots) startRobot(bot);
+        EventLog.message(EventLog.Level.INFO, "Carrera reanudada desde " + resumeFile + " en " + resumedMillis + " ms");
+        return true;
+    }
+
+    // Reloj de los checkpoints desde la largada (o desde el instante reanudado) y guardado periódico
+    private static void startCheckpoints() {
+        if (raceCheckpoint == null) return;
+        raceCheckpoint.start(resumedMillis);
+        raceCheckpoint.checkpointEvery(checkpointMillis(), checkpointPrefix);
+    }
+
+    private static long checkpointMillis() {
+        return Math.max(1, Math.round(checkpointSeconds * 1000));
+    }
+
+    // Modo headless: libera la salida, espera a que termine el intercambio y reporta el tiempo real
+    private static void runHeadless() {
+        long start = System.nanoTime();
+        Metrics.get().markStart();
+        RacerBot.releaseStartGate();
+        startCheckpoints();
+        while (!BeeperExchangeManager.get().isDone()) {
+            try { Thread.sleep(1); } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+        }
+        // reanudada: el tiempo de la carrera incluye el del checkpoint
+        long elapsedNanos = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(resumedMillis);
+        int total = scenario.totalStock();
+        double seconds = elapsedNanos / 1e9;
+        EventLog.message(EventLog.Level.INFO, String.format(
+                "Intercambio completado (headless): %d robots, %d beepers en %d ms (%.1f beepers/s)",
+                robotThreads.size(), total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), total / seconds));
+        logPlanner();
+        stopRecording();
+        EventLog.flush();
+        System.exit(0);
+    }
+
+    // Modo eventos discretos: mismo escenario, sin hilos de robots ni sleeps reales
+    private static void runSimulation(String worldFile, long seed, String recordFile, String scenarioFile) {
+        WorldModel model;
+        try {
+            model = WorldModel.load(worldFile);
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo cargar el mundo " + worldFile + ": " + e.getMessage());
+            return;
+        }
+        TrafficController.get().reset(model.getStreets(), model.getAvenues());
+        scenario.apply();
+        final EventSimulation sim = new EventSimulation(model, seed);
+        if (dynamicRouting) planner = scenario.planner(model);
+        if (cooperativeRouting) planner.cooperate(() -> TimeUnit.MILLISECONDS.toNanos(sim.now()));
+        if (recordFile != null) {
+            try {
+                RaceRecorder.start(recordFile, worldFile, scenarioFile, () -> TimeUnit.MILLISECONDS.toNanos(sim.now()), true);
+            } catch (IOException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo grabar en " + recordFile + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (resumeFile != null) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(resumeFile))) {
+                sim.resume(in, scenario, planner);
+            } catch (IOException | RuntimeException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo reanudar desde " + resumeFile + ": " + e.getMessage());
+                stopRecording();
+                return;
+            }
+            EventLog.message(EventLog.Level.INFO, "Simulación reanudada desde " + resumeFile + " en " + sim.now() + " ms simulados");
+        } else {
+            sim.addRobots(scenario, planner);
+        }
+        if (checkpointPrefix != null) sim.checkpointEvery(checkpointMillis(), checkpointPrefix);
+        long start = System.nanoTime();
+        EventSimulation.Result r = sim.run(SIM_LIMIT_MILLIS);
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        EventLog.message(EventLog.Level.INFO, String.format(
+                "Simulación (seed=%d): %s, %d robots, %d beepers en %d ms simulados (%d eventos, %d ms reales)",
+                seed, r.completed ? "completada" : "incompleta", r.robots, scenario.totalStock(),
+                r.simulatedMillis, r.events, wallMillis));
+        logPlanner();
+        stopRecording();
+    }
+
+    private static void stopRecording() {
+        try {
+            long records = RaceRecorder.stop();
+            if (records > 0) EventLog.message(EventLog.Level.INFO, "Grabación cerrada: " + records + " registros");
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo cerrar la grabación: " + e.getMessage());
+        }
+    }
+
+    // Reproduce una grabación sin robots: resumen en consola (headless) o en la vista por snapshots
+    private static void runReplay(String file, String worldOverride, boolean headless, double speed, long untilNanos, int fps) {
+        RaceReplay replay;
+        try {
+            replay = RaceReplay.load(file);
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo leer la grabación " + file + ": " + e.getMessage());
+            return;
+        }
+        if (headless) {
+            System.out.print(replay.summary(untilNanos, REPLAY_STALLED_SHOWN));
+            return;
+        }
+        String worldFile = worldOverride != null ? worldOverride : replay.world();
+        WorldModel model;
+        try {
+            model = WorldModel.load(worldFile);
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.ERROR, "No se pudo cargar el mundo " + worldFile + ": " + e.getMessage());
+            return;
+        }
+        RobotStates states = new RobotStates(Math.max(1, replay.robots()));
+        SnapshotView view = new SnapshotView(model, states, fps);
+        view.start("Robot Race - repetición de " + file);
+        try {
+            replay.play(speed, untilNanos, states, model);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        EventLog.message(EventLog.Level.INFO, "Fin de la repetición de " + file);
+    }
+
+    // Modo gráfico: los muros en memoria dimensionan la grilla de ocupación, responden los sondeos
+    // de los robots sin girarlos y alimentan al planificador; si no se leen, grilla por defecto,
+    // los robots miran girando y las rutas son fijas
+    private static void loadWalls(String worldFile) {
+        try {
+            karelWalls = WorldModel.load(worldFile);
+        } catch (IOException e) {
+            EventLog.message(EventLog.Level.WARN, "No se pudo cargar " + worldFile + " en memoria (" + e.getMessage()
+                    + "): grilla por defecto, los robots sondean girando" + (dynamicRouting ? " y se usan rutas fijas" : ""));
+            return;
+        }
+        TrafficController.get().configureGrid(karelWalls);
+        if (dynamicRouting) {
+            planner = scenario.planner(karelWalls);
+            if (cooperativeRouting) planner.cooperate();
+        }
+    }
+
+    private static void logPlanner() {
+        if (planner == null) return;
+        EventLog.message(EventLog.Level.INFO, String.format("Ruteo dinámico: %d búsquedas, %d caminos desde la caché",
+                planner.searches(), planner.cacheHits()));
+        if (planner.isCooperative()) {
+            EventLog.message(EventLog.Level.INFO, String.format("Ruteo cooperativo: %d caminos reservados, %d esperas planificadas, tick de %d µs",
+                    planner.reservedPaths(), planner.plannedWaits(), TimeUnit.NANOSECONDS.toMicros(planner.tickNanos())));
+        }
+    }
+
 }
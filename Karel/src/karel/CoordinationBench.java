@@ -0,0 +1,382 @@
+package karel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Arnés de microbenchmarks para las primitivas de coordinación:
+ * - TrafficController.tryMove, occupy/release y findContainingSubroute
+ * - El mismo carril de tryMove sobre la ocupación de antes (HashMap bajo un monitor),
+ *   para comparar la grilla CAS contra ella en la misma máquina
+ * - Subroute.tryEnterDirectional/exit, y 50 robots convergiendo sobre S2
+ * - BeeperExchangeManager.reserve/delivered
+ * Cada caso corre con 1, 4, 16 y 64 hilos compitiendo: calentamiento, medición
+ * y reporte de throughput (ops/s) y latencia de cola (p50/p99/p99.9/max en ns). Sólo
+ * cuentan como ops las llamadas que hicieron algo: un tryMove que falla porque la celda de
+ * adelante está ocupada mide latencia pero no suma throughput. Los hilos compiten de verdad
+ * sólo si hay varios procesadores; el encabezado dice cuántos había.
+ *
+ * Uso: java -cp out:KarelJRobot.jar karel.CoordinationBench [segundos] [caso...]
+ */
+public final class CoordinationBench {
+    private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+    private static final int WARMUP_DIVISOR = 2;
+    // carril circular de los casos de tryMove: 4 hilos por calle, repartidos a lo largo
+    private static final int LANE = 64;
+
+    // Operación medida; cada hilo recibe su propia instancia. Devuelve si hizo progreso
+    interface Op {
+        boolean run() throws Exception;
+    }
+
+    // Caso de benchmark: prepara estado limpio y crea la operación de cada hilo
+    abstract static class Case {
+        final String name;
+
+        Case(String name) { this.name = name; }
+
+        // Cantidades de hilos a medir; por defecto 1, 4, 16 y 64
+        int[] threadCounts() { return THREAD_COUNTS; }
+
+        abstract void setup(int threads);
+
+        abstract Op newOp(int threadIndex, int threads, Random random);
+    }
+
+    /** Resultado de un caso con un número de hilos. */
+    static final class Result {
+        final String name;
+        final int threads;
+        final double opsPerSecond;
+        final LatencyHistogram latency;
+
+        Result(String name, int threads, double opsPerSecond, LatencyHistogram latency) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSecond = opsPerSecond;
+            this.latency = latency;
+        }
+    }
+
+    private CoordinationBench() {}
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+        List<String> selected = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : null;
+
+        System.out.printf("# %d procesadores, Java %s%n",
+                Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+        System.out.printf("%-42s %7s %14s %10s %10s %10s %12s%n",
+                "benchmark", "threads", "ops/s", "p50(ns)", "p99(ns)", "p99.9(ns)", "max(ns)");
+        for (Case c : cases()) {
+            if (selected != null && !selected.contains(c.name)) continue;
+            for (int threads : c.threadCounts()) {
+                Result r = measure(c, threads, (long) (seconds * 1000));
+                System.out.printf("%-42s %7d %14.0f %10d %10d %10d %12d%n",
+                        r.name, r.threads, r.opsPerSecond,
+                        r.latency.percentile(0.50), r.latency.percentile(0.99),
+                        r.latency.percentile(0.999), r.latency.max());
+            }
+        }
+        System.exit(0);
+    }
+
+    static Result measure(final Case c, int threads, long measureMillis) throws InterruptedException {
+        c.setup(threads);
+        final LatencyHistogram[] histograms = new LatencyHistogram[threads];
+        final long[] ops = new long[threads];
+        final Object phaseLock = new Object();
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] failure = new Throwable[1];
+        final Phase state = new Phase();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            final Op op = c.newOp(i, threads, new Random(31L * (i + 1)));
+            histograms[i] = new LatencyHistogram();
+            workers.add(new Thread(() -> {
+                LatencyHistogram h = histograms[index];
+                long n = 0;
+                try {
+                    ready.countDown();
+                    start.await();
+                    while (state.value == 0) op.run();
+                    while (state.value == 1) {
+                        long t0 = System.nanoTime();
+                        boolean progress = op.run();
+                        h.record(System.nanoTime() - t0);
+                        if (progress) n++;
+                    }
+                } catch (Throwable t) {
+                    synchronized (phaseLock) { failure[0] = t; }
+                } finally {
+                    ops[index] = n;
+                    done.countDown();
+                }
+            }, "Bench-" + c.name + "-" + i));
+        }
+        for (Thread t : workers) t.start();
+        ready.await();
+        start.countDown();
+        Thread.sleep(Math.max(1, measureMillis / WARMUP_DIVISOR));
+        long t0 = System.nanoTime();
+        state.value = 1;
+        Thread.sleep(measureMillis);
+        state.value = 2;
+        long elapsed = System.nanoTime() - t0;
+        done.await();
+        if (failure[0] != null) throw new IllegalStateException("Falló " + c.name, failure[0]);
+
+        LatencyHistogram total = new LatencyHistogram();
+        long totalOps = 0;
+        for (int i = 0; i < threads; i++) {
+            total.merge(histograms[i]);
+            totalOps += ops[i];
+        }
+        return new Result(c.name, threads, totalOps / (elapsed / 1e9), total);
+    }
+
+    // Fase compartida: 0 calentamiento, 1 medición, 2 fin
+    private static final class Phase {
+        volatile int value = 0;
+    }
+
+    private static int laneStart(int thread) {
+        return (thread % 4) * (LANE / 4) + 1;
+    }
+
+    /**
+     * Ocupación de celdas como era antes de la grilla CAS: un HashMap con claves boxeadas
+     * bajo el monitor del objeto. Sólo la usa el caso de referencia.
+     */
+    static final class MonitorOccupancy {
+        private final Map<Long, Long> occupied = new HashMap<>();
+
+        private static long key(int street, int avenue) {
+            return (((long) street) << 32) | (avenue & 0xffffffffL);
+        }
+
+        synchronized boolean occupy(int street, int avenue, long robotId) {
+            long k = key(street, avenue);
+            if (occupied.containsKey(k)) return false;
+            occupied.put(k, robotId);
+            return true;
+        }
+
+        synchronized boolean tryMove(int fs, int fa, int ts, int ta, long robotId) {
+            long fk = key(fs, fa);
+            long tk = key(ts, ta);
+            Long owner = occupied.get(fk);
+            if (owner == null || owner != robotId) return false;
+            if (occupied.containsKey(tk)) return false;
+            occupied.remove(fk);
+            occupied.put(tk, robotId);
+            return true;
+        }
+    }
+
+    static List<Case> cases() {
+        List<Case> list = new ArrayList<>();
+
+        // Cada hilo avanza en un carril circular compartido con otros 3 hilos; op = un paso dado
+        list.add(new Case("TrafficController.tryMove") {
+            void setup(int threads) {
+                TrafficController.get().reset(threads / 4 + 2, LANE);
+            }
+            Op newOp(int i, int threads, Random random) {
+                final TrafficController tc = TrafficController.get();
+                final int street = i / 4 + 1;
+                final long id = i + 1;
+                final int[] avenue = {laneStart(i)};
+                tc.occupy(street, avenue[0], id);
+                return () -> {
+                    int next = avenue[0] % LANE + 1;
+                    if (!tc.tryMove(street, avenue[0], street, next, id)) {
+                        Thread.yield(); // trabado: ceder el procesador como el robot que se estaciona
+                        return false;
+                    }
+                    avenue[0] = next;
+                    return true;
+                };
+            }
+        });
+
+        // El mismo carril sobre la ocupación de antes de la grilla CAS: la referencia
+        list.add(new Case("TrafficController.tryMove@monitor") {
+            MonitorOccupancy occupancy;
+            void setup(int threads) {
+                occupancy = new MonitorOccupancy();
+            }
+            Op newOp(int i, int threads, Random random) {
+                final MonitorOccupancy tc = occupancy;
+                final int street = i / 4 + 1;
+                final long id = i + 1;
+                final int[] avenue = {laneStart(i)};
+                tc.occupy(street, avenue[0], id);
+                return () -> {
+                    int next = avenue[0] % LANE + 1;
+                    if (!tc.tryMove(street, avenue[0], street, next, id)) {
+                        Thread.yield(); // trabado: ceder el procesador como el robot que se estaciona
+                        return false;
+                    }
+                    avenue[0] = next;
+                    return true;
+                };
+            }
+        });
+
+        // Ocupar y liberar celdas al azar de la grilla de race.kwld
+        list.add(new Case("TrafficController.occupy/release") {
+            void setup(int threads) {
+                TrafficController.get().reset(21, 31);
+            }
+            Op newOp(int i, int threads, final Random random) {
+                final TrafficController tc = TrafficController.get();
+                final long id = i + 1;
+                return () -> {
+                    int s = 1 + random.nextInt(21);
+                    int a = 1 + random.nextInt(31);
+                    if (!tc.occupy(s, a, id)) return false;
+                    tc.release(s, a, id);
+                    return true;
+                };
+            }
+        });
+
+        // Búsqueda de subruta en celdas al azar con las subrutas de race.kwld
+        list.add(new Case("TrafficController.findContainingSubroute") {
+            void setup(int threads) {
+                TrafficController.get().reset(21, 31);
+                try {
+                    Scenario.load(Scenario.DEFAULT_FILE).apply();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            Op newOp(int i, int threads, final Random random) {
+                final TrafficController tc = TrafficController.get();
+                final Object[] sink = new Object[1];
+                return () -> {
+                    sink[0] = tc.findContainingSubroute(1 + random.nextInt(21), 1 + random.nextInt(31));
+                    return true;
+                };
+            }
+        });
+
+        // Igual pero con 48 subrutas de 200 celdas: el costo no debe crecer con las subrutas
+        list.add(new Case("TrafficController.findContainingSubroute@48") {
+            void setup(int threads) {
+                TrafficController tc = TrafficController.get();
+                tc.reset(100, 100);
+                for (int k = 0; k < 48; k++) {
+                    Subroute sr = new Subroute("L" + k, 4);
+                    int street = 2 * k + 1;
+                    for (int a = 1; a <= 100; a++) {
+                        sr.addCell(street, a);
+                        sr.addCell(street + 1, 101 - a);
+                    }
+                    tc.registerSubroute(sr);
+                }
+            }
+            Op newOp(int i, int threads, final Random random) {
+                final TrafficController tc = TrafficController.get();
+                final Object[] sink = new Object[1];
+                return () -> {
+                    sink[0] = tc.findContainingSubroute(1 + random.nextInt(100), 1 + random.nextInt(100));
+                    return true;
+                };
+            }
+        });
+
+        // Entrar y salir de una subruta de capacidad 4 con direcciones opuestas por paridad
+        list.add(new Case("Subroute.tryEnterDirectional/exit") {
+            Subroute sr;
+            void setup(int threads) {
+                sr = new Subroute("BENCH", 4);
+                for (int a = 1; a <= 4; a++) sr.addCell(1, a);
+            }
+            Op newOp(int i, int threads, Random random) {
+                final Subroute s = sr;
+                final Subroute.FlowDir dir = (i % 2 == 0) ? Subroute.FlowDir.EAST : Subroute.FlowDir.WEST;
+                return () -> {
+                    if (!s.tryEnterDirectional(dir, 1000)) return false;
+                    s.exit();
+                    return true;
+                };
+            }
+        });
+
+        // 50 robots convergiendo sobre S2 (capacidad 4): la mayoría al sur, uno de cada cinco al norte.
+        // Cada uno recorre la subruta (unos 20 us) y sale; mide el costo de despertar sólo al batch admitido
+        list.add(new Case("Subroute.S2@50") {
+            Subroute sr;
+            int[] threadCounts() { return new int[] {50}; }
+            void setup(int threads) {
+                sr = new Subroute("S2", 4);
+                for (int a = 26; a <= 29; a++) sr.addCell(1, a);
+                for (int a = 16; a <= 21; a++) sr.addCell(1, a);
+            }
+            Op newOp(int i, int threads, Random random) {
+                final Subroute s = sr;
+                final Subroute.FlowDir dir = (i % 5 == 0) ? Subroute.FlowDir.NORTH : Subroute.FlowDir.SOUTH;
+                return () -> {
+                    if (!s.tryEnterDirectional(dir, 5000)) return false;
+                    long until = System.nanoTime() + 20000;
+                    while (System.nanoTime() < until) { /* recorriendo la subruta */ }
+                    s.exit();
+                    return true;
+                };
+            }
+        });
+
+        // Reservar hasta 4 beepers y entregarlos, zona por paridad del hilo
+        list.add(new Case("BeeperExchangeManager.reserve/delivered") {
+            void setup(int threads) {
+                int stock = Integer.MAX_VALUE / 4;
+                BeeperExchangeManager.get().init(1, 9, stock, 11, 23, stock, 12, 23, 2, 2);
+            }
+            Op newOp(int i, int threads, Random random) {
+                final BeeperExchangeManager mgr = BeeperExchangeManager.get();
+                final BeeperExchangeManager.Zone z = mgr.zone((i % 2 == 0) ? "A" : "B");
+                return () -> {
+                    int got = mgr.reserve(z, 4);
+                    if (got == 0) return false;
+                    mgr.delivered(z, got);
+                    return true;
+                };
+            }
+        });
+
+        // Lo mismo con 8 zonas: cada hilo usa la zona i % 8
+        list.add(new Case("BeeperExchangeManager.reserve/delivered@8zones") {
+            void setup(int threads) {
+                List<BeeperExchangeManager.ZoneSpec> specs = new ArrayList<>();
+                for (int z = 0; z < 8; z++) {
+                    specs.add(new BeeperExchangeManager.ZoneSpec("Z" + z, 1, z + 1, Integer.MAX_VALUE / 4, 2, z + 1));
+                }
+                BeeperExchangeManager.get().init(specs);
+            }
+            Op newOp(int i, int threads, Random random) {
+                final BeeperExchangeManager mgr = BeeperExchangeManager.get();
+                final BeeperExchangeManager.Zone z = mgr.zones().get(i % 8);
+                return () -> {
+                    int got = mgr.reserve(z, 4);
+                    if (got == 0) return false;
+                    mgr.delivered(z, got);
+                    return true;
+                };
+            }
+        });
+        return list;
+    }
+}
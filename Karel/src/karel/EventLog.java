@@ -0,0 +1,273 @@
+package karel;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro estructurado y asíncrono de eventos, en lugar de System.out:
+ * - Anillo acotado compartido (MPSC) con slots preasignados: los robots sólo hacen un CAS
+ *   y copian primitivos; no formatean ni tocan la consola
+ * - Un hilo escritor en segundo plano vacía el anillo a un archivo (y a la consola desde
+ *   el nivel de consola configurado: los mensajes desde INFO, como los println de antes;
+ *   los eventos estructurados sólo desde WARN, salvo que se baje el nivel a propósito)
+ * - Un evento deshabilitado cuesta una comparación de enteros; si el anillo está lleno el
+ *   evento se descarta y se cuenta, nunca se bloquea al robot
+ *
+ * Configuración: propiedades karel.log.level, karel.log.console, karel.log.console.events,
+ * karel.log.file y karel.log.buffer, o las opciones --log-level= y --log-file= de ControllerMain.
+ */
+final class EventLog {
+    enum Level { ERROR, WARN, INFO, DEBUG }
+
+    /** Tipo de evento con los nombres de sus campos enteros (hasta cuatro). */
+    enum Type {
+        MESSAGE(),
+        ROUTE_SWITCH("street", "avenue", "rejoinStreet", "rejoinAvenue"),
+        ROUTE_REJOIN("street", "avenue", "mainIndex"),
+        DEADLOCK_ADMIT("cycleLength"),
+        DEADLOCK_ROTATE("cycleLength"),
+        DEADLOCK_BACKOFF("cycleLength"),
+        LOG_DROPPED("count");
+
+        final String[] fields;
+
+        Type(String... fields) { this.fields = fields; }
+    }
+
+    static final String DEFAULT_FILE = "karel-events.log";
+    private static final int DEFAULT_BUFFER = 1 << 14;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+    private static final int OFF = -1;
+
+    // Slot del anillo: seq decide si está libre (== pos) o publicado (== pos + 1)
+    private static final class Slot {
+        volatile long seq;
+        long timeMillis;
+        Level level;
+        Type type;
+        long robot;
+        int a, b, c, d;
+        String text;
+
+        Slot(long seq) { this.seq = seq; }
+    }
+
+    // Umbrales como ordinales: un evento se registra si level.ordinal() <= threshold
+    private static volatile int threshold = levelProperty("karel.log.level", Level.INFO);
+    private static volatile int consoleThreshold = levelProperty("karel.log.console", Level.INFO);
+    // deadlocks y cambios de ruta salen del camino caliente: a la consola sólo si se pide
+    private static volatile int eventConsoleThreshold = levelProperty("karel.log.console.events", Level.WARN);
+    private static volatile String file = System.getProperty("karel.log.file", DEFAULT_FILE);
+
+    private static final Slot[] ring;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // posición hasta la que el escritor ya consumió y volcó (para flush)
+    private static volatile long written = 0;
+    private static volatile Writer writer = null;
+
+    static {
+        int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("karel.log.buffer", DEFAULT_BUFFER)));
+        ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) ring[i] = new Slot(i);
+        mask = capacity - 1;
+    }
+
+    private EventLog() {}
+
+    private static int levelProperty(String name, Level fallback) {
+        String v = System.getProperty(name);
+        return v == null ? fallback.ordinal() : parseLevel(v);
+    }
+
+    // "off" deshabilita todo; nombres inválidos lanzan IllegalArgumentException
+    static int parseLevel(String name) {
+        if (name.equalsIgnoreCase("off")) return OFF;
+        return Level.valueOf(name.trim().toUpperCase()).ordinal();
+    }
+
+    // consoleLevel vale para mensajes y eventos
+    static void configure(String level, String consoleLevel, String logFile) {
+        configure(level, consoleLevel, consoleLevel, logFile);
+    }
+
+    /**
+     * Cambia niveles y archivo. Si ya había un escritor, vacía lo pendiente en el archivo
+     * anterior y lo cierra; el nuevo arranca con el próximo evento habilitado.
+     */
+    static synchronized void configure(String level, String consoleLevel, String eventConsoleLevel, String logFile) {
+        if (writer != null) shutdown();
+        if (level != null) threshold = parseLevel(level);
+        if (consoleLevel != null) consoleThreshold = parseLevel(consoleLevel);
+        if (eventConsoleLevel != null) eventConsoleThreshold = parseLevel(eventConsoleLevel);
+        if (logFile != null) file = logFile;
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    static void message(Level level, String text) {
+        if (level.ordinal() > threshold) return;
+        publish(level, Type.MESSAGE, 0, 0, 0, 0, 0, text);
+    }
+
+    static void event(Level level, Type type, long robot, int a, int b, int c, int d) {
+        if (level.ordinal() > threshold) return;
+        publish(level, type, robot, a, b, c, d, null);
+    }
+
+    static void event(Level level, Type type, long robot, int a, int b) {
+        event(level, type, robot, a, b, 0, 0);
+    }
+
+    private static void publish(Level level, Type type, long robot, int a, int b, int c, int d, String text) {
+        if (writer == null) start();
+        long pos = tail.get();
+        Slot s;
+        while (true) {
+            s = ring[(int) (pos & mask)];
+            long dif = s.seq - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (dif < 0) {
+                dropped.incrementAndGet(); // lleno: el escritor va atrasado
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        s.timeMillis = System.currentTimeMillis();
+        s.level = level;
+        s.type = type;
+        s.robot = robot;
+        s.a = a;
+        s.b = b;
+        s.c = c;
+        s.d = d;
+        s.text = text;
+        s.seq = pos + 1; // publicar
+    }
+
+    /** Espera (con tope) a que todo lo publicado hasta ahora esté escrito en el archivo. */
+    static void flush() {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        while (writer != null && written < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    static long droppedCount() { return dropped.get(); }
+
+    private static Thread writerThread = null;
+    private static volatile boolean running = false;
+
+    private static synchronized void start() {
+        if (writer != null) return;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("No se pudo abrir el log " + file + ": " + e.getMessage());
+            threshold = OFF;
+            return;
+        }
+        running = true;
+        writerThread = new Thread(EventLog::drainLoop, "EventLog-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Detiene el escritor tras vaciar el anillo y cierra el archivo
+    static synchronized void shutdown() {
+        if (writerThread == null) return;
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(FLUSH_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        writer = null;
+    }
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::shutdown, "EventLog-shutdown"));
+    }
+
+    private static void drainLoop() {
+        Writer out = writer;
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder(128);
+        long head = written;
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                int n = 0;
+                Slot s;
+                while ((s = ring[(int) (head & mask)]).seq == head + 1) {
+                    line.setLength(0);
+                    format(line, time, s);
+                    // en consola los mensajes van sin prefijo, como los println de antes
+                    String console = s.type == Type.MESSAGE
+                            ? (s.level.ordinal() > consoleThreshold ? null : s.text)
+                            : (s.level.ordinal() > eventConsoleThreshold ? null : line.toString().trim());
+                    s.text = null;
+                    s.seq = head + mask + 1; // liberar el slot para la siguiente vuelta
+                    head++;
+                    out.write(line.toString());
+                    if (console != null) System.out.println(console);
+                    n++;
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    line.setLength(0);
+                    line.append(time.format(new Date())).append(' ').append(Level.WARN).append(' ')
+                        .append(Type.LOG_DROPPED).append(" count=").append(drops - reportedDrops).append('\n');
+                    out.write(line.toString());
+                    reportedDrops = drops;
+                }
+                if (n > 0 || stopping) {
+                    out.flush();
+                    written = head;
+                }
+                if (stopping) break;
+                if (n == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } catch (IOException e) {
+            System.err.println("Error escribiendo el log " + file + ": " + e.getMessage());
+            threshold = OFF;
+        } finally {
+            written = head;
+            try { out.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static void format(StringBuilder line, SimpleDateFormat time, Slot s) {
+        line.append(time.format(new Date(s.timeMillis))).append(' ').append(s.level).append(' ').append(s.type);
+        if (s.type == Type.MESSAGE) {
+            line.append(' ').append(s.text);
+        } else {
+            if (s.robot != 0) line.append(" robot=").append(s.robot);
+            String[] f = s.type.fields;
+            int[] v = {s.a, s.b, s.c, s.d};
+            for (int i = 0; i < f.length; i++) line.append(' ').append(f[i]).append('=').append(v[i]);
+        }
+        line.append('\n');
+    }
+}
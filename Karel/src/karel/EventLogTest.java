@@ -0,0 +1,94 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EventLogTest
+{
+	@After
+	public void tearDown()
+	{	EventLog.configure("info", "info", "warn", EventLog.DEFAULT_FILE);
+	}
+
+	@Test
+	public void testEventsReachFileAndDisabledLevelsAreSkipped() throws Exception
+	{	File f = File.createTempFile("karel-events", ".log");
+		f.deleteOnExit();
+		EventLog.configure("debug", "off", f.getPath());
+		EventLog.event(EventLog.Level.DEBUG, EventLog.Type.ROUTE_SWITCH, 7, 1, 11, 15, 30);
+		EventLog.message(EventLog.Level.INFO, "hola");
+		EventLog.configure("warn", null, null);
+		assertFalse(EventLog.isEnabled(EventLog.Level.INFO));
+		EventLog.event(EventLog.Level.DEBUG, EventLog.Type.ROUTE_REJOIN, 7, 15, 30, 40, 0);
+		EventLog.configure(null, null, EventLog.DEFAULT_FILE); // cierra y vacía el archivo temporal
+
+		List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).endsWith(
+				"DEBUG ROUTE_SWITCH robot=7 street=1 avenue=11 rejoinStreet=15 rejoinAvenue=30"));
+		assertTrue(lines.get(1), lines.get(1).endsWith("INFO MESSAGE hola"));
+	}
+
+	@Test
+	public void testEventsEchoOnlyFromWarnByDefault() throws Exception
+	{	File f = File.createTempFile("karel-events", ".log");
+		f.deleteOnExit();
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(console, true, "UTF-8"));
+		try {
+			EventLog.configure("info", "info", "warn", f.getPath());
+			EventLog.event(EventLog.Level.INFO, EventLog.Type.DEADLOCK_ROTATE, 3, 4, 0, 0, 0);
+			EventLog.message(EventLog.Level.INFO, "hola");
+			EventLog.event(EventLog.Level.WARN, EventLog.Type.DEADLOCK_BACKOFF, 3, 2, 0, 0, 0);
+			// bajar el nivel a propósito los vuelve a mostrar
+			EventLog.configure(null, null, "info", null);
+			EventLog.event(EventLog.Level.INFO, EventLog.Type.DEADLOCK_ADMIT, 5, 2, 0, 0, 0);
+			EventLog.configure(null, null, "warn", EventLog.DEFAULT_FILE);
+		} finally {
+			System.setOut(stdout);
+		}
+		String out = console.toString("UTF-8");
+		assertFalse(out, out.contains("DEADLOCK_ROTATE"));
+		assertTrue(out, out.contains("hola"));
+		assertTrue(out, out.contains("DEADLOCK_BACKOFF robot=3 cycleLength=2"));
+		assertTrue(out, out.contains("DEADLOCK_ADMIT robot=5 cycleLength=2"));
+		// al archivo van todos
+		String log = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+		assertTrue(log, log.contains("DEADLOCK_ROTATE"));
+	}
+
+	@Test
+	public void testConcurrentProducersLoseNothingWhenBufferHasRoom() throws Exception
+	{	File f = File.createTempFile("karel-events", ".log");
+		f.deleteOnExit();
+		EventLog.configure("debug", "off", f.getPath());
+		long droppedBefore = EventLog.droppedCount();
+		Thread[] producers = new Thread[4];
+		for (int t = 0; t < producers.length; t++) {
+			final int robot = t + 1;
+			producers[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					EventLog.event(EventLog.Level.DEBUG, EventLog.Type.ROUTE_REJOIN, robot, i, 0, 0, 0);
+				}
+			});
+			producers[t].start();
+		}
+		for (Thread t : producers) t.join();
+		long dropped = EventLog.droppedCount() - droppedBefore;
+		EventLog.flush();
+		EventLog.configure(null, null, EventLog.DEFAULT_FILE);
+		long events = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8).stream()
+				.filter(l -> l.contains("ROUTE_REJOIN")).count();
+		assertEquals(4000 - dropped, events);
+	}
+}
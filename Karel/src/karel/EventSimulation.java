@@ -0,0 +1,909 @@
+package karel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import kareltherobot.Directions;
+
+/**
+ * Motor de eventos discretos, alternativo a un hilo por robot:
+ * - Un solo hilo, reloj simulado en milisegundos y cola de prioridad de acciones
+ * - Reutiliza TrafficController, Subroute, RouteCursor y BeeperCargo (mismas reglas)
+ * - Moverse, girar, las pausas y los timeouts de subruta son tiempo simulado, no sleeps
+ * - La semilla sólo decide el desfase inicial de cada robot: misma semilla, mismo resultado
+ * - Con ruteo dinámico no hay detector de TrafficController (nadie duerme en él): al
+ *   empezar a esperar una celda o una subruta se busca un ciclo de esperas y se resuelve
+ *   como el detector (rotación, admisión forzada) o, si no, con el desvío del de mayor id
+ * - Checkpoints: entre dos eventos el estado es consistente sin frenar a nadie; se copia a
+ *   memoria (cola de eventos, colas de espera, robots, subrutas, ocupación, stock y beepers
+ *   del mundo) y el archivo se escribe en segundo plano. resume() sigue desde ahí
+ */
+public final class EventSimulation implements Directions {
+    // Duraciones simuladas (equivalentes a setDelay(5) y a los sleeps de RacerBot)
+    static final long MOVE_MILLIS = 5;
+    static final long TURN_MILLIS = 5;
+    static final long STEP_PAUSE_MILLIS = 10;
+    static final long DELIVERY_PAUSE_MILLIS = 500;
+    static final long SUBROUTE_TIMEOUT_MILLIS = 5000;
+    static final long SUBROUTE_RETRY_MILLIS = 10;
+    static final long NO_CELL = -1L;
+    static final int CHECKPOINT_MAGIC = 0x4b53494d; // "KSIM"
+    static final int CHECKPOINT_VERSION = 2;
+
+    private final WorldModel world;
+    private final Random random;
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final List<SimRobot> robots = new ArrayList<>();
+
+    // robots esperando una celda (FIFO) o la admisión a una subruta
+    private final Map<Long, ArrayDeque<SimRobot>> cellWaiters = new HashMap<>();
+    private final Map<Subroute, List<SimRobot>> subrouteWaiters = new IdentityHashMap<>();
+    // robot en cada celda ocupada (para seguir la cadena de esperas)
+    private final Map<Long, SimRobot> occupants = new HashMap<>();
+
+    private long now = 0;
+    private long seq = 0;
+    private long nextId = 1;
+    private long events = 0;
+    // con ruteo dinámico se buscan ciclos de espera en cada espera (también de los robots que
+    // ya siguen la ruta fija); con rutas fijas sólo los destraba el timeout de la subruta
+    private boolean dynamicRouting = false;
+    // reserva por viaje de los robots que se agreguen (la del escenario en addRobots)
+    private int load = BeeperCargo.MAX_LOAD;
+    // ya se agendó el arranque (o se reanudó de un checkpoint)
+    private boolean started = false;
+    // pausa al entregar una carga completa (0: sin el tope de una entrega cada 515 ms por destino)
+    private long deliveryPauseMillis = DELIVERY_PAUSE_MILLIS;
+
+    // checkpoints periódicos: cada checkpointPeriod ms simulados, a prefijo-<ms>.ckpt
+    private long checkpointPeriod = 0;
+    private long nextCheckpoint = 0;
+    private String checkpointPrefix = null;
+    private ExecutorService checkpointWriter = null;
+
+    public EventSimulation(WorldModel world, long seed) {
+        this.world = world;
+        this.random = new Random(seed);
+    }
+
+    /** Resultado de una corrida: tiempo simulado, eventos procesados y si completó el intercambio. */
+    public static final class Result {
+        public final boolean completed;
+        public final long simulatedMillis;
+        public final long events;
+        public final int robots;
+
+        Result(boolean completed, long simulatedMillis, long events, int robots) {
+            this.completed = completed;
+            this.simulatedMillis = simulatedMillis;
+            this.events = events;
+            this.robots = robots;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final SimRobot robot;
+        final long epoch;
+
+        Event(long time, long seq, SimRobot robot, long epoch) {
+            this.time = time;
+            this.seq = seq;
+            this.robot = robot;
+            this.epoch = epoch;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) return Long.compare(time, o.time);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    // Ubica los robots de scenario.spawn en orden, con ruta fija
+    public void addRobots(Scenario scenario) {
+        addRobots(scenario, null);
+    }
+
+    // Igual, con ruteo dinámico si planner no es null
+    void addRobots(Scenario scenario, RoutePlanner planner) {
+        load = scenario.load();
+        for (int i = 0; i < scenario.spawnCount(); i++) {
+            addRobot(scenario.spawnRoute(i), planner, scenario.spawnStreet(i), scenario.spawnAvenue(i));
+        }
+    }
+
+    // Ubica un robot mirando al este en (street, avenue) sobre route; la ocupación se toma de inmediato
+    void addRobot(CompiledRoute route, RoutePlanner planner, int street, int avenue) {
+        SimRobot r = new SimRobot(nextId++, route, planner, street, avenue, East, 0);
+        if (planner != null) dynamicRouting = true;
+        if (!TrafficController.get().occupy(street, avenue, r.id)) {
+            throw new IllegalStateException("Celda ocupada al ubicar robot: " + street + "," + avenue);
+        }
+        occupants.put(cellKey(street, avenue), r);
+        robots.add(r);
+        RaceRecorder.spawn(r.id, street, avenue, East);
+    }
+
+    /**
+     * Corre hasta que el intercambio termine, no queden eventos (todos bloqueados)
+     * o el reloj simulado supere maxSimulatedMillis.
+     */
+    public Result run(long maxSimulatedMillis) {
+        BeeperExchangeManager mgr = BeeperExchangeManager.get();
+        if (!started) {
+            started = true;
+            for (SimRobot r : robots) {
+                schedule(r, random.nextInt((int) STEP_PAUSE_MILLIS + 1));
+            }
+        }
+        try {
+            while (!queue.isEmpty() && !mgr.isDone()) {
+                if (checkpointPeriod > 0 && queue.peek().time >= nextCheckpoint && nextCheckpoint <= maxSimulatedMillis) {
+                    saveCheckpoint(nextCheckpoint);
+                    nextCheckpoint = (queue.peek().time / checkpointPeriod + 1) * checkpointPeriod;
+                }
+                Event e = queue.poll();
+                if (e.epoch != e.robot.epoch) continue; // evento obsoleto (timeout ya resuelto)
+                if (e.time > maxSimulatedMillis) {
+                    queue.add(e); // sigue pendiente si se vuelve a correr con un límite mayor
+                    break;
+                }
+                now = e.time;
+                events++;
+                e.robot.act();
+            }
+        } finally {
+            awaitCheckpoints();
+        }
+        return new Result(mgr.isDone(), now, events, robots.size());
+    }
+
+    /**
+     * Guarda un checkpoint cada periodMillis simulados en prefix-<ms>.ckpt (ms: el instante
+     * del checkpoint; los eventos anteriores ya se procesaron).
+     */
+    void checkpointEvery(long periodMillis, String prefix) {
+        if (periodMillis <= 0) throw new IllegalArgumentException("Período inválido: " + periodMillis);
+        checkpointPeriod = periodMillis;
+        checkpointPrefix = prefix;
+        nextCheckpoint = (now / periodMillis + 1) * periodMillis;
+    }
+
+    static String checkpointFile(String prefix, long atMillis) {
+        return String.format(Locale.ROOT, "%s-%07d.ckpt", prefix, atMillis);
+    }
+
+    // La copia se toma acá, entre dos eventos; el disco lo escribe otro hilo
+    private void saveCheckpoint(long atMillis) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 14);
+        checkpoint(bytes);
+        final byte[] data = bytes.toByteArray();
+        final long captureMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        final String file = checkpointFile(checkpointPrefix, atMillis);
+        if (checkpointWriter == null) {
+            checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        checkpointWriter.execute(() -> {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+                EventLog.message(EventLog.Level.INFO, String.format("Checkpoint %s: %d bytes, copiado en %d µs",
+                        file, data.length, captureMicros));
+            } catch (IOException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo escribir el checkpoint " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void awaitCheckpoints() {
+        if (checkpointWriter == null) return;
+        checkpointWriter.shutdown();
+        try {
+            checkpointWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpointWriter = null;
+    }
+
+    /**
+     * Escribe en out el estado completo entre dos eventos: reloj y contadores, beepers del
+     * mundo, stock y beepers en viaje de cada zona, estado de cada subruta, ocupación,
+     * robots (posición, dirección, objetivo, esperas, carga y cursor), eventos pendientes y
+     * colas de espera. El ruteo dinámico guarda sólo la celda: el camino se vuelve a pedir.
+     */
+    void checkpoint(OutputStream sink) {
+        try {
+            DataOutputStream out = new DataOutputStream(sink);
+            TrafficController tc = TrafficController.get();
+            List<Subroute> subroutes = tc.registeredSubroutes();
+            List<TrafficController.AlternateRouteSpec> alternates = tc.registeredAlternates();
+            List<BeeperExchangeManager.Zone> zones = BeeperExchangeManager.get().zones();
+            int streets = world.getStreets();
+            int avenues = world.getAvenues();
+
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(streets);
+            out.writeInt(avenues);
+            out.writeLong(now);
+            out.writeLong(seq);
+            out.writeLong(nextId);
+            out.writeLong(events);
+            out.writeBoolean(dynamicRouting);
+            out.writeInt(load);
+
+            List<long[]> cells = new ArrayList<>();
+            for (int s = 1; s <= streets; s++) {
+                for (int a = 1; a <= avenues; a++) {
+                    if (world.beepersAt(s, a) != 0) cells.add(new long[]{s, a, world.beepersAt(s, a)});
+                }
+            }
+            writeCells(out, cells);
+
+            out.writeInt(zones.size());
+            for (BeeperExchangeManager.Zone z : zones) {
+                out.writeInt(z.remaining());
+                out.writeInt(z.carrying());
+            }
+
+            out.writeInt(subroutes.size());
+            for (Subroute sr : subroutes) {
+                out.writeUTF(sr.getId());
+                sr.writeState(out);
+            }
+
+            cells.clear();
+            for (int s = 1; s <= streets; s++) {
+                for (int a = 1; a <= avenues; a++) {
+                    if (tc.ownerAt(s, a) != 0) cells.add(new long[]{s, a, tc.ownerAt(s, a)});
+                }
+            }
+            writeCells(out, cells);
+
+            out.writeInt(robots.size());
+            for (SimRobot r : robots) r.writeState(out, subroutes, alternates);
+
+            List<Event> live = new ArrayList<>(queue.size());
+            for (Event e : queue) if (e.epoch == e.robot.epoch) live.add(e);
+            out.writeInt(live.size());
+            for (Event e : live) {
+                out.writeLong(e.time);
+                out.writeLong(e.seq);
+                out.writeInt(e.robot.index);
+                out.writeLong(e.epoch);
+            }
+
+            int queues = 0;
+            for (ArrayDeque<SimRobot> q : cellWaiters.values()) if (!q.isEmpty()) queues++;
+            out.writeInt(queues);
+            for (Map.Entry<Long, ArrayDeque<SimRobot>> en : cellWaiters.entrySet()) {
+                if (en.getValue().isEmpty()) continue;
+                out.writeLong(en.getKey());
+                writeRobots(out, en.getValue());
+            }
+            for (Subroute sr : subroutes) {
+                List<SimRobot> list = subrouteWaiters.get(sr);
+                writeRobots(out, list == null ? new ArrayList<SimRobot>() : list);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * En lugar de addRobots: reanuda desde un checkpoint. TrafficController y
+     * BeeperExchangeManager ya tienen que tener aplicado el mismo escenario (scenario.apply());
+     * los robots se ubican sobre las rutas de scenario.spawn en el orden del checkpoint.
+     */
+    void resume(InputStream source, Scenario scenario, RoutePlanner planner) throws IOException {
+        if (started || !robots.isEmpty()) throw new IllegalStateException("La simulación ya tiene robots");
+        DataInputStream in = new DataInputStream(source);
+        TrafficController tc = TrafficController.get();
+        BeeperExchangeManager mgr = BeeperExchangeManager.get();
+        List<Subroute> subroutes = tc.registeredSubroutes();
+        List<TrafficController.AlternateRouteSpec> alternates = tc.registeredAlternates();
+        List<BeeperExchangeManager.Zone> zones = mgr.zones();
+
+        if (in.readInt() != CHECKPOINT_MAGIC) throw new IOException("No es un checkpoint de la simulación");
+        if (in.readInt() != CHECKPOINT_VERSION) throw new IOException("Versión de checkpoint no soportada");
+        int streets = in.readInt();
+        int avenues = in.readInt();
+        if (streets != world.getStreets() || avenues != world.getAvenues()) {
+            throw new IOException("El checkpoint es de un mundo de " + streets + "x" + avenues);
+        }
+        now = in.readLong();
+        seq = in.readLong();
+        long savedNextId = in.readLong();
+        events = in.readLong();
+        dynamicRouting = in.readBoolean() || planner != null;
+        load = in.readInt();
+
+        for (int s = 1; s <= streets; s++) {
+            for (int a = 1; a <= avenues; a++) world.placeBeepers(s, a, 0);
+        }
+        for (int n = in.readInt(); n > 0; n--) world.placeBeepers(in.readInt(), in.readInt(), in.readInt());
+
+        int zoneCount = in.readInt();
+        if (zoneCount != zones.size()) throw new IOException("El checkpoint tiene " + zoneCount + " zonas");
+        int[] remaining = new int[zoneCount];
+        int[] carrying = new int[zoneCount];
+        for (int i = 0; i < zoneCount; i++) {
+            remaining[i] = in.readInt();
+            carrying[i] = in.readInt();
+        }
+        mgr.restore(remaining, carrying);
+
+        int subrouteCount = in.readInt();
+        if (subrouteCount != subroutes.size()) throw new IOException("El checkpoint tiene " + subrouteCount + " subrutas");
+        for (Subroute sr : subroutes) {
+            String id = in.readUTF();
+            if (!id.equals(sr.getId())) throw new IOException("Subruta " + id + " en lugar de " + sr.getId());
+            sr.readState(in);
+        }
+
+        int occupied = in.readInt();
+        long[] owned = new long[occupied * 3];
+        for (int i = 0; i < owned.length; i++) owned[i] = in.readInt();
+
+        int robotCount = in.readInt();
+        if (robotCount > scenario.spawnCount()) throw new IOException("El checkpoint tiene " + robotCount + " robots");
+        for (int i = 0; i < robotCount; i++) {
+            SimRobot r = readRobot(in, scenario.spawnRoute(i), planner, subroutes, alternates, zones);
+            robots.add(r);
+            occupants.put(cellKey(r.street, r.avenue), r);
+        }
+        for (int i = 0; i < owned.length; i += 3) {
+            int s = (int) owned[i];
+            int a = (int) owned[i + 1];
+            SimRobot r = occupants.get(cellKey(s, a));
+            if (r == null || r.id != owned[i + 2] || !tc.occupy(s, a, r.id)) {
+                throw new IOException("Ocupación inconsistente en " + s + "," + a);
+            }
+        }
+        nextId = savedNextId;
+
+        for (int n = in.readInt(); n > 0; n--) {
+            long time = in.readLong();
+            long s = in.readLong();
+            SimRobot r = robots.get(in.readInt());
+            queue.add(new Event(time, s, r, in.readLong()));
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            long key = in.readLong();
+            cellWaiters.put(key, new ArrayDeque<>(readRobots(in)));
+        }
+        for (Subroute sr : subroutes) {
+            List<SimRobot> list = readRobots(in);
+            if (!list.isEmpty()) subrouteWaiters.put(sr, list);
+        }
+        started = true;
+        for (SimRobot r : robots) RaceRecorder.spawn(r.id, r.street, r.avenue, r.dir);
+    }
+
+    // Robot del checkpoint, en el orden de SimRobot.writeState
+    private SimRobot readRobot(DataInputStream in, CompiledRoute route, RoutePlanner planner, List<Subroute> subroutes,
+                               List<TrafficController.AlternateRouteSpec> alternates,
+                               List<BeeperExchangeManager.Zone> zones) throws IOException {
+        long id = in.readLong();
+        int street = in.readInt();
+        int avenue = in.readInt();
+        Directions.Direction dir = RaceRecorder.direction(in.readByte());
+        int bag = in.readInt();
+        SimRobot r = new SimRobot(id, route, planner, street, avenue, dir, bag);
+        r.cargo.readState(in, zones);
+        r.hasTarget = in.readBoolean();
+        r.targetStreet = in.readInt();
+        r.targetAvenue = in.readInt();
+        r.epoch = in.readLong();
+        r.retryingCell = in.readBoolean();
+        r.waitingCell = in.readLong();
+        // la espera se mide desde la reanudación
+        if (r.waitingCell != NO_CELL) r.waitingSince = now;
+        int admitted = in.readInt();
+        r.admittedTo = admitted < 0 ? null : subroutes.get(admitted);
+        int waiting = in.readInt();
+        r.waitingOn = waiting < 0 ? null : subroutes.get(waiting);
+        r.waitDeadline = in.readLong();
+        r.cursor.readState(in, alternates);
+        return r;
+    }
+
+    // (street, avenue, valor) por celda; el valor entra en un int (beepers o id de robot)
+    static void writeCells(DataOutputStream out, List<long[]> cells) throws IOException {
+        out.writeInt(cells.size());
+        for (long[] c : cells) {
+            out.writeInt((int) c[0]);
+            out.writeInt((int) c[1]);
+            out.writeInt((int) c[2]);
+        }
+    }
+
+    private static void writeRobots(DataOutputStream out, Iterable<SimRobot> list) throws IOException {
+        int n = 0;
+        for (SimRobot r : list) n++;
+        out.writeInt(n);
+        for (SimRobot r : list) out.writeInt(r.index);
+    }
+
+    private List<SimRobot> readRobots(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<SimRobot> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) list.add(robots.get(in.readInt()));
+        return list;
+    }
+
+    // Pausa de entrega de los robots (experimentos y tests; no se guarda en el checkpoint)
+    void deliveryPause(long millis) {
+        deliveryPauseMillis = millis;
+    }
+
+    // Reloj simulado en milisegundos (el ruteo cooperativo cuenta sus ticks sobre él, en ns)
+    long now() {
+        return now;
+    }
+
+    private void schedule(SimRobot r, long delay) {
+        queue.add(new Event(now + delay, seq++, r, r.epoch));
+    }
+
+    private static long cellKey(int street, int avenue) {
+        return (((long) street) << 32) | (avenue & 0xffffffffL);
+    }
+
+    // La celda quedó libre: despertar al primero que la esperaba
+    private void wakeCellWaiter(int street, int avenue) {
+        ArrayDeque<SimRobot> q = cellWaiters.get(cellKey(street, avenue));
+        if (q == null || q.isEmpty()) return;
+        SimRobot r = q.pollFirst();
+        r.waitingCell = NO_CELL;
+        r.retryingCell = true;
+        schedule(r, 0);
+    }
+
+    /**
+     * r acaba de empezar a esperar: si desde ahí la cadena de esperas (la celda la tiene su
+     * ocupante, la subruta los robots que están dentro) vuelve a r, hay un ciclo. Un ciclo
+     * sólo de celdas (3 o más) avanza entero; si no, entra a la fuerza quien espera una
+     * subruta o se desvía el de mayor id del ciclo que tenga por dónde salir.
+     */
+    private void breakWaitCycle(SimRobot r) {
+        Map<SimRobot, SimRobot> parent = new IdentityHashMap<>();
+        ArrayDeque<SimRobot> frontier = new ArrayDeque<>();
+        List<SimRobot> blockers = new ArrayList<>();
+        frontier.add(r);
+        SimRobot last = null;
+        while (last == null && !frontier.isEmpty()) {
+            SimRobot o = frontier.poll();
+            blockersOf(o, blockers);
+            for (SimRobot b : blockers) {
+                if (b == r) {
+                    last = o;
+                    break;
+                }
+                if (!parent.containsKey(b)) {
+                    parent.put(b, o);
+                    frontier.add(b);
+                }
+            }
+        }
+        if (last == null) return;
+        // cycle.get(i) espera la celda o la subruta de cycle.get(i + 1) (circular)
+        List<SimRobot> cycle = new ArrayList<>();
+        for (SimRobot o = last; o != null; o = parent.get(o)) cycle.add(0, o);
+        if (rotate(cycle)) return;
+        cycle.sort((a, b) -> Long.compare(b.id, a.id));
+        // primero dejar entrar a quien espera una subruta (como el detector de TrafficController);
+        // desviar a alguien dentro de un pasillo de doble mano lo hace volver sobre sus pasos
+        for (SimRobot v : cycle) {
+            if (v.waitingOn != null && v.waitingOn.forceEnterNow(flowDir(v.dir))) {
+                v.forcedIn();
+                return;
+            }
+        }
+        for (SimRobot v : cycle) {
+            if (v.cursor.isPlanned() && v.cursor.blocked(v.street, v.avenue, v.nextStreet(), v.nextAvenue())) {
+                v.takeDetour();
+                return;
+            }
+        }
+    }
+
+    // Convoy: el que avanza a (ns, na) y la fila que lo sigue; cada uno toma la celda del de
+    // adelante en la misma transacción y sólo la del último queda libre
+    private boolean advancePlatoon(List<SimRobot> platoon, int ns, int na) {
+        int n = platoon.size();
+        long[] ids = new long[n];
+        int[] streets = new int[n];
+        int[] avenues = new int[n];
+        for (int i = 0; i < n; i++) {
+            SimRobot o = platoon.get(i);
+            ids[i] = o.id;
+            streets[i] = o.street;
+            avenues[i] = o.avenue;
+        }
+        if (!TrafficController.get().advancePlatoon(ids, streets, avenues, ns, na)) return false;
+        for (int i = 1; i < n; i++) {
+            SimRobot o = platoon.get(i);
+            cellWaiters.get(o.waitingCell).remove(o);
+            o.waitingCell = NO_CELL;
+            o.epoch++;
+        }
+        // de adelante hacia atrás: cada celda vieja la ocupa enseguida el que venía detrás
+        platoon.get(0).stepInto(ns, na, false);
+        for (int i = 1; i < n; i++) platoon.get(i).stepInto(streets[i - 1], avenues[i - 1], i == n - 1);
+        return true;
+    }
+
+    // Ciclo sólo de celdas, de 3 o más: todos avanzan a la vez (como TrafficController con hilos)
+    private boolean rotate(List<SimRobot> cycle) {
+        int n = cycle.size();
+        if (n < 3) return false;
+        long[] ids = new long[n];
+        int[] streets = new int[n];
+        int[] avenues = new int[n];
+        for (int i = 0; i < n; i++) {
+            SimRobot o = cycle.get(i);
+            SimRobot next = cycle.get((i + 1) % n);
+            if (o.waitingCell != cellKey(next.street, next.avenue)) return false;
+            ids[i] = o.id;
+            streets[i] = o.street;
+            avenues[i] = o.avenue;
+        }
+        if (!TrafficController.get().rotate(ids, streets, avenues)) return false;
+        for (SimRobot o : cycle) {
+            cellWaiters.get(o.waitingCell).remove(o);
+            o.waitingCell = NO_CELL;
+            o.epoch++;
+        }
+        // primero todos ocupan su celda nueva: cada celda vieja la toma el anterior del ciclo
+        for (SimRobot o : cycle) o.stepInto(o.nextStreet(), o.nextAvenue(), false);
+        return true;
+    }
+
+    // Robots por los que espera o: el ocupante de su celda o los que están en su subruta
+    // (o ya admitidos en ella, esperando la primera celda)
+    private void blockersOf(SimRobot o, List<SimRobot> out) {
+        out.clear();
+        if (o.waitingCell != NO_CELL) {
+            SimRobot b = occupants.get(o.waitingCell);
+            if (b != null) out.add(b);
+        } else if (o.waitingOn != null) {
+            for (SimRobot b : robots) {
+                if (b != o && (b.admittedTo == o.waitingOn || o.waitingOn.contains(b.street, b.avenue))) out.add(b);
+            }
+        }
+    }
+
+    // Un robot salió de la subruta: todos sus esperando reintentan (como notifyAll)
+    private void wakeSubrouteWaiters(Subroute sr) {
+        List<SimRobot> list = subrouteWaiters.get(sr);
+        if (list == null) return;
+        for (SimRobot r : list) {
+            r.epoch++;
+            schedule(r, 0);
+        }
+    }
+
+    /** Robot como máquina de estados: cada act() ejecuta una acción y agenda la siguiente. */
+    private final class SimRobot {
+        final long id;
+        // posición en robots (los checkpoints se refieren a los robots por ella)
+        final int index;
+        final HeadlessBody body;
+        final RouteCursor cursor;
+        final BeeperCargo cargo = new BeeperCargo(load);
+
+        int street;
+        int avenue;
+        Directions.Direction dir;
+
+        // objetivo actual como primitivos; hasTarget=false obliga a pedirlo al cursor
+        boolean hasTarget = false;
+        int targetStreet;
+        int targetAvenue;
+        long epoch = 0;
+        boolean retryingCell = false;
+        // celda cuya cola se está esperando (NO_CELL: ninguna)
+        long waitingCell = NO_CELL;
+        // desde cuándo espera una celda, hasta entrar o desviarse (-1: no espera); para Metrics
+        long waitingSince = -1;
+
+        // subruta ya admitida para el paso pendiente
+        Subroute admittedTo = null;
+        // subruta cuya admisión se está esperando
+        Subroute waitingOn = null;
+        long waitDeadline = 0;
+
+        SimRobot(long id, CompiledRoute route, RoutePlanner planner, int street, int avenue, Directions.Direction dir,
+                 int beepers) {
+            this.id = id;
+            this.index = robots.size();
+            this.street = street;
+            this.avenue = avenue;
+            this.dir = dir;
+            this.body = new HeadlessBody(world, street, avenue, dir, beepers);
+            this.cursor = new RouteCursor(route, planner, cargo, street, avenue, id);
+        }
+
+        // Estado para checkpoint(); lo lee readRobot en el mismo orden
+        void writeState(DataOutputStream out, List<Subroute> subroutes,
+                        List<TrafficController.AlternateRouteSpec> alternates) throws IOException {
+            out.writeLong(id);
+            out.writeInt(street);
+            out.writeInt(avenue);
+            out.writeByte(RaceRecorder.dirIndex(dir));
+            out.writeInt(cargo.getCount()); // la bolsa del cuerpo sólo lleva la carga
+            cargo.writeState(out);
+            out.writeBoolean(hasTarget);
+            out.writeInt(targetStreet);
+            out.writeInt(targetAvenue);
+            out.writeLong(epoch);
+            out.writeBoolean(retryingCell);
+            out.writeLong(waitingCell);
+            out.writeInt(admittedTo == null ? -1 : subroutes.indexOf(admittedTo));
+            out.writeInt(waitingOn == null ? -1 : subroutes.indexOf(waitingOn));
+            out.writeLong(waitDeadline);
+            cursor.writeState(out, alternates);
+        }
+
+        void act() {
+            if (BeeperExchangeManager.get().isDone()) {
+                body.turnOff();
+                return;
+            }
+            if (!hasTarget) {
+                targetStreet = cursor.targetStreet();
+                targetAvenue = cursor.targetAvenue();
+                hasTarget = true;
+            }
+            if (street == targetStreet && avenue == targetAvenue) {
+                arrive();
+                return;
+            }
+            Directions.Direction want = directionTowards(targetStreet, targetAvenue);
+            if (!body.isClear(want)) {
+                // atascado: igual que moveTo, se da por llegado (sin girar para mirar el muro)
+                arrive();
+                return;
+            }
+            if (dir != want) {
+                // reorientación de una vez: un solo giro aunque sea a la derecha o media vuelta
+                body.face(want);
+                dir = want;
+                Metrics.get().turned();
+                schedule(this, TURN_MILLIS);
+                return;
+            }
+            stepForward();
+        }
+
+        private void stepForward() {
+            TrafficController tc = TrafficController.get();
+            int ns = nextStreet();
+            int na = nextAvenue();
+            Subroute entering = tc.findContainingSubroute(ns, na);
+            Subroute current = tc.findContainingSubroute(street, avenue);
+
+            // Entrando a una subruta nueva => admisión por batch, sin bloquear el hilo
+            if (entering != null && entering != current && admittedTo != entering) {
+                Subroute.FlowDir fd = flowDir(dir);
+                boolean wasWaiting = waitingOn == entering;
+                if (!entering.tryEnterNow(fd, wasWaiting)) {
+                    if (!wasWaiting) {
+                        waitingOn = entering;
+                        waitDeadline = now + SUBROUTE_TIMEOUT_MILLIS;
+                        waitersOf(entering).add(this);
+                        if (dynamicRouting) {
+                            breakWaitCycle(this);
+                            if (waitingOn == null) return; // tomó un desvío
+                        }
+                    }
+                    if (now >= waitDeadline) {
+                        // timeout: retirarse y reintentar más tarde, como RacerBot
+                        entering.withdraw(fd);
+                        stopWaitingSubroute();
+                        schedule(this, SUBROUTE_RETRY_MILLIS);
+                        return;
+                    }
+                    epoch++;
+                    queue.add(new Event(waitDeadline, seq++, this, epoch));
+                    return;
+                }
+                if (wasWaiting) stopWaitingSubroute();
+                admittedTo = entering;
+                RaceRecorder.enterSubroute(id, entering);
+            }
+
+            // Token por celda: si está ocupada, esperar en su cola hasta que se libere. Con una
+            // fila esperando detrás, avanza todo el convoy en la misma transacción; si el convoy
+            // no puede (alguna celda ya no es de quien la espera), el robot prueba solo
+            List<SimRobot> platoon = platoonBehind();
+            if (platoon != null && advancePlatoon(platoon, ns, na)) return;
+            if (!tc.tryMove(street, avenue, ns, na, id)) {
+                ArrayDeque<SimRobot> q = cellWaiters.get(cellKey(ns, na));
+                if (q == null) {
+                    q = new ArrayDeque<>();
+                    cellWaiters.put(cellKey(ns, na), q);
+                }
+                if (retryingCell) {
+                    q.addFirst(this);
+                } else {
+                    q.addLast(this);
+                    if (waitingSince < 0) waitingSince = now;
+                }
+                retryingCell = false;
+                waitingCell = cellKey(ns, na);
+                epoch++;
+                if (dynamicRouting) breakWaitCycle(this);
+                return;
+            }
+            stepInto(ns, na, true);
+        }
+
+        // Avanza a (ns, na), cuyo token ya tiene; vacated: su celda queda libre (no en una rotación)
+        private void stepInto(int ns, int na, boolean vacated) {
+            TrafficController tc = TrafficController.get();
+            Subroute entering = tc.findContainingSubroute(ns, na);
+            Subroute current = tc.findContainingSubroute(street, avenue);
+            retryingCell = false;
+            admittedTo = null;
+            endCellWait(ns, na);
+
+            body.move();
+            Metrics.get().moved();
+            RaceRecorder.move(id, street, avenue, ns, na, dir);
+            int ps = street;
+            int pa = avenue;
+            street = ns;
+            avenue = na;
+            if (vacated) occupants.remove(cellKey(ps, pa));
+            occupants.put(cellKey(street, avenue), this);
+
+            if (current != null && current != entering && !current.contains(street, avenue)) {
+                current.exit();
+                RaceRecorder.exitSubroute(id, current);
+                wakeSubrouteWaiters(current);
+            }
+            if (vacated) wakeCellWaiter(ps, pa);
+            schedule(this, MOVE_MILLIS);
+        }
+
+        private void arrive() {
+            int delivered = cargo.exchange(body, id, street, avenue);
+            cursor.checkAndMaybeSwitchRoute(street, avenue);
+            cursor.advance(street, avenue);
+            hasTarget = false;
+            // en modo cooperativo, más la espera hasta el tick reservado para el próximo paso
+            long pause = STEP_PAUSE_MILLIS + TimeUnit.NANOSECONDS.toMillis(cursor.holdNanos());
+            if (delivered == cargo.load()) pause += deliveryPauseMillis;
+            schedule(this, pause);
+        }
+
+        // Fila pegada detrás de este robot (el primero en la cola de su celda, el primero en la
+        // de la celda de ése...), con este robot adelante; null si nadie espera su celda
+        private List<SimRobot> platoonBehind() {
+            List<SimRobot> platoon = null;
+            SimRobot last = this;
+            while (true) {
+                ArrayDeque<SimRobot> q = cellWaiters.get(cellKey(last.street, last.avenue));
+                SimRobot next = q == null ? null : q.peekFirst();
+                if (next == null || next == this) return platoon;
+                if (platoon == null) {
+                    platoon = new ArrayList<>();
+                    platoon.add(this);
+                }
+                platoon.add(next);
+                last = next;
+            }
+        }
+
+        // La espera por la celda (street, avenue) terminó (entró o se rindió): a Metrics en ns simulados
+        private void endCellWait(int street, int avenue) {
+            if (waitingSince < 0) return;
+            Metrics.get().cellWait(street, avenue, TimeUnit.MILLISECONDS.toNanos(now - waitingSince));
+            waitingSince = -1;
+        }
+
+        // Víctima de un ciclo: deja de esperar y sigue por el desvío que ya calculó el cursor
+        private void takeDetour() {
+            if (waitingCell != NO_CELL) {
+                cellWaiters.get(waitingCell).remove(this);
+                endCellWait((int) (waitingCell >> 32), (int) waitingCell);
+                waitingCell = NO_CELL;
+                retryingCell = false;
+            }
+            if (waitingOn != null) {
+                waitingOn.withdraw(flowDir(dir));
+                stopWaitingSubroute();
+            }
+            if (admittedTo != null) {
+                // admitido pero sin entrar: soltar el lugar, como el retroceso de RacerBot
+                Subroute sr = admittedTo;
+                admittedTo = null;
+                sr.exit();
+                RaceRecorder.exitSubroute(id, sr);
+                wakeSubrouteWaiters(sr);
+            }
+            cursor.advance(street, avenue);
+            hasTarget = false;
+            epoch++;
+            schedule(this, STEP_PAUSE_MILLIS);
+        }
+
+        // Admitido a la fuerza en la subruta que esperaba: sigue con el paso pendiente
+        private void forcedIn() {
+            admittedTo = waitingOn;
+            RaceRecorder.enterSubroute(id, admittedTo);
+            stopWaitingSubroute();
+            Metrics.get().deadlockResolved();
+            epoch++;
+            schedule(this, 0);
+        }
+
+        private void stopWaitingSubroute() {
+            waitersOf(waitingOn).remove(this);
+            waitingOn = null;
+        }
+
+        private List<SimRobot> waitersOf(Subroute sr) {
+            List<SimRobot> list = subrouteWaiters.get(sr);
+            if (list == null) {
+                list = new ArrayList<>();
+                subrouteWaiters.put(sr, list);
+            }
+            return list;
+        }
+
+        private Directions.Direction directionTowards(int ts, int ta) {
+            if (street < ts) return North;
+            if (street > ts) return South;
+            if (avenue < ta) return East;
+            return West;
+        }
+
+        private int nextStreet() {
+            if (dir == North) return street + 1;
+            if (dir == South) return street - 1;
+            return street;
+        }
+
+        private int nextAvenue() {
+            if (dir == East) return avenue + 1;
+            if (dir == West) return avenue - 1;
+            return avenue;
+        }
+    }
+
+    private static Subroute.FlowDir flowDir(Directions.Direction d) {
+        if (d == North) return Subroute.FlowDir.NORTH;
+        if (d == South) return Subroute.FlowDir.SOUTH;
+        if (d == East) return Subroute.FlowDir.EAST;
+        return Subroute.FlowDir.WEST;
+    }
+}
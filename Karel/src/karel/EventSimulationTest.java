@@ -0,0 +1,167 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EventSimulationTest
+{
+	private EventSimulation.Result runRace(long seed) throws Exception
+	{	return runRace(seed, false, EventSimulation.DELIVERY_PAUSE_MILLIS);
+	}
+
+	private EventSimulation.Result runRace(long seed, boolean dynamic, long deliveryPause) throws Exception
+	{	return runRace(Scenario.DEFAULT_FILE, seed, dynamic, deliveryPause);
+	}
+
+	private EventSimulation.Result runRace(String scenarioFile, long seed, boolean dynamic, long deliveryPause) throws Exception
+	{	Scenario scenario = Scenario.load(scenarioFile);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		scenario.apply();
+		EventSimulation sim = new EventSimulation(world, seed);
+		sim.deliveryPause(deliveryPause);
+		sim.addRobots(scenario, dynamic ? scenario.planner(world) : null);
+		return sim.run(60L * 60L * 1000L);
+	}
+
+	// Ruteo cooperativo: ticks sobre el reloj simulado
+	private EventSimulation.Result runCooperative(String scenarioFile, long seed, long deliveryPause) throws Exception
+	{	Scenario scenario = Scenario.load(scenarioFile);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		scenario.apply();
+		EventSimulation sim = new EventSimulation(world, seed);
+		sim.deliveryPause(deliveryPause);
+		RoutePlanner planner = scenario.planner(world);
+		planner.cooperate(() -> TimeUnit.MILLISECONDS.toNanos(sim.now()));
+		sim.addRobots(scenario, planner);
+		return sim.run(60L * 60L * 1000L);
+	}
+
+	@Test
+	public void testFullExchangeCompletes() throws Exception
+	{	EventSimulation.Result r = runRace(7);
+		assertTrue(r.completed);
+		assertTrue(BeeperExchangeManager.get().isDone());
+		assertEquals(56, r.robots);
+	}
+
+	// Sin la pausa de entrega no manda el tope de los destinos: el ruteo dinámico termina
+	// siempre y antes que la ruta fija
+	@Test
+	public void testDynamicRoutingWithoutDeliveryPauseBeatsStatic() throws Exception
+	{	for (long seed = 1; seed <= 5; seed++)
+		{	EventSimulation.Result fixed = runRace(seed, false, 0);
+			EventSimulation.Result dynamic = runRace(seed, true, 0);
+			assertTrue(fixed.completed);
+			assertTrue("seed " + seed, dynamic.completed);
+			assertTrue("seed " + seed, dynamic.simulatedMillis < fixed.simulatedMillis);
+		}
+	}
+
+	// Pasillo de a un robot con un desvío al lado (corridor.scn): la ruta fija hace la cola y
+	// el ruteo dinámico la ve en el costo y se desvía. Termina con menos de 3/4 del tiempo
+	@Test
+	public void testDynamicRoutingAvoidsBlockedCorridor() throws Exception
+	{	for (long seed = 1; seed <= 3; seed++)
+		{	EventSimulation.Result fixed = runRace("corridor.scn", seed, false, 0);
+			EventSimulation.Result dynamic = runRace("corridor.scn", seed, true, 0);
+			assertTrue(fixed.completed);
+			assertTrue("seed " + seed, dynamic.completed);
+			assertTrue("seed " + seed + ": " + dynamic.simulatedMillis + " vs " + fixed.simulatedMillis,
+					dynamic.simulatedMillis * 4 < fixed.simulatedMillis * 3);
+		}
+	}
+
+	@Test
+	public void testCooperativeRoutingCompletesAndAvoidsBlockedCorridor() throws Exception
+	{	for (long seed = 1; seed <= 3; seed++)
+		{	EventSimulation.Result race = runCooperative(Scenario.DEFAULT_FILE, seed, 0);
+			assertTrue("seed " + seed, race.completed);
+			EventSimulation.Result fixed = runRace("corridor.scn", seed, false, 0);
+			EventSimulation.Result cooperative = runCooperative("corridor.scn", seed, 0);
+			assertTrue("seed " + seed, cooperative.completed);
+			assertTrue("seed " + seed + ": " + cooperative.simulatedMillis + " vs " + fixed.simulatedMillis,
+					cooperative.simulatedMillis * 4 < fixed.simulatedMillis * 3);
+		}
+	}
+
+	@Test
+	public void testSameSeedSameResult() throws Exception
+	{	EventSimulation.Result a = runRace(42);
+		EventSimulation.Result b = runRace(42);
+		assertEquals(a.simulatedMillis, b.simulatedMillis);
+		assertEquals(a.events, b.events);
+	}
+
+	// Reanudar desde un checkpoint da exactamente la misma carrera que no cortarla
+	@Test
+	public void testResumeFromCheckpointMatchesUninterruptedRun() throws Exception
+	{	File dir = new File(System.getProperty("java.io.tmpdir"), "karel-ckpt-" + System.nanoTime());
+		assertTrue(dir.mkdirs());
+		String prefix = new File(dir, "race").getPath();
+		Scenario scenario = Scenario.load(Scenario.DEFAULT_FILE);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		scenario.apply();
+		EventSimulation sim = new EventSimulation(world, 5);
+		sim.addRobots(scenario);
+		sim.checkpointEvery(20000, prefix);
+		EventSimulation.Result full = sim.run(60L * 60L * 1000L);
+		assertTrue(full.completed);
+
+		for (long at : new long[]{20000, 40000})
+		{	File f = new File(EventSimulation.checkpointFile(prefix, at));
+			assertTrue(f.getPath(), f.isFile());
+			WorldModel resumedWorld = WorldModel.load(scenario.getWorld());
+			TrafficController.get().reset(resumedWorld.getStreets(), resumedWorld.getAvenues());
+			scenario.apply();
+			EventSimulation resumed = new EventSimulation(resumedWorld, 99);
+			try (InputStream in = new FileInputStream(f))
+			{	resumed.resume(in, scenario, null);
+			}
+			assertTrue(resumed.now() < at);
+			assertFalse(BeeperExchangeManager.get().isDone());
+			EventSimulation.Result r = resumed.run(60L * 60L * 1000L);
+			assertTrue(r.completed);
+			assertEquals(full.simulatedMillis, r.simulatedMillis);
+			assertEquals(full.events, r.events);
+			for (int s = 1; s <= world.getStreets(); s++)
+				for (int a = 1; a <= world.getAvenues(); a++)
+					assertEquals(world.beepersAt(s, a), resumedWorld.beepersAt(s, a));
+			assertTrue(f.delete());
+		}
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testResumeWithDynamicRoutingCompletes() throws Exception
+	{	Scenario scenario = Scenario.load(Scenario.DEFAULT_FILE);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		scenario.apply();
+		EventSimulation sim = new EventSimulation(world, 2);
+		sim.addRobots(scenario, scenario.planner(world));
+		assertFalse(sim.run(30000).completed);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		sim.checkpoint(bytes);
+
+		WorldModel resumedWorld = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(resumedWorld.getStreets(), resumedWorld.getAvenues());
+		scenario.apply();
+		EventSimulation resumed = new EventSimulation(resumedWorld, 2);
+		resumed.resume(new ByteArrayInputStream(bytes.toByteArray()), scenario, scenario.planner(resumedWorld));
+		EventSimulation.Result r = resumed.run(60L * 60L * 1000L);
+		assertTrue(r.completed);
+		assertTrue(r.simulatedMillis > 30000);
+	}
+}
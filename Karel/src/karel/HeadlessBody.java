@@ -0,0 +1,110 @@
+package karel;
+
+import kareltherobot.Directions;
+
+/**
+ * Cuerpo sin interfaz gráfica: posición, dirección y bolsa de beepers
+ * se mantienen en memoria contra un WorldModel compartido.
+ * Los errores (chocar con un muro, soltar sin beepers) lanzan IllegalStateException.
+ * Con RobotStates publica su estado tras cada acción, para que lo dibuje SnapshotView.
+ */
+final class HeadlessBody implements RobotBody, Directions {
+    private final WorldModel world;
+
+    private int street;
+    private int avenue;
+    private Directions.Direction dir;
+    private int beepers;
+    private boolean running = true;
+    // vista: dónde publicar el estado (null si nadie lo dibuja)
+    private final RobotStates states;
+    private final int slot;
+
+    HeadlessBody(WorldModel world, int street, int avenue, Directions.Direction dir, int beepers) {
+        this(world, street, avenue, dir, beepers, null, -1);
+    }
+
+    HeadlessBody(WorldModel world, int street, int avenue, Directions.Direction dir, int beepers,
+                 RobotStates states, int slot) {
+        this.world = world;
+        this.street = street;
+        this.avenue = avenue;
+        this.dir = dir;
+        this.beepers = beepers;
+        this.states = states;
+        this.slot = slot;
+        publish();
+    }
+
+    @Override
+    public void move() {
+        checkRunning();
+        if (!world.isClear(street, avenue, dir)) {
+            running = false;
+            throw new IllegalStateException("Muro en " + street + "," + avenue + " hacia " + dir);
+        }
+        if (dir == North) street++;
+        else if (dir == South) street--;
+        else if (dir == East) avenue++;
+        else avenue--;
+        publish();
+    }
+
+    @Override
+    public void turnLeft() {
+        checkRunning();
+        if (dir == North) dir = West;
+        else if (dir == West) dir = South;
+        else if (dir == South) dir = East;
+        else dir = North;
+        publish();
+    }
+
+    @Override
+    public void face(Directions.Direction d) {
+        checkRunning();
+        if (dir == d) return;
+        dir = d;
+        publish();
+    }
+
+    @Override
+    public void pickBeeper() {
+        checkRunning();
+        if (!world.takeBeeper(street, avenue)) {
+            running = false;
+            throw new IllegalStateException("No hay beepers en " + street + "," + avenue);
+        }
+        if (beepers != infinity) beepers++;
+        publish();
+    }
+
+    @Override
+    public void putBeeper() {
+        checkRunning();
+        if (beepers == 0) {
+            running = false;
+            throw new IllegalStateException("Bolsa vacía en " + street + "," + avenue);
+        }
+        if (beepers != infinity) beepers--;
+        world.putBeeper(street, avenue);
+        publish();
+    }
+
+    @Override public boolean frontIsClear() { return world.isClear(street, avenue, dir); }
+    @Override public boolean isClear(Directions.Direction d) { return world.isClear(street, avenue, d); }
+    @Override public boolean nextToABeeper() { return world.beepersAt(street, avenue) != 0; }
+    @Override
+    public void turnOff() {
+        running = false;
+        publish();
+    }
+
+    private void publish() {
+        if (states != null) states.publish(slot, street, avenue, dir, beepers, running);
+    }
+
+    private void checkRunning() {
+        if (!running) throw new IllegalStateException("Robot apagado en " + street + "," + avenue);
+    }
+}
@@ -0,0 +1,101 @@
+package karel;
+
+import java.awt.Color;
+
+import kareltherobot.*;
+
+/**
+ * Cuerpo gráfico: delega cada acción en un Robot de KarelJRobot,
+ * que se dibuja en la ventana World con su demora configurada.
+ * - Con el modelo de muros del mundo (WorldModel), frontIsClear/isClear son lecturas en
+ *   memoria de la posición que el cuerpo lleva, sin consultar a la ventana
+ * - face() gira de una vez: KarelJRobot sólo sabe girar a la izquierda, así que los giros
+ *   intermedios se hacen sin su demora y sólo el último se ve y espera
+ */
+final class KarelBody implements RobotBody, Directions {
+    // Robot que puede saltear la demora (sleep) de un giro intermedio
+    private static final class TurningRobot extends Robot {
+        private boolean quiet = false;
+
+        TurningRobot(int street, int avenue, Directions.Direction dir, int beepers, Color color) {
+            super(street, avenue, dir, beepers, color);
+        }
+
+        @Override
+        protected void sleep() {
+            if (!quiet) super.sleep();
+        }
+    }
+
+    private final TurningRobot robot;
+    // muros del mundo (null: se consulta al robot, girando si hace falta)
+    private final WorldModel walls;
+    private int street;
+    private int avenue;
+    private Directions.Direction dir;
+
+    KarelBody(int street, int avenue, Directions.Direction dir, int beepers, Color color) {
+        this(street, avenue, dir, beepers, color, null);
+    }
+
+    KarelBody(int street, int avenue, Directions.Direction dir, int beepers, Color color, WorldModel walls) {
+        this.robot = new TurningRobot(street, avenue, dir, beepers, color);
+        this.walls = walls;
+        this.street = street;
+        this.avenue = avenue;
+        this.dir = dir;
+    }
+
+    @Override
+    public void move() {
+        robot.move();
+        if (dir == North) street++;
+        else if (dir == South) street--;
+        else if (dir == East) avenue++;
+        else avenue--;
+    }
+
+    @Override
+    public void turnLeft() {
+        robot.turnLeft();
+        dir = leftOf(dir);
+    }
+
+    @Override
+    public void face(Directions.Direction d) {
+        int turns = 0;
+        for (Directions.Direction x = dir; x != d; x = leftOf(x)) turns++;
+        if (turns == 0) return;
+        robot.quiet = true;
+        try {
+            for (int i = 1; i < turns; i++) robot.turnLeft();
+        } finally {
+            robot.quiet = false;
+        }
+        robot.turnLeft();
+        dir = d;
+    }
+
+    @Override public void pickBeeper() { robot.pickBeeper(); }
+    @Override public void putBeeper() { robot.putBeeper(); }
+    @Override public boolean frontIsClear() { return walls != null ? walls.isClear(street, avenue, dir) : robot.frontIsClear(); }
+
+    @Override
+    public boolean isClear(Directions.Direction d) {
+        if (walls != null) return walls.isClear(street, avenue, d);
+        if (d == dir) return robot.frontIsClear();
+        // sin modelo de muros no queda otra que mirar hacia allá
+        face(d);
+        return robot.frontIsClear();
+    }
+
+    @Override public boolean nextToABeeper() { return robot.nextToABeeper(); }
+    @Override public void turnOff() { robot.turnOff(); }
+
+    private static Directions.Direction leftOf(Directions.Direction d) {
+        if (d == North) return West;
+        if (d == West) return South;
+        if (d == South) return East;
+        return North;
+    }
+}
@@ -0,0 +1,69 @@
+package karel;
+
+/**
+ * Histograma log-lineal de latencias en nanosegundos:
+ * - 16 sub-buckets por potencia de dos (error relativo < 6.25%)
+ * - Sin locks ni asignaciones al registrar: pensado para un escritor por hilo
+ * - Se combinan con merge() para reportar percentiles globales
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long max = 0;
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[indexOf(nanos)]++;
+        total++;
+        if (nanos > max) max = nanos;
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+        total += other.total;
+        if (other.max > max) max = other.max;
+    }
+
+    // Suma conteos por bucket tomados de otro registro (por ejemplo un AtomicHistogram)
+    void addCounts(long[] bucketCounts, long bucketMax) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += bucketCounts[i];
+            total += bucketCounts[i];
+        }
+        if (bucketMax > max) max = bucketMax;
+    }
+
+    long count() { return total; }
+    long max() { return max; }
+
+    // Valor (límite inferior del bucket) por debajo del cual queda la fracción p de las muestras
+    long percentile(double p) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(valueOf(i), max);
+        }
+        return max;
+    }
+
+    static int indexOf(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long valueOf(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub)) << (exp - SUB_BITS);
+    }
+}
@@ -0,0 +1,32 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+	@Test
+	public void testPercentilesWithinBucketError()
+	{	LatencyHistogram h = new LatencyHistogram();
+		for (long v = 1; v <= 10000; v++) h.record(v);
+		assertEquals(10000, h.count());
+		assertEquals(10000, h.max());
+		long p50 = h.percentile(0.50);
+		long p99 = h.percentile(0.99);
+		assertTrue("p50=" + p50, Math.abs(p50 - 5000) <= 5000 / 16 + 1);
+		assertTrue("p99=" + p99, Math.abs(p99 - 9900) <= 9900 / 16 + 1);
+	}
+
+	@Test
+	public void testMerge()
+	{	LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		a.record(10);
+		b.record(1000000);
+		a.merge(b);
+		assertEquals(2, a.count());
+		assertEquals(1000000, a.max());
+		assertEquals(10, a.percentile(0.5));
+	}
+}
@@ -0,0 +1,448 @@
+package karel;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registro de métricas de la carrera, pensado para quedar siempre encendido:
+ * - Espera por celda en TrafficController: histogramas repartidos por hilo que se juntan
+ *   para los percentiles globales y, por celda, buckets de potencias de dos (percentiles aproximados)
+ * - Por subruta: cola de espera, tamaño de batch, espera de admisión y timeouts
+ * - Activaciones de ruta alternativa por celda de decisión
+ * - Beepers entregados y beepers/s por zona de intercambio
+ * - Deadlocks resueltos por TrafficController
+ * - Acciones sobre el mundo: pasos y reorientaciones (cada una, un giro visible)
+ * - Convoyes: filas de robots que avanzaron juntas y cuántos robots movieron
+ * Registrar es un LongAdder o un incremento atómico repartido, sin locks. Se expone por JMX
+ * (karel:type=Metrics) y como volcado periódico al EventLog.
+ */
+public final class Metrics implements MetricsMXBean {
+    // Histogramas de espera global: potencia de dos >= 2 * núcleos, elegidos por id de hilo
+    // (antes de INSTANCE, que los crea en el constructor)
+    private static final int WAIT_STRIPES =
+        Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors()) * 2 - 1);
+    private static final Metrics INSTANCE = new Metrics();
+    static final String OBJECT_NAME = "karel:type=Metrics";
+    private static final int TOP_CELLS = 10;
+
+    /** Métricas de una subruta; la subruta las actualiza dentro de su propio lock. */
+    static final class SubrouteStats {
+        final LongAdder entries = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        final LongAdder batchRobots = new LongAdder();
+        final AtomicHistogram waitNanos = new AtomicHistogram();
+        volatile int queueDepth = 0;
+
+        double meanBatchSize() {
+            long b = batches.sum();
+            return b == 0 ? 0.0 : (double) batchRobots.sum() / b;
+        }
+    }
+
+    /**
+     * Contadores de una celda con actividad: esperas en buckets por potencia de dos (el
+     * percentil sale a menos de un factor 2) y activaciones de la alternativa que se decide
+     * ahí. Todo es LongAdder/LongAccumulator: los robots que esperan en la misma celda de un
+     * corredor no se disputan un contador (ocupa ~2 KB, menos que los ~8 KB de un AtomicHistogram).
+     */
+    private static final class CellCounters {
+        static final int BUCKETS = 48; // el último junta todo lo que pase de 2^46 ns (~19 h)
+        final LongAdder[] waits = new LongAdder[BUCKETS];
+        final LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+        final LongAdder alternates = new LongAdder();
+
+        CellCounters() {
+            for (int b = 0; b < BUCKETS; b++) waits[b] = new LongAdder();
+        }
+
+        // bucket b: [2^(b-1), 2^b - 1] ns; el 0 es la espera nula
+        void recordWait(long nanos) {
+            if (nanos < 0) nanos = 0;
+            waits[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+            maxWait.accumulate(nanos);
+        }
+
+        long waitCount() {
+            long n = 0;
+            for (int b = 0; b < BUCKETS; b++) n += waits[b].sum();
+            return n;
+        }
+
+        // Cota superior del bucket que contiene el percentil p (nunca más que el máximo visto)
+        long waitPercentile(double p) {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int b = 0; b < BUCKETS; b++) n += counts[b] = waits[b].sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * n));
+            long max = maxWait.get();
+            long seen = 0;
+            for (int b = 0; b < BUCKETS - 1; b++) {
+                seen += counts[b];
+                if (seen >= rank) return Math.min(b == 0 ? 0 : (1L << b) - 1, max);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Contadores por celda con el índice denso de la grilla de TrafficController
+     * (street * (avenues + 1) + avenue): registrar no arma claves ni busca en un mapa.
+     * Cada celda crea sus contadores la primera vez que se registra algo en ella.
+     */
+    private static final class CellTable {
+        final int streets;
+        final int avenues;
+        final AtomicReferenceArray<CellCounters> cells;
+
+        CellTable(int streets, int avenues) {
+            this.streets = streets;
+            this.avenues = avenues;
+            this.cells = new AtomicReferenceArray<>((streets + 1) * (avenues + 1));
+        }
+
+        int index(int street, int avenue) {
+            if (street < 0 || street > streets || avenue < 0 || avenue > avenues) return -1;
+            return street * (avenues + 1) + avenue;
+        }
+
+        CellCounters at(int i) {
+            CellCounters c = cells.get(i);
+            if (c == null) {
+                cells.compareAndSet(i, null, new CellCounters());
+                c = cells.get(i);
+            }
+            return c;
+        }
+
+        String name(int i) {
+            return (i / (avenues + 1)) + "," + (i % (avenues + 1));
+        }
+    }
+
+    private volatile CellTable cells = new CellTable(0, 0);
+    private volatile AtomicHistogram[] cellWaitsAll = newWaitStripes();
+    private final LongAdder cellWaitCount = new LongAdder();
+    private final LongAdder cellWaitNanos = new LongAdder();
+    private final Map<String, LongAdder> delivered = new ConcurrentHashMap<>();
+    private final LongAdder deadlocksResolved = new LongAdder();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder platoons = new LongAdder();
+    private final LongAdder platoonRobots = new LongAdder();
+    private volatile long startNanos = System.nanoTime();
+
+    // último volcado periódico, para la tasa del intervalo (sólo lo usa el hilo de volcado)
+    private long lastDumpNanos = 0;
+    private Map<String, Long> lastDelivered = Collections.emptyMap();
+    private Thread dumper = null;
+
+    Metrics() {}
+
+    // La global, o la de la corrida aislada (SimulationScope) que ejecuta este hilo
+    public static Metrics get() {
+        SimulationScope scope = SimulationScope.current();
+        return scope == null ? INSTANCE : scope.metrics;
+    }
+
+    // Contadores de (street, avenue), o null si la celda no puede estar en ninguna grilla
+    private CellCounters counters(int street, int avenue) {
+        CellTable t = cells;
+        int i = t.index(street, avenue);
+        if (i < 0) {
+            t = grow(street, avenue);
+            i = t.index(street, avenue);
+            if (i < 0) return null;
+        }
+        return t.at(i);
+    }
+
+    /**
+     * Agranda la tabla hasta cubrir la celda y la grilla actual de TrafficController. Pasa
+     * una vez al arrancar (o al cambiar de mundo); un registro concurrente sobre una celda
+     * nueva de la tabla vieja puede perderse, como con reset().
+     */
+    private synchronized CellTable grow(int street, int avenue) {
+        CellTable t = cells;
+        if (t.index(street, avenue) >= 0 || street < 0 || avenue < 0) return t;
+        TrafficController tc = TrafficController.get();
+        CellTable g = new CellTable(Math.max(Math.max(t.streets, tc.getStreets()), street),
+                                    Math.max(Math.max(t.avenues, tc.getAvenues()), avenue));
+        for (int i = 0; i < t.cells.length(); i++) {
+            CellCounters c = t.cells.get(i);
+            if (c != null) g.cells.set(g.index(i / (t.avenues + 1), i % (t.avenues + 1)), c);
+        }
+        cells = g;
+        return g;
+    }
+
+    // Espera de un robot por la celda (street, avenue) hasta recibirla o rendirse
+    void cellWait(int street, int avenue, long nanos) {
+        CellCounters c = counters(street, avenue);
+        if (c != null) c.recordWait(nanos);
+        // un solo histograma era el punto más disputado del registro: cada hilo usa el suyo
+        cellWaitsAll[(int) Thread.currentThread().getId() & (WAIT_STRIPES - 1)].record(nanos);
+        cellWaitCount.increment();
+        cellWaitNanos.add(nanos);
+    }
+
+    // Todas las esperas por celda juntas (para percentiles globales)
+    LatencyHistogram cellWaitsAll() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (AtomicHistogram stripe : cellWaitsAll) h.merge(stripe.snapshot());
+        return h;
+    }
+
+    private static AtomicHistogram[] newWaitStripes() {
+        AtomicHistogram[] stripes = new AtomicHistogram[WAIT_STRIPES];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new AtomicHistogram();
+        return stripes;
+    }
+
+    double meanCellWaitNanos() {
+        long n = cellWaitCount.sum();
+        return n == 0 ? 0.0 : (double) cellWaitNanos.sum() / n;
+    }
+
+    void alternateActivated(int street, int avenue) {
+        CellCounters c = counters(street, avenue);
+        if (c != null) c.alternates.increment();
+    }
+
+    void beepersDelivered(BeeperExchangeManager.Zone from, int count) {
+        LongAdder c = delivered.get(from.name());
+        if (c == null) c = delivered.computeIfAbsent(from.name(), x -> new LongAdder());
+        c.add(count);
+    }
+
+    void deadlockResolved() {
+        deadlocksResolved.increment();
+    }
+
+    void moved() {
+        moves.increment();
+    }
+
+    void turned() {
+        turns.increment();
+    }
+
+    // Una fila de robots (2 o más) avanzó junta en una sola transacción
+    void platoonAdvanced(int robots) {
+        platoons.increment();
+        platoonRobots.add(robots);
+    }
+
+    // Punto de partida de las tasas de beepers/s (la salida de la carrera)
+    void markStart() {
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void reset() {
+        CellTable t = cells;
+        cells = new CellTable(t.streets, t.avenues);
+        cellWaitsAll = newWaitStripes();
+        cellWaitCount.reset();
+        cellWaitNanos.reset();
+        delivered.clear();
+        deadlocksResolved.reset();
+        moves.reset();
+        turns.reset();
+        platoons.reset();
+        platoonRobots.reset();
+        lastDelivered = Collections.emptyMap();
+        lastDumpNanos = 0;
+        markStart();
+    }
+
+    @Override public long getDeadlocksResolved() { return deadlocksResolved.sum(); }
+    @Override public long getMoves() { return moves.sum(); }
+    @Override public long getTurns() { return turns.sum(); }
+    @Override public long getPlatoonMoves() { return platoons.sum(); }
+    @Override public long getPlatoonRobots() { return platoonRobots.sum(); }
+
+    @Override
+    public Map<String, Long> getBeepersDelivered() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : delivered.entrySet()) m.put(e.getKey(), e.getValue().sum());
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getBeepersPerSecond() {
+        long nanos = System.nanoTime() - startNanos;
+        Map<String, Double> m = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : delivered.entrySet()) m.put(e.getKey(), rate(e.getValue().sum(), nanos));
+        return m;
+    }
+
+    long beepersDelivered(String zone) {
+        LongAdder c = delivered.get(zone);
+        return c == null ? 0 : c.sum();
+    }
+
+    private static double rate(long beepers, long nanos) {
+        return nanos <= 0 ? 0.0 : beepers / (nanos / 1e9);
+    }
+
+    @Override
+    public Map<String, Long> getAlternateActivations() {
+        Map<String, Long> m = new TreeMap<>();
+        CellTable t = cells;
+        for (int i = 0; i < t.cells.length(); i++) {
+            CellCounters c = t.cells.get(i);
+            if (c != null && c.alternates.sum() > 0) m.put(t.name(i), c.alternates.sum());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Integer> getSubrouteQueueDepth() {
+        Map<String, Integer> m = new TreeMap<>();
+        for (Subroute sr : TrafficController.get().registeredSubroutes()) m.put(sr.getId(), sr.stats().queueDepth);
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getSubrouteTimeouts() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Subroute sr : TrafficController.get().registeredSubroutes()) m.put(sr.getId(), sr.stats().timeouts.sum());
+        return m;
+    }
+
+    @Override
+    public Map<String, Double> getSubrouteMeanBatchSize() {
+        Map<String, Double> m = new TreeMap<>();
+        for (Subroute sr : TrafficController.get().registeredSubroutes()) m.put(sr.getId(), sr.stats().meanBatchSize());
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getSubrouteWaitP99Nanos() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Subroute sr : TrafficController.get().registeredSubroutes()) {
+            m.put(sr.getId(), sr.stats().waitNanos.snapshot().percentile(0.99));
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getCellWaitCounts() {
+        Map<String, Long> m = new TreeMap<>();
+        CellTable t = cells;
+        for (int i = 0; i < t.cells.length(); i++) {
+            CellCounters c = t.cells.get(i);
+            if (c != null && c.waitCount() > 0) m.put(t.name(i), c.waitCount());
+        }
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getCellWaitP99Nanos() {
+        Map<String, Long> m = new TreeMap<>();
+        CellTable t = cells;
+        for (int i = 0; i < t.cells.length(); i++) {
+            CellCounters c = t.cells.get(i);
+            if (c != null && c.waitCount() > 0) m.put(t.name(i), c.waitPercentile(0.99));
+        }
+        return m;
+    }
+
+    @Override
+    public String getSnapshot() {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("métricas t=%.1fs%n", (now - startNanos) / 1e9));
+        sb.append("  beepers");
+        for (Map.Entry<String, Long> e : getBeepersDelivered().entrySet()) {
+            sb.append(String.format(" %s=%d (%.1f/s)", e.getKey(), e.getValue(), rate(e.getValue(), now - startNanos)));
+        }
+        sb.append(System.lineSeparator());
+        sb.append("  alternativas ").append(getAlternateActivations())
+          .append(" deadlocks resueltos=").append(deadlocksResolved.sum()).append(System.lineSeparator());
+        sb.append("  acciones pasos=").append(moves.sum()).append(" giros=").append(turns.sum())
+          .append(" convoyes=").append(platoons.sum()).append(" (").append(platoonRobots.sum()).append(" robots)")
+          .append(System.lineSeparator());
+        for (Subroute sr : TrafficController.get().registeredSubroutes()) {
+            SubrouteStats s = sr.stats();
+            LatencyHistogram w = s.waitNanos.snapshot();
+            sb.append(String.format("  subruta %s: cola=%d entradas=%d batches=%d batch medio=%.2f espera p50=%dus p99=%dus max=%dus timeouts=%d%n",
+                    sr.getId(), s.queueDepth, s.entries.sum(), s.batches.sum(), s.meanBatchSize(),
+                    micros(w.percentile(0.50)), micros(w.percentile(0.99)), micros(w.max()), s.timeouts.sum()));
+        }
+        // celdas con más esperas primero; {esperas, índice} leídos una vez para ordenar
+        CellTable t = cells;
+        List<long[]> busy = new ArrayList<>();
+        for (int i = 0; i < t.cells.length(); i++) {
+            CellCounters c = t.cells.get(i);
+            long n = c == null ? 0 : c.waitCount();
+            if (n > 0) busy.add(new long[]{n, i});
+        }
+        Collections.sort(busy, (x, y) -> Long.compare(y[0], x[0]));
+        for (int k = 0; k < busy.size() && k < TOP_CELLS; k++) {
+            int i = (int) busy.get(k)[1];
+            CellCounters c = t.cells.get(i);
+            sb.append(String.format("  celda (%s): esperas=%d p50=%dus p99=%dus max=%dus%n",
+                    t.name(i), busy.get(k)[0], micros(c.waitPercentile(0.50)),
+                    micros(c.waitPercentile(0.99)), micros(c.maxWait.get())));
+        }
+        return sb.toString().trim();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // Publica el registro en el MBeanServer de la plataforma; idempotente
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (Exception e) {
+            EventLog.message(EventLog.Level.WARN, "No se pudo registrar el MBean de métricas: " + e.getMessage());
+        }
+    }
+
+    /** Vuelca un snapshot al EventLog cada periodMillis, con la tasa de beepers/s del intervalo. */
+    public synchronized void startPeriodicDump(final long periodMillis) {
+        if (dumper != null) return;
+        dumper = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(periodMillis); } catch (InterruptedException e) { return; }
+                EventLog.message(EventLog.Level.INFO, getSnapshot() + System.lineSeparator() + intervalRates());
+            }
+        }, "Metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    private synchronized String intervalRates() {
+        long now = System.nanoTime();
+        Map<String, Long> current = getBeepersDelivered();
+        long since = lastDumpNanos == 0 ? startNanos : lastDumpNanos;
+        StringBuilder s = new StringBuilder("  intervalo:");
+        for (Map.Entry<String, Long> e : current.entrySet()) {
+            Long before = lastDelivered.get(e.getKey());
+            s.append(String.format(" %s %.1f beepers/s", e.getKey(),
+                    rate(e.getValue() - (before == null ? 0 : before), now - since)));
+        }
+        lastDumpNanos = now;
+        lastDelivered = current;
+        return s.toString();
+    }
+}
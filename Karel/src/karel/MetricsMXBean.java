@@ -0,0 +1,34 @@
+package karel;
+
+import java.util.Map;
+
+/**
+ * Vista JMX de Metrics (karel:type=Metrics). Los mapas usan como clave
+ * "street,avenue" para celdas, el id para subrutas y el nombre para zonas de beepers.
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getBeepersDelivered();
+    Map<String, Double> getBeepersPerSecond();
+
+    Map<String, Long> getAlternateActivations();
+    long getDeadlocksResolved();
+
+    // Acciones sobre el mundo: pasos y reorientaciones (un giro de varios cuartos cuenta una)
+    long getMoves();
+    long getTurns();
+    // Filas de robots pegados que avanzaron juntas y cuántos robots movieron en total
+    long getPlatoonMoves();
+    long getPlatoonRobots();
+
+    Map<String, Integer> getSubrouteQueueDepth();
+    Map<String, Long> getSubrouteTimeouts();
+    Map<String, Double> getSubrouteMeanBatchSize();
+    Map<String, Long> getSubrouteWaitP99Nanos();
+
+    Map<String, Long> getCellWaitCounts();
+    Map<String, Long> getCellWaitP99Nanos();
+
+    String getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,96 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest
+{
+	private Metrics metrics;
+
+	@Before
+	public void setUp()
+	{	metrics = Metrics.get();
+		metrics.reset();
+		TrafficController.get().reset(21, 31);
+	}
+
+	@Test
+	public void testSubrouteBatchesAndTimeouts() throws Exception
+	{	Subroute sr = new Subroute("M", 2);
+		sr.addCell(1, 1);
+		sr.addCell(1, 2);
+		TrafficController.get().registerSubroute(sr);
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 100));
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 100));
+		assertFalse(sr.tryEnterDirectional(Subroute.FlowDir.WEST, 10)); // batch cerrado
+		sr.exit();
+		sr.exit();
+		assertEquals(Long.valueOf(1), metrics.getSubrouteTimeouts().get("M"));
+		assertEquals(2.0, metrics.getSubrouteMeanBatchSize().get("M"), 0.0);
+		assertEquals(Integer.valueOf(0), metrics.getSubrouteQueueDepth().get("M"));
+		assertTrue(metrics.getSubrouteWaitP99Nanos().get("M") >= 5000000L);
+	}
+
+	@Test
+	public void testCellWaitAndActivationsAndBeepers() throws Exception
+	{	TrafficController tc = TrafficController.get();
+		assertTrue(tc.occupy(1, 1, 1));
+		assertTrue(tc.occupy(1, 2, 2));
+		assertFalse(tc.tryMove(1, 1, 1, 2, 1, 5));
+		assertEquals(Long.valueOf(1), metrics.getCellWaitCounts().get("1,2"));
+		// por celda el percentil es la cota del bucket (potencia de dos): nunca menos que la espera
+		assertTrue(metrics.getCellWaitP99Nanos().get("1,2") >= 5000000L);
+		assertEquals(1, metrics.cellWaitsAll().count());
+
+		metrics.alternateActivated(1, 11);
+		metrics.alternateActivated(1, 11);
+		assertEquals(Long.valueOf(2), metrics.getAlternateActivations().get("1,11"));
+
+		BeeperExchangeManager mgr = BeeperExchangeManager.get();
+		mgr.init(1, 9, 8, 11, 23, 8, 12, 23, 2, 2);
+		BeeperExchangeManager.Zone a = mgr.zone("A");
+		mgr.delivered(a, mgr.reserve(a, 4));
+		assertEquals(Long.valueOf(4), metrics.getBeepersDelivered().get("A"));
+		assertNull(metrics.getBeepersDelivered().get("B"));
+		assertTrue(metrics.getBeepersPerSecond().get("A") > 0);
+		assertTrue(metrics.getSnapshot(), metrics.getSnapshot().contains("celda (1,2)"));
+	}
+
+	@Test
+	public void testCellWaitsFromManyThreadsAreMerged() throws Exception
+	{	Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final long nanos = (i + 1) * 1000000L;
+			threads[i] = new Thread(() -> {
+				for (int k = 0; k < 100; k++) metrics.cellWait(1, 2, nanos);
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+		LatencyHistogram all = metrics.cellWaitsAll();
+		assertEquals(800, all.count());
+		assertEquals(8000000L, all.max());
+		assertEquals(Long.valueOf(800), metrics.getCellWaitCounts().get("1,2"));
+		// la celda junta sus contadores repartidos: el p99 cae en el bucket de la espera mayor
+		assertEquals(Long.valueOf(8000000L), metrics.getCellWaitP99Nanos().get("1,2"));
+		metrics.reset();
+		assertEquals(0, metrics.cellWaitsAll().count());
+	}
+
+	@Test
+	public void testExposedOverJmx() throws Exception
+	{	metrics.registerMBean();
+		metrics.registerMBean(); // idempotente
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		assertTrue(server.isRegistered(name));
+		assertEquals(Long.valueOf(0), server.getAttribute(name, "DeadlocksResolved"));
+	}
+}
@@ -0,0 +1,302 @@
+package karel;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Barrido de parámetros de la carrera sobre el motor de eventos discretos:
+ * - Umbral de cada subruta, triggers requeridos de cada alternativa, reserva por viaje
+ *   y cantidad de robots; grilla completa o una muestra al azar (--random=N)
+ * - Cada corrida es una EventSimulation con su propio estado (SimulationScope) y corren
+ *   en paralelo en un ForkJoinPool, una por núcleo
+ * - Una fila CSV por configuración y semilla: tiempo simulado hasta completar, beepers/s
+ *   simulados, eventos, timeouts de subruta, deadlocks resueltos y tiempo real
+ * Sin parámetros barre cada valor del escenario y sus vecinos.
+ *
+ * Uso: java -cp out:KarelJRobot.jar karel.ParameterSweep [--scenario=F] [--threshold=S1:2,3,4]
+ *      [--required=1:3,4,5] [--load=2,4,6] [--robots=28,56] [--seeds=1,2,3] [--random=N]
+ *      [--threads=N] [--out=F] [--log-level=LEVEL]
+ */
+public final class ParameterSweep {
+    private static final long LIMIT_MILLIS = 60L * 60L * 1000L; // una hora simulada, como --sim
+
+    // Cómo se aplica el valor de una dimensión al escenario
+    interface Knob {
+        Scenario apply(Scenario s, int value);
+    }
+
+    /** Un parámetro del barrido: columna del CSV y valores a probar. */
+    static final class Dimension {
+        final String name;
+        final int[] values;
+        final Knob knob;
+
+        Dimension(String name, int[] values, Knob knob) {
+            this.name = name;
+            this.values = values;
+            this.knob = knob;
+        }
+    }
+
+    /** Resultado de una corrida. */
+    static final class Run {
+        final int[] values;
+        final long seed;
+        final EventSimulation.Result result;
+        final long delivered;
+        final long subrouteTimeouts;
+        final long deadlocksResolved;
+        final long wallMillis;
+
+        Run(int[] values, long seed, EventSimulation.Result result, long delivered, long subrouteTimeouts,
+            long deadlocksResolved, long wallMillis) {
+            this.values = values;
+            this.seed = seed;
+            this.result = result;
+            this.delivered = delivered;
+            this.subrouteTimeouts = subrouteTimeouts;
+            this.deadlocksResolved = deadlocksResolved;
+            this.wallMillis = wallMillis;
+        }
+
+        double beepersPerSecond() {
+            return result.simulatedMillis == 0 ? 0.0 : delivered * 1000.0 / result.simulatedMillis;
+        }
+    }
+
+    private ParameterSweep() {}
+
+    public static void main(String[] args) throws Exception {
+        String scenarioFile = Scenario.DEFAULT_FILE;
+        String outFile = null;
+        String logLevel = "warn";
+        long[] seeds = {1};
+        int random = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> specs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--scenario=")) scenarioFile = value(arg);
+            else if (arg.startsWith("--out=")) outFile = value(arg);
+            else if (arg.startsWith("--log-level=")) logLevel = value(arg);
+            else if (arg.startsWith("--seeds=")) seeds = toLongs(ints(value(arg)));
+            else if (arg.startsWith("--random=")) random = Integer.parseInt(value(arg));
+            else if (arg.startsWith("--threads=")) threads = Integer.parseInt(value(arg));
+            else if (arg.startsWith("--threshold=") || arg.startsWith("--required=")
+                     || arg.startsWith("--load=") || arg.startsWith("--robots=")) specs.add(arg);
+            else throw new IllegalArgumentException("Opción desconocida: " + arg);
+        }
+        EventLog.configure(logLevel, logLevel, null);
+        Scenario base = Scenario.load(scenarioFile);
+        String world = base.getWorld() != null ? base.getWorld() : "race.kwld";
+        List<Dimension> dims = specs.isEmpty() ? defaultDimensions(base) : dimensions(base, specs);
+
+        PrintWriter out = outFile == null
+                ? new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : new PrintWriter(new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        List<Run> runs = sweep(base, world, dims, points(dims, random, new Random(1)), seeds, threads, out);
+        out.flush();
+        if (outFile != null) out.close();
+        System.err.printf("%d corridas en %d ms con %d hilos%n", runs.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads);
+        EventLog.shutdown();
+    }
+
+    /**
+     * Corre cada punto de la grilla con cada semilla en un pool de threads hilos y escribe
+     * las filas en out (si no es null) en el orden de la grilla, a medida que terminan.
+     */
+    static List<Run> sweep(final Scenario base, final String world, final List<Dimension> dims, List<int[]> points,
+                           long[] seeds, int threads, PrintWriter out) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<Run>> tasks = new ArrayList<>(points.size() * seeds.length);
+            for (final int[] point : points) {
+                for (final long seed : seeds) {
+                    tasks.add(pool.submit(() -> run(configure(base, dims, point), world, point, seed)));
+                }
+            }
+            if (out != null) out.println(header(dims));
+            List<Run> runs = new ArrayList<>(tasks.size());
+            for (ForkJoinTask<Run> t : tasks) {
+                Run r = t.join();
+                runs.add(r);
+                if (out != null) {
+                    out.println(row(r));
+                    out.flush();
+                }
+            }
+            return runs;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Una corrida aislada de s en world con la semilla dada. */
+    static Run run(final Scenario s, final String world, final int[] values, final long seed) throws Exception {
+        return new SimulationScope().call(() -> {
+            WorldModel model = WorldModel.load(world);
+            TrafficController.get().reset(model.getStreets(), model.getAvenues());
+            s.apply();
+            EventSimulation sim = new EventSimulation(model, seed);
+            RoutePlanner planner = s.isDynamicRouting() ? s.planner(model) : null;
+            if (s.isCooperativeRouting()) planner.cooperate(() -> TimeUnit.MILLISECONDS.toNanos(sim.now()));
+            sim.addRobots(s, planner);
+            long start = System.nanoTime();
+            EventSimulation.Result r = sim.run(LIMIT_MILLIS);
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Metrics m = Metrics.get();
+            return new Run(values, seed, r, sum(m.getBeepersDelivered().values()), sum(m.getSubrouteTimeouts().values()),
+                           m.getDeadlocksResolved(), wallMillis);
+        });
+    }
+
+    static Scenario configure(Scenario base, List<Dimension> dims, int[] point) {
+        Scenario s = base;
+        for (int i = 0; i < dims.size(); i++) s = dims.get(i).knob.apply(s, point[i]);
+        return s;
+    }
+
+    // Cada valor del escenario y sus vecinos: umbral ±1, triggers ±2, carga 2/4/6, la mitad de los robots o todos
+    static List<Dimension> defaultDimensions(Scenario base) {
+        List<Dimension> dims = new ArrayList<>();
+        for (int i = 0; i < base.subrouteCount(); i++) {
+            int t = base.subrouteThreshold(i);
+            dims.add(threshold(base.subrouteId(i), positive(t - 1, t, t + 1)));
+        }
+        for (int i = 0; i < base.alternateCount(); i++) {
+            int r = base.alternateRequired(i);
+            dims.add(required(i, positive(r - 2, r, r + 2)));
+        }
+        dims.add(load(new int[]{2, 4, 6}));
+        dims.add(robots(positive(base.spawnCount() / 2, base.spawnCount())));
+        return dims;
+    }
+
+    static List<Dimension> dimensions(Scenario base, List<String> specs) {
+        List<Dimension> dims = new ArrayList<>();
+        for (String spec : specs) {
+            String v = value(spec);
+            if (spec.startsWith("--load=")) {
+                dims.add(load(ints(v)));
+            } else if (spec.startsWith("--robots=")) {
+                dims.add(robots(ints(v)));
+            } else {
+                int colon = v.indexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("Se esperaba ID:valores en " + spec);
+                String id = v.substring(0, colon);
+                int[] values = ints(v.substring(colon + 1));
+                if (spec.startsWith("--threshold=")) {
+                    base.withThreshold(id, 1); // falla acá si la subruta no existe
+                    dims.add(threshold(id, values));
+                } else {
+                    int alt = Integer.parseInt(id) - 1;
+                    base.withRequiredOccupied(alt, 1);
+                    dims.add(required(alt, values));
+                }
+            }
+        }
+        return dims;
+    }
+
+    private static Dimension threshold(final String id, int[] values) {
+        return new Dimension(id, values, (s, v) -> s.withThreshold(id, v));
+    }
+
+    // Alternativas numeradas desde 1 en el CSV y en --required, en orden de declaración
+    private static Dimension required(final int alt, int[] values) {
+        return new Dimension("alt" + (alt + 1) + "_required", values, (s, v) -> s.withRequiredOccupied(alt, v));
+    }
+
+    private static Dimension load(int[] values) {
+        return new Dimension("load", values, Scenario::withLoad);
+    }
+
+    private static Dimension robots(int[] values) {
+        return new Dimension("robots", values, Scenario::withRobots);
+    }
+
+    /**
+     * Puntos a correr: la grilla completa en orden (la última dimensión varía más rápido) o,
+     * con sample > 0, esa cantidad de puntos distintos al azar.
+     */
+    static List<int[]> points(List<Dimension> dims, int sample, Random random) {
+        long total = 1;
+        for (Dimension d : dims) total *= d.values.length;
+        List<Long> indices = new ArrayList<>();
+        if (sample <= 0 || sample >= total) {
+            for (long i = 0; i < total; i++) indices.add(i);
+        } else {
+            Set<Long> chosen = new LinkedHashSet<>();
+            while (chosen.size() < sample) chosen.add((long) (random.nextDouble() * total));
+            indices.addAll(chosen);
+        }
+        List<int[]> points = new ArrayList<>(indices.size());
+        for (long index : indices) {
+            int[] p = new int[dims.size()];
+            for (int i = dims.size() - 1; i >= 0; i--) {
+                int[] values = dims.get(i).values;
+                p[i] = values[(int) (index % values.length)];
+                index /= values.length;
+            }
+            points.add(p);
+        }
+        return points;
+    }
+
+    static String header(List<Dimension> dims) {
+        StringBuilder sb = new StringBuilder();
+        for (Dimension d : dims) sb.append(d.name).append(',');
+        return sb.append("seed,completed,simulated_ms,delivered,beepers_per_s,events,subroute_timeouts,deadlocks_resolved,wall_ms")
+                 .toString();
+    }
+
+    static String row(Run r) {
+        StringBuilder sb = new StringBuilder();
+        for (int v : r.values) sb.append(v).append(',');
+        return sb.append(r.seed).append(',').append(r.result.completed).append(',').append(r.result.simulatedMillis)
+                 .append(',').append(r.delivered).append(',').append(String.format(Locale.ROOT, "%.2f", r.beepersPerSecond()))
+                 .append(',').append(r.result.events).append(',').append(r.subrouteTimeouts)
+                 .append(',').append(r.deadlocksResolved).append(',').append(r.wallMillis).toString();
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static int[] ints(String csv) {
+        String[] parts = csv.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) out[i] = Integer.parseInt(parts[i].trim());
+        return out;
+    }
+
+    private static long[] toLongs(int[] values) {
+        long[] out = new long[values.length];
+        for (int i = 0; i < values.length; i++) out[i] = values[i];
+        return out;
+    }
+
+    // Valores >= 1 sin repetir, en orden
+    private static int[] positive(int... values) {
+        return Arrays.stream(values).filter(v -> v >= 1).distinct().toArray();
+    }
+
+    private static long sum(Iterable<Long> values) {
+        long total = 0;
+        for (long v : values) total += v;
+        return total;
+    }
+}
@@ -0,0 +1,53 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ParameterSweepTest
+{
+	@Test
+	public void testGridAndSample()
+	{	List<ParameterSweep.Dimension> dims = Arrays.asList(
+				new ParameterSweep.Dimension("a", new int[]{1, 2}, (s, v) -> s),
+				new ParameterSweep.Dimension("b", new int[]{7, 8, 9}, (s, v) -> s));
+		List<int[]> all = ParameterSweep.points(dims, 0, new Random(1));
+		assertEquals(6, all.size());
+		assertArrayEquals(new int[]{1, 7}, all.get(0));
+		assertArrayEquals(new int[]{1, 8}, all.get(1)); // la última varía más rápido
+		assertArrayEquals(new int[]{2, 9}, all.get(5));
+		Set<String> seen = new HashSet<>();
+		for (int[] p : ParameterSweep.points(dims, 4, new Random(1))) seen.add(Arrays.toString(p));
+		assertEquals(4, seen.size());
+		assertEquals("a,b,seed,completed,simulated_ms,delivered,beepers_per_s,events,subroute_timeouts,deadlocks_resolved,wall_ms",
+				ParameterSweep.header(dims));
+	}
+
+	@Test
+	public void testParallelRunsAreIsolated() throws Exception
+	{	// el estado global no se toca: una celda ocupada acá sigue así después del barrido
+		TrafficController.get().reset(21, 31);
+		assertTrue(TrafficController.get().occupy(20, 30, 99L));
+		Scenario base = Scenario.load(Scenario.DEFAULT_FILE);
+		List<ParameterSweep.Dimension> dims = Arrays.asList(
+				new ParameterSweep.Dimension("load", new int[]{4, 4, 6}, Scenario::withLoad));
+		List<ParameterSweep.Run> runs = ParameterSweep.sweep(base, "race.kwld", dims,
+				ParameterSweep.points(dims, 0, new Random(1)), new long[]{3}, 3, null);
+		assertEquals(3, runs.size());
+		for (ParameterSweep.Run r : runs) {
+			assertTrue(r.result.completed);
+			assertEquals(1000, r.delivered);
+		}
+		// misma configuración y semilla en paralelo: mismo resultado
+		assertEquals(runs.get(0).result.simulatedMillis, runs.get(1).result.simulatedMillis);
+		assertEquals(runs.get(0).result.events, runs.get(1).result.events);
+		assertTrue(TrafficController.get().isOccupied(20, 30));
+		assertEquals(0, TrafficController.get().registeredSubroutes().size());
+	}
+}
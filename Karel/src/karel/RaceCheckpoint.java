@@ -0,0 +1,347 @@
+package karel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import kareltherobot.Directions;
+
+/**
+ * Checkpoints de la carrera con hilos, en el mismo formato (versión 2) que los de
+ * EventSimulation: uno de la carrera se puede reanudar en --sim y al revés.
+ * - Cada RacerBot tiene un Slot donde marca si su estado está quieto (estacionado por una
+ *   celda o una subruta, o en una pausa) o andando: una escritura volatile por espera
+ * - Un checkpoint abre una época: los quietos siguen donde están y los que andan se
+ *   detienen en su próximo punto seguro, entre dos pasos. Con todos quietos se copia el
+ *   estado a memoria y se suelta a los detenidos; el archivo se escribe después, en el
+ *   hilo del checkpoint
+ * - La copia vale si ningún robot cambió de estado mientras se tomaba (un sello por robot,
+ *   como un seqlock) ni recibió la celda que esperaba; si no, se repite
+ * - Ocupación y subrutas salen de las posiciones de los robots (y de sus admisiones); las
+ *   esperas no se guardan: al reanudar cada robot vuelve a pedir su celda o su subruta
+ */
+final class RaceCheckpoint {
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // sellos que no son de un estado quieto (los de Slot empiezan en 1 y sólo suben)
+    private static final long FIXED = 0;
+    private static final long BUSY = -1;
+
+    /** Estado de un robot para los checkpoints; lo escribe sólo el hilo del robot. */
+    final class Slot {
+        final RacerBot bot;
+        // impar: estado quieto (no cambia hasta el próximo busy); sube en cada cambio
+        private volatile long stamp = 1;
+        // época en la que se detuvo en un punto seguro
+        private volatile long stopped = 0;
+        private volatile Thread thread;
+
+        Slot(RacerBot bot) {
+            this.bot = bot;
+        }
+
+        void idle() {
+            long s = stamp;
+            if ((s & 1) == 0) stamp = s + 1;
+        }
+
+        void busy() {
+            if (thread == null) thread = Thread.currentThread();
+            long s = stamp;
+            if ((s & 1) == 1) stamp = s + 1;
+        }
+
+        // Entre dos objetivos: con un checkpoint pedido, se detiene hasta que lo copien
+        void safePoint() {
+            long epoch = requested;
+            if (epoch == released) return;
+            stopped = epoch;
+            while (released < epoch) LockSupport.park(this);
+        }
+
+        // Para la época: el sello impar si está esperando (vale mientras no suba y siga
+        // siendo dueño de su celda), FIXED si está detenido o su hilo terminó (ya no cambia) y
+        // BUSY si todavía anda o ya le entregaron la celda que esperaba
+        long quietStamp(long epoch) {
+            long s = stamp;
+            if ((s & 1) == 1) return bot.ownsCell() ? s : BUSY;
+            if (stopped == epoch) return FIXED;
+            Thread t = thread;
+            return t != null && !t.isAlive() ? FIXED : BUSY;
+        }
+    }
+
+    /** Crea el robot i de un checkpoint en su celda, sin largar su hilo. */
+    interface Spawner {
+        RacerBot spawn(int index, long id, int street, int avenue, Directions.Direction dir, int beepers, int load);
+    }
+
+    private final WorldModel world;
+    private final boolean dynamicRouting;
+    private final int load;
+    private final List<Slot> slots = new ArrayList<>();
+    private volatile long requested = 0;
+    private volatile long released = 0;
+    private volatile long startNanos = System.nanoTime();
+    private volatile long offsetMillis = 0;
+    // instante de la carrera del último checkpoint copiado
+    private long copiedMillis = 0;
+
+    RaceCheckpoint(WorldModel world, boolean dynamicRouting, int load) {
+        this.world = world;
+        this.dynamicRouting = dynamicRouting;
+        this.load = load;
+    }
+
+    // Antes de largar el hilo del robot, en el orden de scenario.spawn
+    synchronized Slot register(RacerBot bot) {
+        Slot s = new Slot(bot);
+        slots.add(s);
+        bot.checkpointWith(s);
+        return s;
+    }
+
+    // Largada, o reanudación desde el instante offsetMillis de la carrera
+    void start(long offsetMillis) {
+        this.offsetMillis = offsetMillis;
+        this.startNanos = System.nanoTime();
+    }
+
+    long raceMillis() {
+        return offsetMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Toma un checkpoint ahora y lo escribe en sink. Los robots sólo están detenidos
+     * mientras se copia a memoria: devuelve ese tiempo en nanosegundos.
+     */
+    synchronized long checkpoint(OutputStream sink) throws IOException {
+        long start = System.nanoTime();
+        long epoch = requested + 1;
+        requested = epoch;
+        byte[] bytes;
+        try {
+            bytes = copy(epoch);
+        } finally {
+            released = epoch;
+            for (Slot s : slots) {
+                if (s.stopped == epoch) LockSupport.unpark(s.thread);
+            }
+        }
+        long stoppedNanos = System.nanoTime() - start;
+        sink.write(bytes);
+        sink.flush();
+        return stoppedNanos;
+    }
+
+    /**
+     * Guarda un checkpoint cada periodMillis de carrera en prefix-<ms>.ckpt (los nombres
+     * de EventSimulation.checkpointFile), desde un hilo propio, hasta que termine el intercambio.
+     */
+    void checkpointEvery(final long periodMillis, final String prefix) {
+        if (periodMillis <= 0) throw new IllegalArgumentException("Período inválido: " + periodMillis);
+        Thread t = new Thread(() -> {
+            long next = (raceMillis() / periodMillis + 1) * periodMillis;
+            while (!BeeperExchangeManager.get().isDone()) {
+                long wait = next - raceMillis();
+                if (wait > 0) {
+                    try { Thread.sleep(wait); } catch (InterruptedException e) { return; }
+                    continue;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 14);
+                String file = null;
+                try {
+                    long stoppedNanos = checkpoint(bytes);
+                    // con el instante en que se copió, que puede ser algo posterior al pedido
+                    file = EventSimulation.checkpointFile(prefix, copiedMillis);
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        bytes.writeTo(out);
+                    }
+                    EventLog.message(EventLog.Level.INFO, String.format("Checkpoint %s: %d bytes, robots detenidos %d µs",
+                            file, bytes.size(), TimeUnit.NANOSECONDS.toMicros(stoppedNanos)));
+                } catch (IOException e) {
+                    EventLog.message(EventLog.Level.ERROR, "No se pudo escribir el checkpoint " + file + ": " + e.getMessage());
+                }
+                next = (raceMillis() / periodMillis + 1) * periodMillis;
+            }
+        }, "Checkpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Espera a que todos estén quietos y copia; si alguno cambió durante la copia, otra vez
+    private byte[] copy(long epoch) throws IOException {
+        long[] stamps = new long[slots.size()];
+        while (true) {
+            for (int i = 0; i < stamps.length; i++) {
+                while ((stamps[i] = slots.get(i).quietStamp(epoch)) == BUSY) LockSupport.parkNanos(POLL_NANOS);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 14);
+            RuntimeException torn = null;
+            try {
+                write(new DataOutputStream(bytes));
+            } catch (RuntimeException e) {
+                torn = e; // leyó un robot a mitad de un cambio; el sello lo confirma
+            }
+            boolean same = true;
+            for (int i = 0; i < stamps.length && same; i++) {
+                Slot s = slots.get(i);
+                same = stamps[i] == FIXED || (s.stamp == stamps[i] && s.bot.ownsCell());
+            }
+            if (same && torn != null) throw torn;
+            if (same) return bytes.toByteArray();
+        }
+    }
+
+    // El formato de EventSimulation.checkpoint, con un evento por robot en el instante actual
+    private void write(DataOutputStream out) throws IOException {
+        TrafficController tc = TrafficController.get();
+        List<Subroute> subroutes = tc.registeredSubroutes();
+        List<TrafficController.AlternateRouteSpec> alternates = tc.registeredAlternates();
+        List<BeeperExchangeManager.Zone> zones = BeeperExchangeManager.get().zones();
+        int streets = world.getStreets();
+        int avenues = world.getAvenues();
+        int n = slots.size();
+        long now = raceMillis();
+        copiedMillis = now;
+        long nextId = 1;
+        for (Slot s : slots) nextId = Math.max(nextId, s.bot.getId() + 1);
+
+        out.writeInt(EventSimulation.CHECKPOINT_MAGIC);
+        out.writeInt(EventSimulation.CHECKPOINT_VERSION);
+        out.writeInt(streets);
+        out.writeInt(avenues);
+        out.writeLong(now);
+        out.writeLong(n); // secuencia: los eventos de los robots van de 0 a n - 1
+        out.writeLong(nextId);
+        out.writeLong(0); // eventos procesados: no hay
+        out.writeBoolean(dynamicRouting);
+        out.writeInt(load);
+
+        List<long[]> cells = new ArrayList<>();
+        for (int s = 1; s <= streets; s++) {
+            for (int a = 1; a <= avenues; a++) {
+                if (world.beepersAt(s, a) != 0) cells.add(new long[]{s, a, world.beepersAt(s, a)});
+            }
+        }
+        EventSimulation.writeCells(out, cells);
+
+        out.writeInt(zones.size());
+        for (BeeperExchangeManager.Zone z : zones) {
+            out.writeInt(z.remaining());
+            out.writeInt(z.carrying());
+        }
+
+        out.writeInt(subroutes.size());
+        for (Subroute sr : subroutes) {
+            int admitted = 0;
+            for (Slot s : slots) {
+                if (s.bot.isAdmittedTo(sr)) admitted++;
+            }
+            out.writeUTF(sr.getId());
+            sr.writeRaceState(out, admitted);
+        }
+
+        cells.clear();
+        for (Slot s : slots) cells.add(new long[]{s.bot.getStreet(), s.bot.getAvenue(), s.bot.getId()});
+        EventSimulation.writeCells(out, cells);
+
+        out.writeInt(n);
+        for (Slot s : slots) s.bot.writeState(out, subroutes, alternates);
+
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeLong(now);
+            out.writeLong(i);
+            out.writeInt(i);
+            out.writeLong(0);
+        }
+        out.writeInt(0); // colas de celdas
+        for (int i = 0; i < subroutes.size(); i++) out.writeInt(0); // esperando subrutas
+        out.flush();
+    }
+
+    /**
+     * Reanuda la carrera con hilos desde un checkpoint (de la carrera o de --sim): beepers
+     * del mundo, zonas y subrutas (scenario.apply() ya registrado sobre la grilla de world) y
+     * los robots, que crea spawner en el orden del checkpoint y quedan en 'bots' sin largar.
+     * Devuelve el instante del checkpoint en ms. Las esperas del checkpoint no se usan.
+     */
+    static long resume(InputStream source, Scenario scenario, WorldModel world, RoutePlanner planner,
+                       List<RacerBot> bots, Spawner spawner) throws IOException {
+        DataInputStream in = new DataInputStream(source);
+        TrafficController tc = TrafficController.get();
+        BeeperExchangeManager mgr = BeeperExchangeManager.get();
+        List<Subroute> subroutes = tc.registeredSubroutes();
+        List<TrafficController.AlternateRouteSpec> alternates = tc.registeredAlternates();
+        List<BeeperExchangeManager.Zone> zones = mgr.zones();
+
+        if (in.readInt() != EventSimulation.CHECKPOINT_MAGIC) throw new IOException("No es un checkpoint de la carrera");
+        if (in.readInt() != EventSimulation.CHECKPOINT_VERSION) throw new IOException("Versión de checkpoint no soportada");
+        int streets = in.readInt();
+        int avenues = in.readInt();
+        if (streets != world.getStreets() || avenues != world.getAvenues()) {
+            throw new IOException("El checkpoint es de un mundo de " + streets + "x" + avenues);
+        }
+        long now = in.readLong();
+        in.readLong(); // secuencia, próximo id y eventos: son del motor de eventos
+        in.readLong();
+        in.readLong();
+        if (in.readBoolean() && planner == null) throw new IOException("El checkpoint es de ruteo dinámico (--routing=dynamic)");
+        int load = in.readInt();
+
+        for (int s = 1; s <= streets; s++) {
+            for (int a = 1; a <= avenues; a++) world.placeBeepers(s, a, 0);
+        }
+        for (int n = in.readInt(); n > 0; n--) world.placeBeepers(in.readInt(), in.readInt(), in.readInt());
+
+        int zoneCount = in.readInt();
+        if (zoneCount != zones.size()) throw new IOException("El checkpoint tiene " + zoneCount + " zonas");
+        int[] remaining = new int[zoneCount];
+        int[] carrying = new int[zoneCount];
+        for (int i = 0; i < zoneCount; i++) {
+            remaining[i] = in.readInt();
+            carrying[i] = in.readInt();
+        }
+        mgr.restore(remaining, carrying);
+
+        int subrouteCount = in.readInt();
+        if (subrouteCount != subroutes.size()) throw new IOException("El checkpoint tiene " + subrouteCount + " subrutas");
+        for (Subroute sr : subroutes) {
+            String id = in.readUTF();
+            if (!id.equals(sr.getId())) throw new IOException("Subruta " + id + " en lugar de " + sr.getId());
+            sr.readState(in);
+            sr.forgetWaiting();
+        }
+
+        int occupied = in.readInt();
+        int[] owned = new int[occupied * 3];
+        for (int i = 0; i < owned.length; i++) owned[i] = in.readInt();
+
+        int robotCount = in.readInt();
+        if (robotCount > scenario.spawnCount()) throw new IOException("El checkpoint tiene " + robotCount + " robots");
+        for (int i = 0; i < robotCount; i++) {
+            long id = in.readLong();
+            int street = in.readInt();
+            int avenue = in.readInt();
+            Directions.Direction dir = RaceRecorder.direction(in.readByte());
+            int bag = in.readInt();
+            RacerBot bot = spawner.spawn(i, id, street, avenue, dir, bag, load);
+            bot.readState(in, subroutes, zones, alternates);
+            bots.add(bot);
+        }
+        for (int i = 0; i < owned.length; i += 3) {
+            if (tc.ownerAt(owned[i], owned[i + 1]) != owned[i + 2]) {
+                throw new IOException("Ocupación inconsistente en " + owned[i] + "," + owned[i + 1]);
+            }
+        }
+        return now;
+    }
+}
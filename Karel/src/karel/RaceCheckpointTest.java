@@ -0,0 +1,121 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kareltherobot.Directions;
+
+import org.junit.Test;
+
+public class RaceCheckpointTest
+{
+	private Scenario scenario;
+
+	private WorldModel applyScenario() throws Exception
+	{	scenario = Scenario.load(Scenario.DEFAULT_FILE);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		TrafficController.get().configureGrid(world);
+		scenario.apply();
+		return world;
+	}
+
+	// Un hilo por robot; la largada ya está liberada, así que arrancan enseguida
+	private static List<Thread> race(List<RacerBot> bots)
+	{	List<Thread> threads = new ArrayList<>();
+		for (RacerBot bot : bots) threads.add(new Thread(bot));
+		for (Thread t : threads) t.start();
+		return threads;
+	}
+
+	// Espera el fin del intercambio y saca de la carrera a los que quedaron esperando una
+	// celda o una subruta (ControllerMain sale con System.exit), antes de la próxima
+	private static void finish(List<Thread> threads) throws InterruptedException
+	{	long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (!BeeperExchangeManager.get().isDone() && System.nanoTime() < deadline) Thread.sleep(5);
+		assertTrue(BeeperExchangeManager.get().isDone());
+		for (Thread t : threads)
+		{	while (t.isAlive() && System.nanoTime() < deadline)
+			{	t.interrupt();
+				t.join(10);
+			}
+			assertFalse(t.isAlive());
+		}
+	}
+
+	// Checkpoint a mitad de la carrera con hilos: la carrera sigue, desde la copia se
+	// termina con hilos y el motor de eventos la carga
+	@Test(timeout = 180000)
+	public void testCheckpointMidRaceResumesWithThreads() throws Exception
+	{	final WorldModel world = applyScenario();
+		RaceCheckpoint checkpoint = new RaceCheckpoint(world, false, scenario.load());
+		List<RacerBot> bots = new ArrayList<>();
+		for (int i = 0; i < scenario.spawnCount(); i++)
+		{	int s = scenario.spawnStreet(i);
+			int a = scenario.spawnAvenue(i);
+			RacerBot bot = new RacerBot(scenario.spawnRoute(i), null, new HeadlessBody(world, s, a, Directions.East, 0),
+			                            s, a, Directions.East, scenario.load(), false);
+			checkpoint.register(bot);
+			bots.add(bot);
+		}
+		RacerBot.releaseStartGate();
+		checkpoint.start(0);
+		List<Thread> threads = race(bots);
+		Thread.sleep(30);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long stoppedNanos = checkpoint.checkpoint(bytes);
+		assertTrue(stoppedNanos > 0);
+		finish(threads);
+		final byte[] data = bytes.toByteArray();
+
+		// con hilos, sobre un mundo recién cargado
+		final WorldModel resumedWorld = applyScenario();
+		List<RacerBot> resumed = new ArrayList<>();
+		long at = RaceCheckpoint.resume(new ByteArrayInputStream(data), scenario, resumedWorld, null, resumed,
+				(i, id, s, a, dir, beepers, load) -> new RacerBot(id, scenario.spawnRoute(i), null,
+						new HeadlessBody(resumedWorld, s, a, dir, beepers), s, a, dir, load, false));
+		assertTrue(at >= 0);
+		assertEquals(scenario.spawnCount(), resumed.size());
+		long[][] cells = new long[resumed.size()][];
+		for (int i = 0; i < cells.length; i++)
+		{	RacerBot bot = resumed.get(i);
+			cells[i] = new long[]{bot.getStreet(), bot.getAvenue(), bot.getId()};
+			assertEquals(bot.getId(), TrafficController.get().ownerAt(bot.getStreet(), bot.getAvenue()));
+		}
+		assertFalse(BeeperExchangeManager.get().isDone());
+		finish(race(resumed));
+
+		// el mismo archivo se carga en --sim, con los robots donde quedaron
+		WorldModel simWorld = applyScenario();
+		EventSimulation sim = new EventSimulation(simWorld, 1);
+		sim.resume(new ByteArrayInputStream(data), scenario, null);
+		assertEquals(at, sim.now());
+		for (long[] c : cells) assertEquals(c[2], TrafficController.get().ownerAt((int) c[0], (int) c[1]));
+	}
+
+	// Un checkpoint de ruteo dinámico no se reanuda con la ruta fija
+	@Test
+	public void testDynamicCheckpointNeedsPlanner() throws Exception
+	{	WorldModel world = applyScenario();
+		EventSimulation sim = new EventSimulation(world, 3);
+		sim.addRobots(scenario, scenario.planner(world));
+		assertFalse(sim.run(5000).completed);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		sim.checkpoint(bytes);
+
+		final WorldModel resumedWorld = applyScenario();
+		try
+		{	RaceCheckpoint.resume(new ByteArrayInputStream(bytes.toByteArray()), scenario, resumedWorld, null,
+					new ArrayList<RacerBot>(), (i, id, s, a, dir, beepers, load) -> { throw new AssertionError(); });
+			fail("sin planner no hay ruteo dinámico");
+		} catch (IOException expected)
+		{
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package karel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+import kareltherobot.Directions;
+
+/**
+ * Grabación binaria de una carrera para reproducirla después (RaceReplay):
+ * - Registros de ancho fijo (RECORD_SIZE bytes) en un archivo mapeado en memoria, sólo
+ *   agregados: salida, pasos, entrada/salida de subrutas, desvíos y beepers
+ * - Cada registro toma su lugar con un getAndIncrement y se escribe con puts absolutos
+ *   en el segmento mapeado; el tipo se escribe al final (0 = lugar sin completar)
+ * - Los segmentos se mapean a medida que hacen falta; el archivo no se trunca al cerrar
+ *   (queda disperso, el encabezado dice cuántos registros valen)
+ * - Apagada, cada llamada cuesta una lectura volátil
+ *
+ * Formato (little endian): encabezado de HEADER_SIZE bytes (magia, versión, tamaño de
+ * registro, banderas, inicio en ms, cantidad de registros, mundo y escenario) y después los
+ * registros: tiempo en ns desde el inicio (long), robot (int), tipo (byte), aux (byte:
+ * dirección, subruta o zona) y cuatro shorts a, b, c, d según el tipo.
+ */
+final class RaceRecorder implements Directions {
+    /** Tipo de registro con los nombres de aux y de sus campos a, b, c, d. */
+    enum Type {
+        SPAWN("dir", "street", "avenue"),
+        MOVE("dir", "street", "avenue", "fromStreet", "fromAvenue"),
+        SUBROUTE_ENTER("subroute"),
+        SUBROUTE_EXIT("subroute"),
+        ROUTE_SWITCH(null, "street", "avenue", "rejoinStreet", "rejoinAvenue"),
+        ROUTE_REJOIN(null, "street", "avenue", "mainIndex"),
+        BEEPER_RESERVE("zone", "street", "avenue", "reserved", "picked"),
+        BEEPER_DELIVER("zone", "street", "avenue", "count");
+
+        final String aux;
+        final String[] fields;
+
+        Type(String aux, String... fields) {
+            this.aux = aux;
+            this.fields = fields;
+        }
+
+        // 0 queda para "sin escribir"
+        byte code() { return (byte) (ordinal() + 1); }
+
+        static Type of(int code) {
+            return code >= 1 && code <= values().length ? values()[code - 1] : null;
+        }
+    }
+
+    static final int MAGIC = 0x4b525243; // "KRRC"
+    static final int VERSION = 1;
+    static final int RECORD_SIZE = 24;
+    static final int HEADER_SIZE = 512;
+    static final int FLAG_CLOSED = 1;
+    static final int FLAG_SIMULATED_CLOCK = 2;
+    static final int MAX_PATH_BYTES = 240;
+
+    // offsets del encabezado
+    static final int H_MAGIC = 0, H_VERSION = 4, H_RECORD_SIZE = 8, H_FLAGS = 12, H_START_MILLIS = 16,
+                     H_COUNT = 24, H_WORLD = 32, H_SCENARIO = 32 + 2 + MAX_PATH_BYTES;
+    // offsets dentro de un registro
+    static final int R_TIME = 0, R_ROBOT = 8, R_TYPE = 12, R_AUX = 13, R_A = 14, R_B = 16, R_C = 18, R_D = 20;
+
+    // segmentos de 2^20 registros (24 MB de archivo cada uno)
+    static final int SEGMENT_SHIFT = 20;
+    static final long SEGMENT_RECORDS = 1L << SEGMENT_SHIFT;
+    static final long SEGMENT_BYTES = SEGMENT_RECORDS * RECORD_SIZE;
+    static final int MAX_SEGMENTS = 256;
+
+    private static final Directions.Direction[] DIRS = {North, East, South, West};
+
+    private static volatile Recording active = null;
+
+    private RaceRecorder() {}
+
+    /** Una grabación abierta: el archivo, sus segmentos mapeados y el próximo lugar libre. */
+    private static final class Recording {
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final AtomicReferenceArray<ByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong lost = new AtomicLong();
+        final LongSupplier clock;
+        final int flags;
+
+        Recording(RandomAccessFile file, LongSupplier clock, int flags) throws IOException {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            this.header.order(ByteOrder.LITTLE_ENDIAN);
+            this.clock = clock;
+            this.flags = flags;
+        }
+
+        void append(Type type, long robot, int aux, int a, int b, int c, int d) {
+            long time = clock.getAsLong();
+            long i = next.getAndIncrement();
+            int seg = (int) (i >>> SEGMENT_SHIFT);
+            if (seg >= MAX_SEGMENTS) {
+                lost.incrementAndGet();
+                return;
+            }
+            ByteBuffer buf = segments.get(seg);
+            if (buf == null && (buf = map(seg)) == null) {
+                lost.incrementAndGet();
+                return;
+            }
+            int off = (int) (i & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+            buf.putLong(off + R_TIME, time);
+            buf.putInt(off + R_ROBOT, (int) robot);
+            buf.put(off + R_AUX, (byte) aux);
+            buf.putShort(off + R_A, (short) a);
+            buf.putShort(off + R_B, (short) b);
+            buf.putShort(off + R_C, (short) c);
+            buf.putShort(off + R_D, (short) d);
+            buf.put(off + R_TYPE, type.code());
+        }
+
+        // Camino lento: el primero que llega a un segmento nuevo lo mapea
+        private synchronized ByteBuffer map(int seg) {
+            ByteBuffer buf = segments.get(seg);
+            if (buf != null) return buf;
+            try {
+                buf = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + seg * SEGMENT_BYTES, SEGMENT_BYTES)
+                             .order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                EventLog.message(EventLog.Level.ERROR, "No se pudo extender la grabación: " + e.getMessage());
+                return null;
+            }
+            segments.set(seg, buf);
+            return buf;
+        }
+    }
+
+    /**
+     * Empieza a grabar en path (lo reemplaza si existe). clock da el tiempo de cada registro
+     * en ns desde el inicio; simulated indica que es el reloj de EventSimulation.
+     */
+    static synchronized void start(String path, String world, String scenario, LongSupplier clock, boolean simulated)
+            throws IOException {
+        if (active != null) throw new IllegalStateException("Ya hay una grabación en curso");
+        File f = new File(path);
+        if (f.exists() && !f.delete()) throw new IOException("No se pudo reemplazar " + path);
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        Recording r;
+        try {
+            r = new Recording(file, clock, simulated ? FLAG_SIMULATED_CLOCK : 0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        ByteBuffer h = r.header;
+        h.putInt(H_MAGIC, MAGIC);
+        h.putInt(H_VERSION, VERSION);
+        h.putInt(H_RECORD_SIZE, RECORD_SIZE);
+        h.putInt(H_FLAGS, r.flags);
+        h.putLong(H_START_MILLIS, System.currentTimeMillis());
+        h.putLong(H_COUNT, 0);
+        putString(h, H_WORLD, world);
+        putString(h, H_SCENARIO, scenario);
+        active = r;
+    }
+
+    /** Graba con el reloj real: ns desde este momento. */
+    static void start(String path, String world, String scenario) throws IOException {
+        final long origin = System.nanoTime();
+        start(path, world, scenario, () -> System.nanoTime() - origin, false);
+    }
+
+    /**
+     * Deja de grabar: escribe en el encabezado cuántos registros se tomaron y vuelca el
+     * archivo. Un robot que todavía esté escribiendo deja su registro sin tipo y el lector
+     * lo saltea. Devuelve la cantidad de registros (0 si no se grababa).
+     */
+    static synchronized long stop() throws IOException {
+        Recording r = active;
+        if (r == null) return 0;
+        active = null;
+        long count = Math.min(r.next.get(), MAX_SEGMENTS * SEGMENT_RECORDS);
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            ByteBuffer buf = r.segments.get(i);
+            if (buf != null) ((MappedByteBuffer) buf).force();
+        }
+        r.header.putLong(H_COUNT, count);
+        r.header.putInt(H_FLAGS, r.flags | FLAG_CLOSED);
+        r.header.force();
+        r.file.close();
+        if (r.lost.get() > 0) {
+            EventLog.message(EventLog.Level.WARN, "Grabación: " + r.lost.get() + " registros perdidos");
+        }
+        return count;
+    }
+
+    static boolean isRecording() { return active != null; }
+
+    // Un registro por evento; sin grabación activa no hacen nada
+
+    static void spawn(long robot, int street, int avenue, Directions.Direction dir) {
+        Recording r = active;
+        if (r != null) r.append(Type.SPAWN, robot, dirIndex(dir), street, avenue, 0, 0);
+    }
+
+    static void move(long robot, int fromStreet, int fromAvenue, int street, int avenue, Directions.Direction dir) {
+        Recording r = active;
+        if (r != null) r.append(Type.MOVE, robot, dirIndex(dir), street, avenue, fromStreet, fromAvenue);
+    }
+
+    static void enterSubroute(long robot, Subroute sr) {
+        Recording r = active;
+        if (r != null) r.append(Type.SUBROUTE_ENTER, robot, subrouteIndex(sr), 0, 0, 0, 0);
+    }
+
+    static void exitSubroute(long robot, Subroute sr) {
+        Recording r = active;
+        if (r != null) r.append(Type.SUBROUTE_EXIT, robot, subrouteIndex(sr), 0, 0, 0, 0);
+    }
+
+    static void routeSwitch(long robot, int street, int avenue, int rejoinStreet, int rejoinAvenue) {
+        Recording r = active;
+        if (r != null) r.append(Type.ROUTE_SWITCH, robot, 0, street, avenue, rejoinStreet, rejoinAvenue);
+    }
+
+    static void routeRejoin(long robot, int street, int avenue, int mainIndex) {
+        Recording r = active;
+        if (r != null) r.append(Type.ROUTE_REJOIN, robot, 0, street, avenue, mainIndex, 0);
+    }
+
+    static void reserve(long robot, BeeperExchangeManager.Zone zone, int street, int avenue, int reserved, int picked) {
+        Recording r = active;
+        if (r != null) r.append(Type.BEEPER_RESERVE, robot, zone.index(), street, avenue, reserved, picked);
+    }
+
+    static void deliver(long robot, BeeperExchangeManager.Zone zone, int street, int avenue, int count) {
+        Recording r = active;
+        if (r != null) r.append(Type.BEEPER_DELIVER, robot, zone.index(), street, avenue, count, 0);
+    }
+
+    static int dirIndex(Directions.Direction dir) {
+        for (int i = 0; i < DIRS.length; i++) if (DIRS[i] == dir) return i;
+        return 0;
+    }
+
+    static Directions.Direction direction(int index) { return DIRS[index & 3]; }
+
+    // Subrutas numeradas por orden de registro en el TrafficController
+    private static int subrouteIndex(Subroute sr) {
+        return TrafficController.get().registeredSubroutes().indexOf(sr);
+    }
+
+    private static void putString(ByteBuffer h, int offset, String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(bytes.length, MAX_PATH_BYTES);
+        h.putShort(offset, (short) n);
+        for (int i = 0; i < n; i++) h.put(offset + 2 + i, bytes[i]);
+    }
+
+    static String getString(ByteBuffer h, int offset) {
+        int n = Math.min(h.getShort(offset) & 0xffff, MAX_PATH_BYTES);
+        byte[] bytes = new byte[n];
+        for (int i = 0; i < n; i++) bytes[i] = h.get(offset + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
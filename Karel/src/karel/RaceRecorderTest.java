@@ -0,0 +1,100 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import kareltherobot.Directions;
+import org.junit.Test;
+
+public class RaceRecorderTest implements Directions
+{
+	@Test
+	public void testReplayRebuildsSimulatedRace() throws Exception
+	{	Scenario scenario = Scenario.load(Scenario.DEFAULT_FILE);
+		WorldModel world = WorldModel.load(scenario.getWorld());
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+		scenario.apply();
+		final EventSimulation sim = new EventSimulation(world, 3);
+		File f = File.createTempFile("race", ".krr");
+		f.deleteOnExit();
+		RaceRecorder.start(f.getPath(), scenario.getWorld(), Scenario.DEFAULT_FILE, () -> sim.now() * 1000000L, true);
+		long count;
+		try
+		{	sim.addRobots(scenario);
+			assertTrue(sim.run(60L * 60L * 1000L).completed);
+		} finally
+		{	count = RaceRecorder.stop();
+		}
+		assertFalse(RaceRecorder.isRecording());
+
+		RaceReplay replay = RaceReplay.load(f.getPath());
+		assertEquals(count, replay.size());
+		assertEquals(56, replay.robots());
+		assertTrue(replay.isSimulatedClock());
+		assertEquals(scenario.getWorld(), replay.world());
+
+		// cada paso sale de donde quedó el anterior del mismo robot, en orden de tiempo
+		int[] street = new int[replay.robots() + 1];
+		int[] avenue = new int[replay.robots() + 1];
+		int delivered = 0;
+		for (int i = 0; i < replay.size(); i++)
+		{	if (i > 0) assertTrue(replay.time(i - 1) <= replay.time(i));
+			int id = replay.robot(i);
+			if (replay.type(i) == RaceRecorder.Type.MOVE)
+			{	assertEquals(street[id], replay.c(i));
+				assertEquals(avenue[id], replay.d(i));
+				assertEquals(1, Math.abs(replay.a(i) - street[id]) + Math.abs(replay.b(i) - avenue[id]));
+			}
+			if (replay.type(i) == RaceRecorder.Type.SPAWN || replay.type(i) == RaceRecorder.Type.MOVE)
+			{	street[id] = replay.a(i);
+				avenue[id] = replay.b(i);
+			}
+			if (replay.type(i) == RaceRecorder.Type.BEEPER_DELIVER) delivered += replay.c(i);
+		}
+		assertEquals(scenario.totalStock(), delivered);
+
+		// los beepers reproducidos sobre el mundo inicial terminan como en la simulación
+		WorldModel replayed = WorldModel.load(scenario.getWorld());
+		RobotStates states = new RobotStates(replay.robots());
+		assertFalse(replay.advanceTo(Long.MAX_VALUE, states, replayed));
+		for (int s = 1; s <= world.getStreets(); s++)
+			for (int a = 1; a <= world.getAvenues(); a++)
+				assertEquals(world.beepersAt(s, a), replayed.beepersAt(s, a));
+		long[] snap = new long[states.size()];
+		states.snapshot(snap);
+		for (int id = 1; id <= replay.robots(); id++)
+		{	assertEquals(replay.street(id), RobotStates.street(snap[id - 1]));
+			assertEquals(replay.avenue(id), RobotStates.avenue(snap[id - 1]));
+		}
+	}
+
+	@Test
+	public void testRecordsOutOfOrderAreSortedByTime() throws Exception
+	{	File f = File.createTempFile("race", ".krr");
+		f.deleteOnExit();
+		final long[] clock = {30, 10, 20};
+		final int[] tick = {0};
+		RaceRecorder.start(f.getPath(), "w.kwld", "s.scn", () -> clock[tick[0]++], false);
+		RaceRecorder.move(1, 1, 1, 1, 2, East);
+		RaceRecorder.spawn(1, 1, 1, East);
+		RaceRecorder.routeRejoin(2, 5, 6, 7);
+		assertEquals(3, RaceRecorder.stop());
+		RaceRecorder.move(1, 1, 2, 1, 3, East); // sin grabación: no hace nada
+
+		RaceReplay replay = RaceReplay.load(f.getPath());
+		assertEquals(3, replay.size());
+		assertFalse(replay.isSimulatedClock());
+		assertEquals("s.scn", replay.scenario());
+		assertEquals(RaceRecorder.Type.SPAWN, replay.type(0));
+		assertEquals(RaceRecorder.Type.ROUTE_REJOIN, replay.type(1));
+		assertEquals(7, replay.c(1));
+		assertEquals(RaceRecorder.Type.MOVE, replay.type(2));
+		assertEquals(30, replay.durationNanos());
+		replay.advanceTo(25, null, null);
+		assertEquals(1, replay.avenue(1));
+		replay.advanceTo(30, null, null);
+		assertEquals(2, replay.avenue(1));
+		assertEquals(East, RaceRecorder.direction(RaceRecorder.dirIndex(East)));
+	}
+}
@@ -0,0 +1,253 @@
+package karel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import kareltherobot.Directions;
+
+/**
+ * Reproducción de una grabación de RaceRecorder sin correr robots:
+ * - Lee el archivo mapeado a arreglos primitivos ordenados por tiempo (los hilos pueden
+ *   haber tomado lugares en otro orden que el de sus relojes)
+ * - advanceTo(t) aplica los registros hasta t sobre la posición de cada robot y, si se
+ *   pasan, sobre RobotStates y los beepers de un WorldModel: la vista (SnapshotView) la
+ *   dibuja igual que una carrera en vivo
+ * - play() avanza en tiempo real a la velocidad pedida; summary() resume la carrera y el
+ *   estado en un instante para analizar congestión sin abrir ventana
+ */
+final class RaceReplay implements Directions {
+    private final String world;
+    private final String scenario;
+    private final boolean simulatedClock;
+    private final long startMillis;
+
+    private final int size;
+    private final long[] time;
+    private final int[] robot;
+    private final byte[] type;
+    private final byte[] aux;
+    private final short[] a, b, c, d;
+    private final int robots;
+
+    // estado de la reproducción: próximo registro y lo último visto de cada robot
+    private int next = 0;
+    private final int[] street;
+    private final int[] avenue;
+    private final byte[] dir;
+    private final int[] carrying;
+    private final long[] since;
+
+    private RaceReplay(ByteBuffer header, ByteBuffer records, int count) {
+        this.world = RaceRecorder.getString(header, RaceRecorder.H_WORLD);
+        this.scenario = RaceRecorder.getString(header, RaceRecorder.H_SCENARIO);
+        this.simulatedClock = (header.getInt(RaceRecorder.H_FLAGS) & RaceRecorder.FLAG_SIMULATED_CLOCK) != 0;
+        this.startMillis = header.getLong(RaceRecorder.H_START_MILLIS);
+
+        // lugares sin tipo (un robot cortado a mitad del registro) se saltean
+        int[] valid = new int[count];
+        int n = 0;
+        boolean sorted = true;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int off = i * RaceRecorder.RECORD_SIZE;
+            if (RaceRecorder.Type.of(records.get(off + RaceRecorder.R_TYPE)) == null) continue;
+            long t = records.getLong(off + RaceRecorder.R_TIME);
+            if (t < last) sorted = false;
+            last = Math.max(last, t);
+            valid[n++] = i;
+        }
+        if (!sorted) valid = byTime(records, valid, n);
+
+        this.size = n;
+        time = new long[n];
+        robot = new int[n];
+        type = new byte[n];
+        aux = new byte[n];
+        a = new short[n];
+        b = new short[n];
+        c = new short[n];
+        d = new short[n];
+        int maxRobot = 0;
+        for (int k = 0; k < n; k++) {
+            int off = valid[k] * RaceRecorder.RECORD_SIZE;
+            time[k] = records.getLong(off + RaceRecorder.R_TIME);
+            robot[k] = records.getInt(off + RaceRecorder.R_ROBOT);
+            type[k] = records.get(off + RaceRecorder.R_TYPE);
+            aux[k] = records.get(off + RaceRecorder.R_AUX);
+            a[k] = records.getShort(off + RaceRecorder.R_A);
+            b[k] = records.getShort(off + RaceRecorder.R_B);
+            c[k] = records.getShort(off + RaceRecorder.R_C);
+            d[k] = records.getShort(off + RaceRecorder.R_D);
+            maxRobot = Math.max(maxRobot, robot[k]);
+        }
+        this.robots = maxRobot;
+        street = new int[maxRobot + 1];
+        avenue = new int[maxRobot + 1];
+        dir = new byte[maxRobot + 1];
+        carrying = new int[maxRobot + 1];
+        since = new long[maxRobot + 1];
+    }
+
+    /** Lee la grabación file (cerrada o no: sin cuenta en el encabezado se recorre entera). */
+    static RaceReplay load(String file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+            if (ch.size() < RaceRecorder.HEADER_SIZE) throw new IOException("No es una grabación: " + file);
+            ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, RaceRecorder.HEADER_SIZE)
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(RaceRecorder.H_MAGIC) != RaceRecorder.MAGIC) throw new IOException("No es una grabación: " + file);
+            if (header.getInt(RaceRecorder.H_VERSION) != RaceRecorder.VERSION
+                || header.getInt(RaceRecorder.H_RECORD_SIZE) != RaceRecorder.RECORD_SIZE) {
+                throw new IOException("Versión de grabación no soportada: " + file);
+            }
+            long available = (ch.size() - RaceRecorder.HEADER_SIZE) / RaceRecorder.RECORD_SIZE;
+            long count = (header.getInt(RaceRecorder.H_FLAGS) & RaceRecorder.FLAG_CLOSED) != 0
+                    ? Math.min(header.getLong(RaceRecorder.H_COUNT), available) : available;
+            if (count > Integer.MAX_VALUE / RaceRecorder.RECORD_SIZE) throw new IOException("Grabación demasiado grande: " + file);
+            ByteBuffer records = ch.map(FileChannel.MapMode.READ_ONLY, RaceRecorder.HEADER_SIZE, count * RaceRecorder.RECORD_SIZE)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+            return new RaceReplay(header, records, (int) count);
+        }
+    }
+
+    // Índices de los registros válidos ordenados por tiempo (estable: a igual tiempo, el orden de grabación)
+    private static int[] byTime(ByteBuffer records, int[] valid, int n) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = valid[i];
+        Arrays.sort(order, (x, y) -> Long.compare(records.getLong(x * RaceRecorder.RECORD_SIZE + RaceRecorder.R_TIME),
+                                                  records.getLong(y * RaceRecorder.RECORD_SIZE + RaceRecorder.R_TIME)));
+        int[] out = new int[n];
+        for (int i = 0; i < n; i++) out[i] = order[i];
+        return out;
+    }
+
+    String world() { return world; }
+    String scenario() { return scenario; }
+    boolean isSimulatedClock() { return simulatedClock; }
+    long startMillis() { return startMillis; }
+    int size() { return size; }
+    // ids de robot grabados: 1..robots()
+    int robots() { return robots; }
+    long durationNanos() { return size == 0 ? 0 : time[size - 1]; }
+
+    long time(int i) { return time[i]; }
+    int robot(int i) { return robot[i]; }
+    RaceRecorder.Type type(int i) { return RaceRecorder.Type.of(type[i]); }
+    int aux(int i) { return aux[i]; }
+    int a(int i) { return a[i]; }
+    int b(int i) { return b[i]; }
+    int c(int i) { return c[i]; }
+    int d(int i) { return d[i]; }
+
+    // Posición del robot id en el instante reproducido (0 si todavía no salió)
+    int street(int id) { return street[id]; }
+    int avenue(int id) { return avenue[id]; }
+    int carrying(int id) { return carrying[id]; }
+
+    /** Vuelve al principio; los beepers de un WorldModel ya modificado no se restauran. */
+    void rewind() {
+        next = 0;
+        Arrays.fill(street, 0);
+        Arrays.fill(avenue, 0);
+        Arrays.fill(dir, (byte) 0);
+        Arrays.fill(carrying, 0);
+        Arrays.fill(since, 0);
+    }
+
+    /**
+     * Aplica los registros con tiempo <= nanos; publica cada robot que cambió en states y
+     * mueve los beepers de model (ambos pueden ser null). Devuelve si quedan registros.
+     */
+    boolean advanceTo(long nanos, RobotStates states, WorldModel model) {
+        while (next < size && time[next] <= nanos) {
+            int i = next++;
+            int id = robot[i];
+            switch (RaceRecorder.Type.of(type[i])) {
+                case SPAWN:
+                case MOVE:
+                    street[id] = a[i];
+                    avenue[id] = b[i];
+                    dir[id] = aux[i];
+                    since[id] = time[i];
+                    break;
+                case BEEPER_RESERVE:
+                    carrying[id] += d[i];
+                    if (model != null) for (int k = 0; k < d[i]; k++) model.takeBeeper(a[i], b[i]);
+                    break;
+                case BEEPER_DELIVER:
+                    carrying[id] = 0;
+                    if (model != null) for (int k = 0; k < c[i]; k++) model.putBeeper(a[i], b[i]);
+                    break;
+                default:
+                    continue;
+            }
+            if (states != null && id >= 1 && id <= states.size()) {
+                states.publish(id - 1, street[id], avenue[id], RaceRecorder.direction(dir[id]), carrying[id], true);
+            }
+        }
+        return next < size;
+    }
+
+    /**
+     * Reproduce en tiempo real: speed segundos de carrera por segundo de reloj, hasta
+     * untilNanos (o el final si es negativo). Bloquea al hilo que llama.
+     */
+    void play(double speed, long untilNanos, RobotStates states, WorldModel model) throws InterruptedException {
+        if (speed <= 0) throw new IllegalArgumentException("Velocidad inválida: " + speed);
+        long end = untilNanos < 0 ? durationNanos() : Math.min(untilNanos, durationNanos());
+        long origin = System.nanoTime();
+        while (true) {
+            long at = (long) ((System.nanoTime() - origin) * speed);
+            boolean more = advanceTo(Math.min(at, end), states, model);
+            if (!more || at >= end) return;
+            if (Thread.interrupted()) throw new InterruptedException();
+            // dormir hasta el próximo registro, sin pasar de un cuadro de la vista
+            long wait = (long) ((time[next] - at) / speed);
+            LockSupport.parkNanos(Math.max(TimeUnit.MICROSECONDS.toNanos(100), Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10))));
+        }
+    }
+
+    /**
+     * Resumen de la grabación: registros por tipo y beepers entregados; y, en el instante
+     * untilNanos (o el final si es negativo), dónde está cada robot y los que llevan más
+     * tiempo sin moverse.
+     */
+    String summary(long untilNanos, int stalled) {
+        long end = untilNanos < 0 ? durationNanos() : untilNanos;
+        rewind();
+        advanceTo(end, null, null);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Grabación: %s / %s, %d registros, %d robots, %.3f s %s%n",
+                world, scenario, size, robots, durationNanos() / 1e9, simulatedClock ? "simulados" : "reales"));
+        RaceRecorder.Type[] types = RaceRecorder.Type.values();
+        long[] counts = new long[types.length];
+        long delivered = 0;
+        for (int i = 0; i < size; i++) {
+            counts[type[i] - 1]++;
+            if (type[i] == RaceRecorder.Type.BEEPER_DELIVER.code()) delivered += c[i];
+        }
+        for (RaceRecorder.Type t : types) sb.append(String.format("  %-15s %d%n", t, counts[t.ordinal()]));
+        sb.append(String.format("  beepers entregados: %d%n", delivered));
+
+        sb.append(String.format(Locale.ROOT, "En t=%.3f s:%n", end / 1e9));
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 1; id <= robots; id++) if (street[id] != 0) ids.add(id);
+        ids.sort((x, y) -> Long.compare(since[x], since[y]));
+        int shown = 0;
+        for (int id : ids) {
+            if (shown++ == stalled) break;
+            sb.append(String.format(Locale.ROOT, "  robot %d en (%d,%d) %s, %d beepers, quieto hace %.3f s%n",
+                    id, street[id], avenue[id], RaceRecorder.direction(dir[id]), carrying[id], (end - since[id]) / 1e9));
+        }
+        return sb.toString();
+    }
+}
@@ -1,11 +1,15 @@
 package karel;
 
 import java.awt.Color;
-import java.util.ArrayList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import kareltherobot.*;
 
@@ -15,181 +19,87 @@ import kareltherobot.*;
  * - Control de acceso a subrutas restringidas
  * - Sistema de intercambio de beepers entre zonas designadas
  */
-public class RacerBot extends Robot implements Runnable, Directions {
+public class RacerBot implements Runnable, Directions {
     private static final AtomicLong NEXT_ID = new AtomicLong(1);
     private static final CountDownLatch START_GATE = new CountDownLatch(1);
 
     private final long id;
+    private final RobotBody body;
 
     private int street;
     private int avenue;
     private Directions.Direction dir;
 
-    private final int condition = 0;
-    private int startIndex;
-
-    private final List<int[]> routePositions = new ArrayList<>();
-
-    private List<int[]> activeAlternate = null;
-    private int alternateIndex = 0;
-    private boolean usingAlternate = false;
-
-    private int rejoinStreet = -1;
-    private int rejoinAvenue = -1;
-
-    private int cargoCount = 0;
-    private BeeperExchangeManager.Zone cargoFrom = null;
+    private final RouteCursor cursor;
+    private final BeeperCargo cargo;
+    // ritmo de la carrera a la vista: 10 ms por paso y 500 ms tras una entrega completa.
+    // Headless corre sin demoras
+    private final boolean paced;
+    // admitido en una subruta sin haber entrado todavía (esperando la celda de la entrada)
+    private Subroute admittedTo = null;
+    // checkpoints de la carrera (null: no se toman); se fija antes de largar el hilo
+    private RaceCheckpoint.Slot checkpoint = null;
+
+    // Resultado de un paso: avanzó, debe ceder el lugar (ciclo de esperas) o reintentar
+    private enum Step { MOVED, YIELD, RETRY }
+
+    // Constructor: robot gráfico sobre la ventana World
+    public RacerBot(CompiledRoute route, RoutePlanner planner, int street, int avenue, Directions.Direction dir, int beepers, Color color,
+                    int load) {
+        this(route, planner, new KarelBody(street, avenue, dir, beepers, color), street, avenue, dir, load);
+    }
 
+    // Constructor: recorrer route (del escenario) con un cuerpo ya ubicado en (street, avenue);
+    // con planner (puede ser null) la ruta la decide el ruteo dinámico; load: reserva por viaje
+    public RacerBot(CompiledRoute route, RoutePlanner planner, RobotBody body, int street, int avenue, Directions.Direction dir,
+                    int load) {
+        this(route, planner, body, street, avenue, dir, load, true);
+    }
 
+    // paced: false para correr sin las demoras de la carrera (headless)
+    public RacerBot(CompiledRoute route, RoutePlanner planner, RobotBody body, int street, int avenue, Directions.Direction dir,
+                    int load, boolean paced) {
+        this(NEXT_ID.getAndIncrement(), route, planner, body, street, avenue, dir, load, paced);
+    }
 
-    // Constructor: inicializar la ruta por defecto 
-    public RacerBot(int street, int avenue, Directions.Direction dir, int beepers, Color color) {
-        super(street, avenue, dir, beepers, color);
+    // Con el id de un checkpoint (RaceCheckpoint.resume); los robots nuevos siguen después
+    RacerBot(long id, CompiledRoute route, RoutePlanner planner, RobotBody body, int street, int avenue,
+             Directions.Direction dir, int load, boolean paced) {
+        this.body = body;
+        this.paced = paced;
+        this.cargo = new BeeperCargo(load);
         this.street = street;
         this.avenue = avenue;
         this.dir = dir;
-        this.id = NEXT_ID.getAndIncrement();
+        this.id = id;
+        NEXT_ID.accumulateAndGet(id + 1, Math::max);
         TrafficController.get().occupy(street, avenue, id);
-        routePositions.add(new int[]{2,7});
-        routePositions.add(new int[]{2,6});
-        routePositions.add(new int[]{2,5});
-        routePositions.add(new int[]{2,4});
-        routePositions.add(new int[]{2,3});
-        routePositions.add(new int[]{2,2});
-        routePositions.add(new int[]{2,1});
-
-        for (int a = 1; a <= 10; a++) {
-            routePositions.add(new int[]{1,a});
-        }
-
-        routePositions.add(new int[]{1,11}); // Acá empezaría la ruta alternativa
-
-        for (int a = 12; a <= 30; a++) {
-            routePositions.add(new int[]{1,a});
-        }
-
-        for (int a = 2; a <= 10; a++) {
-            routePositions.add(new int[]{a,30});
-        }
-
-        routePositions.add(new int[]{11,30}); // La ruta alternativa termina en 10,30 y sigue acá
-        
-        for (int a = 12; a <= 16; a++) {
-            routePositions.add(new int[]{a,30});
-        }
-
-        routePositions.add(new int[]{16,29});
-
-        for (int a = 29; a >= 23; a--) {
-            routePositions.add(new int[]{15,a});
-        }
-
-        for (int a = 23; a <= 29; a++) {
-            routePositions.add(new int[]{14,a});
-        }
-        routePositions.add(new int[]{13,29});
-        routePositions.add(new int[]{12,29});
-        routePositions.add(new int[]{12,28});
-
-        for (int a = 28; a >= 23; a--) {
-            routePositions.add(new int[]{13,a});
-        }
-
-        routePositions.add(new int[]{12,23});
-        routePositions.add(new int[]{11,23});
-
-        routePositions.add(new int[]{10,23});
-
-        for (int a = 23; a <= 30; a++) {
-            routePositions.add(new int[]{10,a});
-        }
-
-        for (int a = 9; a >= 5; a--) {
-            routePositions.add(new int[]{a,30});
-        }
-
-        for (int a = 5; a >= 1; a--) {
-            routePositions.add(new int[]{a,29});
-        }
-
-        routePositions.add(new int[]{1,28});
-        routePositions.add(new int[]{1,27});
-        routePositions.add(new int[]{1,26});
-
-        for (int a = 26; a >= 21; a--) {
-            routePositions.add(new int[]{2,a});
-        }
-
-        for (int a = 21; a >= 16; a--) {
-            routePositions.add(new int[]{1,a});
-        }
-
-        for (int a = 16; a >= 8; a--) {
-            routePositions.add(new int[]{2,a});
-        }
-
-        routePositions.add(new int[]{3,8});
-        for (int a = 8; a >= 1; a--) {
-            routePositions.add(new int[]{4, a});
-        }
-
-        for (int a = 1; a <= 7; a++) {
-            routePositions.add(new int[]{3, a});
-        }
-
-        startIndex = 0;
-        boolean onRoute = false;
-        for (int i = 0; i < routePositions.size(); i++) {
-            if (routePositions.get(i)[0] == street && routePositions.get(i)[1] == avenue) {
-                startIndex = i;
-                onRoute = true;
-                break;
-            }
-        }
-    }
-
-    // Utilidades de giro y actualización de dirección local
-    private void physicalTurnLeft() {
-        super.turnLeft();
-    }
-
-    private void physicalTurnRight() {
-        super.turnLeft();
-        super.turnLeft();
-        super.turnLeft();
-    }
-
-    private void turnRight() {
-        physicalTurnRight();
-        dir = rotateLeft(rotateLeft(rotateLeft(dir)));
+        RaceRecorder.spawn(id, street, avenue, dir);
+        this.cursor = new RouteCursor(route, planner, cargo, street, avenue, id);
     }
 
-    private void turnLeftAndUpdate() {
-        physicalTurnLeft();
-        dir = rotateLeft(dir);
+    private int nextStreet() {
+        return nextStreet(dir);
     }
 
-    private Directions.Direction rotateLeft(Directions.Direction d) {
-        if (d == North) return West;
-        if (d == West)  return South;
-        if (d == South) return East;
-        return North; // East -> North
+    private int nextAvenue() {
+        return nextAvenue(dir);
     }
 
-    private int nextStreet() {
-        if (dir == North) return street + 1;
-        if (dir == South) return street - 1;
+    private int nextStreet(Directions.Direction d) {
+        if (d == North) return street + 1;
+        if (d == South) return street - 1;
         return street;
     }
 
-    private int nextAvenue() {
-        if (dir == East) return avenue + 1;
-        if (dir == West) return avenue - 1;
+    private int nextAvenue(Directions.Direction d) {
+        if (d == East) return avenue + 1;
+        if (d == West) return avenue - 1;
         return avenue;
     }
 
     // Movimiento seguro: pide el paso y solo si lo obtiene, ejecuta move()
-    private void safeMoveForward() {
+    private Step safeMoveForward() {
         int ns = nextStreet();
         int na = nextAvenue();
 
@@ -199,33 +109,58 @@ public class RacerBot extends Robot implements Runnable, Directions {
         Subroute entering = tc.findContainingSubroute(ns, na);
         Subroute currentSubroute = tc.findContainingSubroute(street, avenue);
 
-        // Entrando a una subruta nueva => batch tryEnter
-        if (entering != null && entering != currentSubroute) {
+        // admisión de un checkpoint para otra subruta (el camino cambió): soltarla
+        if (admittedTo != null && admittedTo != entering) leaveAdmission();
+        // Entrando a una subruta nueva => batch tryEnter (salvo que ya tenga la admisión)
+        if (entering != null && entering != currentSubroute && admittedTo != entering) {
             try {
                 Subroute.FlowDir fd = null;
                 if (dir == North) fd = Subroute.FlowDir.NORTH;
                 else if (dir == South) fd = Subroute.FlowDir.SOUTH;
                 else if (dir == East) fd = Subroute.FlowDir.EAST;
                 else if (dir == West) fd = Subroute.FlowDir.WEST;
-                boolean got = entering.tryEnterDirectional(fd, 5000);
-                if (!got) {
-                    try { Thread.sleep(10); } catch (InterruptedException ignored) {}
-                    return;
+                idle();
+                TrafficController.Admission got;
+                try {
+                    got = tc.enterSubroute(entering, fd, id, street, avenue, 5000);
+                } finally {
+                    busy();
+                }
+                // en contra del batch y en un ciclo de esperas: ceder el lugar como en un retroceso
+                if (got == TrafficController.Admission.YIELD) return Step.YIELD;
+                if (got != TrafficController.Admission.ADMITTED) {
+                    pause(10);
+                    return Step.RETRY;
                 }
+                admittedTo = entering;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                return;
+                return Step.RETRY;
             }
         }
 
-        // Intentar hacer el movimiento por celda (token por celda)
-        int prevStreet = street;
-        int prevAvenue = avenue;
-        while (!tc.tryMove(prevStreet, prevAvenue, ns, na, id)) {
-            try { Thread.sleep(2); } catch (InterruptedException ignored) {}
+        // Pedir la celda destino (token por celda): si está ocupada, esperar en su cola
+        // hasta que el dueño la entregue, sin sondeos
+        idle();
+        try {
+            if (!tc.moveWhenFree(street, avenue, ns, na, id)) {
+                busy();
+                // retroceso pedido por la resolución de un deadlock: soltar la subruta y ceder
+                leaveAdmission();
+                return Step.YIELD;
+            }
+        } catch (InterruptedException e) {
+            busy();
+            leaveAdmission();
+            Thread.currentThread().interrupt();
+            return Step.RETRY;
         }
+        busy();
+        admittedTo = null;
 
-        super.move();
+        body.move();
+        Metrics.get().moved();
+        RaceRecorder.move(id, street, avenue, ns, na, dir);
 
         // actualizar coordenadas locales
         street = ns;
@@ -233,48 +168,93 @@ public class RacerBot extends Robot implements Runnable, Directions {
 
         // Si salimos de una subruta (estábamos en una y ya no la contiene la nueva celda) => exit()
         if (currentSubroute != null && currentSubroute != entering && !currentSubroute.contains(street, avenue)) {
-            currentSubroute.exit();
+            tc.exitSubroute(currentSubroute, id);
         }
+        return Step.MOVED;
     }
 
-
-
-    // Sondeos de intersección conservando orientación
-    private boolean clearLeft() {
-        // girar temporalmente a la izquierda, chequear, y volver
-        turnLeftAndUpdate();
-        boolean ok = frontIsClear();
-        // volver a la orientación original (girar derecha)
-        turnRight();
-        return ok;
+    // Suelta la admisión a una subruta en la que no llegó a entrar
+    private void leaveAdmission() {
+        if (admittedTo == null) return;
+        TrafficController.get().exitSubroute(admittedTo, id);
+        admittedTo = null;
     }
 
-    private boolean clearRight() {
-        // girar temporalmente a la derecha
-        turnRight();
-        boolean ok = frontIsClear();
-        // volver a la orientación original (girar izquierda)
-        turnLeftAndUpdate();
-        return ok;
+    // Cede el lugar corriéndose a una vecina libre (de costado o atrás); false si no hay adónde
+    private boolean stepAside() {
+        TrafficController tc = TrafficController.get();
+        Directions.Direction d = tc.stepAsideDirection(street, avenue, dir);
+        if (d == null || !body.isClear(d)) return false;
+        int ns = nextStreet(d);
+        int na = nextAvenue(d);
+        if (!tc.tryMove(street, avenue, ns, na, id)) return false;
+        Subroute current = tc.findContainingSubroute(street, avenue);
+        turnTo(d);
+        body.move();
+        Metrics.get().moved();
+        RaceRecorder.move(id, street, avenue, ns, na, dir);
+        street = ns;
+        avenue = na;
+        if (current != null && !current.contains(street, avenue)) tc.exitSubroute(current, id);
+        return true;
     }
 
-    private void moveTo(int ts, int ta) {
+
+    // stepDir: dirección precalculada del paso de la ruta; sólo vale si el target es la celda vecina
+    void moveTo(int ts, int ta, Directions.Direction stepDir) {
+        // celdas que dejó al correrse para ceder el paso: las desanda antes de seguir al target
+        long[] trail = null;
+        int back = 0;
         while (street != ts || avenue != ta) {
+            // entre dos pasos: si hay un checkpoint pedido, esperar acá a que se copie
+            if (checkpoint != null) checkpoint.safePoint();
+            int gs = ts;
+            int ga = ta;
+            Directions.Direction gd = stepDir;
+            if (back > 0) {
+                gs = (int) (trail[back - 1] >> 32);
+                ga = (int) trail[back - 1];
+                gd = null;
+            }
             Directions.Direction targetDir = null;
-            if (street < ts) {
+            if (gd != null && nextStreet(gd) == gs && nextAvenue(gd) == ga) {
+                targetDir = gd;
+            } else if (street < gs) {
                 targetDir = North;
-            } else if (street > ts) {
+            } else if (street > gs) {
                 targetDir = South;
-            } else if (avenue < ta) {
+            } else if (avenue < ga) {
                 targetDir = East;
-            } else if (avenue > ta) {
+            } else if (avenue > ga) {
                 targetDir = West;
             }
-            if (targetDir != null && dir != targetDir) {
-                turnTo(targetDir);
-            }
-            if (frontIsClear()) {
-                safeMoveForward();
+            // el muro se mira en el modelo antes de girar: contra un muro no se gira en vano
+            Directions.Direction towards = targetDir != null ? targetDir : dir;
+            if (body.isClear(towards)) {
+                if (dir != towards) turnTo(towards);
+                Step step = safeMoveForward();
+                // interrumpido con el intercambio ya completo: dejar la carrera
+                if (step == Step.RETRY && Thread.currentThread().isInterrupted() && BeeperExchangeManager.get().isDone()) break;
+                if (step == Step.MOVED) {
+                    if (back > 0 && street == gs && avenue == ga) back--;
+                } else if (cursor.isPlanned()) {
+                    // camino planificado trabado (retroceso por deadlock): pedir un desvío
+                    cursor.blocked(street, avenue, nextStreet(), nextAvenue());
+                    break;
+                } else if (step == Step.YIELD) {
+                    // ruta fija: reintentar desde la misma celda cerraría el mismo ciclo
+                    int fs = street;
+                    int fa = avenue;
+                    if (stepAside()) {
+                        // sobre la ruta fija se sigue desde ahí; fuera de ella se desanda
+                        if (cursor.rejoinAfterStepAside(street, avenue, fs, fa)) break;
+                        if (trail == null) trail = new long[4];
+                        else if (back == trail.length) trail = Arrays.copyOf(trail, back * 2);
+                        trail[back++] = ((long) fs << 32) | (fa & 0xffffffffL);
+                    } else {
+                        pause(10);
+                    }
+                }
             } else {
                 // stuck, break
                 break;
@@ -282,176 +262,146 @@ public class RacerBot extends Robot implements Runnable, Directions {
         }
     }
 
+    // Una sola acción sobre el mundo, sea un cuarto de giro o media vuelta
     private void turnTo(Directions.Direction targetDir) {
-        while (dir != targetDir) {
-            turnLeftAndUpdate();
-        }
-    }
-
-        // buscar índice de (s,a) en una lista de puntos
-    private int indexOf(List<int[]> list, int s, int a) {
-        if (list == null) return -1;
-        for (int i = 0; i < list.size(); i++) {
-            int[] p = list.get(i);
-            if (p[0] == s && p[1] == a) return i;
-        }
-        return -1;
+        body.face(targetDir);
+        dir = targetDir;
+        Metrics.get().turned();
     }
 
-
     @Override
     public void run() {
         // Esperar hasta que el controlador libere la salida
         try { START_GATE.await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+        busy();
         // bucle principal: seguir la ruta de posiciones de manera circular
-        int index = startIndex;
         while (true) {
+            if (checkpoint != null) checkpoint.safePoint();
             // Terminar si el intercambio ya completó
             if (BeeperExchangeManager.get().isDone()) {
                 try { Thread.sleep(5); } catch (InterruptedException ignored) {}
-                turnOff();
+                body.turnOff();
+                idle();
                 break;
             }
-            // elegir target según si estamos en alternativa o en la ruta principal
-            int[] target;
-            if (usingAlternate && activeAlternate != null && !activeAlternate.isEmpty()) {
-                if (alternateIndex >= activeAlternate.size()) alternateIndex = 0;
-                target = activeAlternate.get(alternateIndex);
-            } else {
-                if (index >= routePositions.size()) index = 0;
-                target = routePositions.get(index);
-            }
-
-            // mover al target (moveTo actualizará street/avenue)
-            moveTo(target[0], target[1]);
+            // mover al target (moveTo actualizará street/avenue); sin asignaciones por paso
+            moveTo(cursor.targetStreet(), cursor.targetAvenue(), cursor.targetStepDirection());
 
             // Lógica de intercambio de beepers al estar en una celda
             maybeHandleBeeperExchange();
 
-            // solo los robots que estén en la celda decisoria consultarán la spec (checkAndMaybeSwitchRoute hace eso)
-            checkAndMaybeSwitchRoute();
+            // solo los robots que estén en la celda decisoria consultarán la spec
+            cursor.checkAndMaybeSwitchRoute(street, avenue);
 
             // AVANCE de índices
-            if (usingAlternate && activeAlternate != null && !activeAlternate.isEmpty()) {
-                // reencaje **solo** si alcanzamos la celda explícita de rejoin
-                if (rejoinStreet >= 0 && street == rejoinStreet && avenue == rejoinAvenue) {
-                    // reencajamos: volver a ruta principal en el índice donde estamos
-                    int mainIdx = indexOf(routePositions, street, avenue);
-                    System.out.println("Robot " + id + " rejoined main route at " + street + "," + avenue + " (mainIdx=" + mainIdx + ")");
-                    usingAlternate = false;
-                    activeAlternate = null;
-                    alternateIndex = 0;
-                    // limpiar rejoin
-                    rejoinStreet = -1;
-                    rejoinAvenue = -1;
-                    // si encontramos el índice en la ruta principal, continuar desde ahí
-                    if (mainIdx >= 0) {
-                        index = mainIdx;
-                    } else {
-                        // si por alguna razón la celda de rejoin no está en mainRoute, reiniciamos al siguiente
-                        index = (index + 1) % routePositions.size();
-                    }
-                } else {
-                    // seguir avanzando por la alternativa
-                    alternateIndex = (alternateIndex + 1) % activeAlternate.size();
-                }
+            cursor.advance(street, avenue);
+
+            // en modo cooperativo, más la espera hasta el tick reservado para el próximo paso
+            long hold = cursor.holdNanos();
+            if (paced) {
+                pause(10 + TimeUnit.NANOSECONDS.toMillis(hold));
             } else {
-                // seguir avanzando por la ruta principal
-                index = (index + 1) % routePositions.size();
+                // sólo suelta el procesador: sin esto un hilo llena el anillo S1/S2 en su turno
+                LockSupport.parkNanos(Math.max(1, hold));
             }
-
-
-            try { Thread.sleep(10); } catch (InterruptedException ignored) {}
         }
 
     }
 
     // Reglas de intercambio de beepers:
-    // - En el origen A(1,9) o B(11,23), si no llevo carga, reservo hasta 4 y pickeo hasta cubrir la reserva o quedarme sin beepers en el piso.
-    // - En el destino de esa carga, dejo todos y notifico; si dejé exactamente 4, espero 3s.
+    // - En el origen A(1,9) o B(11,23), si no llevo carga, reservo hasta load y pickeo hasta cubrir la reserva o quedarme sin beepers en el piso.
+    // - En el destino de esa carga, dejo todos y notifico; si dejé la carga completa, espero 500 ms
+    //   (a la vista; headless sigue sin pausa).
     private void maybeHandleBeeperExchange() {
-        BeeperExchangeManager mgr = BeeperExchangeManager.get();
-        if (mgr.isDone()) return;
-
-        // Si no llevo nada: intentar cargar en origen si estoy parado allí
-        if (cargoCount == 0) {
-            BeeperExchangeManager.Zone z = mgr.originAt(street, avenue);
-            if (z != null) {
-                int reserve = mgr.reserve(z, 4);
-                if (reserve > 0) {
-                    int picked = 0;
-                    while (picked < reserve && nextToABeeper()) {
-                        pickBeeper();
-                        picked++;
-                    }
-                    if (picked > 0) {
-                        cargoFrom = z;
-                        cargoCount = picked;
-                    }
-                    if (picked < reserve) {
-                        mgr.refund(z, reserve - picked);
-                    }
-                }
-            }
+        int delivered = cargo.exchange(body, id, street, avenue);
+        // si dejé una carga completa, pausa antes de seguir
+        if (paced && delivered == cargo.load()) {
+            pause(500);
         }
+    }
 
-        // Si llevo algo y estoy en el destino correspondiente: descargar
-        if (cargoCount > 0 && cargoFrom != null && mgr.isDropPointFor(cargoFrom, street, avenue)) {
-            int delivered = cargoCount;
-            for (int i = 0; i < delivered; i++) {
-                putBeeper();
-            }
-            cargoCount = 0;
-            mgr.delivered(cargoFrom, delivered);
-            cargoFrom = null;
-            if (delivered == 4) {
-                try { Thread.sleep(500); } catch (InterruptedException ignored) {}
-            }
-        }
+    // Pausa de la carrera; el estado del robot no cambia, así que un checkpoint no la espera
+    private void pause(long millis) {
+        idle();
+        try { Thread.sleep(millis); } catch (InterruptedException ignored) {}
+        busy();
     }
 
-    // Método estático para liberar a todos los robots a la vez
-    public static void releaseStartGate() {
-        START_GATE.countDown();
+    // Estado quieto (esperando o en pausa) / otra vez andando, para los checkpoints
+    private void idle() {
+        if (checkpoint != null) checkpoint.idle();
+    }
+
+    private void busy() {
+        if (checkpoint != null) checkpoint.busy();
+    }
+
+    void checkpointWith(RaceCheckpoint.Slot slot) {
+        this.checkpoint = slot;
+    }
+
+    long getId() { return id; }
+    int getStreet() { return street; }
+    int getAvenue() { return avenue; }
+
+    // Sigue siendo dueño de su celda: si no, el paso ya se le entregó y todavía no lo dio
+    boolean ownsCell() {
+        return TrafficController.get().ownerAt(street, avenue) == id;
+    }
+
+    // Adentro de sr o admitido para entrar
+    boolean isAdmittedTo(Subroute sr) {
+        return admittedTo == sr || sr.contains(street, avenue);
     }
 
-        /**
-     * Consulta al TrafficController si para la celda actual hay una AlternateRouteSpec.
-     * Si existe y se cumple el requisito (requiredOccupied), activa la ruta alternativa.
-     * Este método debe llamarse DESPUÉS de moverse a la celda actual (cuando street/avenue están actualizados).
+    /**
+     * Estado para un checkpoint de la carrera, en el orden de EventSimulation.SimRobot.writeState
+     * (el mismo formato). De las esperas sólo queda la admisión a una subruta en la que no
+     * entró todavía: el objetivo, la celda y la subruta esperadas se vuelven a pedir al reanudar.
      */
-    private void checkAndMaybeSwitchRoute() {
-        if (usingAlternate) return; // ya en alterna, nada que hacer
+    void writeState(DataOutput out, List<Subroute> subroutes, List<TrafficController.AlternateRouteSpec> alternates)
+            throws IOException {
+        out.writeLong(id);
+        out.writeInt(street);
+        out.writeInt(avenue);
+        out.writeByte(RaceRecorder.dirIndex(dir));
+        out.writeInt(cargo.getCount()); // la bolsa del cuerpo sólo lleva la carga
+        cargo.writeState(out);
+        out.writeBoolean(false);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(0);
+        out.writeBoolean(false);
+        out.writeLong(EventSimulation.NO_CELL);
+        out.writeInt(admittedTo == null ? -1 : subroutes.indexOf(admittedTo));
+        out.writeInt(-1);
+        out.writeLong(0);
+        cursor.writeState(out, alternates);
+    }
 
-        TrafficController tc = TrafficController.get();
-        TrafficController.AlternateRouteSpec spec = tc.getAlternateForCell(street, avenue);
-        if (spec == null) return;
-
-        // contar cuántas triggerCells están ocupadas en este instante
-        int occupiedCount = 0;
-        StringBuilder sb = new StringBuilder();
-        sb.append("Robot ").append(id).append(" checking alternate at ").append(street).append(",").append(avenue).append(": ");
-        for (int[] cell : spec.triggerCells) {
-            boolean occ = tc.isOccupied(cell[0], cell[1]);
-            sb.append("[").append(cell[0]).append(",").append(cell[1]).append("=").append(occ).append("] ");
-            if (occ) occupiedCount++;
-        }
-        sb.append(" -> occupiedCount=").append(occupiedCount).append("/").append(spec.requiredOccupied);
-        System.out.println(sb.toString()); // logging de diagnóstico
-
-        if (occupiedCount >= spec.requiredOccupied) {
-            // activar la alternativa
-            this.usingAlternate = true;
-            this.activeAlternate = spec.altRoute;
-            // posicionar alternateIndex en la posición correspondiente si existe
-            int idx = indexOf(activeAlternate, street, avenue);
-            this.alternateIndex = (idx >= 0) ? idx : 0;
-            // guardar rejoin explícito (solo reencajar cuando se alcance esta celda)
-            this.rejoinStreet = spec.rejoinStreet;
-            this.rejoinAvenue = spec.rejoinAvenue;
-            System.out.println("Robot " + id + " switching to GLOBAL alternate route. rejoin=" 
-                                + rejoinStreet + "," + rejoinAvenue);
-        }
+    /**
+     * Lo que sigue a id, posición, dirección y bolsa en un robot del checkpoint (de la carrera
+     * o de --sim). Conserva la admisión a una subruta en la que no entró todavía.
+     */
+    void readState(DataInput in, List<Subroute> subroutes, List<BeeperExchangeManager.Zone> zones,
+                   List<TrafficController.AlternateRouteSpec> alternates) throws IOException {
+        cargo.readState(in, zones);
+        in.readBoolean();   // objetivo: se pide al cursor
+        in.readInt();
+        in.readInt();
+        in.readLong();      // época y esperas del motor de eventos
+        in.readBoolean();
+        in.readLong();
+        int admitted = in.readInt();
+        in.readInt();
+        in.readLong();
+        cursor.readState(in, alternates);
+        if (admitted >= 0 && !subroutes.get(admitted).contains(street, avenue)) admittedTo = subroutes.get(admitted);
+    }
+
+    // Método estático para liberar a todos los robots a la vez
+    public static void releaseStartGate() {
+        START_GATE.countDown();
     }
 
 }
@@ -0,0 +1,76 @@
+package karel;
+
+/**
+ * Tabla de reservas espacio-tiempo para el ruteo cooperativo: quién ocupará cada celda en
+ * cada tick de los próximos. Un tick es lo que tarda un paso de la carrera (mover + pausa);
+ * su largo lo ajusta el planner con lo que miden los robots (retime), sin saltar de tick.
+ * - Anillo de capas por tick (tick % capas) sobre la grilla densa de celdas: consulta y
+ *   reserva en O(1), sin limpieza; una entrada vale sólo si guarda el mismo tick que se
+ *   consulta, así las viejas caducan solas al dar la vuelta el anillo
+ * - Cada entrada empaqueta tick y dueño en un long (dueño 0 = libre)
+ * No es thread-safe: la usa RoutePlanner bajo su propio lock.
+ */
+final class ReservationTable {
+    private final int cells;
+    private final int layers;
+    private final long[] entries;
+    // reloj de ticks: originTick empieza en originNanos y cada uno dura tickNanos
+    private long tickNanos;
+    private long originNanos = 0;
+    private int originTick = 0;
+
+    // window: ticks hacia adelante que se reservan; el anillo guarda el doble para que las
+    // reservas de un robot atrasado no pisen las de ticks todavía vigentes
+    ReservationTable(int cells, int window, long tickNanos) {
+        this.cells = cells;
+        this.layers = 2 * (window + 1);
+        this.entries = new long[layers * cells];
+        this.tickNanos = tickNanos;
+    }
+
+    int tick(long nanos) {
+        return originTick + (int) Math.floorDiv(nanos - originNanos, tickNanos);
+    }
+
+    // Instante (ns) en que empieza tick
+    long startOf(int tick) {
+        return originNanos + (tick - originTick) * tickNanos;
+    }
+
+    long tickNanos() {
+        return tickNanos;
+    }
+
+    // Nuevo largo de tick desde el tick en curso en nanos: los ya empezados no cambian de
+    // número, así las reservas vigentes siguen valiendo (sólo corren su hora)
+    void retime(long nanos, long tickNanos) {
+        originTick = tick(nanos);
+        originNanos = startOf(originTick);
+        this.tickNanos = tickNanos;
+    }
+
+    // Robot que reservó cell en tick, o 0 si está libre
+    long owner(int cell, int tick) {
+        long e = entries[slot(cell, tick)];
+        return (int) (e >>> 32) == tick ? (e & 0xffffffffL) : 0;
+    }
+
+    // Reserva cell en tick para robot salvo que la tenga otro; true si quedó a su nombre
+    boolean reserve(int cell, int tick, long robot) {
+        int i = slot(cell, tick);
+        long e = entries[i];
+        if ((int) (e >>> 32) == tick && (e & 0xffffffffL) != 0 && (e & 0xffffffffL) != robot) return false;
+        entries[i] = (((long) tick) << 32) | (robot & 0xffffffffL);
+        return true;
+    }
+
+    // Libera cell en tick sólo si sigue a nombre de robot
+    void release(int cell, int tick, long robot) {
+        int i = slot(cell, tick);
+        if (entries[i] == ((((long) tick) << 32) | (robot & 0xffffffffL))) entries[i] = 0;
+    }
+
+    private int slot(int cell, int tick) {
+        return Math.floorMod(tick, layers) * cells + cell;
+    }
+}
@@ -0,0 +1,22 @@
+package karel;
+
+import kareltherobot.Directions;
+
+/**
+ * Cuerpo físico de un RacerBot: las acciones primitivas sobre el mundo.
+ * - KarelBody: robot de KarelJRobot dibujado en la ventana World
+ * - HeadlessBody: robot sobre un WorldModel en memoria, sin render ni demoras
+ */
+public interface RobotBody {
+    void move();
+    void turnLeft();
+    // Mirar hacia dir como una sola acción (nada si ya mira hacia ahí)
+    void face(Directions.Direction dir);
+    void pickBeeper();
+    void putBeeper();
+    boolean frontIsClear();
+    // Hay paso hacia dir desde la celda actual, sin girar (lectura del modelo de muros)
+    boolean isClear(Directions.Direction dir);
+    boolean nextToABeeper();
+    void turnOff();
+}
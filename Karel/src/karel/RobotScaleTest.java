@@ -0,0 +1,132 @@
+package karel;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RobotScaleTest
+{
+	private static final int RING = 60;
+	private static final int LAPS = 2;
+
+	@Test(timeout = 120000)
+	public void testFiveThousandVirtualRobots() throws Exception
+	{	// sin hilos virtuales (JDK < 21) queda testPlatformRobots, con menos robots
+		assumeTrue(RobotThreads.virtualAvailable());
+		Footprint f = race(RobotThreads.factory(true), 100, 50);
+		// con los 5000 robots vivos y estacionados, los hilos de plataforma siguen siendo pocos
+		assertTrue("hilos de plataforma: " + f.platformThreads, f.platformThreads < 200);
+		assertTrue("bytes por robot: " + f.heapPerRobot, f.heapPerRobot < 16 * 1024);
+	}
+
+	@Test(timeout = 120000)
+	public void testPlatformRobots() throws Exception
+	{	// corre en cualquier JDK: un hilo del sistema por robot, así que muchos menos robots.
+		// La pila de cada hilo queda fuera del heap: en el heap sólo el Thread, su tarea y
+		// lo que retiene el robot estacionado (unos 630 bytes en JDK 17)
+		Footprint f = race(RobotThreads.factory(false), 20, 50);
+		assertTrue("hilos de plataforma: " + f.platformThreads, f.platformThreads >= 1000);
+		assertTrue("bytes por robot: " + f.heapPerRobot, f.heapPerRobot > 0 && f.heapPerRobot < 2 * 1024);
+	}
+
+	// Lo que cuesta tener a todos los robots vivos y estacionados
+	private static final class Footprint
+	{	final long heapPerRobot;
+		final int platformThreads;
+
+		Footprint(long heapPerRobot, int platformThreads)
+		{	this.heapPerRobot = heapPerRobot;
+			this.platformThreads = platformThreads;
+		}
+	}
+
+	/**
+	 * perStreet robots por calle, cada una un anillo con una subruta de capacidad 3 que obliga
+	 * a estacionar robots, LAPS vueltas. Mide con todos los robots estacionados en la largada
+	 * (el latch 'parked' los cuenta), antes de soltarlos.
+	 */
+	private static Footprint race(ThreadFactory factory, int streets, int perStreet) throws Exception
+	{	final TrafficController tc = TrafficController.get();
+		tc.reset(streets, RING);
+
+		final Subroute[] subroutes = new Subroute[streets + 1];
+		for (int s = 1; s <= streets; s++) {
+			subroutes[s] = new Subroute("R" + s, 3);
+			for (int a = 55; a <= 58; a++) subroutes[s].addCell(s, a);
+		}
+
+		final int robots = streets * perStreet;
+		final CountDownLatch parked = new CountDownLatch(robots);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(robots);
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+
+		long heapBefore = usedHeap();
+		long id = 1;
+		for (int s = 1; s <= streets; s++) {
+			for (int a = 1; a <= perStreet; a++) {
+				final long robotId = id++;
+				final int street = s;
+				final int start = a;
+				assertTrue(tc.occupy(street, start, robotId));
+				threads.add(factory.newThread(() -> {
+					try {
+						parked.countDown();
+						gate.await();
+						Subroute sr = subroutes[street];
+						int avenue = start;
+						for (int i = 0; i < RING * LAPS; i++) {
+							int next = avenue % RING + 1;
+							boolean entering = sr.contains(street, next) && !sr.contains(street, avenue);
+							if (entering && !sr.tryEnterDirectional(Subroute.FlowDir.EAST, 30000)) {
+								failures.incrementAndGet();
+								return;
+							}
+							tc.moveWhenFree(street, avenue, street, next, robotId);
+							if (sr.contains(street, avenue) && !sr.contains(street, next)) sr.exit();
+							avenue = next;
+						}
+					} catch (InterruptedException e) {
+						failures.incrementAndGet();
+					} finally {
+						finished.countDown();
+					}
+				}));
+			}
+		}
+		for (Thread t : threads) t.start();
+		assertTrue(parked.await(60, TimeUnit.SECONDS));
+		// sin basura de por medio: lo que queda en el heap es lo que retiene cada robot estacionado
+		Footprint f = new Footprint((usedHeap() - heapBefore) / robots,
+				ManagementFactory.getThreadMXBean().getThreadCount());
+		gate.countDown();
+
+		assertTrue(finished.await(100, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		return f;
+	}
+
+	// Heap usado después de un GC completo: se repite hasta que deja de bajar (un solo
+	// System.gc() puede volver antes de liberar todo y el delta queda negativo)
+	private static long usedHeap()
+	{	Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = rt.totalMemory() - rt.freeMemory();
+			if (now >= used) break;
+			used = now;
+		}
+		return used;
+	}
+}
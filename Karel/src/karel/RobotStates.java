@@ -0,0 +1,50 @@
+package karel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import kareltherobot.Directions;
+
+/**
+ * Estado compacto de todos los robots para la vista (SnapshotView), separado del render:
+ * - Un long por robot con calle, avenida, dirección, beepers en la bolsa y si sigue
+ *   encendido; cada robot escribe sólo su slot, con una escritura atómica por acción
+ * - El hilo de render copia el arreglo entero (snapshot) y dibuja de la copia: cada robot
+ *   se ve siempre en un estado que de verdad tuvo, sin locks ni esperas para los robots
+ */
+final class RobotStates implements Directions {
+    private static final Directions.Direction[] DIRS = {North, East, South, West};
+    private static final long RUNNING = 1L << 62;
+
+    private final AtomicLongArray states;
+
+    RobotStates(int robots) {
+        this.states = new AtomicLongArray(robots);
+    }
+
+    int size() { return states.length(); }
+
+    // Publica el estado del robot slot (sólo lo llama el hilo de ese robot)
+    void publish(int slot, int street, int avenue, Directions.Direction dir, int beepers, boolean running) {
+        states.lazySet(slot, pack(street, avenue, dir, beepers, running));
+    }
+
+    /** Copia el estado de todos los robots en into (de largo size()). */
+    void snapshot(long[] into) {
+        for (int i = 0; i < into.length; i++) into[i] = states.get(i);
+    }
+
+    static long pack(int street, int avenue, Directions.Direction dir, int beepers, boolean running) {
+        int d = 0;
+        while (DIRS[d] != dir) d++;
+        long b = Math.max(0, Math.min(beepers, 0xffff));
+        return (running ? RUNNING : 0L) | ((long) d << 48) | (b << 32) | ((long) (street & 0xffff) << 16) | (avenue & 0xffff);
+    }
+
+    // slot vacío: el robot todavía no publicó nada
+    static boolean present(long state) { return state != 0L; }
+    static int street(long state) { return (int) (state >>> 16) & 0xffff; }
+    static int avenue(long state) { return (int) state & 0xffff; }
+    static int beepers(long state) { return (int) (state >>> 32) & 0xffff; }
+    static Directions.Direction direction(long state) { return DIRS[(int) (state >>> 48) & 3]; }
+    static boolean running(long state) { return (state & RUNNING) != 0; }
+}
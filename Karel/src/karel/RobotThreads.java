@@ -0,0 +1,38 @@
+package karel;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fábricas de hilos para los robots:
+ * - Plataforma: un hilo del sistema operativo por robot (comportamiento original)
+ * - Virtual: hilos virtuales de Java 21+, miles de robots con memoria acotada
+ * Se accede a Thread.ofVirtual() por reflexión para seguir compilando con JDK 8.
+ */
+final class RobotThreads {
+    private static final ThreadFactory VIRTUAL = lookupVirtualFactory("Racer-");
+
+    private RobotThreads() {}
+
+    static boolean virtualAvailable() { return VIRTUAL != null; }
+
+    // Hilos virtuales si la JVM los soporta; si no, hilos de plataforma
+    static ThreadFactory factory(boolean virtual) {
+        if (virtual && VIRTUAL != null) return VIRTUAL;
+        final AtomicLong n = new AtomicLong(1);
+        return r -> new Thread(r, "Racer-" + n.getAndIncrement());
+    }
+
+    private static ThreadFactory lookupVirtualFactory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object b = ofVirtual.invoke(null);
+            b = builder.getMethod("name", String.class, long.class).invoke(b, prefix, 1L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(b);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
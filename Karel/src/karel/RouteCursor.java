@@ -0,0 +1,416 @@
+package karel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import kareltherobot.Directions;
+
+/**
+ * Estado de navegación de un robot sobre la ruta principal y las alternativas
+ * (rutas compiladas y compartidas; el robot sólo guarda índices):
+ * - Indica el próximo objetivo (ruta principal o alternativa activa)
+ * - Activa una alternativa en las celdas de decisión si hay congestión
+ * - Reencaja en la ruta principal al alcanzar la celda de rejoin
+ * - Con RoutePlanner (ruteo dinámico) la ruta fija sólo se usa sin nada que cargar: la
+ *   meta es el origen con stock más cercano o el destino de la carga, y el camino se
+ *   vuelve a pedir al planner en cada bifurcación (casi siempre sale de su caché)
+ * - En modo cooperativo el camino es el de los próximos ticks reservado en el planner
+ *   (puede empezar con una espera); se sigue mientras el robot vaya a tiempo, esperando
+ *   antes de cada paso hasta su tick (holdNanos), y atrasado se reserva de nuevo. Sin
+ *   reserva posible se usa el de la caché
+ * Lo comparten RacerBot (hilos) y EventSimulation (eventos discretos).
+ */
+final class RouteCursor {
+    private final long robotId;
+    private final CompiledRoute routePositions;
+    private int index;
+
+    private CompiledRoute activeAlternate = null;
+    private int alternateIndex = 0;
+    private boolean usingAlternate = false;
+
+    private int rejoinStreet = -1;
+    private int rejoinAvenue = -1;
+
+    // Ruteo dinámico (planner == null: sólo ruta fija)
+    private final RoutePlanner planner;
+    private final BeeperCargo cargo;
+    private RoutePlanner.Path plan = null;
+    private int planStep = 0;
+    // carga con la que se pidió el camino: si cambia, cambió la meta
+    private int planCargo = 0;
+    private BeeperExchangeManager.Zone goalOrigin = null;
+    private int goalStreet = -1;
+    private int goalAvenue = -1;
+    // desvío calculado por un paso trabado; vale sólo mientras el robot siga en detourFrom
+    private RoutePlanner.Path detour = null;
+    private int detourFromStreet = -1;
+    private int detourFromAvenue = -1;
+    // esperas planificadas seguidas: a las WAIT_LIMIT se deja de reservar un paso y el cruce
+    // se resuelve en la cola de la celda (donde sí se detectan los ciclos de espera)
+    static final int WAIT_LIMIT = RoutePlanner.WINDOW;
+    private int waitStreak = 0;
+    // modo cooperativo: espera antes del próximo paso para no adelantarse a la reserva, y
+    // cuándo arrancó el paso en curso (el planner ajusta el tick con lo que tardan; -1 sin medir)
+    private long holdNanos = 0;
+    private long stepStartNanos = -1;
+    // celda actual y la anterior distinta: un camino nuevo no empieza volviendo atrás
+    private int street;
+    private int avenue;
+    private int backStreet = -1;
+    private int backAvenue = -1;
+
+    RouteCursor(CompiledRoute routePositions, int street, int avenue, long robotId) {
+        this(routePositions, null, null, street, avenue, robotId);
+    }
+
+    RouteCursor(CompiledRoute routePositions, RoutePlanner planner, BeeperCargo cargo,
+                int street, int avenue, long robotId) {
+        this.robotId = robotId;
+        this.routePositions = routePositions;
+        this.planner = planner;
+        this.cargo = cargo;
+        this.street = street;
+        this.avenue = avenue;
+        int start = routePositions.indexOf(street, avenue);
+        this.index = start >= 0 ? start : 0;
+        if (planner != null) replan(street, avenue);
+    }
+
+    // Siguiendo un camino del planner (si se bloquea un paso conviene volver a pedirlo)
+    boolean isPlanned() {
+        return plan != null;
+    }
+
+    // ns a esperar antes del próximo paso (sólo en modo cooperativo, adelantado a la reserva)
+    long holdNanos() {
+        return holdNanos;
+    }
+
+    /**
+     * El paso de (street, avenue) a (bs, ba) quedó trabado (ciclo de esperas): calcula un
+     * desvío que no pase por ahí, o un paso a una vecina libre para ceder el lugar, y lo
+     * usa el próximo advance desde esta celda. false si el robot no tiene cómo salir.
+     */
+    boolean blocked(int street, int avenue, int bs, int ba) {
+        detour = null;
+        if (planner == null || !chooseGoal(street, avenue)) return false;
+        detour = planner.detour(street, avenue, goalStreet, goalAvenue, bs, ba);
+        detourFromStreet = street;
+        detourFromAvenue = avenue;
+        return detour != null;
+    }
+
+    private boolean onAlternate() {
+        return usingAlternate && activeAlternate != null && !activeAlternate.isEmpty();
+    }
+
+    // elegir target según si estamos en un camino planificado, en alternativa o en la ruta principal
+    int targetStreet() {
+        if (plan != null) return plan.streetAt(planStep);
+        if (onAlternate()) {
+            if (alternateIndex >= activeAlternate.size()) alternateIndex = 0;
+            return activeAlternate.streetAt(alternateIndex);
+        }
+        if (index >= routePositions.size()) index = 0;
+        return routePositions.streetAt(index);
+    }
+
+    int targetAvenue() {
+        if (plan != null) return plan.avenueAt(planStep);
+        if (onAlternate()) {
+            if (alternateIndex >= activeAlternate.size()) alternateIndex = 0;
+            return activeAlternate.avenueAt(alternateIndex);
+        }
+        if (index >= routePositions.size()) index = 0;
+        return routePositions.avenueAt(index);
+    }
+
+    // Dirección precalculada para llegar al target desde el punto anterior (null si no es vecino)
+    Directions.Direction targetStepDirection() {
+        if (plan != null) return plan.directionOf(planStep);
+        if (onAlternate()) return activeAlternate.stepDirection(alternateIndex % activeAlternate.size());
+        return routePositions.stepDirection(index % routePositions.size());
+    }
+
+    /**
+     * Consulta al TrafficController si para la celda actual hay una AlternateRouteSpec.
+     * Si existe y se cumple el requisito (requiredOccupied), activa la ruta alternativa.
+     * Este método debe llamarse DESPUÉS de moverse a la celda actual (cuando street/avenue están actualizados).
+     */
+    void checkAndMaybeSwitchRoute(int street, int avenue) {
+        if (usingAlternate || plan != null) return; // ya en alterna o el planner decide el camino
+
+        TrafficController.AlternateRouteSpec spec = TrafficController.get().getAlternateForCell(street, avenue);
+        if (spec == null) return;
+
+        // una lectura atómica del contador que mantiene el TrafficController
+        if (spec.isCongested()) {
+            // activar la alternativa
+            this.usingAlternate = true;
+            this.activeAlternate = spec.compiledRoute;
+            // posicionar alternateIndex en la posición correspondiente si existe
+            int idx = activeAlternate.indexOf(street, avenue);
+            this.alternateIndex = (idx >= 0) ? idx : 0;
+            // guardar rejoin explícito (solo reencajar cuando se alcance esta celda)
+            this.rejoinStreet = spec.rejoinStreet;
+            this.rejoinAvenue = spec.rejoinAvenue;
+            Metrics.get().alternateActivated(street, avenue);
+            EventLog.event(EventLog.Level.DEBUG, EventLog.Type.ROUTE_SWITCH, robotId,
+                    street, avenue, rejoinStreet, rejoinAvenue);
+            RaceRecorder.routeSwitch(robotId, street, avenue, rejoinStreet, rejoinAvenue);
+        }
+    }
+
+    // AVANCE de índices tras llegar al target actual (o de no poder llegar)
+    void advance(int street, int avenue) {
+        boolean moved = street != this.street || avenue != this.avenue;
+        if (moved) {
+            backStreet = this.street;
+            backAvenue = this.avenue;
+            this.street = street;
+            this.avenue = avenue;
+        }
+        boolean planned = planner != null && (followPlan(street, avenue) || replan(street, avenue));
+        if (planner != null && planner.isCooperative()) pace(moved);
+        if (planned) return;
+        if (onAlternate()) {
+            // reencaje **solo** si alcanzamos la celda explícita de rejoin
+            if (rejoinStreet >= 0 && street == rejoinStreet && avenue == rejoinAvenue) {
+                // reencajamos: volver a ruta principal en el índice donde estamos
+                int mainIdx = routePositions.indexOf(street, avenue);
+                EventLog.event(EventLog.Level.DEBUG, EventLog.Type.ROUTE_REJOIN, robotId, street, avenue, mainIdx, 0);
+                RaceRecorder.routeRejoin(robotId, street, avenue, mainIdx);
+                usingAlternate = false;
+                activeAlternate = null;
+                alternateIndex = 0;
+                // limpiar rejoin
+                rejoinStreet = -1;
+                rejoinAvenue = -1;
+                // si encontramos el índice en la ruta principal, continuar desde ahí
+                if (mainIdx >= 0) {
+                    index = mainIdx;
+                } else {
+                    // si por alguna razón la celda de rejoin no está en mainRoute, reiniciamos al siguiente
+                    index = (index + 1) % routePositions.size();
+                }
+            } else {
+                // seguir avanzando por la alternativa
+                alternateIndex = (alternateIndex + 1) % activeAlternate.size();
+            }
+        } else {
+            // seguir avanzando por la ruta principal
+            index = (index + 1) % routePositions.size();
+        }
+    }
+
+    /**
+     * Sigue el camino planificado un paso más sin consultar al planner cuando desde esta
+     * celda no hay otra salida por los carriles: ningún camino nuevo podría tomar otra.
+     * Volver a pedirlo en cada celda (aunque salga de la caché) re-mide la congestión de
+     * todo el resto del camino y en headless, sin pausas, eso costaba más que lo que
+     * ahorraba. Se vuelve a pedir en las bifurcaciones, al terminar el camino, si cambió la
+     * carga, si el origen elegido se quedó sin stock o si hay un desvío pendiente.
+     * Un camino reservado (cooperativo) se sigue también en las bifurcaciones mientras el
+     * robot llegue a cada celda a más tardar en su tick y no lleve WAIT_LIMIT esperas
+     * seguidas; en modo cooperativo uno sin reservas se vuelve a pedir en cada celda.
+     */
+    private boolean followPlan(int street, int avenue) {
+        if (plan == null || detour != null || planStep >= plan.steps()) return false;
+        if (plan.streetAt(planStep) != street || plan.avenueAt(planStep) != avenue) return false;
+        if (cargo.getCount() != planCargo || (goalOrigin != null && goalOrigin.remaining() <= 0)) return false;
+        if (plan.isReserved()) {
+            if (planner.currentTick() > plan.startTick() + planStep) return false;
+            waitStreak = plan.directionOf(planStep + 1) == null ? waitStreak + 1 : 0;
+            if (waitStreak >= WAIT_LIMIT) return false;
+        } else if (planner.isCooperative() || plan.forksAt(planStep)) {
+            return false;
+        }
+        planStep++;
+        return true;
+    }
+
+    // Modo cooperativo: mide el paso que terminó y, si se sigue una reserva, cuánto esperar
+    // para no salir de la celda antes de su tick (adelantado pisa las reservas de otros)
+    private void pace(boolean moved) {
+        long now = planner.clockNanos();
+        if (moved && stepStartNanos >= 0) planner.stepTaken(now - stepStartNanos);
+        holdNanos = plan != null && plan.isReserved() ? planner.nanosUntil(plan.startTick() + planStep - 1) : 0;
+        stepStartNanos = now + holdNanos;
+    }
+
+    /**
+     * Pide al planner el camino desde (street, avenue) hacia la meta actual (un desvío si el
+     * último paso desde esta celda quedó trabado). Devuelve false
+     * si no hay meta (nada que cargar y ya sobre la ruta fija) o no hay camino: en ese caso
+     * se sigue la ruta fija desde la celda actual.
+     */
+    private boolean replan(int street, int avenue) {
+        RoutePlanner.Path p = detour;
+        detour = null;
+        if (p == null || street != detourFromStreet || avenue != detourFromAvenue) {
+            p = chooseGoal(street, avenue) ? plannedPath(street, avenue) : null;
+        } else if (planner.isCooperative()) {
+            planner.release(robotId);
+        }
+        if (p != null && p.steps() > 0) {
+            // el camino planificado reemplaza a la alternativa que estuviera activa
+            plan = p;
+            planStep = 1;
+            planCargo = cargo.getCount();
+            usingAlternate = false;
+            activeAlternate = null;
+            return true;
+        }
+        if (plan != null) {
+            // retomar la ruta fija en esta celda; advance pasa a la siguiente
+            plan = null;
+            if (planner.isCooperative()) planner.release(robotId);
+            int idx = resumeIndex(street, avenue);
+            if (idx >= 0) index = idx;
+        }
+        return false;
+    }
+
+    /**
+     * Ruta fija: el robot se corrió de (fromStreet, fromAvenue) a (street, avenue) para ceder
+     * el paso. Si la celda nueva es de la ruta principal, la ruta sigue desde ahí (en su
+     * sentido, con el tránsito) en lugar de volver a la celda que dejó, que es ir de frente
+     * contra los que vienen. false si no es de la ruta o si manda una alternativa o el planner.
+     */
+    boolean rejoinAfterStepAside(int street, int avenue, int fromStreet, int fromAvenue) {
+        if (plan != null || onAlternate()) return false;
+        backStreet = fromStreet;
+        backAvenue = fromAvenue;
+        this.street = street;
+        this.avenue = avenue;
+        int idx = resumeIndex(street, avenue);
+        if (idx < 0) return false;
+        index = idx;
+        return true;
+    }
+
+    // Índice de la celda en la ruta fija para retomarla: si la ruta pasa dos veces por ahí
+    // (pasillo de doble mano) el de la pasada que no vuelve a la celda anterior
+    private int resumeIndex(int street, int avenue) {
+        int idx = routePositions.indexOf(street, avenue);
+        if (idx < 0 || !returnsBack(idx)) return idx;
+        for (int i = idx + 1; i < routePositions.size(); i++) {
+            if (routePositions.streetAt(i) == street && routePositions.avenueAt(i) == avenue && !returnsBack(i)) return i;
+        }
+        return idx;
+    }
+
+    private boolean returnsBack(int i) {
+        int next = (i + 1) % routePositions.size();
+        return routePositions.streetAt(next) == backStreet && routePositions.avenueAt(next) == backAvenue;
+    }
+
+    private RoutePlanner.Path plannedPath(int street, int avenue) {
+        if (planner.isCooperative()) {
+            if (waitStreak < WAIT_LIMIT) {
+                RoutePlanner.Path p = planner.reservePath(street, avenue, goalStreet, goalAvenue, robotId,
+                                                          backStreet, backAvenue);
+                if (p != null) {
+                    waitStreak = p.steps() > 0 && p.directionOf(1) == null ? waitStreak + 1 : 0;
+                    return p;
+                }
+            }
+            planner.release(robotId);
+            waitStreak = 0;
+        }
+        RoutePlanner.Path p = planner.path(street, avenue, goalStreet, goalAvenue);
+        if (p != null && p.steps() > 0 && p.streetAt(1) == backStreet && p.avenueAt(1) == backAvenue) {
+            // dar media vuelta en un pasillo de doble mano es chocar con los que vienen detrás
+            RoutePlanner.Path forward = planner.detour(street, avenue, goalStreet, goalAvenue, backStreet, backAvenue);
+            if (forward != null) return forward;
+        }
+        return p;
+    }
+
+    /**
+     * Checkpoint: índices sobre la ruta fija y la alternativa activa (por su posición en
+     * alternates) y la celda actual y la anterior. El camino del planner no se guarda: al
+     * restaurar se vuelve a pedir desde la celda actual.
+     */
+    void writeState(DataOutput out, List<TrafficController.AlternateRouteSpec> alternates) throws IOException {
+        int alt = -1;
+        for (int i = 0; i < alternates.size() && alt < 0; i++) {
+            if (alternates.get(i).compiledRoute == activeAlternate) alt = i;
+        }
+        if (activeAlternate != null && alt < 0) throw new IllegalStateException("Alternativa no registrada");
+        out.writeInt(index);
+        out.writeBoolean(usingAlternate);
+        out.writeInt(alt);
+        out.writeInt(alternateIndex);
+        out.writeInt(rejoinStreet);
+        out.writeInt(rejoinAvenue);
+        out.writeInt(street);
+        out.writeInt(avenue);
+        out.writeInt(backStreet);
+        out.writeInt(backAvenue);
+    }
+
+    // La carga (cargo) ya tiene que estar restaurada: de ella sale la meta del planner
+    void readState(DataInput in, List<TrafficController.AlternateRouteSpec> alternates) throws IOException {
+        index = in.readInt();
+        usingAlternate = in.readBoolean();
+        int alt = in.readInt();
+        activeAlternate = alt < 0 ? null : alternates.get(alt).compiledRoute;
+        alternateIndex = in.readInt();
+        rejoinStreet = in.readInt();
+        rejoinAvenue = in.readInt();
+        street = in.readInt();
+        avenue = in.readInt();
+        backStreet = in.readInt();
+        backAvenue = in.readInt();
+        if (planner != null) {
+            plan = null;
+            detour = null;
+            goalOrigin = null;
+            waitStreak = 0;
+            holdNanos = 0;
+            stepStartNanos = -1;
+            replan(street, avenue);
+        }
+    }
+
+    // Meta: destino de la carga, o el origen con stock más cercano, o volver a la ruta fija
+    private boolean chooseGoal(int street, int avenue) {
+        if (cargo.getCount() > 0 && cargo.getFrom() != null) {
+            BeeperExchangeManager.ZoneSpec z = cargo.getFrom().spec();
+            goalOrigin = null;
+            return setGoal(z.destStreet, z.destAvenue, street, avenue);
+        }
+        // mantener el origen elegido mientras tenga stock
+        if (goalOrigin != null && goalOrigin.remaining() > 0 && (street != goalStreet || avenue != goalAvenue)) {
+            return true;
+        }
+        goalOrigin = null;
+        int best = Integer.MAX_VALUE;
+        for (BeeperExchangeManager.Zone z : BeeperExchangeManager.get().zones()) {
+            BeeperExchangeManager.ZoneSpec spec = z.spec();
+            if (z.remaining() <= 0 || (spec.originStreet == street && spec.originAvenue == avenue)) continue;
+            RoutePlanner.Path p = planner.path(street, avenue, spec.originStreet, spec.originAvenue);
+            if (p != null && p.steps() < best) {
+                best = p.steps();
+                goalOrigin = z;
+            }
+        }
+        if (goalOrigin != null) {
+            return setGoal(goalOrigin.spec().originStreet, goalOrigin.spec().originAvenue, street, avenue);
+        }
+        // nada que cargar: volver por los carriles a la ruta fija y seguirla
+        if (routePositions.indexOf(street, avenue) >= 0) return false;
+        long cell = planner.nearestOn(routePositions, street, avenue);
+        return cell >= 0 && setGoal((int) (cell >> 32), (int) cell, street, avenue);
+    }
+
+    private boolean setGoal(int gs, int ga, int street, int avenue) {
+        goalStreet = gs;
+        goalAvenue = ga;
+        return gs != street || ga != avenue;
+    }
+}
@@ -0,0 +1,827 @@
+package karel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import kareltherobot.Directions;
+
+/**
+ * Motor de rutas sobre el grafo de celdas del mundo, en lugar de listas fijas:
+ * - Vecinos a partir de los muros del WorldModel (máscara de 4 bits por celda)
+ * - Las rutas del escenario son carriles de un solo sentido: desde una celda de carril sólo
+ *   se sale en el sentido de alguna ruta (en pasillos de una celda, ir de frente o atajar
+ *   entre carriles arma ciclos que se llenan y nadie puede ceder); las celdas fuera de toda
+ *   ruta son doble mano. Así el planner elige entre las ramas del escenario (principal o
+ *   alternativas) por largo y congestión, en vez de por el umbral fijo de cada alternativa
+ * - A* (heurística Manhattan) con costo por paso = 1 + congestión viva: celda ocupada y
+ *   cola de la subruta en la que se entra (un robot más si su batch está lleno)
+ * - Caché compartida (celda, destino) -> camino, con claves long primitivas. Un camino se
+ *   reutiliza mientras la congestión medida sobre él no cruce de umbral (CONGESTION_STEP);
+ *   al calcular uno se guardan también todos sus sufijos, así quien lo sigue no vuelve a
+ *   buscar. La congestión se vuelve a medir cuando cambió la ocupación de alguna celda que
+ *   falta recorrer (suma de las versiones por celda del TrafficController), o siempre si el
+ *   camino entra a una subruta, cuya cola no tiene versión
+ * - Desvío (detour) para cuando un paso quedó trabado de frente: camino que evita esa celda
+ *   o, si no hay, un paso a una vecina libre para ceder el lugar
+ * - Modo cooperativo (cooperate): A* espacio-tiempo con ventana de WINDOW ticks sobre una
+ *   ReservationTable. Cada robot reserva (celda, tick) a lo largo de su camino, con esperas
+ *   en el lugar (también la que se prevé en la entrada de una subruta), y los demás
+ *   planifican alrededor de esas reservas; la heurística es el costo por los carriles con la
+ *   congestión viva hasta la meta (Dijkstra inverso, una vez por tick y meta). El largo del
+ *   tick sale de los pasos que miden los robots (stepTaken) y las reservas de los que se
+ *   atrasan se corren hasta la celda que ocupan (shiftLate)
+ * Las búsquedas se serializan (son de microsegundos en una grilla de carrera); las
+ * consultas a la caché no toman lock.
+ */
+final class RoutePlanner implements Directions {
+    // N, S, E, O: desplazamientos y bit de cada dirección; la opuesta de d es d ^ 1
+    private static final Directions.Direction[] DIRS = {North, South, East, West};
+    private static final int[] D_STREET = {1, -1, 0, 0};
+    private static final int[] D_AVENUE = {0, 0, 1, -1};
+
+    static final int OCCUPIED_COST = 4;        // celda con un robot ahora mismo
+    static final int SUBROUTE_QUEUE_COST = 10; // por robot esperando en la subruta a la que se entra (y si está llena)
+    static final int CONGESTION_STEP = 8;      // ancho del umbral: invalidar sólo al cruzarlo
+    static final int WINDOW = 16;              // ticks que planifica y reserva el modo cooperativo
+    // tick inicial del modo cooperativo: un paso de EventSimulation (y de RacerBot con pausas);
+    // después manda lo que miden los robots
+    static final long NOMINAL_TICK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(EventSimulation.MOVE_MILLIS + EventSimulation.STEP_PAUSE_MILLIS);
+    // media móvil del paso medido: baja rápido (peso 1/TICK_DOWN) hacia los pasos cortos y
+    // sube despacio (1/TICK_UP) con los largos (giros, demoras breves), así sigue el paso típico
+    private static final int TICK_DOWN = 4;
+    private static final int TICK_UP = 64;
+    private static final int RETIME_FRACTION = 32;  // re-escalar la tabla si la media se aleja más
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+    /**
+     * Camino planificado: celdas densas desde cells[from] hasta el destino (inclusive). En
+     * modo cooperativo cada paso es un tick desde startTick y una celda repetida es una espera;
+     * el planner corre startTick si el robot se atrasa (trabado en una cola).
+     */
+    static final class Path {
+        private final RoutePlanner planner;
+        private final int[] cells;
+        private final int from;
+        // congestión (parte viva del costo) medida al calcularlo, en escalones de CONGESTION_STEP
+        private final int level;
+        // tick de cells[from] (-1: sin reservas); lo corre shiftLate bajo el lock del planner
+        private volatile int startTick;
+        // el resto del camino entra a una subruta: su cola no tiene versión, se mide siempre
+        private final boolean entersSubroute;
+        // suma de las versiones de ocupación de las celdas que faltan al medir la congestión
+        // por última vez (sólo crece: si no cambió, nada cambió); -1 fuera de la caché
+        private volatile long measuredVersions;
+
+        Path(RoutePlanner planner, int[] cells, int from, int level) {
+            this(planner, cells, from, level, -1);
+        }
+
+        Path(RoutePlanner planner, int[] cells, int from, int level, int startTick) {
+            this(planner, cells, from, level, startTick, false, -1);
+        }
+
+        private Path(RoutePlanner planner, int[] cells, int from, int level, int startTick,
+                     boolean entersSubroute, long measuredVersions) {
+            this.planner = planner;
+            this.cells = cells;
+            this.from = from;
+            this.level = level;
+            this.startTick = startTick;
+            this.entersSubroute = entersSubroute;
+            this.measuredVersions = measuredVersions;
+        }
+
+        // pasos que faltan (0 = ya en el destino)
+        int steps() { return cells.length - 1 - from; }
+        int streetAt(int step) { return cells[from + step] / planner.width; }
+        int avenueAt(int step) { return cells[from + step] % planner.width; }
+        int startTick() { return startTick; }
+        boolean isReserved() { return startTick >= 0; }
+
+        // En la celda del paso step (>= 1) se puede seguir por más de una vecina sin volver atrás
+        boolean forksAt(int step) {
+            return planner.forks(cells[from + step], cells[from + step - 1]);
+        }
+
+        // Dirección del paso step-1 -> step (null: esperar en el lugar)
+        Directions.Direction directionOf(int step) {
+            int d = cells[from + step] - cells[from + step - 1];
+            if (d == 0) return null;
+            if (d == planner.width) return North;
+            if (d == -planner.width) return South;
+            return d == 1 ? East : West;
+        }
+    }
+
+    private final int streets;
+    private final int avenues;
+    private final int width;
+    private final byte[] open;   // bit d: hay paso hacia DIRS[d]
+    private final byte[] lanes;  // bit d: alguna ruta del escenario sale de la celda hacia DIRS[d]
+
+    /**
+     * Caché (celda, destino) -> camino, con la clave from << 32 | to sin boxing:
+     * direccionamiento abierto sobre arreglos atómicos (la clave 0 es un slot vacío; ninguna
+     * celda del mundo tiene índice 0). Sólo escribe quien tiene el lock del planner y el
+     * camino se publica antes que su clave, así las lecturas no toman lock. No se borra: al
+     * pasar de la mitad se copia a una tabla del doble, que reemplaza a ésta.
+     */
+    private static final class PathCache {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Path> paths;
+        final int mask;
+        int size = 0;
+
+        PathCache(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            paths = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        int slot(long key) {
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            long k;
+            while ((k = keys.get(i)) != 0 && k != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        Path get(long key) {
+            int i = slot(key);
+            return keys.get(i) == key ? paths.get(i) : null;
+        }
+
+        // false si no entra sin pasar de la mitad: hay que copiar a una tabla más grande
+        boolean put(long key, Path p) {
+            int i = slot(key);
+            if (keys.get(i) == 0) {
+                if (2 * (size + 1) > keys.length()) return false;
+                size++;
+            }
+            paths.set(i, p);
+            keys.set(i, key);
+            return true;
+        }
+
+        PathCache grow() {
+            PathCache bigger = new PathCache(2 * keys.length());
+            for (int i = 0; i < keys.length(); i++) {
+                if (keys.get(i) != 0) bigger.put(keys.get(i), paths.get(i));
+            }
+            return bigger;
+        }
+    }
+
+    private volatile PathCache cache = new PathCache(1024);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+
+    // estado de búsqueda, reutilizado bajo el lock del planner
+    private final int[] cost;
+    private final int[] parent;
+    private final int[] seenAt;
+    private int generation = 0;
+    private long[] heap = new long[64];
+
+    // Modo cooperativo (reservations == null: desactivado)
+    private ReservationTable reservations = null;
+    private LongSupplier clockNanos = null;
+    private long measuredTick;   // media móvil del paso real (ns)
+    private int[] stateParent;
+    private int[] stateSeenAt;
+    private int[] stateBack;     // celda anterior distinta (esperas aparte) de cada estado
+    private int[] stateCost;     // ticks + congestión viva hasta cada estado
+    private int stateGeneration = 0;
+    private final Map<Integer, GoalCost> distances = new HashMap<>(); // meta -> costo hasta ella
+    private final Map<Long, Path> reservedBy = new HashMap<>();      // robot -> camino reservado
+    private final LongAdder reservedPaths = new LongAdder();
+    private final LongAdder plannedWaits = new LongAdder();
+
+    RoutePlanner(WorldModel world) {
+        this.streets = world.getStreets();
+        this.avenues = world.getAvenues();
+        this.width = avenues + 1;
+        int size = (streets + 1) * width;
+        open = new byte[size];
+        lanes = new byte[size];
+        for (int s = 1; s <= streets; s++) {
+            for (int a = 1; a <= avenues; a++) {
+                int m = 0;
+                for (int d = 0; d < 4; d++) if (world.isClear(s, a, DIRS[d])) m |= 1 << d;
+                open[s * width + a] = (byte) m;
+            }
+        }
+        cost = new int[size];
+        parent = new int[size];
+        seenAt = new int[size];
+    }
+
+    // Marca el sentido de cada paso de route como carril (configuración, antes de planificar);
+    // circular: también del último punto al primero
+    void addLane(CompiledRoute route, boolean circular) {
+        int n = route.size();
+        for (int i = 0; i < (circular ? n : n - 1); i++) {
+            int j = (i + 1) % n;
+            int s = route.streetAt(i), a = route.avenueAt(i);
+            int d = direction(s, a, route.streetAt(j), route.avenueAt(j));
+            if (d >= 0 && inside(s, a)) lanes[s * width + a] |= (byte) (1 << d);
+        }
+    }
+
+    /**
+     * Activa el ruteo cooperativo con reservas espacio-tiempo; clockNanos da el tiempo de la
+     * corrida en nanosegundos (reloj simulado o real), del que salen los ticks.
+     */
+    synchronized void cooperate(LongSupplier clockNanos) {
+        int size = open.length;
+        this.clockNanos = clockNanos;
+        this.measuredTick = NOMINAL_TICK_NANOS;
+        this.reservations = new ReservationTable(size, WINDOW, NOMINAL_TICK_NANOS);
+        this.stateParent = new int[(WINDOW + 1) * size];
+        this.stateSeenAt = new int[(WINDOW + 1) * size];
+        this.stateBack = new int[(WINDOW + 1) * size];
+        this.stateCost = new int[(WINDOW + 1) * size];
+    }
+
+    // Igual, con el reloj real desde ahora (modo con hilos)
+    void cooperate() {
+        final long origin = System.nanoTime();
+        cooperate(() -> System.nanoTime() - origin);
+    }
+
+    boolean isCooperative() {
+        return reservations != null;
+    }
+
+    long clockNanos() {
+        return clockNanos.getAsLong();
+    }
+
+    synchronized int currentTick() {
+        return reservations.tick(clockNanos.getAsLong());
+    }
+
+    // ns que faltan para que empiece tick (0 si ya empezó)
+    synchronized long nanosUntil(int tick) {
+        return Math.max(0, reservations.startOf(tick) - clockNanos.getAsLong());
+    }
+
+    /**
+     * Un robot tardó nanos en dar un paso (sin contar la espera hasta su tick): el tick sigue
+     * al paso real, que depende del modo (pausas, giros, headless) y de la máquina. Un paso
+     * de más del doble del tick es un robot trabado en una cola, no cuenta. La tabla se
+     * re-escala cuando la media se aleja más de 1/RETIME_FRACTION del tick vigente.
+     */
+    synchronized void stepTaken(long nanos) {
+        long tick = reservations.tickNanos();
+        if (nanos <= 0 || nanos > 2 * tick) return;
+        measuredTick += (nanos - measuredTick) / (nanos < measuredTick ? TICK_DOWN : TICK_UP);
+        if (Math.abs(measuredTick - tick) * RETIME_FRACTION > tick) {
+            reservations.retime(clockNanos.getAsLong(), Math.max(1, measuredTick));
+        }
+    }
+
+    synchronized long tickNanos() {
+        return reservations.tickNanos();
+    }
+
+    private static int direction(int fs, int fa, int ts, int ta) {
+        for (int d = 0; d < 4; d++) if (fs + D_STREET[d] == ts && fa + D_AVENUE[d] == ta) return d;
+        return -1;
+    }
+
+    private boolean inside(int street, int avenue) {
+        return street >= 1 && street <= streets && avenue >= 1 && avenue <= avenues;
+    }
+
+    /**
+     * Camino de (fs,fa) a (ts,ta), o null si no hay. Sale de la caché si la congestión
+     * sobre el camino guardado sigue en el mismo escalón; si no, se recalcula.
+     */
+    Path path(int fs, int fa, int ts, int ta) {
+        if (!inside(fs, fa) || !inside(ts, ta)) return null;
+        int from = fs * width + fa;
+        int to = ts * width + ta;
+        long key = (((long) from) << 32) | to;
+        Path p = cache.get(key);
+        if (p != null && fresh(p)) {
+            hits.increment();
+            return p;
+        }
+        synchronized (this) {
+            p = cache.get(key);
+            if (p != null && fresh(p)) {
+                hits.increment();
+                return p;
+            }
+            searches.increment();
+            int[] cells = search(from, to, -1);
+            if (cells == null) return null;
+            // cada sufijo es un camino óptimo (con estos costos) desde su primera celda
+            TrafficController tc = TrafficController.get();
+            int dynamic = 0;
+            long versions = 0;
+            boolean queued = false;
+            Path head = null;
+            for (int i = cells.length - 1; i >= 0; i--) {
+                Path suffix = new Path(this, cells, i, dynamic / CONGESTION_STEP, -1, queued, versions);
+                store(((long) cells[i]) << 32 | to, suffix);
+                if (i == 0) {
+                    head = suffix;
+                    break;
+                }
+                // la versión antes que la ocupación: un cambio en el medio fuerza otra medición
+                versions += tc.occupancyVersion(cells[i] / width, cells[i] % width);
+                queued |= entersSubroute(tc, cells[i], cells[i - 1]);
+                dynamic += liveCost(cells[i], cells[i - 1]);
+            }
+            return head;
+        }
+    }
+
+    // Bajo el lock del planner
+    private void store(long key, Path p) {
+        PathCache c = cache;
+        if (!c.put(key, p)) {
+            c = c.grow();
+            c.put(key, p);
+            cache = c;
+        }
+    }
+
+    /**
+     * Si el camino de la caché sigue en su escalón de congestión. Se vuelve a medir cuando
+     * alguna celda que falta recorrer cambió de ocupación desde la última medición, o
+     * siempre si el camino entra a una subruta; si no cambió nada el escalón es el mismo.
+     */
+    private boolean fresh(Path p) {
+        TrafficController tc = TrafficController.get();
+        // la versión antes que la ocupación, como al guardarlo
+        long versions = 0;
+        for (int i = p.from + 1; i < p.cells.length; i++) {
+            versions += tc.occupancyVersion(p.cells[i] / width, p.cells[i] % width);
+        }
+        if (!p.entersSubroute && versions == p.measuredVersions) return true;
+        if (congestionLevel(p.cells, p.from) != p.level) return false;
+        // carrera benigna: una suma vieja sólo provoca otra medición
+        p.measuredVersions = versions;
+        return true;
+    }
+
+    /**
+     * Camino de (fs,fa) a (ts,ta) que no pasa por (bs,ba) y cuyo primer paso está libre, sin
+     * caché. Si no lo hay, un paso a una celda vecina libre (ceder el paso), por el carril si
+     * se puede; null si el robot no tiene adónde correrse.
+     */
+    Path detour(int fs, int fa, int ts, int ta, int bs, int ba) {
+        if (!inside(fs, fa) || !inside(ts, ta)) return null;
+        int from = fs * width + fa;
+        int avoid = inside(bs, ba) ? bs * width + ba : -1;
+        int[] cells;
+        synchronized (this) {
+            searches.increment();
+            cells = search(from, ts * width + ta, avoid);
+        }
+        TrafficController tc = TrafficController.get();
+        // un desvío cuyo primer paso también está ocupado no destraba nada (y alternar entre
+        // dos así es un livelock): sólo vale si puede moverse ya. Si ya está en el destino el
+        // camino es una sola celda y sólo queda correrse
+        if (cells != null && cells.length >= 2 && !tc.isOccupied(cells[1] / width, cells[1] % width)) {
+            return new Path(this, cells, 0, 0);
+        }
+        for (int d = 0; d < 4; d++) {
+            if ((open[from] & (1 << d)) == 0) continue;
+            int next = from + D_STREET[d] * width + D_AVENUE[d];
+            if (next != avoid && !againstLane(from, d, next) && !tc.isOccupied(next / width, next % width)) {
+                return new Path(this, new int[]{from, next}, 0, 0);
+            }
+        }
+        // ninguna vecina del carril está libre: correrse contra el carril, como en la ruta
+        // fija. La resolución de ciclos lo eligió porque tiene una vecina libre, y quedarse
+        // en la celda vuelve a cerrar el mismo ciclo (en un anillo lleno, para siempre)
+        for (int d = 0; d < 4; d++) {
+            if ((open[from] & (1 << d)) == 0) continue;
+            int next = from + D_STREET[d] * width + D_AVENUE[d];
+            if (next != avoid && !tc.isOccupied(next / width, next % width)) {
+                return new Path(this, new int[]{from, next}, 0, 0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Modo cooperativo: camino de (fs,fa) hacia (ts,ta) para los próximos WINDOW ticks que no
+     * choca con las reservas de otros robots (puede incluir esperas) ni vuelve sobre sus pasos
+     * (bs,ba: la celda de la que viene), o null si no lo hay.
+     * Libera lo que robot tenía reservado y reserva el camino nuevo; al llegar a la meta antes
+     * del fin de la ventana la reserva un tick más (el intercambio), no hasta el final: cuánto
+     * se queda depende de la carga, y una meta sobre un carril frenaría a todos los que pasan.
+     */
+    synchronized Path reservePath(int fs, int fa, int ts, int ta, long robot, int bs, int ba) {
+        release(robot);
+        if (!inside(fs, fa) || !inside(ts, ta)) return null;
+        int from = fs * width + fa;
+        int to = ts * width + ta;
+        int back = inside(bs, ba) ? bs * width + ba : -1;
+        int t0 = reservations.tick(clockNanos.getAsLong());
+        int[] dist = distancesTo(to, t0);
+        if (dist[from] >= UNREACHABLE) return null;
+        shiftLate(t0);
+        searches.increment();
+        int[] cells = searchSpaceTime(from, to, back, t0, robot, dist);
+        if (cells == null) return null;
+        Path p = new Path(this, cells, 0, 0, t0);
+        reserveSteps(p, robot);
+        reservedBy.put(robot, p);
+        reservedPaths.increment();
+        if (cells.length > 1 && cells[1] == cells[0]) plannedWaits.increment();
+        return p;
+    }
+
+    // Libera las reservas vigentes de robot (deja el camino cooperativo)
+    synchronized void release(long robot) {
+        Path p = reservedBy.remove(robot);
+        if (p != null) releaseSteps(p, robot);
+    }
+
+    // Un camino que llegó a la meta antes del fin de la ventana la reserva un tick más
+    private void reserveSteps(Path p, long robot) {
+        int[] cells = p.cells;
+        int until = Math.min(cells.length, WINDOW);
+        for (int i = 0; i <= until; i++) {
+            reservations.reserve(cells[Math.min(i, cells.length - 1)], p.startTick + i, robot);
+        }
+    }
+
+    private void releaseSteps(Path p, long robot) {
+        int[] cells = p.cells;
+        int until = Math.min(cells.length, WINDOW);
+        for (int i = 0; i <= until; i++) {
+            reservations.release(cells[Math.min(i, cells.length - 1)], p.startTick + i, robot);
+        }
+    }
+
+    /**
+     * Reservas de los robots que se atrasaron (trabados en la cola de una celda o de una
+     * subruta, o con pasos más lentos que el tick): se corren para que el tick t0 caiga en
+     * la celda que el robot todavía ocupa, o se sueltan si ya no está sobre su camino. Sin
+     * esto los demás planifican alrededor de donde debería estar y no de donde está.
+     */
+    private void shiftLate(int t0) {
+        TrafficController tc = TrafficController.get();
+        Iterator<Map.Entry<Long, Path>> it = reservedBy.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Path> e = it.next();
+            long robot = e.getKey();
+            Path p = e.getValue();
+            int expected = t0 - p.startTick;
+            if (expected <= 0) continue;
+            int k = Math.min(expected, p.cells.length - 1);
+            while (k >= 0 && tc.ownerAt(p.cells[k] / width, p.cells[k] % width) != robot) k--;
+            if (k == expected) continue;
+            releaseSteps(p, robot);
+            if (k < 0) {
+                it.remove();
+                continue;
+            }
+            p.startTick = t0 - k;
+            reserveSteps(p, robot);
+        }
+    }
+
+    /**
+     * Celda de route más cercana en pasos (por los carriles) a (fs,fa), sin contar la
+     * propia, como street << 32 | avenue; -1 si no se llega a ninguna.
+     */
+    synchronized long nearestOn(CompiledRoute route, int fs, int fa) {
+        if (!inside(fs, fa)) return -1;
+        if (++generation == 0) {
+            Arrays.fill(seenAt, 0);
+            generation = 1;
+        }
+        int from = fs * width + fa;
+        // BFS con parent[] como cola
+        int head = 0, tail = 0;
+        parent[tail++] = from;
+        seenAt[from] = generation;
+        while (head < tail) {
+            int cell = parent[head++];
+            int s = cell / width, a = cell % width;
+            if (cell != from && route.indexOf(s, a) >= 0) return (((long) s) << 32) | a;
+            int m = open[cell];
+            for (int d = 0; d < 4; d++) {
+                if ((m & (1 << d)) == 0) continue;
+                int next = cell + D_STREET[d] * width + D_AVENUE[d];
+                if (seenAt[next] == generation || againstLane(cell, d, next)) continue;
+                seenAt[next] = generation;
+                parent[tail++] = next;
+            }
+        }
+        return -1;
+    }
+
+    // Salidas de cell por los carriles, sin contar la vuelta a prev: si hay una sola, ningún
+    // camino nuevo puede tomar otra
+    private boolean forks(int cell, int prev) {
+        int exits = 0;
+        for (int d = 0; d < 4; d++) {
+            if ((open[cell] & (1 << d)) == 0) continue;
+            int next = cell + D_STREET[d] * width + D_AVENUE[d];
+            if (next != prev && !againstLane(cell, d, next) && ++exits > 1) return true;
+        }
+        return false;
+    }
+
+    long cacheHits() { return hits.sum(); }
+    long searches() { return searches.sum(); }
+    long reservedPaths() { return reservedPaths.sum(); }
+    // caminos cooperativos cuyo primer paso es esperar: cruces resueltos al planificar
+    long plannedWaits() { return plannedWaits.sum(); }
+
+    private int congestionLevel(int[] cells, int from) {
+        int dynamic = 0;
+        for (int i = from + 1; i < cells.length; i++) dynamic += liveCost(cells[i], cells[i - 1]);
+        return dynamic / CONGESTION_STEP;
+    }
+
+    // Parte viva del costo de entrar a cell desde prev (prev = -1: celda de partida, sin costo)
+    private int liveCost(int cell, int prev) {
+        if (prev < 0) return 0;
+        TrafficController tc = TrafficController.get();
+        int s = cell / width, a = cell % width;
+        int c = tc.isOccupied(s, a) ? OCCUPIED_COST : 0;
+        if (entersSubroute(tc, cell, prev)) {
+            // con el batch cerrado (lleno) también espera el primero que llega, aunque no haya cola
+            Subroute sr = tc.findContainingSubroute(s, a);
+            c += SUBROUTE_QUEUE_COST * (sr.stats().queueDepth + (sr.isClosed() ? 1 : 0));
+        }
+        return c;
+    }
+
+    private boolean entersSubroute(TrafficController tc, int cell, int prev) {
+        Subroute sr = tc.findContainingSubroute(cell / width, cell % width);
+        return sr != null && sr != tc.findContainingSubroute(prev / width, prev % width);
+    }
+
+    // Fuera de carril: cell es de carril y ninguna ruta sale hacia d, o next es de carril y
+    // alguna ruta va de next hacia cell
+    private boolean againstLane(int cell, int d, int next) {
+        if (lanes[cell] != 0 && (lanes[cell] & (1 << d)) == 0) return true;
+        return (lanes[cell] & (1 << d)) == 0 && (lanes[next] & (1 << (d ^ 1))) != 0;
+    }
+
+    // A* sobre la grilla sin pasar por avoid (-1: ninguna); devuelve las celdas from..to o null
+    private int[] search(int from, int to, int avoid) {
+        if (++generation == 0) {
+            Arrays.fill(seenAt, 0);
+            generation = 1;
+        }
+        int ts = to / width, ta = to % width;
+        int heapSize = 0;
+        cost[from] = 0;
+        parent[from] = -1;
+        seenAt[from] = generation;
+        heap[heapSize++] = pack(heuristic(from, ts, ta), from);
+        while (heapSize > 0) {
+            long top = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heapSize);
+            int cell = (int) top;
+            int f = (int) (top >>> 32);
+            if (f - heuristic(cell, ts, ta) > cost[cell]) continue; // entrada vieja
+            if (cell == to) return unwind(to);
+            int m = open[cell];
+            for (int d = 0; d < 4; d++) {
+                if ((m & (1 << d)) == 0) continue;
+                int next = cell + D_STREET[d] * width + D_AVENUE[d];
+                if (next == avoid || againstLane(cell, d, next)) continue;
+                int g = cost[cell] + 1 + liveCost(next, cell);
+                if (seenAt[next] == generation && cost[next] <= g) continue;
+                seenAt[next] = generation;
+                cost[next] = g;
+                parent[next] = cell;
+                if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+                heap[heapSize] = pack(g + heuristic(next, ts, ta), next);
+                siftUp(heapSize++);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A* sobre (celda, tick) desde (from, t0): cada tick se avanza a una vecina por los
+     * carriles o se espera. Un estado es válido si nadie más reservó la celda en ese tick
+     * y no se cruza de frente con otro robot (intercambio de celdas); tampoco se da media
+     * vuelta (volver a la celda anterior), que en un pasillo de doble mano es chocar de
+     * frente con los que vienen detrás; ni se espera dentro de una subruta (retiene el
+     * batch y los de afuera no pueden entrar). Entrar a una subruta cuesta además la espera
+     * que se prevé en su entrada (subrouteWait), que se reserva como esperas en la celda de
+     * antes; si no entra en la ventana, sólo quedan las esperas de a un tick. Los robots sin
+     * reservas (ruta fija, o trabados en una cola) se resuelven al moverse, con el token de
+     * la celda. Termina al llegar a to o al agotar la ventana, minimizando el costo (ticks
+     * más congestión viva, como path) hasta ahí más el que falta (distancesTo).
+     */
+    private int[] searchSpaceTime(int from, int to, int back, int t0, long robot, int[] dist) {
+        if (++stateGeneration == 0) {
+            Arrays.fill(stateSeenAt, 0);
+            stateGeneration = 1;
+        }
+        TrafficController tc = TrafficController.get();
+        int size = open.length;
+        // clave = (WINDOW - dt) * size + celda: a igual f gana el estado más avanzado
+        int start = WINDOW * size + from;
+        int heapSize = 0;
+        stateParent[start] = -1;
+        stateBack[start] = back;
+        stateCost[start] = 0;
+        stateSeenAt[start] = stateGeneration;
+        heap[heapSize++] = pack(dist[from], start);
+        while (heapSize > 0) {
+            long top = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heapSize);
+            int key = (int) top;
+            int dt = WINDOW - key / size;
+            int cell = key % size;
+            if ((int) (top >>> 32) - dist[cell] > stateCost[key]) continue; // entrada vieja
+            if (cell == to || dt == WINDOW) return unwindStates(key, size);
+            int t = t0 + dt + 1;
+            int m = open[cell];
+            // dentro de una subruta no se planifican esperas: quien está adentro retiene el batch
+            boolean canWait = tc.findContainingSubroute(cell / width, cell % width) == null;
+            for (int d = canWait ? -1 : 0; d < 4; d++) {
+                int next = cell;
+                int wait = 0;
+                if (d >= 0) {
+                    if ((m & (1 << d)) == 0) continue;
+                    next = cell + D_STREET[d] * width + D_AVENUE[d];
+                    if (next == stateBack[key] || againstLane(cell, d, next)) continue;
+                    if (canWait && entersSubroute(tc, next, cell)) {
+                        wait = subrouteWait(tc.findContainingSubroute(next / width, next % width), d);
+                        if (dt + 1 + wait > WINDOW || !canHold(cell, t, wait, dt == 0, robot)) continue;
+                    }
+                    long other = reservations.owner(next, t + wait - 1);
+                    if (other != 0 && other != robot && reservations.owner(cell, t + wait) == other) continue;
+                }
+                if (dist[next] >= UNREACHABLE) continue;
+                // quedarse donde está siempre se puede (tiene el token de la celda): la
+                // reserva de otro sobre ella no lo obliga a esquivar, ese otro esperará
+                long owner = dt == 0 && next == cell ? 0 : reservations.owner(next, t + wait);
+                if (owner != 0 && owner != robot) continue;
+                int ndt = dt + 1 + wait;
+                int nkey = (WINDOW - ndt) * size + next;
+                // el mismo costo que la heurística: ticks más la congestión viva al entrar
+                int g = stateCost[key] + 1 + wait + (next == cell ? 0 : liveCost(next, cell));
+                if (stateSeenAt[nkey] == stateGeneration && stateCost[nkey] <= g) continue;
+                stateSeenAt[nkey] = stateGeneration;
+                stateParent[nkey] = key;
+                stateBack[nkey] = next == cell ? stateBack[key] : cell;
+                stateCost[nkey] = g;
+                if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+                heap[heapSize] = pack(g + dist[next], nkey);
+                siftUp(heapSize++);
+            }
+        }
+        return null;
+    }
+
+    // Quedarse en cell los ticks t..t+ticks-1 no pisa reservas de otros (el primero, desde
+    // la celda de partida, siempre se puede)
+    private boolean canHold(int cell, int t, int ticks, boolean starting, long robot) {
+        for (int i = starting ? 1 : 0; i < ticks; i++) {
+            long owner = reservations.owner(cell, t + i);
+            if (owner != 0 && owner != robot) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ticks que se prevé esperar en la entrada de sr yendo hacia DIRS[d]: el batch de adentro
+     * si está cerrado o va en sentido contrario, y uno por cada threshold robots de la cola;
+     * cada batch, lo que tarda en recorrerla.
+     */
+    private static int subrouteWait(Subroute sr, int d) {
+        int batches = (sr.isClosed() || against(sr, d) ? 1 : 0)
+                + sr.stats().queueDepth / Math.max(1, sr.getThreshold());
+        return batches * sr.cellCount();
+    }
+
+    // FlowDir va en el mismo orden que DIRS
+    private static boolean against(Subroute sr, int d) {
+        Subroute.FlowDir flow = sr.getFlowDir();
+        return flow != null && flow.ordinal() != d && sr.getCount() > 0;
+    }
+
+    // Celdas tick a tick hasta el estado key; los saltos de una espera de subruta repiten
+    // la celda de antes
+    private int[] unwindStates(int key, int size) {
+        int[] cells = new int[WINDOW - key / size + 1];
+        for (int k = key; k >= 0; k = stateParent[k]) {
+            int p = stateParent[k];
+            int dt = WINDOW - k / size;
+            cells[dt] = k % size;
+            for (int i = p < 0 ? dt : WINDOW - p / size + 1; i < dt; i++) cells[i] = p % size;
+        }
+        return cells;
+    }
+
+    // Costo desde cada celda hasta una meta y el tick en que se calculó
+    private static final class GoalCost {
+        final int[] cost;
+        int tick = -1;
+
+        GoalCost(int size) {
+            cost = new int[size];
+        }
+    }
+
+    /**
+     * Costo por los carriles desde cada celda hasta to, con la congestión viva como en path
+     * (Dijkstra sobre las aristas invertidas); se recalcula una vez por tick y meta. Es la
+     * heurística del A* espacio-tiempo: más allá de la ventana decide entre las ramas del
+     * escenario por largo y congestión, igual que el ruteo dinámico.
+     */
+    private int[] distancesTo(int to, int tick) {
+        GoalCost g = distances.get(to);
+        if (g == null) {
+            g = new GoalCost(open.length);
+            distances.put(to, g);
+        } else if (g.tick == tick) {
+            return g.cost;
+        }
+        g.tick = tick;
+        int[] dist = g.cost;
+        Arrays.fill(dist, UNREACHABLE);
+        int heapSize = 0;
+        dist[to] = 0;
+        heap[heapSize++] = pack(0, to);
+        while (heapSize > 0) {
+            long top = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heapSize);
+            int next = (int) top;
+            if ((int) (top >>> 32) > dist[next]) continue; // entrada vieja
+            for (int d = 0; d < 4; d++) {
+                int cell = next - D_STREET[d] * width - D_AVENUE[d];
+                if (cell < 0 || cell >= open.length || (open[cell] & (1 << d)) == 0) continue;
+                if (againstLane(cell, d, next)) continue;
+                int c = dist[next] + 1 + liveCost(next, cell);
+                if (c >= dist[cell]) continue;
+                dist[cell] = c;
+                if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+                heap[heapSize] = pack(c, cell);
+                siftUp(heapSize++);
+            }
+        }
+        return dist;
+    }
+
+    private int heuristic(int cell, int ts, int ta) {
+        return Math.abs(cell / width - ts) + Math.abs(cell % width - ta);
+    }
+
+    private static long pack(int f, int cell) {
+        return (((long) f) << 32) | cell;
+    }
+
+    private void siftUp(int i) {
+        long x = heap[i];
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (heap[p] <= x) break;
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = x;
+    }
+
+    private void siftDown(int size) {
+        if (size == 0) return;
+        long x = heap[0];
+        int i = 0;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= size) break;
+            if (c + 1 < size && heap[c + 1] < heap[c]) c++;
+            if (x <= heap[c]) break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = x;
+    }
+
+    private int[] unwind(int to) {
+        int n = 0;
+        for (int c = to; c >= 0; c = parent[c]) n++;
+        int[] cells = new int[n];
+        for (int c = to; c >= 0; c = parent[c]) cells[--n] = c;
+        return cells;
+    }
+}
@@ -0,0 +1,179 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import kareltherobot.Directions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutePlannerTest implements Directions
+{
+	private WorldModel world;
+
+	@Before
+	public void setUp() throws Exception
+	{	world = WorldModel.load("race.kwld");
+		TrafficController.get().reset(world.getStreets(), world.getAvenues());
+	}
+
+	// Cada paso del camino es entre vecinas y sin muro
+	private void assertWalkable(RoutePlanner.Path p, int fs, int fa)
+	{	int s = fs, a = fa;
+		for (int i = 1; i <= p.steps(); i++) {
+			assertTrue("paso " + i, world.isClear(s, a, p.directionOf(i)));
+			assertEquals(1, Math.abs(p.streetAt(i) - s) + Math.abs(p.avenueAt(i) - a));
+			s = p.streetAt(i);
+			a = p.avenueAt(i);
+		}
+	}
+
+	@Test
+	public void testPathAroundWalls()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		// eastwestwalls 3 2 7: de (3,4) a (4,4) hay que rodear el muro
+		RoutePlanner.Path p = planner.path(3, 4, 4, 4);
+		assertNotNull(p);
+		assertTrue(p.steps() > 1);
+		assertEquals(4, p.streetAt(p.steps()));
+		assertEquals(4, p.avenueAt(p.steps()));
+		assertWalkable(p, 3, 4);
+		assertNull(planner.path(0, 4, 4, 4));
+	}
+
+	@Test
+	public void testLanesAreOneWay() throws Exception
+	{	RoutePlanner planner = Scenario.load(Scenario.DEFAULT_FILE).planner(world);
+		// origen A -> destino A: el tramo de la ruta principal, no el atajo contra los carriles
+		RoutePlanner.Path p = planner.path(1, 9, 12, 23);
+		assertEquals(61, p.steps());
+		assertWalkable(p, 1, 9);
+		// llega bajando desde 13,23 como la ruta, no subiendo por 11,23
+		assertEquals(South, p.directionOf(p.steps()));
+		assertEquals(13, p.streetAt(p.steps() - 1));
+	}
+
+	@Test
+	public void testCacheUntilCongestionCrossesStep()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		RoutePlanner.Path p = planner.path(1, 1, 1, 14);
+		assertSame(p, planner.path(1, 1, 1, 14));
+		// el sufijo ya quedó guardado: quien sigue el camino no vuelve a buscar
+		assertNotNull(planner.path(1, 10, 1, 14));
+		assertEquals(1, planner.searches());
+		assertEquals(2, planner.cacheHits());
+
+		// un cambio lejos del próximo paso también cuenta: una celda ocupada no cruza el
+		// escalón; dos sí
+		TrafficController tc = TrafficController.get();
+		assertTrue(tc.occupy(1, 11, 1L));
+		assertSame(p, planner.path(1, 1, 1, 14));
+		assertTrue(tc.occupy(1, 12, 2L));
+		assertNotSame(p, planner.path(1, 1, 1, 14));
+		assertEquals(2, planner.searches());
+	}
+
+	@Test
+	public void testDetourAvoidsBlockedCell()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		RoutePlanner.Path p = planner.detour(1, 1, 1, 20, 1, 2);
+		assertNotNull(p);
+		assertWalkable(p, 1, 1);
+		for (int i = 1; i <= p.steps(); i++) {
+			assertFalse(p.streetAt(i) == 1 && p.avenueAt(i) == 2);
+		}
+		// ya en el destino: no hay camino que seguir, sólo correrse a una vecina libre
+		RoutePlanner.Path aside = planner.detour(1, 20, 1, 20, 1, 19);
+		assertNotNull(aside);
+		assertEquals(1, aside.steps());
+		assertWalkable(aside, 1, 20);
+	}
+
+	@Test
+	public void testReservedPathsDoNotCollide()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		planner.cooperate(() -> 0L);
+		RoutePlanner.Path first = planner.reservePath(1, 1, 1, 10, 1L, -1, -1);
+		assertEquals(9, first.steps());
+		assertWalkable(first, 1, 1);
+		// de frente por la misma calle: ni la misma celda en el mismo tick ni cruzarse
+		RoutePlanner.Path second = planner.reservePath(1, 10, 1, 1, 2L, -1, -1);
+		assertNotNull(second);
+		for (int t = 1; t <= RoutePlanner.WINDOW; t++) {
+			long a = cellAt(first, t), b = cellAt(second, t);
+			assertFalse("tick " + t, a == b);
+			assertFalse("cruce en " + t, a == cellAt(second, t - 1) && b == cellAt(first, t - 1));
+		}
+		// sin las reservas del primero va derecho
+		planner.release(1L);
+		assertEquals(9, planner.reservePath(1, 10, 1, 1, 2L, -1, -1).steps());
+		assertEquals(3, planner.reservedPaths());
+	}
+
+	@Test
+	public void testReservedPathWaitsInPlace()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		planner.cooperate(() -> 0L);
+		// en la esquina (1,1), viniendo de (2,1), la única salida es (1,2): la reservó otro
+		planner.reservePath(1, 3, 1, 2, 1L, -1, -1);
+		RoutePlanner.Path p = planner.reservePath(1, 1, 1, 5, 2L, 2, 1);
+		assertNotNull(p);
+		assertNull(p.directionOf(1));
+		assertEquals(1, p.streetAt(1));
+		assertEquals(1, p.avenueAt(1));
+		assertEquals(1, planner.plannedWaits());
+	}
+
+	@Test
+	public void testReservedPathDetoursAroundReservation()
+	{	RoutePlanner planner = new RoutePlanner(world);
+		planner.cooperate(() -> 0L);
+		// solo, de (8,3) a (5,6) baja por la avenida 3: en el tick 2 está en (6,3)
+		RoutePlanner.Path alone = planner.reservePath(8, 3, 5, 6, 2L, -1, -1);
+		assertEquals(6, alone.steps());
+		assertEquals(cell(6, 3), cellAt(alone, 2));
+		planner.release(2L);
+		// otro cruza por la calle 6 hacia el oeste y reserva (6,3) en el tick 2
+		RoutePlanner.Path crossing = planner.reservePath(6, 5, 6, 1, 1L, -1, -1);
+		assertEquals(cell(6, 3), cellAt(crossing, 2));
+		// rodea la reserva por otras celdas, sin esperar y sin alargar el camino
+		RoutePlanner.Path p = planner.reservePath(8, 3, 5, 6, 2L, -1, -1);
+		assertEquals(6, p.steps());
+		assertWalkable(p, 8, 3);
+		for (int t = 1; t <= p.steps(); t++) {
+			assertNotNull("espera en " + t, p.directionOf(t));
+			assertFalse("tick " + t, cellAt(p, t) == cellAt(crossing, t));
+		}
+		assertEquals(0, planner.plannedWaits());
+	}
+
+	@Test
+	public void testLateReservationShiftsToOccupiedCell()
+	{	long[] now = {0};
+		RoutePlanner planner = new RoutePlanner(world);
+		planner.cooperate(() -> now[0]);
+		RoutePlanner.Path late = planner.reservePath(6, 5, 6, 1, 1L, -1, -1);
+		assertEquals(0, late.startTick());
+		// tres ticks después sigue en (6,4), el paso 1 (trabado en una cola): quien planifica
+		// ahora corre su reserva para que el tick 3 caiga en (6,4)
+		TrafficController.get().occupy(6, 4, 1L);
+		now[0] = 3 * RoutePlanner.NOMINAL_TICK_NANOS;
+		planner.reservePath(8, 3, 5, 6, 2L, -1, -1);
+		assertEquals(2, late.startTick());
+		// a tiempo no se toca
+		now[0] = 4 * RoutePlanner.NOMINAL_TICK_NANOS;
+		TrafficController.get().release(6, 4, 1L);
+		TrafficController.get().occupy(6, 3, 1L);
+		planner.reservePath(8, 3, 5, 6, 2L, -1, -1);
+		assertEquals(2, late.startTick());
+	}
+
+	private static long cell(int street, int avenue)
+	{	return ((long) street << 32) | avenue;
+	}
+
+	// Celda de p en el tick t (quieto en la meta al terminar)
+	private static long cellAt(RoutePlanner.Path p, int t)
+	{	int i = Math.min(t, p.steps());
+		return ((long) p.streetAt(i) << 32) | p.avenueAt(i);
+	}
+}
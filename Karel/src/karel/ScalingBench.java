@@ -0,0 +1,313 @@
+package karel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Curva de escalado de la carrera según la cantidad de robots:
+ * - Barre robots (de 8 a 2.000) y stock por zona sobre escenarios (race.scn) y mundos
+ *   sintéticos NxM: una grilla abierta con una ruta en serpentina que pasa por todas las
+ *   celdas, dos zonas enfrentadas y una subruta de capacidad 3 en la columna de regreso
+ * - Los robots que no trae el escenario salen repartidos por su ruta (Scenario.withRobots)
+ * - Cada corrida es una EventSimulation aislada (SimulationScope) y corren de a una, para
+ *   que el tiempo de CPU y el pico de heap sean sólo de esa corrida
+ * - Una fila CSV por corrida: tiempo simulado hasta completar, beepers/s, espera por celda
+ *   media y p99 (ms simulados), timeouts de subruta, CPU, pico de heap y tiempo real
+ * - Con --baseline=F compara contra un CSV anterior y termina con error si una corrida que
+ *   completaba ya no completa o tarda más que la tolerancia: la curva queda como regresión
+ *
+ * Uso: java -cp out:KarelJRobot.jar karel.ScalingBench [--worlds=race.scn,64x64]
+ *      [--robots=8,16,32,56,128,256,512,1000,2000] [--stock=500] [--seeds=1] [--out=F]
+ *      [--baseline=F] [--tolerance=0.10] [--log-level=LEVEL]
+ */
+public final class ScalingBench {
+    private static final long LIMIT_MILLIS = 60L * 60L * 1000L; // una hora simulada, como --sim
+    private static final int SYNTHETIC_THRESHOLD = 3;
+    static final String HEADER = "world,robots,stock,seed,completed,simulated_ms,delivered,beepers_per_s,events,"
+            + "cell_waits,cell_wait_mean_ms,cell_wait_p99_ms,subroute_timeouts,cpu_ms,peak_heap_mb,wall_ms";
+
+    /** Resultado de una corrida. */
+    static final class Run {
+        final String world;
+        final int robots;
+        final int stock;
+        final long seed;
+        final EventSimulation.Result result;
+        final long delivered;
+        final long cellWaits;
+        final double cellWaitMeanNanos;
+        final long cellWaitP99Nanos;
+        final long subrouteTimeouts;
+        final long cpuNanos;
+        final long peakHeapBytes;
+        final long wallMillis;
+
+        Run(String world, int robots, int stock, long seed, EventSimulation.Result result, long delivered, long cellWaits,
+            double cellWaitMeanNanos, long cellWaitP99Nanos, long subrouteTimeouts, long cpuNanos, long peakHeapBytes,
+            long wallMillis) {
+            this.world = world;
+            this.robots = robots;
+            this.stock = stock;
+            this.seed = seed;
+            this.result = result;
+            this.delivered = delivered;
+            this.cellWaits = cellWaits;
+            this.cellWaitMeanNanos = cellWaitMeanNanos;
+            this.cellWaitP99Nanos = cellWaitP99Nanos;
+            this.subrouteTimeouts = subrouteTimeouts;
+            this.cpuNanos = cpuNanos;
+            this.peakHeapBytes = peakHeapBytes;
+            this.wallMillis = wallMillis;
+        }
+
+        double beepersPerSecond() {
+            return result.simulatedMillis == 0 ? 0.0 : delivered * 1000.0 / result.simulatedMillis;
+        }
+
+        String key() {
+            return world + "|" + robots + "|" + stock + "|" + seed;
+        }
+    }
+
+    private ScalingBench() {}
+
+    public static void main(String[] args) throws Exception {
+        String[] worlds = {Scenario.DEFAULT_FILE, "64x64"};
+        int[] robots = {8, 16, 32, 56, 128, 256, 512, 1000, 2000};
+        int[] stocks = {500};
+        long[] seeds = {1};
+        String outFile = null;
+        String baselineFile = null;
+        double tolerance = 0.10;
+        String logLevel = "warn";
+        for (String arg : args) {
+            if (arg.startsWith("--worlds=")) worlds = value(arg).split(",");
+            else if (arg.startsWith("--robots=")) robots = ints(value(arg));
+            else if (arg.startsWith("--stock=")) stocks = ints(value(arg));
+            else if (arg.startsWith("--seeds=")) seeds = longs(value(arg));
+            else if (arg.startsWith("--out=")) outFile = value(arg);
+            else if (arg.startsWith("--baseline=")) baselineFile = value(arg);
+            else if (arg.startsWith("--tolerance=")) tolerance = Double.parseDouble(value(arg));
+            else if (arg.startsWith("--log-level=")) logLevel = value(arg);
+            else throw new IllegalArgumentException("Opción desconocida: " + arg);
+        }
+        EventLog.configure(logLevel, logLevel, null);
+        File synthetic = Files.createTempDirectory("karel-scale").toFile();
+        synthetic.deleteOnExit();
+
+        PrintWriter out = outFile == null
+                ? new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : new PrintWriter(new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.UTF_8));
+        out.println(HEADER);
+        List<Run> runs = new ArrayList<>();
+        for (String world : worlds) {
+            Scenario base = scenario(world, synthetic);
+            for (int n : robots) {
+                for (int stock : stocks) {
+                    Scenario s;
+                    try {
+                        s = base.withRobots(n).withStock(stock);
+                    } catch (IllegalArgumentException e) {
+                        System.err.printf("%s con %d robots: se saltea (%s)%n", world, n, e.getMessage());
+                        continue;
+                    }
+                    for (long seed : seeds) {
+                        Run r = run(s, world, n, stock, seed);
+                        runs.add(r);
+                        out.println(row(r));
+                        out.flush();
+                    }
+                }
+            }
+        }
+        if (outFile != null) out.close();
+        EventLog.shutdown();
+        if (baselineFile != null) {
+            List<String> problems = regressions(Files.readAllLines(new File(baselineFile).toPath(), StandardCharsets.UTF_8),
+                                                runs, tolerance);
+            for (String p : problems) System.err.println("regresión: " + p);
+            System.err.printf("%d corridas comparadas contra %s: %d regresiones%n", runs.size(), baselineFile, problems.size());
+            if (!problems.isEmpty()) System.exit(1);
+        }
+    }
+
+    // "NxM" es un mundo sintético (se genera en dir); cualquier otra cosa, un archivo de escenario
+    static Scenario scenario(String world, File dir) throws IOException {
+        int x = world.indexOf('x');
+        if (x > 0 && world.substring(0, x).matches("\\d+") && world.substring(x + 1).matches("\\d+")) {
+            return synthetic(Integer.parseInt(world.substring(0, x)), Integer.parseInt(world.substring(x + 1)), dir);
+        }
+        return Scenario.load(world);
+    }
+
+    /**
+     * Escribe en dir un mundo abierto de streets x avenues y su escenario, y lo carga. La ruta
+     * va por la calle 1 hacia el este, serpentea por las calles 2..streets entre las avenidas
+     * 2..avenues y vuelve al principio por la avenida 1; streets tiene que ser par.
+     */
+    static Scenario synthetic(int streets, int avenues, File dir) throws IOException {
+        if (streets < 4 || streets % 2 != 0 || avenues < 3) {
+            throw new IllegalArgumentException("Mundo sintético inválido (calles pares >= 4, avenidas >= 3): " + streets + "x" + avenues);
+        }
+        String name = "grid-" + streets + "x" + avenues;
+        File world = new File(dir, name + ".kwld");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(world), StandardCharsets.UTF_8)) {
+            w.write("KarelWorld\nstreets " + streets + "\navenues " + avenues + "\n");
+        }
+        world.deleteOnExit();
+
+        List<int[]> route = new ArrayList<>(streets * avenues);
+        StringBuilder scn = new StringBuilder();
+        scn.append("# Mundo sintético ").append(streets).append('x').append(avenues).append(": serpentina por todas las celdas\n");
+        scn.append("world ").append(world.getName()).append("\n\nroute main\n");
+        scn.append("  1,1..1,").append(avenues).append('\n');
+        for (int a = 1; a <= avenues; a++) route.add(new int[]{1, a});
+        for (int s = 2; s <= streets; s++) {
+            int from = s % 2 == 0 ? avenues : 2, to = s % 2 == 0 ? 2 : avenues;
+            scn.append("  ").append(s).append(',').append(from).append("..").append(s).append(',').append(to).append('\n');
+            for (int a = from; a != to + (to > from ? 1 : -1); a += to > from ? 1 : -1) route.add(new int[]{s, a});
+        }
+        scn.append("  ").append(streets).append(",1..2,1\n");
+        for (int s = streets; s >= 2; s--) route.add(new int[]{s, 1});
+
+        scn.append("\nsubroute S1 ").append(SYNTHETIC_THRESHOLD).append("  ")
+           .append(streets - 1).append(",1..").append(streets / 2).append(",1\n\n");
+        // A carga al salir de la calle 1 y entrega a mitad de la ruta; B carga justo después y entrega en 1,1
+        int half = route.size() / 2;
+        scn.append("zone A ").append(cell(route.get(1))).append(" 0 ").append(cell(route.get(half))).append('\n');
+        scn.append("zone B ").append(cell(route.get(half + 1))).append(" 0 ").append(cell(route.get(0))).append("\n\n");
+        scn.append("spawn main 1,1\n");
+
+        File scenario = new File(dir, name + ".scn");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(scenario), StandardCharsets.UTF_8)) {
+            w.write(scn.toString());
+        }
+        scenario.deleteOnExit();
+        return Scenario.load(scenario.getPath());
+    }
+
+    private static String cell(int[] c) {
+        return c[0] + "," + c[1];
+    }
+
+    /**
+     * Una corrida aislada de s, de a una: el CPU es el de este hilo (la simulación es de un
+     * solo hilo) y el pico de heap, el de los pools de heap desde un GC previo. El stock de
+     * cada zona se deja en el piso de su origen.
+     */
+    static Run run(final Scenario s, final String world, final int robots, final int stock, final long seed) throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP && p.isValid()) {
+                p.resetPeakUsage();
+                heap.add(p);
+            }
+        }
+        final long cpuStart = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+        final long start = System.nanoTime();
+        return new SimulationScope().call(() -> {
+            WorldModel model = WorldModel.load(s.getWorld());
+            for (BeeperExchangeManager.ZoneSpec z : s.getZones()) model.placeBeepers(z.originStreet, z.originAvenue, stock);
+            TrafficController.get().reset(model.getStreets(), model.getAvenues());
+            s.apply();
+            EventSimulation sim = new EventSimulation(model, seed);
+            RoutePlanner planner = s.isDynamicRouting() ? s.planner(model) : null;
+            if (s.isCooperativeRouting()) planner.cooperate(() -> TimeUnit.MILLISECONDS.toNanos(sim.now()));
+            sim.addRobots(s, planner);
+            EventSimulation.Result r = sim.run(LIMIT_MILLIS);
+
+            long cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() - cpuStart : -1;
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long peak = 0;
+            for (MemoryPoolMXBean p : heap) peak += p.getPeakUsage().getUsed();
+            Metrics m = Metrics.get();
+            LatencyHistogram waits = m.cellWaitsAll();
+            long delivered = 0;
+            for (long d : m.getBeepersDelivered().values()) delivered += d;
+            long timeouts = 0;
+            for (long t : m.getSubrouteTimeouts().values()) timeouts += t;
+            return new Run(world, robots, stock, seed, r, delivered, waits.count(), m.meanCellWaitNanos(),
+                           waits.percentile(0.99), timeouts, cpu, peak, wallMillis);
+        });
+    }
+
+    static String row(Run r) {
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%b,%d,%d,%.2f,%d,%d,%.2f,%.2f,%d,%d,%.1f,%d",
+                r.world, r.robots, r.stock, r.seed, r.result.completed, r.result.simulatedMillis, r.delivered,
+                r.beepersPerSecond(), r.result.events, r.cellWaits, r.cellWaitMeanNanos / 1e6, r.cellWaitP99Nanos / 1e6,
+                r.subrouteTimeouts, r.cpuNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(r.cpuNanos),
+                r.peakHeapBytes / (1024.0 * 1024.0), r.wallMillis);
+    }
+
+    /**
+     * Corridas que empeoraron respecto de baseline (líneas de un CSV anterior, con encabezado):
+     * las que completaban y ya no, o cuyo tiempo simulado creció más que tolerance (0.10 = 10%).
+     * Las que no están en baseline no se comparan.
+     */
+    static List<String> regressions(List<String> baseline, List<Run> runs, double tolerance) {
+        List<String> problems = new ArrayList<>();
+        if (baseline.isEmpty()) return problems;
+        Map<String, Integer> col = new HashMap<>();
+        String[] names = baseline.get(0).split(",");
+        for (int i = 0; i < names.length; i++) col.put(names[i].trim(), i);
+        for (String c : new String[]{"world", "robots", "stock", "seed", "completed", "simulated_ms"}) {
+            if (!col.containsKey(c)) throw new IllegalArgumentException("Falta la columna " + c + " en la línea base");
+        }
+        Map<String, String[]> before = new HashMap<>();
+        for (String line : baseline.subList(1, baseline.size())) {
+            if (line.trim().isEmpty()) continue;
+            String[] f = line.split(",");
+            before.put(f[col.get("world")] + "|" + f[col.get("robots")] + "|" + f[col.get("stock")] + "|" + f[col.get("seed")], f);
+        }
+        for (Run r : runs) {
+            String[] f = before.get(r.key());
+            if (f == null || !Boolean.parseBoolean(f[col.get("completed")])) continue;
+            long was = Long.parseLong(f[col.get("simulated_ms")]);
+            if (!r.result.completed) {
+                problems.add(String.format("%s con %d robots y stock %d (semilla %d) ya no completa (antes %d ms)",
+                        r.world, r.robots, r.stock, r.seed, was));
+            } else if (r.result.simulatedMillis > was * (1 + tolerance)) {
+                problems.add(String.format(Locale.ROOT, "%s con %d robots y stock %d (semilla %d): %d ms contra %d ms (+%.1f%%)",
+                        r.world, r.robots, r.stock, r.seed, r.result.simulatedMillis, was,
+                        100.0 * (r.result.simulatedMillis - was) / was));
+            }
+        }
+        return problems;
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static int[] ints(String csv) {
+        String[] parts = csv.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) out[i] = Integer.parseInt(parts[i].trim());
+        return out;
+    }
+
+    private static long[] longs(String csv) {
+        String[] parts = csv.split(",");
+        long[] out = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) out[i] = Long.parseLong(parts[i].trim());
+        return out;
+    }
+}
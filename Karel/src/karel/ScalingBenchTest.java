@@ -0,0 +1,72 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ScalingBenchTest
+{
+	@Test
+	public void testSyntheticWorldRunsWithExtraRobots() throws Exception
+	{	File dir = Files.createTempDirectory("karel-scale").toFile();
+		dir.deleteOnExit();
+		Scenario base = ScalingBench.synthetic(8, 8, dir);
+		assertEquals(1, base.spawnCount());
+		assertEquals(64, base.spawnRoute(0).size());
+
+		// las salidas que faltan se reparten por la ruta, sin repetir celda
+		Scenario s = base.withRobots(20).withStock(40);
+		assertEquals(20, s.spawnCount());
+		Set<String> cells = new HashSet<>();
+		for (int i = 0; i < s.spawnCount(); i++) cells.add(s.spawnStreet(i) + "," + s.spawnAvenue(i));
+		assertEquals(20, cells.size());
+		assertEquals(80, s.totalStock());
+		try
+		{	base.withRobots(65);
+			fail("no hay lugar para 65 robots en 64 celdas");
+		} catch (IllegalArgumentException expected)
+		{
+		}
+
+		ScalingBench.Run r = ScalingBench.run(s, "8x8", 20, 40, 1);
+		assertTrue(r.result.completed);
+		assertEquals(80, r.delivered);
+		assertTrue(r.cellWaits > 0);
+		assertTrue(r.cellWaitMeanNanos > 0);
+		assertTrue(r.cellWaitP99Nanos >= r.cellWaitMeanNanos);
+		assertTrue(r.peakHeapBytes > 0);
+		String row = ScalingBench.row(r);
+		assertEquals(ScalingBench.HEADER.split(",").length, row.split(",").length);
+		assertTrue(row.startsWith("8x8,20,40,1,true,"));
+	}
+
+	@Test
+	public void testRegressionsAgainstBaseline() throws Exception
+	{	File dir = Files.createTempDirectory("karel-scale").toFile();
+		dir.deleteOnExit();
+		ScalingBench.Run r = ScalingBench.run(ScalingBench.synthetic(4, 6, dir).withRobots(4).withStock(8), "4x6", 4, 8, 1);
+		assertTrue(r.result.completed);
+		long ms = r.result.simulatedMillis;
+		List<ScalingBench.Run> runs = Collections.singletonList(r);
+
+		assertTrue(ScalingBench.regressions(baseline(ms, true), runs, 0.10).isEmpty());
+		// antes tardaba bastante menos: más lento que la tolerancia
+		assertEquals(1, ScalingBench.regressions(baseline(ms * 10 / 12, true), runs, 0.10).size());
+		// antes no completaba: no hay contra qué comparar
+		assertTrue(ScalingBench.regressions(baseline(ms / 2, false), runs, 0.10).isEmpty());
+	}
+
+	private static List<String> baseline(long simulatedMillis, boolean completed)
+	{	return Arrays.asList(ScalingBench.HEADER,
+				"4x6,4,8,1," + completed + "," + simulatedMillis + ",8,1.00,10,0,0.00,0.00,0,1,1.0,1",
+				"4x6,8,8,1,true,1,8,1.00,10,0,0.00,0.00,0,1,1.0,1");
+	}
+}
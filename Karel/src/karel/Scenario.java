@@ -0,0 +1,563 @@
+package karel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Escenario de la carrera leído de un archivo de texto (.scn) en lugar de loops de Java:
+ * - Mundo (.kwld), rutas con nombre, subrutas con umbral, alternativas con sus celdas
+ *   de disparo, zonas de intercambio de beepers y celdas de salida de los robots
+ * - Lector en streaming: una pasada sobre un buffer de chars, sin split ni regex; números
+ *   y celdas van directo a arreglos primitivos
+ * - Inmutable una vez leído; apply() registra subrutas y alternativas nuevas en cada llamada.
+ *   Los with*() devuelven una copia con un parámetro cambiado (ParameterSweep)
+ *
+ * Formato: cada instrucción empieza con una palabra clave y sus celdas siguen hasta la
+ * próxima palabra clave (pueden ocupar varias líneas); '#' comenta hasta el fin de línea.
+ * Una celda es "street,avenue" y "s,a..s,a" es un tramo inclusivo.
+ * <pre>
+ *   world race.kwld               mundo, relativo al directorio del escenario
+ *   route main 2,7..2,1 1,1 ...   ruta circular; los tramos deben ser rectos
+ *   subroute S1 3 10,30..5,30     id, umbral y celdas
+ *   alternate 1,11 15,30 4        celda de decisión, rejoin y triggers ocupados requeridos
+ *   triggers 1,12..1,15           celdas de disparo de la última alternate
+ *   path 2,11..11,11 ...          recorrido de la última alternate (tramos rectos)
+ *   zone A 1,9 500 12,23          nombre, origen, stock y destino
+ *   load 4                        beepers que reserva un robot por viaje (por defecto 4)
+ *   spawn main 1,1..4,7 12,28     ruta y celdas de salida; un tramo s,a..s,a que no es
+ *                                 recto llena el rectángulo avenida por avenida
+ *   routing dynamic               static (por defecto): seguir las rutas; dynamic: los robots
+ *                                 piden caminos al RoutePlanner y las rutas sólo marcan carriles;
+ *                                 cooperative: como dynamic, reservando (celda, tick) por delante
+ * </pre>
+ */
+public final class Scenario {
+    /** Escenario por defecto: la carrera de race.kwld. */
+    public static final String DEFAULT_FILE = "race.scn";
+
+    private static final class SubrouteDecl {
+        final String id;
+        final int threshold;
+        final int[] streets;
+        final int[] avenues;
+
+        SubrouteDecl(String id, int threshold, int[] streets, int[] avenues) {
+            this.id = id;
+            this.threshold = threshold;
+            this.streets = streets;
+            this.avenues = avenues;
+        }
+    }
+
+    private static final class AlternateDecl {
+        final int decisionStreet, decisionAvenue;
+        final int rejoinStreet, rejoinAvenue;
+        final int required;
+        final Cells triggers;
+        final Cells path;
+
+        AlternateDecl(int decisionStreet, int decisionAvenue, int rejoinStreet, int rejoinAvenue, int required) {
+            this.decisionStreet = decisionStreet;
+            this.decisionAvenue = decisionAvenue;
+            this.rejoinStreet = rejoinStreet;
+            this.rejoinAvenue = rejoinAvenue;
+            this.required = required;
+            this.triggers = new Cells();
+            this.path = new Cells();
+        }
+
+        // Misma alternativa con otro requisito de triggers (comparte las celdas, ya leídas)
+        AlternateDecl(AlternateDecl d, int required) {
+            this.decisionStreet = d.decisionStreet;
+            this.decisionAvenue = d.decisionAvenue;
+            this.rejoinStreet = d.rejoinStreet;
+            this.rejoinAvenue = d.rejoinAvenue;
+            this.required = required;
+            this.triggers = d.triggers;
+            this.path = d.path;
+        }
+    }
+
+    // Lista creciente de celdas como dos arreglos primitivos
+    private static final class Cells {
+        int[] streets = new int[16];
+        int[] avenues = new int[16];
+        int size = 0;
+
+        void add(int street, int avenue) {
+            if (size == streets.length) {
+                streets = Arrays.copyOf(streets, size * 2);
+                avenues = Arrays.copyOf(avenues, size * 2);
+            }
+            streets[size] = street;
+            avenues[size] = avenue;
+            size++;
+        }
+
+        List<int[]> points() {
+            List<int[]> l = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) l.add(new int[]{streets[i], avenues[i]});
+            return l;
+        }
+    }
+
+    private final String file;
+    private final String world;
+    private final Map<String, CompiledRoute> routes;
+    private final List<SubrouteDecl> subroutes;
+    private final List<AlternateDecl> alternates;
+    private final List<BeeperExchangeManager.ZoneSpec> zones;
+    private final int[] spawnStreets;
+    private final int[] spawnAvenues;
+    private final CompiledRoute[] spawnRoutes;
+    private final boolean dynamicRouting;
+    private final boolean cooperativeRouting;
+    private final int load;
+
+    private Scenario(Parser p) {
+        this.file = p.file;
+        this.world = p.world;
+        this.routes = Collections.unmodifiableMap(p.routes);
+        this.subroutes = p.subroutes;
+        this.alternates = p.alternates;
+        this.zones = Collections.unmodifiableList(p.zones);
+        this.spawnStreets = Arrays.copyOf(p.spawns.streets, p.spawns.size);
+        this.spawnAvenues = Arrays.copyOf(p.spawns.avenues, p.spawns.size);
+        this.spawnRoutes = Arrays.copyOf(p.spawnRoutes, p.spawns.size);
+        this.dynamicRouting = p.dynamicRouting;
+        this.cooperativeRouting = p.cooperativeRouting;
+        this.load = p.load;
+    }
+
+    // Copia de base con subrutas, alternativas, cantidad de robots y carga cambiadas
+    private Scenario(Scenario base, List<SubrouteDecl> subroutes, List<AlternateDecl> alternates, int robots, int load) {
+        this(base, subroutes, alternates, base.zones, Arrays.copyOf(base.spawnStreets, robots),
+             Arrays.copyOf(base.spawnAvenues, robots), Arrays.copyOf(base.spawnRoutes, robots), load);
+    }
+
+    private Scenario(Scenario base, List<SubrouteDecl> subroutes, List<AlternateDecl> alternates,
+                     List<BeeperExchangeManager.ZoneSpec> zones, int[] spawnStreets, int[] spawnAvenues,
+                     CompiledRoute[] spawnRoutes, int load) {
+        this.file = base.file;
+        this.world = base.world;
+        this.routes = base.routes;
+        this.subroutes = subroutes;
+        this.alternates = alternates;
+        this.zones = zones;
+        this.spawnStreets = spawnStreets;
+        this.spawnAvenues = spawnAvenues;
+        this.spawnRoutes = spawnRoutes;
+        this.dynamicRouting = base.dynamicRouting;
+        this.cooperativeRouting = base.cooperativeRouting;
+        this.load = load;
+    }
+
+    public static Scenario load(String scenarioFile) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(scenarioFile), StandardCharsets.UTF_8)) {
+            return parse(in, scenarioFile, new File(scenarioFile).getAbsoluteFile().getParentFile());
+        }
+    }
+
+    // baseDir resuelve un world relativo (null: se deja como está)
+    static Scenario parse(Reader in, String name, File baseDir) throws IOException {
+        Parser p = new Parser(in, name, baseDir);
+        p.parse();
+        return new Scenario(p);
+    }
+
+    public String getFile() { return file; }
+    // Archivo .kwld declarado con "world", o null
+    public String getWorld() { return world; }
+    public int spawnCount() { return spawnStreets.length; }
+    public int spawnStreet(int i) { return spawnStreets[i]; }
+    public int spawnAvenue(int i) { return spawnAvenues[i]; }
+    CompiledRoute spawnRoute(int i) { return spawnRoutes[i]; }
+    CompiledRoute route(String name) { return routes.get(name); }
+    public int routeCount() { return routes.size(); }
+    public int subrouteCount() { return subroutes.size(); }
+    public int alternateCount() { return alternates.size(); }
+    public List<BeeperExchangeManager.ZoneSpec> getZones() { return zones; }
+    // true también en cooperativo (ruteo dinámico con reservas)
+    public boolean isDynamicRouting() { return dynamicRouting; }
+    public boolean isCooperativeRouting() { return cooperativeRouting; }
+    // Beepers que reserva cada robot por viaje
+    public int load() { return load; }
+    String subrouteId(int i) { return subroutes.get(i).id; }
+    int subrouteThreshold(int i) { return subroutes.get(i).threshold; }
+    int alternateRequired(int i) { return alternates.get(i).required; }
+
+    /** Copia con otro umbral para la subruta id. */
+    Scenario withThreshold(String id, int threshold) {
+        if (threshold <= 0) throw new IllegalArgumentException("Umbral inválido: " + threshold);
+        List<SubrouteDecl> srs = new ArrayList<>(subroutes);
+        for (int i = 0; i < srs.size(); i++) {
+            SubrouteDecl d = srs.get(i);
+            if (d.id.equals(id)) {
+                srs.set(i, new SubrouteDecl(d.id, threshold, d.streets, d.avenues));
+                return new Scenario(this, srs, alternates, spawnCount(), load);
+            }
+        }
+        throw new IllegalArgumentException("Subruta no declarada: " + id);
+    }
+
+    /** Copia en la que la alternativa i (en orden de declaración) pide otros triggers ocupados. */
+    Scenario withRequiredOccupied(int i, int required) {
+        if (i < 0 || i >= alternates.size()) throw new IllegalArgumentException("Alternativa inexistente: " + i);
+        List<AlternateDecl> alts = new ArrayList<>(alternates);
+        alts.set(i, new AlternateDecl(alts.get(i), required));
+        return new Scenario(this, subroutes, alts, spawnCount(), load);
+    }
+
+    /**
+     * Copia con robots salidas: las primeras del escenario y, si hacen falta más, celdas
+     * libres de la ruta de la primera salida repartidas a lo largo de toda la ruta.
+     */
+    Scenario withRobots(int robots) {
+        if (robots < 0) throw new IllegalArgumentException("Cantidad de robots inválida: " + robots);
+        if (robots <= spawnCount()) return new Scenario(this, subroutes, alternates, robots, load);
+        if (spawnCount() == 0) throw new IllegalArgumentException("El escenario no tiene salidas");
+        CompiledRoute route = spawnRoutes[0];
+        Set<Long> used = new HashSet<>();
+        for (int i = 0; i < spawnCount(); i++) used.add(cellKey(spawnStreets[i], spawnAvenues[i]));
+        List<Integer> free = new ArrayList<>();
+        for (int i = 0; i < route.size(); i++) {
+            // una ruta que pasa dos veces por una celda la ofrece una sola vez
+            if (used.add(cellKey(route.streetAt(i), route.avenueAt(i)))) free.add(i);
+        }
+        int extra = robots - spawnCount();
+        if (extra > free.size()) {
+            throw new IllegalArgumentException("La ruta tiene lugar para " + (spawnCount() + free.size()) + " robots");
+        }
+        int[] streets = Arrays.copyOf(spawnStreets, robots);
+        int[] avenues = Arrays.copyOf(spawnAvenues, robots);
+        CompiledRoute[] routesOf = Arrays.copyOf(spawnRoutes, robots);
+        for (int k = 0; k < extra; k++) {
+            int i = free.get((int) ((long) k * free.size() / extra));
+            streets[spawnCount() + k] = route.streetAt(i);
+            avenues[spawnCount() + k] = route.avenueAt(i);
+            routesOf[spawnCount() + k] = route;
+        }
+        return new Scenario(this, subroutes, alternates, zones, streets, avenues, routesOf, load);
+    }
+
+    /** Copia en la que cada zona empieza con stock beepers (el mundo debe tenerlos en el origen). */
+    Scenario withStock(int stock) {
+        List<BeeperExchangeManager.ZoneSpec> zs = new ArrayList<>(zones.size());
+        for (BeeperExchangeManager.ZoneSpec z : zones) {
+            zs.add(new BeeperExchangeManager.ZoneSpec(z.name, z.originStreet, z.originAvenue, stock, z.destStreet, z.destAvenue));
+        }
+        return new Scenario(this, subroutes, alternates, Collections.unmodifiableList(zs), spawnStreets, spawnAvenues,
+                            spawnRoutes, load);
+    }
+
+    private static long cellKey(int street, int avenue) {
+        return (((long) street) << 32) | (avenue & 0xffffffffL);
+    }
+
+    /** Copia con otra reserva por viaje. */
+    Scenario withLoad(int load) {
+        if (load <= 0) throw new IllegalArgumentException("Carga inválida: " + load);
+        return new Scenario(this, subroutes, alternates, spawnCount(), load);
+    }
+
+    public int totalStock() {
+        int total = 0;
+        for (BeeperExchangeManager.ZoneSpec z : zones) total += z.stock;
+        return total;
+    }
+
+    /**
+     * Inicializa el intercambio de beepers y registra subrutas y alternativas nuevas en el
+     * TrafficController (que ya debe tener la grilla del mundo). Es de preparación, antes
+     * de largar los robots.
+     */
+    public void apply() {
+        BeeperExchangeManager.get().init(zones);
+        TrafficController tc = TrafficController.get();
+        List<Subroute> srs = new ArrayList<>(subroutes.size());
+        for (SubrouteDecl d : subroutes) {
+            Subroute sr = new Subroute(d.id, d.threshold);
+            sr.addCells(d.streets, d.avenues, d.streets.length);
+            srs.add(sr);
+        }
+        tc.registerSubroutes(srs);
+        List<int[]> decisions = new ArrayList<>(alternates.size());
+        List<TrafficController.AlternateRouteSpec> specs = new ArrayList<>(alternates.size());
+        for (AlternateDecl d : alternates) {
+            decisions.add(new int[]{d.decisionStreet, d.decisionAvenue});
+            specs.add(new TrafficController.AlternateRouteSpec(d.path.points(), d.rejoinStreet, d.rejoinAvenue,
+                                                               d.triggers.points(), d.required));
+        }
+        tc.registerAlternateRoutes(decisions, specs);
+    }
+
+    // Planificador sobre world: las rutas (circulares) y cada alternativa desde su celda de
+    // decisión son los carriles
+    RoutePlanner planner(WorldModel world) {
+        RoutePlanner planner = new RoutePlanner(world);
+        for (CompiledRoute r : routes.values()) planner.addLane(r, true);
+        for (AlternateDecl d : alternates) {
+            Cells c = new Cells();
+            c.add(d.decisionStreet, d.decisionAvenue);
+            for (int i = 0; i < d.path.size; i++) c.add(d.path.streets[i], d.path.avenues[i]);
+            planner.addLane(CompiledRoute.compile(c.streets, c.avenues, c.size), false);
+        }
+        return planner;
+    }
+
+    /** Lector de una pasada: tokens sobre un buffer propio, con número de línea para los errores. */
+    private static final class Parser {
+        private static final int EOF = -1;
+
+        final String file;
+        private final File baseDir;
+        private final Reader in;
+        private final char[] buf = new char[1 << 16];
+        private int pos = 0;
+        private int len = 0;
+        private int line = 1;
+        private final StringBuilder word = new StringBuilder();
+
+        String world = null;
+        boolean dynamicRouting = false;
+        boolean cooperativeRouting = false;
+        int load = BeeperCargo.MAX_LOAD;
+        final Map<String, CompiledRoute> routes = new HashMap<>();
+        final List<SubrouteDecl> subroutes = new ArrayList<>();
+        final List<AlternateDecl> alternates = new ArrayList<>();
+        final List<BeeperExchangeManager.ZoneSpec> zones = new ArrayList<>();
+        final Cells spawns = new Cells();
+        CompiledRoute[] spawnRoutes = new CompiledRoute[16];
+        private final Cells scratch = new Cells();
+        // componentes de la última celda leída
+        private int cellStreet;
+        private int cellAvenue;
+
+        Parser(Reader in, String file, File baseDir) {
+            this.in = in;
+            this.file = file;
+            this.baseDir = baseDir;
+        }
+
+        void parse() throws IOException {
+            AlternateDecl current = null;
+            while (skipBlanks() != EOF) {
+                int at = line;
+                String kw = word();
+                switch (kw) {
+                    case "world":
+                        if (world != null) throw error(at, "world repetido");
+                        world = word();
+                        if (baseDir != null && !new File(world).isAbsolute()) world = new File(baseDir, world).getPath();
+                        break;
+                    case "route": {
+                        String name = word();
+                        if (routes.containsKey(name)) throw error(at, "ruta repetida: " + name);
+                        readCells(scratch, true);
+                        if (scratch.size == 0) throw error(at, "ruta vacía: " + name);
+                        routes.put(name, CompiledRoute.compile(scratch.streets, scratch.avenues, scratch.size));
+                        break;
+                    }
+                    case "subroute": {
+                        String id = word();
+                        int threshold = number();
+                        if (threshold <= 0) throw error(at, "umbral inválido en subruta " + id);
+                        readCells(scratch, false);
+                        subroutes.add(new SubrouteDecl(id, threshold,
+                                Arrays.copyOf(scratch.streets, scratch.size), Arrays.copyOf(scratch.avenues, scratch.size)));
+                        break;
+                    }
+                    case "alternate": {
+                        cell();
+                        int ds = cellStreet, da = cellAvenue;
+                        cell();
+                        current = new AlternateDecl(ds, da, cellStreet, cellAvenue, number());
+                        alternates.add(current);
+                        break;
+                    }
+                    case "triggers":
+                        if (current == null) throw error(at, "triggers sin alternate");
+                        readCells(current.triggers, false);
+                        break;
+                    case "path":
+                        if (current == null) throw error(at, "path sin alternate");
+                        readCells(current.path, true);
+                        break;
+                    case "zone": {
+                        String name = word();
+                        cell();
+                        int os = cellStreet, oa = cellAvenue;
+                        int stock = number();
+                        cell();
+                        zones.add(new BeeperExchangeManager.ZoneSpec(name, os, oa, stock, cellStreet, cellAvenue));
+                        break;
+                    }
+                    case "spawn": {
+                        String name = word();
+                        CompiledRoute route = routes.get(name);
+                        if (route == null) throw error(at, "ruta no declarada: " + name);
+                        int from = spawns.size;
+                        readCells(spawns, false);
+                        if (spawnRoutes.length < spawns.size) {
+                            spawnRoutes = Arrays.copyOf(spawnRoutes, Math.max(spawns.size, spawnRoutes.length * 2));
+                        }
+                        Arrays.fill(spawnRoutes, from, spawns.size, route);
+                        break;
+                    }
+                    case "load":
+                        load = number();
+                        if (load <= 0) throw error(at, "carga inválida: " + load);
+                        break;
+                    case "routing": {
+                        String mode = word();
+                        if (!mode.equals("static") && !mode.equals("dynamic") && !mode.equals("cooperative")) {
+                            throw error(at, "routing inválido: " + mode);
+                        }
+                        cooperativeRouting = mode.equals("cooperative");
+                        dynamicRouting = cooperativeRouting || mode.equals("dynamic");
+                        break;
+                    }
+                    default:
+                        throw error(at, "palabra clave desconocida: " + kw);
+                }
+            }
+            for (AlternateDecl d : alternates) {
+                if (d.path.size == 0) throw error(line, "alternate " + d.decisionStreet + "," + d.decisionAvenue + " sin path");
+            }
+            checkSpawnsUnique();
+        }
+
+        // Dos robots no pueden salir de la misma celda
+        private void checkSpawnsUnique() throws IOException {
+            long[] keys = new long[spawns.size];
+            for (int i = 0; i < keys.length; i++) keys[i] = (((long) spawns.streets[i]) << 32) | (spawns.avenues[i] & 0xffffffffL);
+            Arrays.sort(keys);
+            for (int i = 1; i < keys.length; i++) {
+                if (keys[i] == keys[i - 1]) {
+                    throw error(line, "dos robots salen de " + (keys[i] >> 32) + "," + (int) keys[i]);
+                }
+            }
+        }
+
+        // Celdas y tramos hasta la próxima palabra clave; straight exige tramos rectos
+        private void readCells(Cells out, boolean straight) throws IOException {
+            if (out == scratch) scratch.size = 0;
+            int c;
+            while ((c = skipBlanks()) != EOF && isDigit(c)) {
+                int at = line;
+                cell();
+                int s1 = cellStreet, a1 = cellAvenue;
+                if (peek() != '.') {
+                    out.add(s1, a1);
+                    continue;
+                }
+                pos++;
+                if (next() != '.') throw error(at, "se esperaba '..'");
+                cell();
+                int s2 = cellStreet, a2 = cellAvenue;
+                if (straight && s1 != s2 && a1 != a2) {
+                    throw error(at, "tramo no recto: " + s1 + "," + a1 + ".." + s2 + "," + a2);
+                }
+                int ds = Integer.signum(s2 - s1);
+                int da = Integer.signum(a2 - a1);
+                for (int a = a1; ; a += da) {
+                    for (int s = s1; ; s += ds) {
+                        out.add(s, a);
+                        if (s == s2) break;
+                    }
+                    if (a == a2) break;
+                }
+            }
+        }
+
+        private void cell() throws IOException {
+            if (!isDigit(skipBlanks())) throw error(line, "se esperaba una celda street,avenue");
+            cellStreet = digits();
+            if (next() != ',') throw error(line, "se esperaba ',' en la celda");
+            cellAvenue = digits();
+        }
+
+        private int number() throws IOException {
+            if (!isDigit(skipBlanks())) throw error(line, "se esperaba un número");
+            int n = digits();
+            int c = peek();
+            if (c != EOF && !isBlank(c) && c != '#') throw error(line, "número inválido");
+            return n;
+        }
+
+        private int digits() throws IOException {
+            int c = peek();
+            if (!isDigit(c)) throw error(line, "se esperaba un número");
+            int n = 0;
+            while (isDigit(c = peek())) {
+                n = n * 10 + (c - '0');
+                if (n < 0) throw error(line, "número demasiado grande");
+                pos++;
+            }
+            return n;
+        }
+
+        private String word() throws IOException {
+            int c = skipBlanks();
+            if (c == EOF) throw error(line, "fin de archivo inesperado");
+            word.setLength(0);
+            while ((c = peek()) != EOF && !isBlank(c) && c != '#') {
+                word.append((char) c);
+                pos++;
+            }
+            return word.toString();
+        }
+
+        // Salta espacios, saltos de línea y comentarios; devuelve el próximo char sin consumirlo
+        private int skipBlanks() throws IOException {
+            while (true) {
+                int c = peek();
+                if (c == '#') {
+                    while ((c = peek()) != EOF && c != '\n') pos++;
+                } else if (isBlank(c)) {
+                    if (c == '\n') line++;
+                    pos++;
+                } else {
+                    return c;
+                }
+            }
+        }
+
+        private int peek() throws IOException {
+            if (pos == len) {
+                len = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (len <= 0) {
+                    len = 0;
+                    return EOF;
+                }
+            }
+            return buf[pos];
+        }
+
+        private int next() throws IOException {
+            int c = peek();
+            if (c != EOF) pos++;
+            return c;
+        }
+
+        private static boolean isDigit(int c) { return c >= '0' && c <= '9'; }
+        private static boolean isBlank(int c) { return c == ' ' || c == '\t' || c == '\n' || c == '\r'; }
+
+        private IOException error(int at, String msg) {
+            return new IOException(file + ":" + at + ": " + msg);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class ScenarioTest
+{
+	private static Scenario parse(String text) throws IOException
+	{	return Scenario.parse(new StringReader(text), "test.scn", null);
+	}
+
+	@Test
+	public void testRaceScenario() throws Exception
+	{	Scenario s = Scenario.load(Scenario.DEFAULT_FILE);
+		assertEquals(new File("race.kwld").getAbsolutePath(), s.getWorld());
+		assertEquals(56, s.spawnCount());
+		assertEquals(1000, s.totalStock());
+		assertEquals(2, s.subrouteCount());
+		assertEquals(2, s.alternateCount());
+		CompiledRoute main = s.route("main");
+		assertSame(main, s.spawnRoute(0));
+		assertEquals(0, main.indexOf(2, 7));
+		assertEquals(2, main.streetAt(main.indexOf(2, 7)));
+		assertEquals(7, main.avenueAt(main.indexOf(2, 7)));
+		// rectángulo avenida por avenida: (1,1) (2,1) (3,1) (4,1) (1,2) ...
+		assertEquals(2, s.spawnStreet(1));
+		assertEquals(1, s.spawnAvenue(1));
+		assertEquals(1, s.spawnStreet(4));
+		assertEquals(2, s.spawnAvenue(4));
+
+		TrafficController.get().reset(21, 31);
+		s.apply();
+		assertEquals("S1", TrafficController.get().findContainingSubroute(7, 30).getId());
+		assertEquals("S2", TrafficController.get().findContainingSubroute(1, 18).getId());
+		assertNull(TrafficController.get().findContainingSubroute(1, 22));
+		assertNotNull(BeeperExchangeManager.get().originAt(11, 23));
+	}
+
+	@Test
+	public void testRangesAndComments() throws Exception
+	{	Scenario s = parse("route r 1,1..1,3   # tramo\n  2,3..2,1 2,1\n"
+				+ "subroute X 2 1,2..1,3\n"
+				+ "alternate 1,1 2,1 1 triggers 1,2 path 3,1..3,3\n"
+				+ "zone Z 1,1 7 2,3\n"
+				+ "spawn r 1,1..2,2\n"
+				+ "routing dynamic\n");
+		CompiledRoute r = s.route("r");
+		assertEquals(7, r.size());
+		assertEquals(3, r.avenueAt(2));
+		assertEquals(2, r.streetAt(3));
+		assertEquals(1, r.avenueAt(6)); // el punto repetido se conserva
+		assertEquals(4, s.spawnCount());
+		assertEquals(7, s.totalStock());
+		assertNull(s.getWorld());
+		assertTrue(s.isDynamicRouting());
+		assertFalse(s.isCooperativeRouting());
+		assertTrue(parse("routing cooperative\n").isCooperativeRouting());
+		assertTrue(parse("routing cooperative\n").isDynamicRouting());
+		assertFalse(Scenario.load(Scenario.DEFAULT_FILE).isDynamicRouting());
+	}
+
+	@Test
+	public void testErrorsNameTheLine() throws Exception
+	{	String[] bad = {
+			"route r 1,1..2,2\n",                 // tramo no recto en una ruta
+			"route r 1,1\nspawn q 1,1\n",         // ruta no declarada
+			"route r 1,1\nspawn r 1,1 1,1\n",     // dos robots en la misma celda
+			"triggers 1,1\n",                     // triggers sin alternate
+			"route r 1,1\n\nfoo 1\n",             // palabra clave desconocida
+			"zone A 1,9 x 12,23\n",
+			"routing fast\n",
+		};
+		for (String text : bad) {
+			try {
+				parse(text);
+				fail("debía fallar: " + text);
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("test.scn:"));
+			}
+		}
+		try {
+			parse("route r 1,1\n\nfoo 1\n");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("test.scn:3:"));
+		}
+	}
+
+	@Test
+	public void testLargeScenario() throws Exception
+	{	StringBuilder sb = new StringBuilder("world big.kwld\n");
+		for (int k = 1; k <= 1000; k++) {
+			sb.append("route r").append(k).append(' ').append(k).append(",1..").append(k).append(",200 ")
+			  .append(k + 1).append(",200..").append(k + 1).append(",1\n");
+		}
+		for (int k = 1; k <= 1000; k++) {
+			sb.append("spawn r").append(k).append(' ').append(k).append(",1..").append(k).append(",10\n");
+		}
+		Scenario s = parse(sb.toString());
+		assertEquals(1000, s.routeCount());
+		assertEquals(10000, s.spawnCount());
+		assertEquals(400, s.route("r500").size());
+		assertSame(s.route("r999"), s.spawnRoute(9985));
+	}
+}
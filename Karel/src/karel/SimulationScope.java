@@ -0,0 +1,38 @@
+package karel;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Estado aislado de una corrida: su propio TrafficController, BeeperExchangeManager y
+ * Metrics en lugar de los globales.
+ * - Se liga al hilo que ejecuta call(); mientras dura, los get() de esas clases devuelven
+ *   los de la corrida
+ * - Pensado para EventSimulation (un solo hilo por corrida): varias corren a la vez en un
+ *   pool sin pisarse (ParameterSweep). El modo con hilos sigue usando los globales
+ * - Hasta que alguien abre un scope, get() ni consulta el ThreadLocal
+ */
+final class SimulationScope {
+    private static final ThreadLocal<SimulationScope> CURRENT = new ThreadLocal<>();
+    private static volatile boolean used = false;
+
+    final TrafficController traffic = new TrafficController();
+    final BeeperExchangeManager exchange = new BeeperExchangeManager();
+    final Metrics metrics = new Metrics();
+
+    // Scope del hilo actual, o null si corre sobre los globales
+    static SimulationScope current() {
+        return used ? CURRENT.get() : null;
+    }
+
+    /** Ejecuta body en este hilo con el estado de la corrida; los scopes no se anidan. */
+    <T> T call(Callable<T> body) throws Exception {
+        if (CURRENT.get() != null) throw new IllegalStateException("Ya hay una corrida aislada en este hilo");
+        used = true;
+        CURRENT.set(this);
+        try {
+            return body.call();
+        } finally {
+            CURRENT.remove();
+        }
+    }
+}
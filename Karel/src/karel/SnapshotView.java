@@ -0,0 +1,227 @@
+package karel;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
+
+import kareltherobot.Directions;
+
+/**
+ * Vista de la carrera desacoplada de la simulación:
+ * - Los robots corren sobre un WorldModel a toda velocidad y sólo publican su estado en
+ *   RobotStates; nadie los frena para dibujar
+ * - Un único hilo de render toma una copia (snapshot) de ese estado y de los beepers a fps
+ *   cuadros por segundo, dibuja el cuadro en una imagen fuera de pantalla y la intercambia
+ *   con la visible; Swing sólo copia la imagen. Si un cuadro se atrasa, se saltea
+ * - Muros y grilla se dibujan una vez por tamaño de ventana
+ * La vista es un muestreo: entre dos cuadros un robot puede haber dado varios pasos.
+ */
+final class SnapshotView implements Directions {
+    static final int DEFAULT_FPS = 30;
+    private static final int HUD_HEIGHT = 20;
+    private static final int MARGIN = 8;
+    private static final Color STREET = new Color(225, 225, 225);
+    private static final Color WALL = new Color(40, 40, 40);
+
+    private final WorldModel world;
+    private final RobotStates states;
+    private final long periodNanos;
+    private final long[] snapshot;
+
+    private final Object frameLock = new Object();
+    private BufferedImage front;   // la que pinta Swing (bajo frameLock)
+    private BufferedImage back;    // la que dibuja el hilo de render
+    private BufferedImage background;
+    private JPanel panel;
+    private volatile boolean running = false;
+    private long frames = 0;
+    private double measuredFps = 0;
+
+    SnapshotView(WorldModel world, RobotStates states, int fps) {
+        if (fps <= 0) throw new IllegalArgumentException("fps inválido: " + fps);
+        this.world = world;
+        this.states = states;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        this.snapshot = new long[states.size()];
+    }
+
+    /** Abre la ventana y arranca el hilo de render. */
+    void start(final String title) {
+        SwingUtilities.invokeLater(() -> {
+            panel = new JPanel() {
+                @Override
+                protected void paintComponent(Graphics g) {
+                    super.paintComponent(g);
+                    synchronized (frameLock) {
+                        if (front != null) g.drawImage(front, 0, 0, null);
+                    }
+                }
+            };
+            int cell = Math.max(8, Math.min(28, 900 / Math.max(world.getStreets(), world.getAvenues())));
+            panel.setPreferredSize(new Dimension(world.getAvenues() * cell + 2 * MARGIN,
+                                                 world.getStreets() * cell + 2 * MARGIN + HUD_HEIGHT));
+            JFrame frame = new JFrame(title);
+            frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            frame.add(panel);
+            frame.pack();
+            frame.setVisible(true);
+        });
+        running = true;
+        Thread t = new Thread(this::renderLoop, "SnapshotView");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    // Ritmo fijo: el cuadro k sale en start + k*periodo; si uno se atrasa se saltean los perdidos
+    private void renderLoop() {
+        long next = System.nanoTime();
+        long windowStart = next;
+        long windowFrames = 0;
+        while (running) {
+            JPanel p = panel;
+            if (p != null && p.getWidth() > 0 && p.getHeight() > 0) {
+                if (back == null || back.getWidth() != p.getWidth() || back.getHeight() != p.getHeight()) {
+                    back = new BufferedImage(p.getWidth(), p.getHeight(), BufferedImage.TYPE_INT_RGB);
+                }
+                render(back);
+                synchronized (frameLock) {
+                    BufferedImage shown = front;
+                    front = back;
+                    back = shown;
+                }
+                p.repaint();
+                frames++;
+                windowFrames++;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                measuredFps = windowFrames * 1e9 / (now - windowStart);
+                windowStart = now;
+                windowFrames = 0;
+            }
+            next += periodNanos;
+            if (next < now) next = now + periodNanos - (now - next) % periodNanos;
+            LockSupport.parkNanos(next - now);
+        }
+    }
+
+    /** Dibuja en image un cuadro con el estado actual (una copia tomada al empezar). */
+    void render(BufferedImage image) {
+        states.snapshot(snapshot);
+        int w = image.getWidth(), h = image.getHeight();
+        int cell = cellSize(w, h);
+        if (background == null || background.getWidth() != w || background.getHeight() != h) {
+            background = drawBackground(w, h, cell);
+        }
+        Graphics2D g = image.createGraphics();
+        try {
+            g.drawImage(background, 0, 0, null);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            drawBeepers(g, cell);
+            int carried = drawRobots(g, cell);
+            g.setColor(Color.BLACK);
+            g.drawString(String.format("robots %d   beepers en viaje %d   %.0f fps   cuadro %d",
+                    snapshot.length, carried, measuredFps, frames), MARGIN, HUD_HEIGHT - 5);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private int cellSize(int w, int h) {
+        int byWidth = (w - 2 * MARGIN) / world.getAvenues();
+        int byHeight = (h - 2 * MARGIN - HUD_HEIGHT) / world.getStreets();
+        return Math.max(4, Math.min(byWidth, byHeight));
+    }
+
+    // Esquina superior izquierda de la celda (street, avenue); la calle 1 queda abajo
+    private int x(int avenue, int cell) { return MARGIN + (avenue - 1) * cell; }
+    private int y(int street, int cell) { return MARGIN + HUD_HEIGHT + (world.getStreets() - street) * cell; }
+
+    private BufferedImage drawBackground(int w, int h, int cell) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            int streets = world.getStreets(), avenues = world.getAvenues();
+            g.setColor(STREET);
+            for (int s = 1; s <= streets; s++) g.drawLine(x(1, cell), y(s, cell) + cell / 2, x(avenues + 1, cell), y(s, cell) + cell / 2);
+            for (int a = 1; a <= avenues; a++) g.drawLine(x(a, cell) + cell / 2, y(streets, cell), x(a, cell) + cell / 2, y(0, cell));
+            g.setColor(WALL);
+            g.setStroke(new BasicStroke(Math.max(2, cell / 6)));
+            for (int s = 1; s <= streets; s++) {
+                for (int a = 1; a <= avenues; a++) {
+                    if (s < streets && !world.isClear(s, a, North)) g.drawLine(x(a, cell), y(s, cell), x(a + 1, cell), y(s, cell));
+                    if (a < avenues && !world.isClear(s, a, East)) g.drawLine(x(a + 1, cell), y(s, cell), x(a + 1, cell), y(s - 1, cell));
+                }
+            }
+            g.drawRect(x(1, cell), y(streets, cell), avenues * cell, streets * cell);
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    private void drawBeepers(Graphics2D g, int cell) {
+        int r = Math.max(2, cell / 3);
+        for (int s = 1; s <= world.getStreets(); s++) {
+            for (int a = 1; a <= world.getAvenues(); a++) {
+                int n = world.beepersAt(s, a);
+                if (n == 0) continue;
+                int cx = x(a, cell) + cell / 2, cy = y(s, cell) + cell / 2;
+                g.setColor(Color.DARK_GRAY);
+                g.fillOval(cx - r, cy - r, 2 * r, 2 * r);
+                if (cell >= 16) {
+                    g.setColor(Color.WHITE);
+                    g.drawString(n < 0 ? "∞" : Integer.toString(n), cx - r + 1, cy + 4);
+                }
+            }
+        }
+    }
+
+    // Dibuja cada robot del snapshot; devuelve cuántos beepers llevan entre todos
+    private int drawRobots(Graphics2D g, int cell) {
+        int carried = 0;
+        int r = Math.max(2, cell * 2 / 5);
+        for (int i = 0; i < snapshot.length; i++) {
+            long st = snapshot[i];
+            if (!RobotStates.present(st)) continue;
+            int b = RobotStates.beepers(st);
+            carried += b;
+            int cx = x(RobotStates.avenue(st), cell) + cell / 2;
+            int cy = y(RobotStates.street(st), cell) + cell / 2;
+            g.setColor(colorOf(i + 1));
+            g.fillOval(cx - r, cy - r, 2 * r, 2 * r);
+            Directions.Direction d = RobotStates.direction(st);
+            int dx = d == East ? r : d == West ? -r : 0;
+            int dy = d == North ? -r : d == South ? r : 0;
+            g.setColor(RobotStates.running(st) ? Color.BLACK : Color.RED);
+            g.drawLine(cx, cy, cx + dx, cy + dy);
+            if (b > 0 && cell >= 16) {
+                g.setColor(Color.WHITE);
+                g.drawString(Integer.toString(b), cx - 3, cy + 4);
+            }
+        }
+        return carried;
+    }
+
+    // Mismo color que el robot gráfico número robotNumber
+    static Color colorOf(int robotNumber) {
+        return new Color((50 * robotNumber) % 256, (80 * robotNumber) % 256, (120 * robotNumber) % 256);
+    }
+}
@@ -0,0 +1,54 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+
+import kareltherobot.Directions;
+import org.junit.Test;
+
+public class SnapshotViewTest implements Directions
+{
+	@Test
+	public void testStatesRoundTrip()
+	{	long st = RobotStates.pack(17, 301, West, 4, true);
+		assertEquals(17, RobotStates.street(st));
+		assertEquals(301, RobotStates.avenue(st));
+		assertEquals(West, RobotStates.direction(st));
+		assertEquals(4, RobotStates.beepers(st));
+		assertTrue(RobotStates.running(st));
+		assertFalse(RobotStates.running(RobotStates.pack(1, 1, North, 0, false)));
+	}
+
+	@Test
+	public void testBodyPublishesEachAction()
+	{	WorldModel world = new WorldModel(5, 5);
+		world.placeBeepers(2, 3, 1);
+		RobotStates states = new RobotStates(2);
+		HeadlessBody body = new HeadlessBody(world, 2, 2, East, 0, states, 1);
+		long[] snap = new long[2];
+		states.snapshot(snap);
+		assertFalse(RobotStates.present(snap[0]));
+		assertEquals(2, RobotStates.avenue(snap[1]));
+		body.move();
+		body.pickBeeper();
+		body.turnLeft();
+		states.snapshot(snap);
+		assertEquals(3, RobotStates.avenue(snap[1]));
+		assertEquals(1, RobotStates.beepers(snap[1]));
+		assertEquals(North, RobotStates.direction(snap[1]));
+	}
+
+	@Test
+	public void testRenderDrawsRobotInItsCell()
+	{	WorldModel world = new WorldModel(4, 6);
+		RobotStates states = new RobotStates(3);
+		new HeadlessBody(world, 3, 5, East, 0, states, 2);
+		SnapshotView view = new SnapshotView(world, states, 30);
+		BufferedImage img = new BufferedImage(6 * 20 + 16, 4 * 20 + 16 + 20, BufferedImage.TYPE_INT_RGB);
+		view.render(img);
+		// celda de 20 px: (3,5) empieza en x = 8 + 4*20, y = 8 + 20 + (4-3)*20; el centro es del robot 3
+		assertEquals(SnapshotView.colorOf(3).getRGB(), img.getRGB(8 + 80 + 6, 28 + 20 + 10));
+		assertEquals(java.awt.Color.WHITE.getRGB(), img.getRGB(8 + 20 + 5, 28 + 60 + 5));
+	}
+}
@@ -1,19 +1,33 @@
 package karel;
 
-import java.util.ArrayList;
-import java.util.EnumMap;
-import java.util.List;
-import java.util.Map;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Controla el acceso de robots a segmentos de ruta restringidos:
  * - Permite hasta 'threshold' robots simultáneos en la misma dirección
- * - Implementa fairness direccional para evitar starvation
+ * - Implementa fairness direccional para evitar starvation: al vaciarse prefiere la dirección
+ *   opuesta a la del último batch, y una dirección que esperó mientras arrancaban
+ *   MAX_PASSED_OVER batches de otras va antes que todas (con tres o más entradas, como S2,
+ *   "la opuesta" sola puede postergar siempre a la misma)
  * - Sistema de batches: se cierra al llenarse hasta que todos salgan
+ * - Usa ReentrantLock/Condition (no monitores) para no fijar hilos virtuales al carrier
+ * - Colas FIFO de tickets por dirección: al vaciarse la subruta sólo despiertan los
+ *   admitidos en el próximo batch (hasta 'threshold'), no todos los que esperan
+ * - Publica cola, batches, esperas y timeouts en Metrics.SubrouteStats
  */
 public final class Subroute {
     private final String id;
-    private final List<Long> cells = new ArrayList<>();
+    // celdas en orden de recorrido y copia ordenada para contains() por búsqueda binaria (sin boxing)
+    private long[] cells = new long[0];
+    private long[] sortedCells = new long[0];
     private final int threshold;
 
     private int count = 0;
@@ -22,97 +36,392 @@ public final class Subroute {
     private FlowDir flowDir = null;
     private FlowDir lastBatchDir = null;
     private FlowDir preferredDir = null;
+    // batches que arrancaron en otra dirección mientras ésta esperaba, por dirección
+    static final int MAX_PASSED_OVER = 3;
+    private final int[] passedOver = new int[FlowDir.values().length];
 
-    private final Map<FlowDir,Integer> waiting = new EnumMap<>(FlowDir.class);
+    // Decisión de TrafficController sobre un robot que espera (resolviendo un deadlock)
+    static final int UNDECIDED = 0;
+    static final int FORCED = 1;
+    static final int YIELDED = 2;
 
+    // Un robot estacionado esperando admisión; sólo se despierta su propia Condition
+    private static final class Ticket {
+        final Condition admitted;
+        final AtomicInteger verdict;
+        boolean granted = false;
+
+        Ticket(Condition admitted, AtomicInteger verdict) {
+            this.admitted = admitted;
+            this.verdict = verdict;
+        }
+    }
+
+    // Colas FIFO de tickets por dirección (índice FlowDir.ordinal(); el último es "sin dirección")
+    private static final int ANY = FlowDir.values().length;
+    private final ArrayDeque<Ticket>[] queues;
+    // esperando sin hilo estacionado (tryEnterNow del motor de eventos), por dirección
+    private final int[] passive = new int[ANY];
+    private int waitingTotal = 0;
+    private int batchSize = 0;
+    private final Metrics.SubrouteStats stats = new Metrics.SubrouteStats();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public Subroute(String id, int threshold) {
         this.id = id;
         this.threshold = threshold;
-        for (FlowDir d : FlowDir.values()) waiting.put(d, 0);
+        this.queues = new ArrayDeque[ANY + 1];
+        for (int i = 0; i < queues.length; i++) queues[i] = new ArrayDeque<>();
     }
 
     public String getId() { return id; }
 
-    public void addCell(int street, int avenue) { cells.add(key(street, avenue)); }
+    // Las celdas se agregan al configurar, antes de registrar la subruta en el TrafficController
+    public void addCell(int street, int avenue) {
+        addCells(new int[]{street}, new int[]{avenue}, 1);
+    }
 
-    public boolean contains(int street, int avenue) { return cells.contains(key(street, avenue)); }
+    // Agrega n celdas de una vez (escenarios grandes): un solo copiado y un solo ordenamiento
+    public void addCells(int[] streets, int[] avenues, int n) {
+        int from = cells.length;
+        cells = Arrays.copyOf(cells, from + n);
+        for (int i = 0; i < n; i++) cells[from + i] = key(streets[i], avenues[i]);
+        sortedCells = cells.clone();
+        Arrays.sort(sortedCells);
+    }
+
+    public boolean contains(int street, int avenue) { return Arrays.binarySearch(sortedCells, key(street, avenue)) >= 0; }
+
+    public boolean isEntryCell(int street, int avenue) { return cells.length > 0 && cells[0] == key(street, avenue); }
+    public boolean isExitCell (int street, int avenue) { return cells.length > 0 && cells[cells.length-1] == key(street, avenue); }
 
-    public boolean isEntryCell(int street, int avenue) { return !cells.isEmpty() && cells.get(0) == key(street, avenue); }
-    public boolean isExitCell (int street, int avenue) { return !cells.isEmpty() && cells.get(cells.size()-1) == key(street, avenue); }
+    // Celdas en orden de recorrido, codificadas como (street << 32 | avenue)
+    long[] cellKeys() { return cells.clone(); }
+    // Sin copiar (recorrido del grafo de espera): la k-ésima celda en orden de recorrido
+    int cellCount() { return cells.length; }
+    long cellKey(int k) { return cells[k]; }
 
-    public synchronized boolean tryEnter(long timeoutMillis) throws InterruptedException {
+    Metrics.SubrouteStats stats() { return stats; }
+
+    private static int slot(FlowDir dir) { return dir == null ? ANY : dir.ordinal(); }
+
+    // Robots esperando en una dirección: estacionados en la cola más los del motor de eventos
+    private int waiting(FlowDir dir) {
+        return queues[dir.ordinal()].size() + passive[dir.ordinal()];
+    }
+
+    private void waitingChanged(int delta) {
+        waitingTotal += delta;
+        stats.queueDepth = waitingTotal;
+    }
+
+    public boolean tryEnter(long timeoutMillis) throws InterruptedException {
         return tryEnterDirectional(null, timeoutMillis);
     }
-    public synchronized boolean tryEnterDirectional(FlowDir dir, long timeoutMillis) throws InterruptedException {
-        long deadline = System.currentTimeMillis() + timeoutMillis;
-        boolean registeredWaiting = false;
+    public boolean tryEnterDirectional(FlowDir dir, long timeoutMillis) throws InterruptedException {
+        return tryEnterDirectional(dir, timeoutMillis, null);
+    }
 
-        while (true) {
-            if (count == 0) {
-                // Subruta vacía: decidir si este hilo puede iniciar batch
-                if (preferredDir != null && dir != null && dir != preferredDir) {
-                    // Debe esperar su turno (fairness)
-                } else {
-                    // Inicia nuevo batch
-                    flowDir = dir; // fija dirección (puede ser null si no se pasó)
-                    lastBatchDir = dir; // recordar para la próxima rotación
-                    closedBatch = false;
-                    count = 1;
-                    if (registeredWaiting && dir != null) {
-                        waiting.put(dir, waiting.get(dir) - 1);
-                        registeredWaiting = false;
-                    }
-                    if (count >= threshold) closedBatch = true;
-                    return true;
+    /**
+     * Igual que tryEnterDirectional, pero atento a 'verdict' mientras espera: con FORCED
+     * entra aunque el batch esté cerrado y con YIELDED se retira (devuelve false).
+     */
+    boolean tryEnterDirectional(FlowDir dir, long timeoutMillis, AtomicInteger verdict) throws InterruptedException {
+        lock.lock();
+        try {
+            return enterDirectional(dir, timeoutMillis, verdict);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admisión forzada de quien espera con 'verdict' (rompe un ciclo de esperas). Sólo con
+     * robots adentro y en el sentido del batch, como forceEnterNow. false si no corresponde
+     * o si ya se decidió otra cosa.
+     */
+    boolean forceAdmit(AtomicInteger verdict, FlowDir dir) {
+        lock.lock();
+        try {
+            if (count == 0 || against(dir)) return false;
+            if (!verdict.compareAndSet(UNDECIDED, FORCED)) return false;
+            signal(verdict);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admisión forzada en contra del batch, para un anillo lleno de esperas que pasa por la
+     * subruta: 'leaving' robots del anillo salen de ella en el mismo avance en que éste
+     * entra. El batch pasa a su sentido y se cierra hasta vaciarse. false si el anillo no
+     * sale de la subruta o si ya se decidió otra cosa.
+     */
+    boolean forceAdmitTurning(AtomicInteger verdict, FlowDir dir, int leaving) {
+        lock.lock();
+        try {
+            if (count == 0 || leaving == 0) return false;
+            if (!verdict.compareAndSet(UNDECIDED, FORCED)) return false;
+            flowDir = dir;
+            signal(verdict);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Pide a quien espera con 'verdict' que se retire para ceder el paso
+    boolean yieldWaiting(AtomicInteger verdict) {
+        lock.lock();
+        try {
+            if (!verdict.compareAndSet(UNDECIDED, YIELDED)) return false;
+            signal(verdict);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Despierta sólo al ticket de ese robot (si ya está en una cola)
+    private void signal(AtomicInteger verdict) {
+        for (ArrayDeque<Ticket> q : queues) {
+            for (Ticket t : q) {
+                if (t.verdict == verdict) {
+                    t.admitted.signal();
+                    return;
                 }
-            } else {
-                // Hay batch activo
-                if (!closedBatch && (flowDir == null || flowDir == dir)) {
-                    // Mismo sentido y hay cupo
-                    count++;
-                    if (registeredWaiting && dir != null) {
-                        waiting.put(dir, waiting.get(dir) - 1);
-                        registeredWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Sin cola en su dirección y con lugar, entra directo. Si no, saca un ticket al final
+     * de la cola FIFO de su dirección y duerme en su propia Condition hasta que
+     * dispatch() lo admita en un batch, lo fuercen o venza el plazo (nanoTime).
+     */
+    private boolean enterDirectional(FlowDir dir, long timeoutMillis, AtomicInteger verdict) throws InterruptedException {
+        ArrayDeque<Ticket> queue = queues[slot(dir)];
+        if (queue.isEmpty() && admit(dir)) return true;
+
+        Ticket t = new Ticket(lock.newCondition(), verdict);
+        queue.addLast(t);
+        waitingChanged(+1);
+        long waitStart = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (!t.granted) {
+                int v = t.verdict == null ? UNDECIDED : t.verdict.get();
+                if (v == FORCED) {
+                    if (admitOverCapacity(dir)) {
+                        leave(queue, t);
+                        break;
                     }
-                    if (count >= threshold) closedBatch = true;
-                    return true;
+                    // se vació antes de que despertara: vuelve a esperar su turno como los demás
+                    t.verdict.compareAndSet(FORCED, UNDECIDED);
+                } else if (v == YIELDED) {
+                    // cede el paso: se retira sin contar como timeout
+                    leave(queue, t);
+                    stats.waitNanos.record(System.nanoTime() - waitStart);
+                    return false;
                 }
-                // Caso contrario: batch lleno, cerrado o dirección distinta -> esperar
+                if (remaining <= 0) {
+                    leave(queue, t);
+                    stats.waitNanos.record(System.nanoTime() - waitStart);
+                    stats.timeouts.increment();
+                    return false;
+                }
+                remaining = t.admitted.awaitNanos(remaining);
             }
+        } catch (InterruptedException e) {
+            // si justo lo admitieron, devolver el lugar antes de propagar la interrupción
+            if (t.granted) exitLocked(); else leave(queue, t);
+            throw e;
+        }
+        stats.waitNanos.record(System.nanoTime() - waitStart);
+        return true;
+    }
 
-            if (!registeredWaiting && dir != null) {
-                waiting.put(dir, waiting.get(dir) + 1);
-                registeredWaiting = true;
-            }
+    // Un ticket abandona la cola sin ser admitido
+    private void leave(ArrayDeque<Ticket> queue, Ticket t) {
+        queue.remove(t);
+        waitingChanged(-1);
+        if (count == 0) dispatch();
+    }
 
-            long remaining = deadline - System.currentTimeMillis();
-            if (remaining <= 0) {
-                if (registeredWaiting && dir != null) {
-                    waiting.put(dir, waiting.get(dir) - 1);
+    /**
+     * Variante no bloqueante (motor de eventos discretos): intenta entrar sin esperar.
+     * Si no puede, queda registrado como esperando en su dirección; el llamador
+     * reintenta con alreadyWaiting = true o se retira con withdraw(dir).
+     */
+    public boolean tryEnterNow(FlowDir dir, boolean alreadyWaiting) {
+        lock.lock();
+        try {
+            if (admit(dir)) {
+                if (alreadyWaiting && dir != null) {
+                    passive[dir.ordinal()]--;
+                    waitingChanged(-1);
                 }
+                return true;
+            }
+            if (!alreadyWaiting && dir != null) {
+                passive[dir.ordinal()]++;
+                waitingChanged(+1);
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Motor de eventos: admite a un robot registrado por tryEnterNow aunque el batch esté
+     * cerrado (rompe un ciclo de esperas, como forceAdmit en el modo con hilos). false si
+     * está vacía o va en otro sentido.
+     */
+    boolean forceEnterNow(FlowDir dir) {
+        lock.lock();
+        try {
+            if (!admitOverCapacity(dir)) return false;
+            if (dir != null && passive[dir.ordinal()] > 0) {
+                passive[dir.ordinal()]--;
+                waitingChanged(-1);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Retira a un robot registrado por tryEnterNow que abandona la espera (cuenta como timeout)
+    public void withdraw(FlowDir dir) {
+        lock.lock();
+        try {
+            stats.timeouts.increment();
+            if (dir != null && passive[dir.ordinal()] > 0) {
+                passive[dir.ordinal()]--;
+                waitingChanged(-1);
+            }
+            if (count == 0) dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reglas de admisión: inicia batch si la subruta está vacía (respetando fairness)
+    // o se suma al batch abierto en la misma dirección
+    private boolean admit(FlowDir dir) {
+        if (count == 0) {
+            // Subruta vacía: decidir si este hilo puede iniciar batch
+            if (preferredDir != null && dir != null && dir != preferredDir) {
+                // Debe esperar su turno (fairness)
                 return false;
             }
-            wait(remaining);
+            startBatch(dir);
+            count = 1;
+            batchSize = 1;
+            stats.entries.increment();
+            if (count >= threshold) closedBatch = true;
+            return true;
+        }
+        // Hay batch activo
+        if (!closedBatch && (flowDir == null || flowDir == dir)) {
+            // Mismo sentido y hay cupo
+            count++;
+            batchSize++;
+            stats.entries.increment();
+            if (count >= threshold) closedBatch = true;
+            return true;
         }
+        // Caso contrario: batch lleno, cerrado o dirección distinta -> esperar
+        return false;
+    }
+
+    private void startBatch(FlowDir dir) {
+        flowDir = dir; // fija dirección (puede ser null si no se pasó)
+        lastBatchDir = dir; // recordar para la próxima rotación
+        closedBatch = false;
+        for (FlowDir d : FlowDir.values()) {
+            if (d == dir) passedOver[d.ordinal()] = 0;
+            else if (waiting(d) > 0) passedOver[d.ordinal()]++;
+        }
+    }
+
+    // Uno en contra del batch quedaría de frente con los de adentro en un pasillo de doble mano
+    private boolean against(FlowDir dir) {
+        return flowDir != null && dir != null && flowDir != dir;
     }
 
-    public synchronized void exit() {
+    // Admisión forzada: se suma al batch actual aunque esté cerrado (sólo con robots dentro
+    // y en su mismo sentido)
+    private boolean admitOverCapacity(FlowDir dir) {
+        if (count == 0) return false; // vacía: que decida dispatch() por fairness
+        if (against(dir)) return false;
+        count++;
+        batchSize++;
+        stats.entries.increment();
+        closedBatch = true;
+        return true;
+    }
+
+    public void exit() {
+        lock.lock();
+        try {
+            exitLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void exitLocked() {
         if (count > 0) {
             count--;
             if (count == 0) {
+                stats.batches.increment();
+                stats.batchRobots.add(batchSize);
                 closedBatch = false;
+                flowDir = null;
                 FlowDir opp = opposite(lastBatchDir);
-                if (opp != null && waiting.get(opp) > 0) {
+                FlowDir starved = starvedWaiting();
+                if (starved != null) {
+                    preferredDir = starved;
+                } else if (opp != null && waiting(opp) > 0) {
                     preferredDir = opp;
                 } else {
                     preferredDir = pickAnyWaiting();
                 }
-                flowDir = null;
-                notifyAll();
+                dispatch();
             }
         }
     }
 
+    /**
+     * Con la subruta vacía, arma el próximo batch con los primeros tickets (FIFO) de
+     * preferredDir, hasta 'threshold', y despierta sólo a esos. Si la dirección
+     * preferida no tiene tickets estacionados (sólo esperas del motor de eventos),
+     * no admite a nadie: esos robots reintentan por su cuenta.
+     */
+    private void dispatch() {
+        if (count != 0) return;
+        if (preferredDir != null && waiting(preferredDir) == 0) preferredDir = pickAnyWaiting();
+        ArrayDeque<Ticket> queue = queues[slot(preferredDir)];
+        if (queue.isEmpty()) return;
+        startBatch(preferredDir);
+        batchSize = 0;
+        while (count < threshold && !queue.isEmpty()) {
+            Ticket t = queue.pollFirst();
+            t.granted = true;
+            count++;
+            batchSize++;
+            stats.entries.increment();
+            waitingChanged(-1);
+            t.admitted.signal();
+        }
+        if (count >= threshold) closedBatch = true;
+    }
+
     private FlowDir opposite(FlowDir d) {
         if (d == null) return null;
         switch (d) {
@@ -124,18 +433,128 @@ public final class Subroute {
         return null;
     }
 
+    // La dirección con espera que más batches quedó afuera, si llegó a MAX_PASSED_OVER
+    private FlowDir starvedWaiting() {
+        FlowDir best = null;
+        for (FlowDir d : FlowDir.values()) {
+            int n = passedOver[d.ordinal()];
+            if (waiting(d) > 0 && n >= MAX_PASSED_OVER && (best == null || n > passedOver[best.ordinal()])) best = d;
+        }
+        return best;
+    }
+
     private FlowDir pickAnyWaiting() {
         for (FlowDir d : FlowDir.values()) {
-            if (waiting.get(d) > 0) return d;
+            if (waiting(d) > 0) return d;
         }
         return null;
     }
 
-    public synchronized int getCount() { return count; }
-    public synchronized boolean isClosed() { return closedBatch; }
+    public int getCount() {
+        lock.lock();
+        try { return count; } finally { lock.unlock(); }
+    }
+    public boolean isClosed() {
+        lock.lock();
+        try { return closedBatch; } finally { lock.unlock(); }
+    }
     public int getThreshold() { return threshold; }
-    public synchronized FlowDir getFlowDir() { return flowDir; }
-    public synchronized FlowDir getPreferredDir() { return preferredDir; }
+    public FlowDir getFlowDir() {
+        lock.lock();
+        try { return flowDir; } finally { lock.unlock(); }
+    }
+    public FlowDir getPreferredDir() {
+        lock.lock();
+        try { return preferredDir; } finally { lock.unlock(); }
+    }
+
+    /**
+     * Estado dinámico (batch, direcciones y esperas del motor de eventos) para un checkpoint
+     * de EventSimulation. Con hilos estacionados en las colas no hay estado que guardar.
+     */
+    void writeState(DataOutput out) throws IOException {
+        lock.lock();
+        try {
+            for (ArrayDeque<Ticket> q : queues) {
+                if (!q.isEmpty()) throw new IllegalStateException("Subruta " + id + " con robots estacionados");
+            }
+            out.writeInt(count);
+            out.writeBoolean(closedBatch);
+            writeDir(out, flowDir);
+            writeDir(out, lastBatchDir);
+            writeDir(out, preferredDir);
+            for (int p : passive) out.writeInt(p);
+            out.writeInt(batchSize);
+            for (int n : passedOver) out.writeInt(n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void readState(DataInput in) throws IOException {
+        lock.lock();
+        try {
+            count = in.readInt();
+            closedBatch = in.readBoolean();
+            flowDir = readDir(in);
+            lastBatchDir = readDir(in);
+            preferredDir = readDir(in);
+            int waiting = 0;
+            for (int i = 0; i < passive.length; i++) waiting += passive[i] = in.readInt();
+            batchSize = in.readInt();
+            for (int i = 0; i < passedOver.length; i++) passedOver[i] = in.readInt();
+            waitingTotal = 0;
+            waitingChanged(waiting);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lo mismo para un checkpoint de la carrera con hilos, con 'admitted' robots adentro o
+     * admitidos (según sus posiciones). Los estacionados en las colas vuelven a pedir la
+     * admisión al reanudar, así que no queda nadie esperando; si alguno ya tenía el lugar
+     * concedido sin haberse despertado, el batch se reabre para que lo vuelva a tomar.
+     */
+    void writeRaceState(DataOutput out, int admitted) throws IOException {
+        lock.lock();
+        try {
+            out.writeInt(admitted);
+            out.writeBoolean(admitted >= threshold || (closedBatch && admitted == count));
+            writeDir(out, admitted > 0 ? flowDir : null);
+            writeDir(out, lastBatchDir);
+            writeDir(out, preferredDir);
+            for (int i = 0; i < passive.length; i++) out.writeInt(0);
+            out.writeInt(admitted > 0 ? batchSize : 0);
+            for (int n : passedOver) out.writeInt(n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reanudando con hilos un checkpoint de --sim: los que esperaban vuelven a sacar ticket
+    void forgetWaiting() {
+        lock.lock();
+        try {
+            int waiting = 0;
+            for (int i = 0; i < passive.length; i++) {
+                waiting += passive[i];
+                passive[i] = 0;
+            }
+            waitingChanged(-waiting);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeDir(DataOutput out, FlowDir d) throws IOException {
+        out.writeByte(d == null ? -1 : d.ordinal());
+    }
+
+    private static FlowDir readDir(DataInput in) throws IOException {
+        int d = in.readByte();
+        return d < 0 ? null : FlowDir.values()[d];
+    }
 
     private static long key(int street, int avenue) {
         return (((long) street) << 32) | (avenue & 0xffffffffL);
@@ -0,0 +1,123 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SubrouteTest
+{
+	private static Subroute subroute(int threshold)
+	{	Subroute sr = new Subroute("T", threshold);
+		for (int a = 1; a <= 4; a++) sr.addCell(1, a);
+		return sr;
+	}
+
+	// Estaciona un hilo que entra con dir y anota su número al ser admitido
+	private static Thread waiter(final Subroute sr, final Subroute.FlowDir dir, final int n,
+			final List<Integer> admitted, final CountDownLatch done)
+	{	Thread t = new Thread(() -> {
+			try {
+				if (sr.tryEnterDirectional(dir, 10000)) admitted.add(n);
+			} catch (InterruptedException ignored) {
+			} finally {
+				done.countDown();
+			}
+		});
+		t.start();
+		while (t.getState() != Thread.State.TIMED_WAITING) Thread.yield();
+		return t;
+	}
+
+	@Test
+	public void testDrainAdmitsOnlyNextBatchInFifoOrder() throws Exception
+	{	Subroute sr = subroute(2);
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 0));
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 0)); // batch cerrado
+		List<Integer> admitted = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(5);
+		for (int n = 1; n <= 5; n++) waiter(sr, Subroute.FlowDir.EAST, n, admitted, done);
+		assertEquals(5, sr.stats().queueDepth);
+
+		sr.exit();
+		assertTrue(admitted.isEmpty()); // el batch todavía no se vació
+		sr.exit();
+		while (admitted.size() < 2) Thread.sleep(1);
+		Thread.sleep(20);
+		assertEquals(2, admitted.size()); // sólo el próximo batch
+		assertEquals(2, sr.getCount());
+		assertTrue(sr.isClosed());
+		// los del batch despiertan juntos: el orden en que anotan no es el de admisión
+		assertEquals(new HashSet<>(Arrays.asList(1, 2)), new HashSet<>(admitted));
+
+		sr.exit();
+		sr.exit();
+		while (admitted.size() < 4) Thread.sleep(1);
+		sr.exit();
+		sr.exit();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(new HashSet<>(Arrays.asList(3, 4)), new HashSet<>(admitted.subList(2, 4)));
+		assertEquals(Integer.valueOf(5), admitted.get(4));
+		sr.exit();
+		assertEquals(0, sr.getCount());
+	}
+
+	@Test
+	public void testOppositeDirectionGoesNextAfterDrain() throws Exception
+	{	Subroute sr = subroute(3);
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 0));
+		List<Integer> admitted = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(1);
+		waiter(sr, Subroute.FlowDir.WEST, 1, admitted, done);
+		// el batch al este sigue abierto: otro al este se suma
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 0));
+		sr.exit();
+		sr.exit();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Subroute.FlowDir.WEST, sr.getFlowDir());
+		assertEquals(Subroute.FlowDir.WEST, sr.getPreferredDir());
+		// vacía y sin nadie esperando: la preferencia se libera
+		sr.exit();
+		assertNull(sr.getPreferredDir());
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.EAST, 0));
+	}
+
+	// Con tres entradas "la opuesta" no alcanza: quien queda afuera de MAX_PASSED_OVER batches pasa primero
+	@Test
+	public void testPassedOverDirectionGoesFirst()
+	{	Subroute sr = subroute(1);
+		assertTrue(sr.tryEnterNow(Subroute.FlowDir.SOUTH, false));
+		assertFalse(sr.tryEnterNow(Subroute.FlowDir.EAST, false));
+		for (int i = 0; i < Subroute.MAX_PASSED_OVER; i++)
+		{	assertFalse(sr.tryEnterNow(Subroute.FlowDir.SOUTH, false));
+			sr.exit();
+			assertEquals(Subroute.FlowDir.SOUTH, sr.getPreferredDir());
+			assertFalse(sr.tryEnterNow(Subroute.FlowDir.EAST, true));
+			assertTrue(sr.tryEnterNow(Subroute.FlowDir.SOUTH, true));
+		}
+		assertFalse(sr.tryEnterNow(Subroute.FlowDir.SOUTH, false));
+		sr.exit();
+		assertEquals(Subroute.FlowDir.EAST, sr.getPreferredDir());
+		assertFalse(sr.tryEnterNow(Subroute.FlowDir.SOUTH, true));
+		assertTrue(sr.tryEnterNow(Subroute.FlowDir.EAST, true));
+	}
+
+	@Test
+	public void testTimeoutLeavesQueue() throws Exception
+	{	Subroute sr = subroute(1);
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.NORTH, 0));
+		long t0 = System.nanoTime();
+		assertFalse(sr.tryEnterDirectional(Subroute.FlowDir.NORTH, 30));
+		assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(30));
+		assertEquals(0, sr.stats().queueDepth);
+		sr.exit();
+		assertTrue(sr.tryEnterDirectional(Subroute.FlowDir.SOUTH, 0));
+	}
+}
@@ -1,98 +1,895 @@
 package karel;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import kareltherobot.Directions;
 
 /**
  * Controlador de tráfico centralizado:
  * - Previene ocupación simultánea de celdas por múltiples robots
  * - Gestiona subrutas restringidas y rutas alternativas dinámicas
  * - Coordina movimientos atómicos entre celdas
+ * - Cola FIFO por celda: al liberarse, la celda pasa directo al siguiente robot en espera
+ * - Convoyes: una fila de robots pegados avanza entera en una sola transacción de ocupación
+ * - Grafo de espera robot -> dueño de celda / robots dentro de la subruta: detecta ciclos
+ *   sólo al agregar una arista (sin sondeos) y los resuelve de forma determinística
  */
 public final class TrafficController {
     private static final TrafficController INSTANCE = new TrafficController();
 
-    private final Map<Long, Long> occupied = new HashMap<>();
+    // Tamaño por defecto si no se configura con las dimensiones del mundo
+    private static final int DEFAULT_STREETS = 32;
+    private static final int DEFAULT_AVENUES = 32;
+    private static final long FREE = 0L;
+
+    // Grilla densa de ocupación: un slot atómico por celda con el id del dueño (0 = libre)
+    private volatile Grid grid = new Grid(DEFAULT_STREETS, DEFAULT_AVENUES);
+    // Muros del mundo que recorren los robots (null: sólo los bordes de la grilla)
+    private volatile WorldModel world;
+
+    private static final class Grid {
+        final int streets;
+        final int avenues;
+        final AtomicLongArray owners;
+        // versión de ocupación: sube en cada transición libre <-> ocupada de la celda
+        final AtomicIntegerArray versions;
+        // colas de espera por celda, creadas bajo demanda
+        final AtomicReferenceArray<ConcurrentLinkedQueue<CellWaiter>> waiters;
+        // nodo del grafo de espera del robot detenido en cada celda (null = nadie esperando)
+        final AtomicReferenceArray<WaitNode> waiting;
+        // contadores de alternativas a los que aporta cada celda (null = ninguno); se reemplaza entero
+        volatile AtomicInteger[][] triggers = new AtomicInteger[0][];
+
+        Grid(int streets, int avenues) {
+            this.streets = streets;
+            this.avenues = avenues;
+            this.owners = new AtomicLongArray((streets + 1) * (avenues + 1));
+            this.versions = new AtomicIntegerArray(owners.length());
+            this.waiters = new AtomicReferenceArray<>(owners.length());
+            this.waiting = new AtomicReferenceArray<>(owners.length());
+        }
+
+        // índice lineal de la celda, o -1 si está fuera del mundo (calles y avenidas empiezan en 1)
+        int index(int street, int avenue) {
+            if (street < 1 || street > streets || avenue < 1 || avenue > avenues) return -1;
+            return street * (avenues + 1) + avenue;
+        }
+    }
+
+    // Robot estacionado esperando una celda; el estado decide quién gana entre handoff y timeout
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+    // apartado por la resolución de un deadlock: nadie más puede concederlo ni cancelarlo
+    private static final int RESERVED = 3;
+
+    // Nodo del grafo de espera: un robot detenido en la celda fromIndex (registrado en Grid.waiting)
+    private abstract static class WaitNode {
+        final long robotId;
+        final int fromIndex;
+        final Grid grid;
+        // marcas del recorrido de detección: sólo se tocan con detectLock tomado
+        int seen;
+        WaitNode parent;
+
+        WaitNode(long robotId, int fromIndex, Grid grid) {
+            this.robotId = robotId;
+            this.fromIndex = fromIndex;
+            this.grid = grid;
+        }
+    }
+
+    private static final class CellWaiter extends WaitNode {
+        final int toIndex;
+        final Thread thread;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+
+        CellWaiter(long robotId, int fromIndex, int toIndex, Grid grid, Thread thread) {
+            super(robotId, fromIndex, grid);
+            this.toIndex = toIndex;
+            this.thread = thread;
+        }
+    }
+
+    // Robot esperando admisión a una subruta en el sentido dir; 'verdict' lo deja entrar
+    // (Subroute.FORCED) o lo hace ceder el paso (Subroute.YIELDED) para romper un ciclo
+    private static final class SubrouteWaiter extends WaitNode {
+        final Subroute subroute;
+        final Subroute.FlowDir dir;
+        final AtomicInteger verdict = new AtomicInteger(Subroute.UNDECIDED);
+
+        SubrouteWaiter(long robotId, int fromIndex, Grid grid, Subroute subroute, Subroute.FlowDir dir) {
+            super(robotId, fromIndex, grid);
+            this.subroute = subroute;
+            this.dir = dir;
+        }
+    }
+
+    // Resultado de enterSubroute: admitido, venció el plazo o debe ceder el paso (ciclo de esperas)
+    public enum Admission { ADMITTED, TIMED_OUT, YIELD }
+
+    // Detección serializada con un ReentrantLock (no fija hilos virtuales al carrier);
+    // pila y ciclo se reutilizan entre búsquedas
+    private final ReentrantLock detectLock = new ReentrantLock();
+    private WaitNode[] detectStack = new WaitNode[16];
+    private WaitNode[] cycle = new WaitNode[16];
+    private int detectGeneration = 0;
+    private final AtomicLong deadlocksResolved = new AtomicLong();
+
+    // Registro de subrutas y alternativas: se escribe al configurar y se lee sin locks
+    private final Map<String, Subroute> subroutes = new ConcurrentHashMap<>();
+    private final List<Subroute> subrouteList = new CopyOnWriteArrayList<>();
+    private final List<AlternateRouteSpec> alternateList = new CopyOnWriteArrayList<>();
 
-    private final Map<String, Subroute> subroutes = new HashMap<>();
-    private final List<Subroute> subrouteList = new ArrayList<>();
+    // Índice inmutable celda -> subruta, reconstruido en cada registro; lectura O(1) sin locks
+    private volatile SubrouteIndex subrouteIndex = SubrouteIndex.EMPTY;
 
-    private final Map<Long, AlternateRouteSpec> alternateRoutes = new HashMap<>();
+    private static final class SubrouteIndex {
+        static final SubrouteIndex EMPTY = new SubrouteIndex(0, 0, new Subroute[0]);
+
+        final int streets;
+        final int avenues;
+        final Subroute[] byCell;
+
+        SubrouteIndex(int streets, int avenues, Subroute[] byCell) {
+            this.streets = streets;
+            this.avenues = avenues;
+            this.byCell = byCell;
+        }
+
+        Subroute at(int street, int avenue) {
+            if (street < 0 || street > streets || avenue < 0 || avenue > avenues) return null;
+            return byCell[street * (avenues + 1) + avenue];
+        }
+
+        // Si dos subrutas comparten celda gana la registrada primero (igual que el recorrido lineal)
+        static SubrouteIndex build(int streets, int avenues, List<Subroute> list) {
+            Subroute[] byCell = new Subroute[(streets + 1) * (avenues + 1)];
+            for (Subroute sr : list) {
+                for (long k : sr.cellKeys()) {
+                    int street = (int) (k >> 32);
+                    int avenue = (int) k;
+                    if (street < 0 || street > streets || avenue < 0 || avenue > avenues) continue;
+                    int i = street * (avenues + 1) + avenue;
+                    if (byCell[i] == null) byCell[i] = sr;
+                }
+            }
+            return new SubrouteIndex(streets, avenues, byCell);
+        }
+    }
+
+    private final Map<Long, AlternateRouteSpec> alternateRoutes = new ConcurrentHashMap<>();
     public static final class AlternateRouteSpec {
         public final List<int[]> altRoute;       // lista de {street,avenue}
         public final int rejoinStreet;
         public final int rejoinAvenue;
+        final CompiledRoute compiledRoute;       // altRoute compilada, compartida por los robots
         public final List<int[]> triggerCells;   // celdas a comprobar (por ejemplo 1,12 .. 1,15)
         public final int requiredOccupied;       // número mínimo de celdas ocupadas (4)
+        // triggerCells ocupadas ahora mismo, mantenido por el controlador en cada ocupación/liberación
+        final AtomicInteger occupiedTriggers = new AtomicInteger();
 
         public AlternateRouteSpec(List<int[]> altRoute, int rejoinStreet, int rejoinAvenue,
                                     List<int[]> triggerCells, int requiredOccupied) {
             this.altRoute = altRoute;
+            this.compiledRoute = CompiledRoute.compile(altRoute == null ? new ArrayList<int[]>() : altRoute);
             this.rejoinStreet = rejoinStreet;
             this.rejoinAvenue = rejoinAvenue;
             this.triggerCells = triggerCells == null ? new ArrayList<>() : new ArrayList<>(triggerCells);
             this.requiredOccupied = requiredOccupied;
         }
+
+        // Una sola lectura atómica: cuántas triggerCells están ocupadas (fuera del mundo nunca, como isOccupied)
+        public int occupiedTriggers() { return occupiedTriggers.get(); }
+
+        public boolean isCongested() { return occupiedTriggers.get() >= requiredOccupied; }
     }
 
 
-    private TrafficController() {}
+    TrafficController() {}
 
-    public static TrafficController get() { return INSTANCE; }
+    // La global, o la de la corrida aislada (SimulationScope) que ejecuta este hilo
+    public static TrafficController get() {
+        SimulationScope scope = SimulationScope.current();
+        return scope == null ? INSTANCE : scope.traffic;
+    }
 
     private static long key(int street, int avenue) {
         return (((long) street) << 32) | (avenue & 0xffffffffL);
     }
 
-    public synchronized boolean occupy(int street, int avenue, long robotId) {
-        long k = key(street, avenue);
-        if (occupied.containsKey(k)) return false;
-        occupied.put(k, robotId);
+    /**
+     * Dimensiona la grilla de ocupación según el mundo (streets x avenues).
+     * Debe llamarse antes de crear robots: descarta cualquier ocupación previa.
+     */
+    public synchronized void configureGrid(int streets, int avenues) {
+        if (streets <= 0 || avenues <= 0) {
+            throw new IllegalArgumentException("Dimensiones inválidas: " + streets + "x" + avenues);
+        }
+        grid = new Grid(streets, avenues);
+        world = null;
+        rebuildSubrouteIndex();
+        rebuildTriggerIndex();
+    }
+
+    // Grilla del tamaño del mundo que recorren los robots (el mismo modelo que consultan ellos)
+    public synchronized void configureGrid(WorldModel world) {
+        configureGrid(world.getStreets(), world.getAvenues());
+        this.world = world;
+    }
+
+    // Deja el controlador como recién creado: grilla vacía, sin subrutas ni alternativas
+    public synchronized void reset(int streets, int avenues) {
+        configureGrid(streets, avenues);
+        subroutes.clear();
+        subrouteList.clear();
+        rebuildSubrouteIndex();
+        alternateRoutes.clear();
+        alternateList.clear();
+        rebuildTriggerIndex();
+    }
+
+    public int getStreets() { return grid.streets; }
+    public int getAvenues() { return grid.avenues; }
+
+    // Sin locks: cada operación es un CAS sobre el slot de la celda
+    public boolean occupy(int street, int avenue, long robotId) {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        if (i < 0) return false;
+        if (!g.owners.compareAndSet(i, FREE, robotId)) return false;
+        markOccupied(g, i);
         return true;
     }
 
-    public synchronized boolean tryMove(int fs, int fa, int ts, int ta, long robotId) {
-        long fk = key(fs, fa);
-        long tk = key(ts, ta);
-        Long owner = occupied.get(fk);
-        if (owner == null || owner != robotId) return false;
-        if (occupied.containsKey(tk)) return false;
-        occupied.remove(fk);
-        occupied.put(tk, robotId);
+    /**
+     * Movimiento atómico from->to: primero se reclama la celda destino con CAS y
+     * luego se libera el origen. Sólo el dueño escribe su propio slot, así que
+     * la verificación del origen no puede cambiar entre ambos pasos.
+     */
+    public boolean tryMove(int fs, int fa, int ts, int ta, long robotId) {
+        Grid g = grid;
+        int fi = g.index(fs, fa);
+        int ti = g.index(ts, ta);
+        if (fi < 0 || ti < 0) return false;
+        if (g.owners.get(fi) != robotId) return false;
+        if (!g.owners.compareAndSet(ti, FREE, robotId)) return false;
+        markOccupied(g, ti);
+        vacate(g, fi, robotId);
         return true;
     }
 
-    public synchronized void release(int street, int avenue, long robotId) {
-        long k = key(street, avenue);
-        Long owner = occupied.get(k);
-        if (owner != null && owner == robotId) {
-            occupied.remove(k);
+    /**
+     * Igual que tryMove pero, si la celda destino está ocupada, el robot se
+     * estaciona en la cola FIFO de esa celda hasta recibirla o hasta el timeout.
+     * Devuelve false si venció el tiempo (o si el robot no posee el origen).
+     */
+    public boolean tryMove(int fs, int fa, int ts, int ta, long robotId, long timeoutMillis)
+            throws InterruptedException {
+        return awaitMove(fs, fa, ts, ta, robotId, true, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    // Espera sin límite de tiempo a que la celda destino le sea entregada
+    public boolean moveWhenFree(int fs, int fa, int ts, int ta, long robotId) throws InterruptedException {
+        return awaitMove(fs, fa, ts, ta, robotId, false, 0L);
+    }
+
+    public void release(int street, int avenue, long robotId) {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        if (i < 0) return;
+        vacate(g, i, robotId);
+    }
+
+    private boolean awaitMove(int fs, int fa, int ts, int ta, long robotId, boolean timed, long nanos)
+            throws InterruptedException {
+        if (tryMove(fs, fa, ts, ta, robotId)) return true;
+        Grid g = grid;
+        int fi = g.index(fs, fa);
+        int ti = g.index(ts, ta);
+        if (fi < 0 || ti < 0 || g.owners.get(fi) != robotId) return false;
+
+        ConcurrentLinkedQueue<CellWaiter> queue = queueFor(g, ti);
+        CellWaiter w = new CellWaiter(robotId, fi, ti, g, Thread.currentThread());
+        queue.offer(w);
+        g.waiting.set(fi, w);
+        long start = System.nanoTime();
+        try {
+            detectFrom(w);
+            return parkForCell(g, queue, w, fi, ti, robotId, timed, timed ? start + nanos : 0L);
+        } finally {
+            g.waiting.compareAndSet(fi, w, null);
+            Metrics.get().cellWait(ts, ta, System.nanoTime() - start);
         }
     }
-    public synchronized void registerSubroute(Subroute sr) {
-        subroutes.put(sr.getId(), sr);
-        subrouteList.add(sr);
+
+    private boolean parkForCell(Grid g, ConcurrentLinkedQueue<CellWaiter> queue, CellWaiter w,
+                                int fi, int ti, long robotId, boolean timed, long deadline)
+            throws InterruptedException {
+        while (true) {
+            // el handoff ya nos entregó la celda y liberó nuestro origen
+            int state = w.state.get();
+            if (state == GRANTED) return true;
+            // la resolución de un deadlock nos hizo retroceder
+            if (state == CANCELLED) return false;
+            // la celda pudo quedar libre antes de que el dueño viera nuestra entrada en la cola
+            if (g.owners.compareAndSet(ti, FREE, robotId)) {
+                markOccupied(g, ti);
+                w.state.compareAndSet(WAITING, CANCELLED);
+                queue.remove(w);
+                vacate(g, fi, robotId);
+                return true;
+            }
+            if (Thread.interrupted()) {
+                if (cancel(queue, w)) throw new InterruptedException();
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            // sin sondeos: despierta el handoff, la resolución de un ciclo o el plazo
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return !cancel(queue, w);
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // true si se canceló la espera; false si el handoff (o una resolución) ganó la carrera
+    private static boolean cancel(ConcurrentLinkedQueue<CellWaiter> queue, CellWaiter w) {
+        while (w.state.get() == RESERVED) Thread.yield();
+        if (!w.state.compareAndSet(WAITING, CANCELLED)) return w.state.get() == CANCELLED;
+        queue.remove(w);
+        return true;
     }
 
-    public synchronized Subroute findContainingSubroute(int street, int avenue) {
-        for (Subroute sr : subrouteList) {
-            if (sr.contains(street, avenue)) return sr;
+    private static ConcurrentLinkedQueue<CellWaiter> queueFor(Grid g, int i) {
+        ConcurrentLinkedQueue<CellWaiter> q = g.waiters.get(i);
+        if (q == null) {
+            g.waiters.compareAndSet(i, null, new ConcurrentLinkedQueue<CellWaiter>());
+            q = g.waiters.get(i);
+        }
+        return q;
+    }
+
+    /**
+     * Libera la celda i del robot owner. Si hay robots esperando, la celda pasa
+     * directo al primero de la cola y se libera a su vez la celda de origen de
+     * ese robot (que puede tener su propia cola): la cadena avanza sin sondeos.
+     * Sólo cambia la ocupación; cada robot de la cadena da su paso al despertarse, en su hilo.
+     * En el handoff la celda nunca queda libre, así que los contadores no cambian.
+     */
+    private void vacate(Grid g, int i, long owner) {
+        int handoffs = 0;
+        while (true) {
+            if (g.owners.get(i) != owner) return;
+            ConcurrentLinkedQueue<CellWaiter> q = g.waiters.get(i);
+            CellWaiter next = q == null ? null : pollWaiting(q);
+            if (next != null) {
+                g.owners.set(i, next.robotId);
+                LockSupport.unpark(next.thread);
+                i = next.fromIndex;
+                owner = next.robotId;
+                handoffs++;
+                continue;
+            }
+            // la fila que recibió las celdas de mano en mano avanzó como un convoy
+            if (handoffs > 0) {
+                Metrics.get().platoonAdvanced(handoffs + 1);
+                handoffs = 0;
+            }
+            if (!g.owners.compareAndSet(i, owner, FREE)) return;
+            markFreed(g, i);
+            // re-chequeo: un robot pudo encolarse justo antes de que liberáramos la celda
+            q = g.waiters.get(i);
+            if (q == null || peekWaiting(q) == null) return;
+            // recuperar la celda para entregarla; si otro la tomó, ese ya resolvió la espera
+            if (!g.owners.compareAndSet(i, FREE, owner)) return;
+            markOccupied(g, i);
+        }
+    }
+
+    // Transición libre -> ocupada de la celda i: sube los contadores de las alternativas que la vigilan
+    private static void markOccupied(Grid g, int i) {
+        g.versions.incrementAndGet(i);
+        AtomicInteger[][] t = g.triggers;
+        if (i >= t.length || t[i] == null) return;
+        for (AtomicInteger c : t[i]) c.incrementAndGet();
+    }
+
+    // Transición ocupada -> libre de la celda i
+    private static void markFreed(Grid g, int i) {
+        g.versions.incrementAndGet(i);
+        AtomicInteger[][] t = g.triggers;
+        if (i >= t.length || t[i] == null) return;
+        for (AtomicInteger c : t[i]) c.decrementAndGet();
+    }
+
+    private static CellWaiter pollWaiting(ConcurrentLinkedQueue<CellWaiter> q) {
+        CellWaiter w;
+        while ((w = q.poll()) != null) {
+            int st;
+            while ((st = w.state.get()) == RESERVED) Thread.yield();
+            if (st == WAITING && w.state.compareAndSet(WAITING, GRANTED)) return w;
         }
         return null;
     }
 
+    private static CellWaiter peekWaiting(ConcurrentLinkedQueue<CellWaiter> q) {
+        CellWaiter w;
+        while ((w = q.peek()) != null) {
+            int st = w.state.get();
+            if (st == WAITING || st == RESERVED) return w;
+            q.remove(w);
+        }
+        return null;
+    }
+
+    /**
+     * Entrada a una subruta registrando la espera en el grafo desde la celda del robot
+     * (street, avenue): si queda en un ciclo (p. ej. espera la subruta mientras su celda
+     * la necesita alguien de adentro), la resolución lo admite por encima de la capacidad
+     * si va en el sentido del batch, o le pide que ceda el paso (YIELD), en lugar de
+     * esperar el timeout.
+     */
+    public Admission enterSubroute(Subroute sr, Subroute.FlowDir dir, long robotId,
+                                   int street, int avenue, long timeoutMillis) throws InterruptedException {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        SubrouteWaiter w = new SubrouteWaiter(robotId, i, g, sr, dir);
+        if (i >= 0) g.waiting.set(i, w);
+        try {
+            if (i >= 0) detectFrom(w);
+            if (!sr.tryEnterDirectional(dir, timeoutMillis, w.verdict)) {
+                return w.verdict.get() == Subroute.YIELDED ? Admission.YIELD : Admission.TIMED_OUT;
+            }
+            RaceRecorder.enterSubroute(robotId, sr);
+            return Admission.ADMITTED;
+        } finally {
+            if (i >= 0) g.waiting.compareAndSet(i, w, null);
+        }
+    }
+
+    public void exitSubroute(Subroute sr, long robotId) {
+        sr.exit();
+        RaceRecorder.exitSubroute(robotId, sr);
+    }
+
+    // Ciclos de espera resueltos desde el arranque
+    public long getDeadlocksResolved() { return deadlocksResolved.get(); }
+
+    /**
+     * Busca un camino en el grafo de espera que vuelva a 'start'. Las aristas son: robot
+     * que espera celda -> dueño de la celda, y robot que espera subruta -> dueños de las
+     * celdas de la subruta. Basta con buscar al agregar una arista: un robot que espera no
+     * se mueve, así que una celda sólo cambia de dueño hacia uno que no espera (handoff,
+     * rotación) y ese cambio no cierra ciclos; el ciclo se cierra recién cuando el nuevo
+     * dueño se detiene a esperar, y esa arista nueva dispara esta búsqueda.
+     */
+    private void detectFrom(WaitNode start) {
+        detectLock.lock();
+        try {
+            int n = findCycle(start);
+            if (n > 0) {
+                resolve(cycle, n);
+                Arrays.fill(cycle, 0, n, null);
+            }
+        } finally {
+            detectLock.unlock();
+        }
+    }
+
+    // Recorrido en profundidad sin asignaciones; deja start -> ... en 'cycle' y devuelve su largo (0 = no hay)
+    private int findCycle(WaitNode start) {
+        int gen = ++detectGeneration;
+        start.seen = gen;
+        start.parent = null;
+        WaitNode[] stack = detectStack;
+        int top = 0;
+        stack[top++] = start;
+        while (top > 0) {
+            WaitNode r = stack[--top];
+            stack[top] = null;
+            Subroute sr = null;
+            int edges = 1;
+            if (r instanceof CellWaiter) {
+                if (((CellWaiter) r).state.get() != WAITING) continue;
+            } else {
+                SubrouteWaiter sw = (SubrouteWaiter) r;
+                if (sw.verdict.get() != Subroute.UNDECIDED) continue;
+                sr = sw.subroute;
+                edges = sr.cellCount();
+            }
+            for (int k = 0; k < edges; k++) {
+                int i = sr == null ? ((CellWaiter) r).toIndex : cellIndex(r.grid, sr.cellKey(k));
+                WaitNode n = waitingOwner(r.grid, i, r.robotId);
+                if (n == start) return buildCycle(r);
+                if (n == null || n.seen == gen) continue;
+                n.seen = gen;
+                n.parent = r;
+                if (top == stack.length) detectStack = stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = n;
+            }
+        }
+        return 0;
+    }
+
+    // Nodo de espera del dueño de la celda i, si ese dueño está detenido (en esa celda) esperando algo
+    private static WaitNode waitingOwner(Grid g, int i, long self) {
+        if (i < 0) return null;
+        long owner = g.owners.get(i);
+        if (owner == FREE || owner == self) return null;
+        WaitNode n = g.waiting.get(i);
+        return n != null && n.robotId == owner ? n : null;
+    }
+
+    private static int cellIndex(Grid g, long key) {
+        return g.index((int) (key >> 32), (int) key);
+    }
+
+    // Copia start -> ... -> last (siguiendo los padres) en 'cycle'
+    private int buildCycle(WaitNode last) {
+        int n = 0;
+        for (WaitNode x = last; x != null; x = x.parent) n++;
+        if (cycle.length < n) cycle = new WaitNode[Math.max(n, cycle.length * 2)];
+        int k = n;
+        for (WaitNode x = last; x != null; x = x.parent) cycle[--k] = x;
+        return n;
+    }
+
+    /**
+     * Resolución determinística del ciclo c[0..n):
+     * - si alguien del ciclo espera una subruta en el sentido del batch que hay adentro, se
+     *   admite por encima de la capacidad al de mayor id (menor prioridad): entra, libera su
+     *   celda y el ciclo avanza. Uno en contra quedaría de frente con los de adentro
+     * - si es un ciclo sólo de celdas de largo >= 3, todos avanzan una celda a la vez
+     * - si no, retrocede (su espera devuelve false o YIELD) el de mayor id entre los que
+     *   tienen adónde correrse: reintentar desde la misma celda volvería a cerrar el ciclo,
+     *   así que el que retrocede cede el lugar (stepAsideDirection o un desvío)
+     * - si nadie tiene adónde correrse y el ciclo sale de una subruta (un anillo lleno que la
+     *   atraviesa), entra en contra del batch quien la espera: el ciclo queda sólo de celdas
+     *   y rota. Los que queden de frente adentro se resuelven como cualquier par de frente
+     */
+    private void resolve(WaitNode[] c, int n) {
+        // de mayor a menor id, sin ordenar: los ciclos son cortos
+        long below = Long.MAX_VALUE;
+        boolean onlyCells = true;
+        while (true) {
+            SubrouteWaiter next = null;
+            for (int k = 0; k < n; k++) {
+                if (!(c[k] instanceof SubrouteWaiter)) continue;
+                onlyCells = false;
+                if (c[k].robotId < below && (next == null || c[k].robotId > next.robotId)) {
+                    next = (SubrouteWaiter) c[k];
+                }
+            }
+            if (next == null) break;
+            if (next.subroute.forceAdmit(next.verdict, next.dir)) {
+                resolved(EventLog.Type.DEADLOCK_ADMIT, next.robotId, n);
+                return;
+            }
+            below = next.robotId;
+        }
+        if (onlyCells && n >= 3) {
+            if (rotate(c, n)) resolved(EventLog.Type.DEADLOCK_ROTATE, c[0].robotId, n);
+            return;
+        }
+        WaitNode victim = null;
+        boolean victimCanYield = false;
+        for (int k = 0; k < n; k++) {
+            boolean canYield = canStepAside(c[k], c[(k + n - 1) % n]);
+            if (victim == null || (canYield && !victimCanYield)
+                    || (canYield == victimCanYield && c[k].robotId > victim.robotId)) {
+                victim = c[k];
+                victimCanYield = canYield;
+            }
+        }
+        if (!victimCanYield) {
+            // nadie puede correrse: anillo lleno. Si pasa por una subruta, entra en contra
+            // quien la espera; el ciclo queda sólo de celdas y rota
+            for (int k = 0; k < n; k++) {
+                if (!(c[k] instanceof SubrouteWaiter)) continue;
+                SubrouteWaiter sw = (SubrouteWaiter) c[k];
+                if (sw.subroute.forceAdmitTurning(sw.verdict, sw.dir, leaving(c, n, sw.subroute))) {
+                    resolved(EventLog.Type.DEADLOCK_ADMIT, sw.robotId, n);
+                    return;
+                }
+            }
+        }
+        if (victim instanceof SubrouteWaiter) {
+            SubrouteWaiter sw = (SubrouteWaiter) victim;
+            if (sw.subroute.yieldWaiting(sw.verdict)) resolved(EventLog.Type.DEADLOCK_BACKOFF, sw.robotId, n);
+            return;
+        }
+        CellWaiter cw = (CellWaiter) victim;
+        if (cw.state.compareAndSet(WAITING, CANCELLED)) {
+            ConcurrentLinkedQueue<CellWaiter> q = cw.grid.waiters.get(cw.toIndex);
+            if (q != null) q.remove(cw);
+            LockSupport.unpark(cw.thread);
+            resolved(EventLog.Type.DEADLOCK_BACKOFF, cw.robotId, n);
+        }
+    }
+
+    // Robots del ciclo que están en sr y esperan una celda fuera de ella
+    private static int leaving(WaitNode[] c, int n, Subroute sr) {
+        int out = 0;
+        for (int k = 0; k < n; k++) {
+            if (!(c[k] instanceof CellWaiter)) continue;
+            CellWaiter cw = (CellWaiter) c[k];
+            int width = cw.grid.avenues + 1;
+            if (sr.contains(cw.fromIndex / width, cw.fromIndex % width)
+                    && !sr.contains(cw.toIndex / width, cw.toIndex % width)) out++;
+        }
+        return out;
+    }
+
+    // Cuartos de giro horarios desde el rumbo: derecha, izquierda, atrás (adelante está lo trabado)
+    private static final Directions.Direction[] CLOCKWISE =
+            {Directions.North, Directions.East, Directions.South, Directions.West};
+    private static final int[] ASIDE = {1, 3, 2};
+
+    /**
+     * Hacia dónde correrse desde (street, avenue) para ceder el paso a quien viene de frente:
+     * una vecina libre a un costado de 'facing' o, si no hay, atrás. No entra a otra subruta
+     * (pediría admisión) y prefiere salir de la suya, que así le deja lugar a quien la espera.
+     * null si no hay adónde.
+     */
+    Directions.Direction stepAsideDirection(int street, int avenue, Directions.Direction facing) {
+        int f = 0;
+        while (f < CLOCKWISE.length && CLOCKWISE[f] != facing) f++;
+        if (f == CLOCKWISE.length) return null;
+        Subroute here = findContainingSubroute(street, avenue);
+        Directions.Direction inside = null;
+        for (int turn : ASIDE) {
+            Directions.Direction d = CLOCKWISE[(f + turn) % 4];
+            int ns = street + (d == Directions.North ? 1 : d == Directions.South ? -1 : 0);
+            int na = avenue + (d == Directions.East ? 1 : d == Directions.West ? -1 : 0);
+            if (!isClear(street, avenue, d, ns, na) || isOccupied(ns, na)) continue;
+            Subroute there = findContainingSubroute(ns, na);
+            if (there == null) return d;
+            if (there == here && inside == null) inside = d;
+        }
+        return inside;
+    }
+
+    private boolean isClear(int street, int avenue, Directions.Direction d, int ns, int na) {
+        WorldModel w = world;
+        if (w != null) return w.isClear(street, avenue, d);
+        Grid g = grid;
+        return ns >= 1 && ns <= g.streets && na >= 1 && na <= g.avenues;
+    }
+
+    // El robot detenido en fromIndex, ¿tiene adónde correrse? Mira hacia su celda o su subruta.
+    // Si quien lo espera (waiter) espera su subruta, correrse adentro de ella no le sirve
+    private boolean canStepAside(WaitNode w, WaitNode waiter) {
+        int width = w.grid.avenues + 1;
+        Directions.Direction facing;
+        if (w instanceof CellWaiter) {
+            int delta = ((CellWaiter) w).toIndex - w.fromIndex;
+            facing = delta == 1 ? Directions.East : delta == -1 ? Directions.West
+                    : delta > 0 ? Directions.North : Directions.South;
+        } else {
+            facing = facing(((SubrouteWaiter) w).dir);
+        }
+        int s = w.fromIndex / width, a = w.fromIndex % width;
+        Directions.Direction d = stepAsideDirection(s, a, facing);
+        if (d == null) return false;
+        if (!(waiter instanceof SubrouteWaiter)) return true;
+        int ns = s + (d == Directions.North ? 1 : d == Directions.South ? -1 : 0);
+        int na = a + (d == Directions.East ? 1 : d == Directions.West ? -1 : 0);
+        return !((SubrouteWaiter) waiter).subroute.contains(ns, na);
+    }
+
+    private static Directions.Direction facing(Subroute.FlowDir dir) {
+        if (dir == null) return null;
+        switch (dir) {
+            case NORTH: return Directions.North;
+            case SOUTH: return Directions.South;
+            case EAST: return Directions.East;
+            default: return Directions.West;
+        }
+    }
+
+    // Avance conjunto del ciclo: cada robot recibe la celda del siguiente; ninguna queda libre
+    private static boolean rotate(WaitNode[] c, int n) {
+        int reserved = 0;
+        for (int k = 0; k < n; k++) {
+            if (!((CellWaiter) c[k]).state.compareAndSet(WAITING, RESERVED)) break;
+            reserved++;
+        }
+        boolean ok = reserved == n;
+        if (ok) {
+            // verificar que el ciclo sigue cerrado: cada destino lo posee el siguiente
+            for (int k = 0; k < n && ok; k++) {
+                CellWaiter w = (CellWaiter) c[k];
+                WaitNode next = c[(k + 1) % n];
+                ok = w.grid.owners.get(w.toIndex) == next.robotId && next.fromIndex == w.toIndex;
+            }
+        }
+        if (!ok) {
+            for (int k = 0; k < reserved; k++) ((CellWaiter) c[k]).state.set(WAITING);
+            return false;
+        }
+        for (int k = 0; k < n; k++) {
+            CellWaiter w = (CellWaiter) c[k];
+            w.grid.owners.set(w.toIndex, w.robotId);
+            ConcurrentLinkedQueue<CellWaiter> q = w.grid.waiters.get(w.toIndex);
+            if (q != null) q.remove(w);
+        }
+        for (int k = 0; k < n; k++) {
+            CellWaiter w = (CellWaiter) c[k];
+            w.state.set(GRANTED);
+            LockSupport.unpark(w.thread);
+        }
+        return true;
+    }
+
+    /**
+     * Motor de eventos discretos (sin hilos estacionados): avance conjunto de un ciclo de
+     * celdas; robots[i] está en (streets[i], avenues[i]) y pasa a la celda de robots[i + 1]
+     * (circular). false, sin cambios, si alguna celda ya no es de quien dice el ciclo.
+     */
+    boolean rotate(long[] robots, int[] streets, int[] avenues) {
+        Grid g = grid;
+        int n = robots.length;
+        int[] cells = new int[n];
+        for (int i = 0; i < n; i++) {
+            cells[i] = g.index(streets[i], avenues[i]);
+            if (cells[i] < 0 || g.owners.get(cells[i]) != robots[i]) return false;
+        }
+        for (int i = 0; i < n; i++) g.owners.set(cells[(i + 1) % n], robots[i]);
+        resolved(EventLog.Type.DEADLOCK_ROTATE, robots[0], n);
+        return true;
+    }
+
+    /**
+     * Motor de eventos discretos: avance de un convoy en una sola transacción de ocupación.
+     * robots[0] está en (streets[0], avenues[0]) y pasa a (ts, ta); cada robots[i] pasa a la
+     * celda de robots[i - 1] y sólo la del último queda libre (o pasa a quien la espere).
+     * Las celdas intermedias nunca quedan libres. false, sin cambios, si el destino está
+     * ocupado o alguna celda ya no es de quien dice el convoy.
+     */
+    boolean advancePlatoon(long[] robots, int[] streets, int[] avenues, int ts, int ta) {
+        Grid g = grid;
+        int n = robots.length;
+        int ti = g.index(ts, ta);
+        if (ti < 0) return false;
+        int[] cells = new int[n];
+        for (int i = 0; i < n; i++) {
+            cells[i] = g.index(streets[i], avenues[i]);
+            if (cells[i] < 0 || g.owners.get(cells[i]) != robots[i]) return false;
+        }
+        if (!g.owners.compareAndSet(ti, FREE, robots[0])) return false;
+        markOccupied(g, ti);
+        for (int i = 1; i < n; i++) g.owners.set(cells[i - 1], robots[i]);
+        vacate(g, cells[n - 1], robots[n - 1]);
+        if (n > 1) Metrics.get().platoonAdvanced(n);
+        return true;
+    }
+
+    private void resolved(EventLog.Type type, long robot, int cycleLength) {
+        deadlocksResolved.incrementAndGet();
+        Metrics.get().deadlockResolved();
+        EventLog.event(EventLog.Level.INFO, type, robot, cycleLength, 0, 0, 0);
+    }
+
+    // Subrutas registradas, en orden de registro (para métricas)
+    List<Subroute> registeredSubroutes() { return subrouteList; }
+    // Alternativas en orden de registro (una entrada por celda de decisión)
+    List<AlternateRouteSpec> registeredAlternates() { return alternateList; }
+
+    public synchronized void registerSubroute(Subroute sr) {
+        registerSubroutes(Collections.singletonList(sr));
+    }
+
+    // Registro en bloque (escenarios grandes): el índice se reconstruye una sola vez
+    public synchronized void registerSubroutes(List<Subroute> list) {
+        for (Subroute sr : list) subroutes.put(sr.getId(), sr);
+        subrouteList.addAll(list);
+        rebuildSubrouteIndex();
+    }
+
+    // Sin lock ni asignaciones: una lectura del arreglo denso
+    public Subroute findContainingSubroute(int street, int avenue) {
+        return subrouteIndex.at(street, avenue);
+    }
+
+    private synchronized void rebuildSubrouteIndex() {
+        Grid g = grid;
+        subrouteIndex = SubrouteIndex.build(g.streets, g.avenues, subrouteList);
+    }
+
     public synchronized void registerAlternateRoute(int decisionStreet, int decisionAvenue, AlternateRouteSpec spec) {
-        alternateRoutes.put(key(decisionStreet, decisionAvenue), spec);
+        registerAlternateRoutes(Collections.singletonList(new int[]{decisionStreet, decisionAvenue}),
+                                Collections.singletonList(spec));
+    }
+
+    // Registro en bloque: decisionCells.get(i) es la celda de decisión de specs.get(i)
+    public synchronized void registerAlternateRoutes(List<int[]> decisionCells, List<AlternateRouteSpec> specs) {
+        if (decisionCells.size() != specs.size()) throw new IllegalArgumentException("Celdas de decisión y alternativas no coinciden");
+        for (int i = 0; i < specs.size(); i++) {
+            alternateRoutes.put(key(decisionCells.get(i)[0], decisionCells.get(i)[1]), specs.get(i));
+            alternateList.add(specs.get(i));
+        }
+        rebuildTriggerIndex();
+    }
+
+    /**
+     * Reconstruye el índice celda -> contadores de alternativas e inicializa cada
+     * contador con la ocupación actual. Es de configuración (antes de largar los robots):
+     * un movimiento concurrente con el recuento podría dejar el contador desfasado.
+     */
+    private synchronized void rebuildTriggerIndex() {
+        Grid g = grid;
+        List<List<AtomicInteger>> byCell = new ArrayList<>();
+        for (int i = 0; i < g.owners.length(); i++) byCell.add(null);
+        // la misma spec puede estar registrada en varias celdas de decisión: contarla una vez
+        Map<AlternateRouteSpec, Boolean> seen = new IdentityHashMap<>();
+        for (AlternateRouteSpec spec : alternateRoutes.values()) {
+            if (seen.put(spec, Boolean.TRUE) != null) continue;
+            int count = 0;
+            for (int[] cell : spec.triggerCells) {
+                int i = g.index(cell[0], cell[1]);
+                if (i < 0) continue; // fuera del mundo: nadie la ocupa, igual que en isOccupied
+                if (g.owners.get(i) != FREE) count++;
+                if (byCell.get(i) == null) byCell.set(i, new ArrayList<AtomicInteger>());
+                byCell.get(i).add(spec.occupiedTriggers);
+            }
+            spec.occupiedTriggers.set(count);
+        }
+        AtomicInteger[][] t = new AtomicInteger[byCell.size()][];
+        for (int i = 0; i < t.length; i++) {
+            List<AtomicInteger> l = byCell.get(i);
+            if (l != null) t[i] = l.toArray(new AtomicInteger[0]);
+        }
+        g.triggers = t;
     }
 
-    public synchronized AlternateRouteSpec getAlternateForCell(int street, int avenue) {
+    public AlternateRouteSpec getAlternateForCell(int street, int avenue) {
         return alternateRoutes.get(key(street, avenue));
     }
 
-    public synchronized boolean isOccupied(int street, int avenue) {
-        return occupied.containsKey(key(street, avenue));
+    // Dueño de la celda (0 = libre o fuera del mundo)
+    long ownerAt(int street, int avenue) {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        return i < 0 ? FREE : g.owners.get(i);
+    }
+
+    /**
+     * Versión de ocupación de la celda: cambia cada vez que pasa de libre a ocupada o al
+     * revés (un handoff o una rotación no la cambian). Quien guarda una medición sobre la
+     * celda sabe con una lectura si sigue valiendo; 0 fuera del mundo.
+     */
+    int occupancyVersion(int street, int avenue) {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        return i < 0 ? 0 : g.versions.get(i);
+    }
+
+    // Fuera del mundo no hay dueño: false, como antes de la grilla. Que no se pueda entrar
+    // lo deciden occupy/tryMove (rechazan la celda) y los muros del mundo
+    public boolean isOccupied(int street, int avenue) {
+        Grid g = grid;
+        int i = g.index(street, avenue);
+        return i >= 0 && g.owners.get(i) != FREE;
     }
 
 }
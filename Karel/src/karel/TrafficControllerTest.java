@@ -0,0 +1,386 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import kareltherobot.Directions;
+
+public class TrafficControllerTest
+{
+	private TrafficController tc;
+
+	@Before
+	public void setUp()
+	{	tc = TrafficController.get();
+		tc.configureGrid(21, 31);
+	}
+
+	@Test
+	public void testOccupyIsExclusive()
+	{	assertTrue(tc.occupy(1, 1, 1));
+		assertFalse(tc.occupy(1, 1, 2));
+		assertTrue(tc.isOccupied(1, 1));
+		tc.release(1, 1, 2);
+		assertTrue(tc.isOccupied(1, 1));
+		tc.release(1, 1, 1);
+		assertFalse(tc.isOccupied(1, 1));
+	}
+
+	@Test
+	public void testTryMoveRequiresOwnershipAndFreeTarget()
+	{	assertTrue(tc.occupy(2, 2, 1));
+		assertTrue(tc.occupy(2, 4, 2));
+		assertFalse(tc.tryMove(2, 2, 2, 3, 2));
+		assertTrue(tc.tryMove(2, 2, 2, 3, 1));
+		assertFalse(tc.isOccupied(2, 2));
+		assertTrue(tc.isOccupied(2, 3));
+		assertFalse(tc.tryMove(2, 3, 2, 4, 1));
+	}
+
+	@Test
+	public void testCellsOutsideGridAreBlocked()
+	{	assertFalse(tc.occupy(22, 1, 1));
+		assertTrue(tc.occupy(1, 31, 1));
+		assertFalse(tc.tryMove(1, 31, 1, 32, 1));
+		assertTrue(tc.isOccupied(1, 31));
+		// nadie puede tenerla, así que no figura ocupada (igual que con el mapa de antes)
+		assertFalse(tc.isOccupied(1, 32));
+		assertFalse(tc.isOccupied(-1, 1));
+		// la fila y la columna 0 tampoco son del mundo
+		assertFalse(tc.occupy(0, 1, 1));
+		assertTrue(tc.occupy(1, 1, 1));
+		assertFalse(tc.tryMove(1, 1, 1, 0, 1));
+		assertFalse(tc.isOccupied(0, 1));
+	}
+
+	@Test
+	public void testBlockedMoveIsHandedOffOnRelease() throws Exception
+	{	assertTrue(tc.occupy(3, 1, 1));
+		assertTrue(tc.occupy(3, 2, 2));
+		final AtomicBoolean moved = new AtomicBoolean();
+		Thread waiter = new Thread(() -> {
+			try { moved.set(tc.moveWhenFree(3, 1, 3, 2, 1)); }
+			catch (InterruptedException ignored) {}
+		});
+		waiter.start();
+		Thread.sleep(50);
+		assertFalse(moved.get());
+		assertTrue(tc.tryMove(3, 2, 3, 3, 2));
+		waiter.join(1000);
+		assertTrue(moved.get());
+		assertTrue(tc.isOccupied(3, 2));
+		assertFalse(tc.isOccupied(3, 1));
+		assertFalse(tc.tryMove(3, 3, 3, 2, 2));
+	}
+
+	@Test
+	public void testBoundedMoveTimesOut() throws Exception
+	{	assertTrue(tc.occupy(4, 1, 1));
+		assertTrue(tc.occupy(4, 2, 2));
+		assertFalse(tc.tryMove(4, 1, 4, 2, 1, 20));
+		assertTrue(tc.isOccupied(4, 1));
+		// tras el timeout la espera cancelada no debe recibir la celda
+		tc.release(4, 2, 2);
+		assertFalse(tc.isOccupied(4, 2));
+	}
+
+	@Test
+	public void testSubrouteIndexLookup()
+	{	tc.reset(21, 31);
+		Subroute a = new Subroute("A", 2);
+		a.addCell(5, 30);
+		a.addCell(6, 30);
+		Subroute b = new Subroute("B", 2);
+		b.addCell(6, 30);
+		b.addCell(1, 20);
+		tc.registerSubroute(a);
+		tc.registerSubroute(b);
+		assertSame(a, tc.findContainingSubroute(5, 30));
+		assertSame(a, tc.findContainingSubroute(6, 30));
+		assertSame(b, tc.findContainingSubroute(1, 20));
+		assertNull(tc.findContainingSubroute(2, 2));
+		assertNull(tc.findContainingSubroute(40, 40));
+		assertTrue(a.isEntryCell(5, 30));
+		assertTrue(b.isExitCell(1, 20));
+		tc.configureGrid(21, 31);
+		assertSame(b, tc.findContainingSubroute(1, 20));
+	}
+
+	@Test
+	public void testAlternateTriggerCountFollowsOccupancy() throws Exception
+	{	tc.reset(21, 31);
+		assertTrue(tc.occupy(1, 12, 1)); // ocupada antes de registrar: se cuenta al registrar
+		List<int[]> triggers = new ArrayList<>();
+		for (int a = 12; a <= 14; a++) triggers.add(new int[]{1, a});
+		TrafficController.AlternateRouteSpec spec = new TrafficController.AlternateRouteSpec(
+				new ArrayList<int[]>(), 15, 30, triggers, 3);
+		tc.registerAlternateRoute(1, 11, spec);
+		assertEquals(1, spec.occupiedTriggers());
+		assertTrue(tc.occupy(1, 13, 2));
+		assertEquals(2, spec.occupiedTriggers());
+		assertTrue(tc.tryMove(1, 13, 1, 14, 2)); // dentro de las triggers: no cambia
+		assertEquals(2, spec.occupiedTriggers());
+		assertTrue(tc.occupy(1, 13, 3));
+		assertTrue(spec.isCongested());
+		// handoff: la celda pasa directo al que espera y sigue ocupada
+		assertTrue(tc.occupy(2, 13, 4));
+		Thread waiter = new Thread(() -> {
+			try { tc.moveWhenFree(2, 13, 1, 13, 4); } catch (InterruptedException ignored) {}
+		});
+		waiter.start();
+		while (waiter.getState() != Thread.State.WAITING) Thread.sleep(1);
+		tc.release(1, 13, 3);
+		waiter.join(5000);
+		assertEquals(3, spec.occupiedTriggers());
+		assertTrue(tc.tryMove(1, 13, 2, 13, 4));
+		tc.release(1, 12, 1);
+		assertEquals(1, spec.occupiedTriggers());
+		assertFalse(spec.isCongested());
+	}
+
+	@Test
+	public void testOffWorldTriggerCountsLikeIsOccupied()
+	{	tc.reset(21, 31);
+		List<int[]> triggers = new ArrayList<>();
+		triggers.add(new int[]{1, 30});
+		triggers.add(new int[]{1, 31});
+		triggers.add(new int[]{1, 32}); // fuera del mundo
+		triggers.add(new int[]{0, 31}); // también
+		assertTrue(tc.occupy(1, 31, 1));
+		TrafficController.AlternateRouteSpec spec = new TrafficController.AlternateRouteSpec(
+				new ArrayList<int[]>(), 15, 30, triggers, 2);
+		tc.registerAlternateRoute(1, 29, spec);
+		assertEquals(occupiedByQuery(triggers), spec.occupiedTriggers());
+		assertFalse(spec.isCongested());
+		assertTrue(tc.occupy(1, 30, 2));
+		assertEquals(occupiedByQuery(triggers), spec.occupiedTriggers());
+		assertEquals(2, spec.occupiedTriggers());
+		assertTrue(spec.isCongested());
+	}
+
+	// lo que diría el chequeo celda por celda que reemplazó al contador
+	private int occupiedByQuery(List<int[]> cells)
+	{	int n = 0;
+		for (int[] c : cells) if (tc.isOccupied(c[0], c[1])) n++;
+		return n;
+	}
+
+	@Test
+	public void testSubrouteCycleIsResolvedByAdmission() throws Exception
+	{	tc.reset(21, 31);
+		Subroute sr = new Subroute("D", 1);
+		sr.addCell(1, 5);
+		sr.addCell(1, 6);
+		tc.registerSubroute(sr);
+		// robot 1 dentro de la subruta quiere la celda de robot 2, que espera entrar
+		assertTrue(tc.occupy(1, 6, 1));
+		assertTrue(tc.occupy(2, 6, 2));
+		assertEquals(TrafficController.Admission.ADMITTED, tc.enterSubroute(sr, Subroute.FlowDir.EAST, 1, 1, 6, 100));
+		Thread inside = new Thread(() -> {
+			try { tc.moveWhenFree(1, 6, 2, 6, 1); } catch (InterruptedException ignored) {}
+		});
+		inside.start();
+		while (inside.getState() != Thread.State.WAITING) Thread.sleep(1);
+		long before = tc.getDeadlocksResolved();
+		long t0 = System.nanoTime();
+		// va en el sentido del batch: se suma aunque esté lleno
+		assertEquals(TrafficController.Admission.ADMITTED, tc.enterSubroute(sr, Subroute.FlowDir.EAST, 2, 2, 6, 5000));
+		assertTrue("tardó demasiado", System.nanoTime() - t0 < 1000000000L);
+		assertEquals(before + 1, tc.getDeadlocksResolved());
+		assertEquals(2, sr.getCount());
+		tc.exitSubroute(sr, 2);
+		tc.exitSubroute(sr, 1);
+		inside.interrupt();
+		inside.join(5000);
+	}
+
+	@Test
+	public void testSubrouteCycleAgainstTheBatchYields() throws Exception
+	{	tc.reset(21, 31);
+		Subroute sr = new Subroute("D", 1);
+		sr.addCell(1, 5);
+		sr.addCell(1, 6);
+		tc.registerSubroute(sr);
+		// el mismo ciclo, pero el que espera entrar va en contra del batch: admitirlo lo
+		// dejaría de frente con el de adentro, así que cede el paso
+		assertTrue(tc.occupy(1, 6, 1));
+		assertTrue(tc.occupy(2, 6, 2));
+		assertEquals(TrafficController.Admission.ADMITTED, tc.enterSubroute(sr, Subroute.FlowDir.EAST, 1, 1, 6, 100));
+		final AtomicBoolean moved = new AtomicBoolean();
+		Thread inside = new Thread(() -> {
+			try { moved.set(tc.moveWhenFree(1, 6, 2, 6, 1)); } catch (InterruptedException ignored) {}
+		});
+		inside.start();
+		while (inside.getState() != Thread.State.WAITING) Thread.sleep(1);
+		long before = tc.getDeadlocksResolved();
+		assertEquals(TrafficController.Admission.YIELD, tc.enterSubroute(sr, Subroute.FlowDir.WEST, 2, 2, 6, 5000));
+		assertEquals(before + 1, tc.getDeadlocksResolved());
+		assertEquals(1, sr.getCount());
+		assertEquals(0, sr.stats().timeouts.sum());
+		// se corre a un costado y el de adentro sale
+		assertTrue(tc.tryMove(2, 6, 2, 7, 2));
+		inside.join(5000);
+		assertTrue(moved.get());
+		tc.exitSubroute(sr, 1);
+	}
+
+	@Test
+	public void testFullRingThroughSubrouteTurnsTheBatch() throws Exception
+	{	tc.reset(2, 2);
+		Subroute sr = new Subroute("D", 1);
+		sr.addCell(1, 1);
+		tc.registerSubroute(sr);
+		// anillo lleno en una grilla de 2x2: nadie tiene adónde correrse. El 1 está en la
+		// subruta (batch al este) y sale; el 4 quiere entrar hacia el sur, en contra
+		final int[][] cells = {{1, 1}, {1, 2}, {2, 2}, {2, 1}};
+		for (int i = 0; i < 4; i++) assertTrue(tc.occupy(cells[i][0], cells[i][1], i + 1));
+		assertEquals(TrafficController.Admission.ADMITTED, tc.enterSubroute(sr, Subroute.FlowDir.EAST, 1, 1, 1, 100));
+		final AtomicBoolean[] moved = {new AtomicBoolean(), new AtomicBoolean(), new AtomicBoolean()};
+		Thread[] ring = new Thread[3];
+		for (int i = 0; i < 3; i++) {
+			final int k = i;
+			ring[i] = new Thread(() -> {
+				int[] from = cells[k];
+				int[] to = cells[k + 1];
+				try { moved[k].set(tc.moveWhenFree(from[0], from[1], to[0], to[1], k + 1)); }
+				catch (InterruptedException ignored) {}
+			});
+			ring[i].start();
+			while (ring[i].getState() != Thread.State.WAITING) Thread.sleep(1);
+		}
+		long before = tc.getDeadlocksResolved();
+		assertEquals(TrafficController.Admission.ADMITTED, tc.enterSubroute(sr, Subroute.FlowDir.SOUTH, 4, 2, 1, 5000));
+		// ahora el ciclo es sólo de celdas y rota
+		assertTrue(tc.moveWhenFree(2, 1, 1, 1, 4));
+		for (Thread t : ring) t.join(5000);
+		for (int i = 0; i < 3; i++) assertTrue(moved[i].get());
+		assertEquals(before + 2, tc.getDeadlocksResolved());
+		tc.exitSubroute(sr, 1);
+		assertEquals(1, sr.getCount());
+		tc.exitSubroute(sr, 4);
+	}
+
+	@Test
+	public void testPlatoonAdvancesAsOneTransaction()
+	{	tc.reset(21, 31);
+		// fila en la calle 3: el 3 adelante en (3,3), detrás el 2 y el 1
+		for (int a = 1; a <= 3; a++) assertTrue(tc.occupy(3, a, a));
+		long[] ids = {3, 2, 1};
+		int[] streets = {3, 3, 3};
+		int[] avenues = {3, 2, 1};
+
+		// destino ocupado o una celda que no es de quien dice el convoy: sin cambios
+		assertTrue(tc.occupy(3, 4, 9));
+		assertFalse(tc.advancePlatoon(ids, streets, avenues, 3, 4));
+		tc.release(3, 4, 9);
+		assertFalse(tc.advancePlatoon(new long[] {3, 1}, streets, avenues, 3, 4));
+		assertFalse(tc.isOccupied(3, 4));
+		assertTrue(tc.isOccupied(3, 1));
+
+		assertTrue(tc.advancePlatoon(ids, streets, avenues, 3, 4));
+		assertFalse(tc.isOccupied(3, 1));
+		// cada celda es ahora del que venía detrás: sólo su nuevo dueño puede seguir
+		assertFalse(tc.tryMove(3, 3, 3, 1, 3));
+		assertTrue(tc.tryMove(3, 3, 3, 1, 2));
+		assertTrue(tc.tryMove(3, 2, 3, 3, 1));
+		assertTrue(tc.tryMove(3, 4, 3, 5, 3));
+	}
+
+	@Test
+	public void testParkedLineChangesOwnersInOneHandoffPass() throws Exception
+	{	tc.reset(21, 31);
+		// con hilos: el 2 y el 1 estacionados detrás del 3, cada uno en la celda del de adelante
+		for (int a = 1; a <= 3; a++) assertTrue(tc.occupy(3, a, a));
+		Thread[] line = new Thread[2];
+		for (int k = 0; k < 2; k++) {
+			final int a = 2 - k;
+			line[k] = new Thread(() -> {
+				try { tc.moveWhenFree(3, a, 3, a + 1, a); } catch (InterruptedException ignored) {}
+			});
+			line[k].start();
+			while (line[k].getState() != Thread.State.WAITING) Thread.sleep(1);
+		}
+		long robots = Metrics.get().getPlatoonRobots();
+		assertTrue(tc.tryMove(3, 3, 3, 4, 3));
+		// al volver tryMove la fila ya cambió de dueños, aunque los hilos todavía no se movieron
+		assertEquals(2, tc.ownerAt(3, 3));
+		assertEquals(1, tc.ownerAt(3, 2));
+		assertFalse(tc.isOccupied(3, 1));
+		assertEquals(robots + 3, Metrics.get().getPlatoonRobots());
+		for (Thread t : line) t.join(5000);
+	}
+
+	@Test
+	public void testCellCycleRotatesAndHeadOnBacksOff() throws Exception
+	{	tc.reset(21, 31);
+		// anillo de tres: (5,1) -> (5,2) -> (6,2) -> (5,1)
+		final int[][] cells = {{5, 1}, {5, 2}, {6, 2}};
+		for (int i = 0; i < 3; i++) assertTrue(tc.occupy(cells[i][0], cells[i][1], i + 1));
+		final AtomicBoolean[] moved = {new AtomicBoolean(), new AtomicBoolean(), new AtomicBoolean()};
+		Thread[] ring = new Thread[3];
+		for (int i = 0; i < 3; i++) {
+			final int k = i;
+			ring[i] = new Thread(() -> {
+				int[] from = cells[k];
+				int[] to = cells[(k + 1) % 3];
+				try { moved[k].set(tc.moveWhenFree(from[0], from[1], to[0], to[1], k + 1)); }
+				catch (InterruptedException ignored) {}
+			});
+			ring[i].start();
+		}
+		for (Thread t : ring) t.join(5000);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(moved[i].get());
+			assertTrue(tc.isOccupied(cells[i][0], cells[i][1]));
+		}
+
+		// de frente: retrocede el de mayor id
+		assertTrue(tc.occupy(8, 1, 4));
+		assertTrue(tc.occupy(8, 2, 5));
+		final AtomicBoolean lowMoved = new AtomicBoolean();
+		Thread low = new Thread(() -> {
+			try { lowMoved.set(tc.moveWhenFree(8, 1, 8, 2, 4)); } catch (InterruptedException ignored) {}
+		});
+		low.start();
+		while (low.getState() != Thread.State.WAITING) Thread.sleep(1);
+		assertFalse(tc.moveWhenFree(8, 2, 8, 1, 5));
+		low.interrupt();
+		low.join(5000);
+		assertFalse(lowMoved.get());
+	}
+
+	@Test
+	public void testHeadOnOnStaticRoutesBothArrive() throws Exception
+	{	WorldModel world = new WorldModel(3, 8);
+		tc.reset(3, 8);
+		tc.configureGrid(world);
+		// rutas fijas (sin planner) por la calle 1 en sentidos opuestos, ya de frente:
+		// el que cede se corre a la calle 2, deja pasar y vuelve a su ruta
+		final RacerBot east = racer(world, 4, Directions.East, 6);
+		final RacerBot west = racer(world, 5, Directions.West, 2);
+		long before = tc.getDeadlocksResolved();
+		Thread a = new Thread(() -> { east.moveTo(1, 6, null); east.moveTo(3, 6, null); });
+		Thread b = new Thread(() -> { west.moveTo(1, 2, null); west.moveTo(3, 2, null); });
+		a.start();
+		b.start();
+		a.join(10000);
+		b.join(10000);
+		assertFalse(a.isAlive());
+		assertFalse(b.isAlive());
+		assertTrue(tc.isOccupied(3, 6));
+		assertTrue(tc.isOccupied(3, 2));
+		assertTrue(tc.getDeadlocksResolved() > before);
+	}
+
+	// Robot de ruta fija que sale de (1, from) por la calle 1 hasta (1, to) y sube a (3, to)
+	private static RacerBot racer(WorldModel world, int from, Directions.Direction dir, int to)
+	{	CompiledRoute route = CompiledRoute.compile(new int[]{1, 1, 3}, new int[]{from, to, to}, 3);
+		return new RacerBot(route, null, new HeadlessBody(world, 1, from, dir, 0), 1, from, dir, 0);
+	}
+}
@@ -0,0 +1,189 @@
+package karel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lector de archivos .kwld propio, en vez de World.readWorld de KarelJRobot:
+ * - Recorre el archivo mapeado en memoria por ventanas de WINDOW_BYTES, byte a byte, sin
+ *   armar líneas ni Strings: palabra clave y enteros se reconocen sobre los bytes
+ * - Los muros van directo a los bitsets del WorldModel (un tramo de eastwestwalls es un
+ *   rango de bits) y los beepers a un int[]; el heap es el del modelo y nada más
+ * - Mismo formato que WorldModel.load siempre aceptó: "streets N", "avenues M",
+ *   "beepers s a n", "eastwestwalls s a1 a2", "northsouthwalls a s1 s2"; mayúsculas o
+ *   minúsculas, fin de línea \n o \r\n, las líneas que no reconoce se saltean
+ */
+final class WorldFileReader {
+    static final int WINDOW_BYTES = 64 << 20;
+
+    private static final byte[] STREETS = bytes("streets");
+    private static final byte[] AVENUES = bytes("avenues");
+    private static final byte[] BEEPERS = bytes("beepers");
+    private static final byte[] EAST_WEST = bytes("eastwestwalls");
+    private static final byte[] NORTH_SOUTH = bytes("northsouthwalls");
+    private static final int MAX_WORD = 16;
+    private static final int EOF = -1;
+
+    private final String file;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowBytes;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private int line = 1;
+    private final byte[] word = new byte[MAX_WORD];
+
+    private WorldFileReader(String file, FileChannel channel, int windowBytes) throws IOException {
+        if (windowBytes <= 0) throw new IllegalArgumentException("Ventana inválida: " + windowBytes);
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowBytes = windowBytes;
+        map(0);
+    }
+
+    /** Lee worldFile y devuelve el modelo con sus muros y beepers. */
+    static WorldModel read(String worldFile) throws IOException {
+        return read(worldFile, WINDOW_BYTES);
+    }
+
+    // windowBytes: cuánto del archivo se mapea a la vez (las pruebas lo achican)
+    static WorldModel read(String worldFile, int windowBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(worldFile, "r"); FileChannel ch = raf.getChannel()) {
+            return new WorldFileReader(worldFile, ch, windowBytes).parse();
+        }
+    }
+
+    private WorldModel parse() throws IOException {
+        int streets = 0;
+        int avenues = 0;
+        WorldModel model = null;
+        while (true) {
+            int n = readWord();
+            if (n == EOF) break;
+            if (is(n, STREETS)) {
+                streets = readInt();
+                skipLine();
+                continue;
+            }
+            if (is(n, AVENUES)) {
+                avenues = readInt();
+                skipLine();
+                continue;
+            }
+            boolean beepers = is(n, BEEPERS), eastWest = is(n, EAST_WEST), northSouth = is(n, NORTH_SOUTH);
+            if (!beepers && !eastWest && !northSouth) {
+                skipLine();
+                continue;
+            }
+            if (model == null) {
+                if (streets <= 0 || avenues <= 0) {
+                    throw new IOException("Faltan streets/avenues antes de la línea " + line + " en " + file);
+                }
+                model = new WorldModel(streets, avenues);
+            }
+            int x = readInt();
+            int y = readInt();
+            int z = readInt();
+            try {
+                if (beepers) model.placeBeepers(x, y, z);
+                else if (eastWest) model.placeNorthWalls(x, y, z);
+                else model.placeEastWalls(x, y, z);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + " en la línea " + line + " de " + file, e);
+            }
+            skipLine();
+        }
+        if (model == null) {
+            if (streets <= 0 || avenues <= 0) throw new IOException("Mundo sin dimensiones: " + file);
+            model = new WorldModel(streets, avenues);
+        }
+        return model;
+    }
+
+    // Próximo byte sin consumirlo (EOF al final); mapea la ventana siguiente si hace falta
+    private int peek() throws IOException {
+        if (!window.hasRemaining()) {
+            long next = windowStart + window.limit();
+            if (next >= size) return EOF;
+            map(next);
+        }
+        return window.get(window.position()) & 0xff;
+    }
+
+    private int next() throws IOException {
+        int b = peek();
+        if (b != EOF) window.position(window.position() + 1);
+        return b;
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+    }
+
+    private static boolean blank(int b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    // Saltea espacios y líneas vacías y lee la primera palabra de la línea en word (en minúsculas)
+    private int readWord() throws IOException {
+        int b;
+        while ((b = peek()) != EOF && (blank(b) || b == '\n')) {
+            if (b == '\n') line++;
+            next();
+        }
+        if (b == EOF) return EOF;
+        int n = 0;
+        while ((b = peek()) != EOF && !blank(b) && b != '\n') {
+            if (n < MAX_WORD) word[n] = (byte) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+            n++;
+            next();
+        }
+        return n;
+    }
+
+    private boolean is(int n, byte[] keyword) {
+        if (n != keyword.length) return false;
+        for (int i = 0; i < n; i++) if (word[i] != keyword[i]) return false;
+        return true;
+    }
+
+    private int readInt() throws IOException {
+        int b;
+        while (blank(b = peek())) next();
+        boolean negative = false;
+        if (b == '-') {
+            negative = true;
+            next();
+            b = peek();
+        }
+        if (b < '0' || b > '9') throw new IOException("Formato inválido en la línea " + line + " de " + file);
+        long value = 0;
+        while ((b = peek()) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            if (value > Integer.MAX_VALUE) throw new IOException("Número fuera de rango en la línea " + line + " de " + file);
+            next();
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    // Descarta el resto de la línea (también el fin de línea)
+    private void skipLine() throws IOException {
+        int b;
+        while ((b = next()) != EOF) {
+            if (b == '\n') {
+                line++;
+                return;
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+}
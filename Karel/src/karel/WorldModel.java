@@ -0,0 +1,139 @@
+package karel;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import kareltherobot.Directions;
+
+/**
+ * Modelo en memoria de un mundo .kwld, sin Swing ni demoras:
+ * - Dimensiones (streets x avenues), muros este-oeste y norte-sur
+ * - Beepers por celda (negativo = infinitos)
+ * - Sirve de mundo para los robots en modo headless
+ * Los muros son dos bitsets (un bit por celda: muro al norte, muro al este) que se llenan
+ * al cargar y después sólo se leen: isClear es O(1) y sin locks desde cualquier hilo. Los
+ * beepers son un arreglo de int que los robots cambian con CAS.
+ */
+public final class WorldModel {
+    private final int streets;
+    private final int avenues;
+
+    // muro al norte de la celda / muro al este de la celda, un bit por índice de celda
+    private final long[] northWall;
+    private final long[] eastWall;
+    private final AtomicIntegerArray beepers;
+
+    public WorldModel(int streets, int avenues) {
+        if (streets <= 0 || avenues <= 0) {
+            throw new IllegalArgumentException("Dimensiones inválidas: " + streets + "x" + avenues);
+        }
+        this.streets = streets;
+        this.avenues = avenues;
+        int size = (streets + 1) * (avenues + 1);
+        this.northWall = new long[(size + 63) >>> 6];
+        this.eastWall = new long[(size + 63) >>> 6];
+        this.beepers = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * Lee un archivo .kwld con el mismo formato que World.readWorld:
+     * "streets N", "avenues M", "beepers s a n",
+     * "eastwestwalls s a1 a2" (muro al norte de la calle s) y
+     * "northsouthwalls a s1 s2" (muro al este de la avenida a).
+     * El archivo se recorre mapeado en memoria (WorldFileReader).
+     */
+    public static WorldModel load(String worldFile) throws IOException {
+        return WorldFileReader.read(worldFile);
+    }
+
+    public int getStreets() { return streets; }
+    public int getAvenues() { return avenues; }
+
+    private int index(int street, int avenue) {
+        if (street < 1 || street > streets || avenue < 1 || avenue > avenues) return -1;
+        return street * (avenues + 1) + avenue;
+    }
+
+    private int checkedIndex(int street, int avenue) {
+        int i = index(street, avenue);
+        if (i < 0) throw new IllegalArgumentException("Celda fuera del mundo: " + street + "," + avenue);
+        return i;
+    }
+
+    // Los muros se ponen al armar el modelo, antes de compartirlo con los robots
+    public void placeNorthWall(int street, int avenue) { set(northWall, checkedIndex(street, avenue)); }
+    public void placeEastWall(int street, int avenue) { set(eastWall, checkedIndex(street, avenue)); }
+
+    // eastwestwalls street a1 a2: muro al norte de la calle en las avenidas a1..a2 (bits contiguos)
+    void placeNorthWalls(int street, int fromAvenue, int toAvenue) {
+        if (fromAvenue > toAvenue) return;
+        setRange(northWall, checkedIndex(street, fromAvenue), checkedIndex(street, toAvenue));
+    }
+
+    // northsouthwalls avenue s1 s2: muro al este de la avenida en las calles s1..s2
+    void placeEastWalls(int avenue, int fromStreet, int toStreet) {
+        if (fromStreet > toStreet) return;
+        checkedIndex(toStreet, avenue);
+        for (int i = checkedIndex(fromStreet, avenue), last = index(toStreet, avenue); i <= last; i += avenues + 1) {
+            set(eastWall, i);
+        }
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void setRange(long[] bits, int from, int to) {
+        int first = from >>> 6, last = to >>> 6;
+        long head = -1L << from, tail = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            bits[first] |= head & tail;
+            return;
+        }
+        bits[first] |= head;
+        for (int w = first + 1; w < last; w++) bits[w] = -1L;
+        bits[last] |= tail;
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public void placeBeepers(int street, int avenue, int count) {
+        beepers.set(checkedIndex(street, avenue), count);
+    }
+
+    // Hay paso desde (street,avenue) hacia la dirección dada (bordes del modelo = muro)
+    public boolean isClear(int street, int avenue, Directions.Direction dir) {
+        if (index(street, avenue) < 0) return false;
+        if (dir == Directions.North) return street < streets && !get(northWall, index(street, avenue));
+        if (dir == Directions.South) return street > 1 && !get(northWall, index(street - 1, avenue));
+        if (dir == Directions.East)  return avenue < avenues && !get(eastWall, index(street, avenue));
+        return avenue > 1 && !get(eastWall, index(street, avenue - 1));
+    }
+
+    public int beepersAt(int street, int avenue) {
+        int i = index(street, avenue);
+        return i < 0 ? 0 : beepers.get(i);
+    }
+
+    // Toma un beeper de la celda si hay; las celdas infinitas (negativas) no se agotan
+    public boolean takeBeeper(int street, int avenue) {
+        int i = index(street, avenue);
+        if (i < 0) return false;
+        while (true) {
+            int n = beepers.get(i);
+            if (n < 0) return true;
+            if (n == 0) return false;
+            if (beepers.compareAndSet(i, n, n - 1)) return true;
+        }
+    }
+
+    public void putBeeper(int street, int avenue) {
+        int i = checkedIndex(street, avenue);
+        while (true) {
+            int n = beepers.get(i);
+            if (n < 0 || beepers.compareAndSet(i, n, n + 1)) return;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package karel;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import kareltherobot.Directions;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorldModelTest implements Directions
+{
+	private WorldModel world;
+
+	@Before
+	public void setUp() throws Exception
+	{	world = WorldModel.load("race.kwld");
+	}
+
+	@Test
+	public void testDimensionsAndBeepers()
+	{	assertEquals(21, world.getStreets());
+		assertEquals(31, world.getAvenues());
+		assertEquals(500, world.beepersAt(1, 9));
+		assertEquals(500, world.beepersAt(11, 23));
+		assertEquals(0, world.beepersAt(2, 2));
+	}
+
+	@Test
+	public void testWalls()
+	{	// eastwestwalls 3 2 7: muro al norte de la calle 3
+		assertFalse(world.isClear(3, 4, North));
+		assertFalse(world.isClear(4, 4, South));
+		assertTrue(world.isClear(3, 1, North));
+		assertFalse(world.isClear(1, 1, South));
+		assertFalse(world.isClear(1, 1, West));
+	}
+
+	@Test
+	public void testHeadlessBodyPicksAndPuts()
+	{	HeadlessBody body = new HeadlessBody(world, 1, 9, East, 0);
+		assertTrue(body.nextToABeeper());
+		body.pickBeeper();
+		assertEquals(499, world.beepersAt(1, 9));
+		body.move();
+		body.putBeeper();
+		assertEquals(1, world.beepersAt(1, 10));
+	}
+
+	@Test
+	public void testMappedLoaderMatchesCellByCellWalls() throws Exception
+	{	// ventanas de 7 bytes: los números y las palabras quedan partidos entre mapeos
+		File f = write("KarelWorld\r\nStreets 6\r\nAVENUES 70\r\n\r\n  beepers 2 3 -1\r\n"
+				+ "eastwestwalls 2 1 70\r\nnorthsouthwalls 64 1 6\r\neastwestwalls 5 63 65\r\nfoo 1 2\r\nbeepers 6 70 12");
+		WorldModel mapped = WorldFileReader.read(f.getPath(), 7);
+		WorldModel expected = new WorldModel(6, 70);
+		for (int a = 1; a <= 70; a++) expected.placeNorthWall(2, a);
+		for (int s = 1; s <= 6; s++) expected.placeEastWall(s, 64);
+		for (int a = 63; a <= 65; a++) expected.placeNorthWall(5, a);
+		assertEquals(6, mapped.getStreets());
+		assertEquals(70, mapped.getAvenues());
+		for (int s = 1; s <= 6; s++)
+			for (int a = 1; a <= 70; a++)
+				for (Directions.Direction d : new Directions.Direction[] {North, East, South, West})
+					assertEquals(s + "," + a + " " + d, expected.isClear(s, a, d), mapped.isClear(s, a, d));
+		assertEquals(-1, mapped.beepersAt(2, 3));
+		assertEquals(12, mapped.beepersAt(6, 70));
+		assertTrue(mapped.takeBeeper(2, 3));
+	}
+
+	@Test
+	public void testMappedLoaderRejectsBadFiles() throws Exception
+	{	assertLoadFails("beepers 1 1 1\nstreets 2\navenues 2\n");
+		assertLoadFails("streets 2\navenues 2\neastwestwalls 1 x 2\n");
+		assertLoadFails("streets 2\navenues 2\nnorthsouthwalls 3 1 1\n");
+		assertLoadFails("avenues 2\n");
+	}
+
+	private static void assertLoadFails(String content) throws IOException
+	{	try
+		{	WorldModel.load(write(content).getPath());
+			fail("se esperaba IOException: " + content);
+		} catch (IOException expected)
+		{
+		}
+	}
+
+	private static File write(String content) throws IOException
+	{	File f = File.createTempFile("world", ".kwld");
+		f.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(f))
+		{	out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return f;
+	}
+}
@@ -0,0 +1,2 @@
+javac -encoding UTF-8 -cp KarelJRobot.jar -d out src/karel/*.java
+java -cp out:KarelJRobot.jar karel.ParameterSweep "$@"